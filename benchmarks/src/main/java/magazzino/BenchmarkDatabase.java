@@ -0,0 +1,90 @@
+package magazzino;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+
+/**
+ * Archivi di prova collegati agli handler: H2 in memoria (modalità MySQL) dietro il backend
+ * JDBC al posto di MySQL, oppure il backend embedded in una directory temporanea.
+ */
+final class BenchmarkDatabase {
+    private static final String[] NOMI = {
+            "Amoxicillina 500mg", "Garze sterili", "Siringhe 5ml", "Meloxicam \"Metacam\"",
+            "Collare elisabettiano", "Soluzione fisiologica", "Antiparassitario cani\tL", "Cerotti"
+    };
+
+    private BenchmarkDatabase() {
+    }
+
+    // Crea lo schema, inserisce le righe richieste e assegna l'archivio JDBC a Main
+    static InventoryRepository avvia(String nome, int prodotti, int daOrdinare) throws SQLException {
+        String url = "jdbc:h2:mem:" + nome + ";MODE=MySQL;DB_CLOSE_DELAY=-1";
+        PooledDataSource dataSource = new PooledDataSource(url, "sa", "", 2, 16, 2000, 300_000, 5000, 32);
+        try (Connection conn = dataSource.getConnection()) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("DROP ALL OBJECTS");
+                stmt.execute("CREATE TABLE magazzino (id INT AUTO_INCREMENT PRIMARY KEY, "
+                        + "nome VARCHAR(255) NOT NULL, quantita INT NOT NULL, scadenza DATE)");
+                stmt.execute("CREATE TABLE da_ordinare (id INT PRIMARY KEY, nome VARCHAR(255) NOT NULL, quantita INT NOT NULL)");
+            }
+            conn.setAutoCommit(false);
+            String sqlProdotto = "INSERT INTO magazzino (nome, quantita, scadenza) VALUES (?, ?, ?)";
+            try (PreparedStatement stmt = conn.prepareStatement(sqlProdotto)) {
+                LocalDate oggi = LocalDate.now();
+                for (int i = 0; i < prodotti; i++) {
+                    stmt.setString(1, nome(i));
+                    // Scorte ampie: i prelievi dei benchmark restano sul percorso veloce
+                    stmt.setInt(2, 1_000_000);
+                    stmt.setDate(3, Date.valueOf(oggi.plusDays(i % 365)));
+                    stmt.addBatch();
+                    if (i % 1000 == 999) {
+                        stmt.executeBatch();
+                    }
+                }
+                stmt.executeBatch();
+            }
+            String sqlDaOrdinare = "INSERT INTO da_ordinare (id, nome, quantita) VALUES (?, ?, 0)";
+            try (PreparedStatement stmt = conn.prepareStatement(sqlDaOrdinare)) {
+                for (int i = 0; i < daOrdinare; i++) {
+                    stmt.setInt(1, i + 1);
+                    stmt.setString(2, nome(i));
+                    stmt.addBatch();
+                    if (i % 1000 == 999) {
+                        stmt.executeBatch();
+                    }
+                }
+                stmt.executeBatch();
+            }
+            conn.commit();
+        }
+        InventoryRepository repository = new JdbcInventoryRepository(dataSource);
+        Main.sedi = SiteRouter.singola(repository);
+        return repository;
+    }
+
+    // Archivio embedded senza sincronizzazione su disco, con gli stessi prodotti di avvia()
+    static InventoryRepository avviaEmbedded(int prodotti) throws IOException, SQLException {
+        Path directory = Files.createTempDirectory("magazzino-bench");
+        EmbeddedInventoryRepository repository = EmbeddedInventoryRepository.apri(directory, 64 << 20, false);
+        LocalDate oggi = LocalDate.now();
+        try (InventoryRepository.Importazione importazione = repository.importa()) {
+            for (int i = 0; i < prodotti; i++) {
+                importazione.aggiungi(nome(i), 1_000_000, oggi.plusDays(i % 365));
+            }
+            importazione.conferma();
+        }
+        Main.sedi = SiteRouter.singola(repository);
+        return repository;
+    }
+
+    static String nome(int i) {
+        return NOMI[i % NOMI.length] + " lotto " + i;
+    }
+}
@@ -0,0 +1,62 @@
+package magazzino;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Escape JSON dei nomi prodotto: il caso comune non contiene caratteri da sostituire.
+ * Confronta l'escape su stringa con la scrittura diretta nel buffer della risposta.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EscapeJsonBenchmark {
+    @Param({"semplice", "con-escape", "lungo"})
+    public String testo;
+
+    private String valore;
+    private final OutputStream scarto = OutputStream.nullOutputStream();
+
+    @Setup
+    public void prepara() {
+        switch (testo) {
+            case "semplice":
+                valore = "Amoxicillina 500mg compresse";
+                break;
+            case "con-escape":
+                valore = "Meloxicam \"Metacam\"\t1.5mg\\ml\nsospensione";
+                break;
+            default:
+                valore = "Soluzione fisiologica sterile 0.9% flacone da 500ml ".repeat(8);
+                break;
+        }
+    }
+
+    @Benchmark
+    public String escapeJson() {
+        return HttpCodec.escapeJson(valore);
+    }
+
+    @Benchmark
+    public void scriviStringa() throws IOException {
+        JsonWriter out = new JsonWriter(scarto);
+        out.scriviStringa(valore);
+        out.close();
+    }
+}
@@ -0,0 +1,106 @@
+package magazzino;
+
+import com.sun.net.httpserver.HttpHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handler chiamati end-to-end (parsing, archivio, serializzazione) con 10k prodotti, sul
+ * backend JDBC con H2 embedded e sul backend embedded. Ogni benchmark verifica il codice di
+ * stato, così un errore non passa per una risposta veloce.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HandlerBenchmark {
+    private static final int PRODOTTI = 10_000;
+
+    @Param({"jdbc", "embedded"})
+    public String archivio;
+
+    private final Main.RiepilogoMagazzinoHandler riepilogo = new Main.RiepilogoMagazzinoHandler();
+    private final Main.PrelevaProdottoHandler preleva = new Main.PrelevaProdottoHandler();
+    private final Main.InserisciProdottoHandler inserisci = new Main.InserisciProdottoHandler();
+    private InventoryRepository repository;
+
+    @Setup(Level.Trial)
+    public void prepara() throws IOException, SQLException {
+        repository = "embedded".equals(archivio)
+                ? BenchmarkDatabase.avviaEmbedded(PRODOTTI)
+                : BenchmarkDatabase.avvia("handler", PRODOTTI, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void chiudi() {
+        repository.close();
+    }
+
+    @Benchmark
+    public long riepilogoDaCache() throws IOException {
+        return esegui(riepilogo, FakeExchange.get("/riepilogoMagazzino?limit=100"), 200);
+    }
+
+    @Benchmark
+    public long riepilogoPrimaPagina() throws IOException {
+        invalidaCache();
+        return esegui(riepilogo, FakeExchange.get("/riepilogoMagazzino?limit=100"), 200);
+    }
+
+    @Benchmark
+    public long riepilogoPaginaProfonda() throws IOException {
+        invalidaCache();
+        return esegui(riepilogo, FakeExchange.get("/riepilogoMagazzino?limit=100&after=9000"), 200);
+    }
+
+    @Benchmark
+    public long riepilogoFiltratoPerScadenza() throws IOException {
+        invalidaCache();
+        return esegui(riepilogo,
+                FakeExchange.get("/riepilogoMagazzino?limit=100&sort=scadenza&prefisso=Amox&sottoQuantita=2000000"), 200);
+    }
+
+    @Benchmark
+    public long prelevaProdotto() throws IOException {
+        int id = 1 + ThreadLocalRandom.current().nextInt(PRODOTTI);
+        return esegui(preleva, FakeExchange.post("/prelevaProdotto", "id=" + id + "&quantita=1"), 200);
+    }
+
+    @Benchmark
+    public long inserisciProdotto() throws IOException {
+        return esegui(inserisci, FakeExchange.post("/inserisciProdotto",
+                "nomeProdotto=Siringhe%205ml&quantita=40&scadenza=2027-01-15"), 303);
+    }
+
+    private static long esegui(HttpHandler handler, FakeExchange exchange, int atteso)
+            throws IOException {
+        handler.handle(exchange);
+        if (exchange.stato() != atteso) {
+            throw new IllegalStateException("Risposta " + exchange.stato() + " invece di " + atteso);
+        }
+        return exchange.byteInviati();
+    }
+
+    private static void invalidaCache() {
+        Main.sedi.predefinita().cache.inizioScrittura();
+        Main.sedi.predefinita().cache.fineScrittura();
+    }
+}
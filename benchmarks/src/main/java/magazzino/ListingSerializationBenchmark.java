@@ -0,0 +1,75 @@
+package magazzino;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializzazione dei listing completi a 100, 10k e 100k righe: /prodottiInScadenza
+ * dall'indice in memoria e /prodottiDaOrdinare dal database embedded. La cache dei listing
+ * viene invalidata prima di ogni chiamata, così si misura sempre la generazione del JSON.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ListingSerializationBenchmark {
+    @Param({"100", "10000", "100000"})
+    public int righe;
+
+    private final Main.ProdottiInScadenzaHandler scadenze = new Main.ProdottiInScadenzaHandler();
+    private final Main.ProdottiDaOrdinareHandler daOrdinare = new Main.ProdottiDaOrdinareHandler();
+    private InventoryRepository repository;
+
+    @Setup(Level.Trial)
+    public void prepara() throws SQLException {
+        repository = BenchmarkDatabase.avvia("listing", 0, righe);
+        LocalDate oggi = LocalDate.now();
+        for (int i = 0; i < righe; i++) {
+            Main.sedi.predefinita().indiceScadenze.inserisci(i + 1, BenchmarkDatabase.nome(i), 10 + i % 90, oggi.plusDays(i % 30));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void chiudi() {
+        repository.close();
+    }
+
+    @Benchmark
+    public long scadenzeDaIndice() throws IOException {
+        invalidaCache();
+        FakeExchange exchange = FakeExchange.get("/prodottiInScadenza?giorni=30");
+        scadenze.handle(exchange);
+        return exchange.byteInviati();
+    }
+
+    @Benchmark
+    public long daOrdinareDaDatabase() throws IOException {
+        invalidaCache();
+        FakeExchange exchange = FakeExchange.get("/prodottiDaOrdinare");
+        daOrdinare.handle(exchange);
+        return exchange.byteInviati();
+    }
+
+    private static void invalidaCache() {
+        Main.sedi.predefinita().cache.inizioScrittura();
+        Main.sedi.predefinita().cache.fineScrittura();
+    }
+}
@@ -0,0 +1,495 @@
+package magazzino;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Generatore di carico sugli endpoint HTTP reali, per riprodurre il traffico prima di un
+ * rilascio e confrontare le esecuzioni.
+ *
+ * Le richieste partono da un HttpClient su virtual thread secondo un mix di operazioni
+ * pesato. In ciclo chiuso un numero fisso di utenti invia la richiesta successiva quando
+ * arriva la risposta; in ciclo aperto le richieste partono a ritmo costante indipendentemente
+ * dalle risposte, e la latenza è misurata dall'istante previsto di invio, così le attese
+ * dovute a un server rallentato non spariscono dalle statistiche.
+ *
+ * Con --archivio=embedded (default) o --archivio=h2 il server viene avviato in questo processo
+ * su una directory temporanea; con --archivio=nessuno si usa il server indicato da --url.
+ * Le opzioni --server.nome=valore vengono passate al server come --nome=valore.
+ *
+ *     java -cp benchmarks/target/benchmarks.jar magazzino.LoadGenerator \
+ *         --mix=riepilogo:70,preleva:20,inserisci:10 --modalita=aperto --rps=500 --durata=60
+ *
+ * Alla fine stampa richieste, errori, throughput e percentili per operazione e salva lo
+ * stesso riepilogo in JSON (--report) per il confronto con le esecuzioni precedenti.
+ */
+public final class LoadGenerator {
+    static final String CHIUSO = "chiuso";
+    static final String APERTO = "aperto";
+
+    private static final double[] PERCENTILI = {0.5, 0.9, 0.99, 0.999, 1.0};
+    // 7 bit di sotto-intervalli: percentili con errore relativo sotto l'1%
+    private static final int RISOLUZIONE_ISTOGRAMMA = 7;
+    private static final Pattern ID = Pattern.compile("\"id\":(\\d+)");
+    private static final Pattern CURSORE = Pattern.compile("\"nextCursor\":\"([^\"]+)\"");
+    private static final String[] ORDINAMENTI = {"id", "nome", "scadenza"};
+
+    private final HttpClient client;
+    private final URI base;
+    private final String sede;
+    private final Operazione[] operazioni;
+    private final int[] pesiCumulati;
+    private final Map<Operazione, Statistiche> perOperazione = new LinkedHashMap<>();
+    private final Statistiche totale = new Statistiche();
+    private final LongAdder nonInviate = new LongAdder();
+    private final AtomicInteger inserimenti = new AtomicInteger();
+    private int[] ids = new int[0];
+
+    private enum Operazione {
+        RIEPILOGO("riepilogo"),
+        SCADENZA("scadenza"),
+        DA_ORDINARE("daOrdinare"),
+        PRELEVA("preleva"),
+        INSERISCI("inserisci");
+
+        final String nome;
+
+        Operazione(String nome) {
+            this.nome = nome;
+        }
+
+        static Operazione daNome(String nome) {
+            for (Operazione operazione : values()) {
+                if (operazione.nome.equals(nome)) {
+                    return operazione;
+                }
+            }
+            throw new IllegalArgumentException("Operazione sconosciuta nel mix: " + nome);
+        }
+    }
+
+    // Contatori e latenze di un'operazione (o del totale), aggiornati senza lock
+    private static final class Statistiche {
+        final LatencyHistogram latenze = new LatencyHistogram(RISOLUZIONE_ISTOGRAMMA);
+        final LongAdder richieste = new LongAdder();
+        final LongAdder errori = new LongAdder();
+        final ConcurrentMap<String, LongAdder> esiti = new ConcurrentHashMap<>();
+
+        void registra(long nanos, String esito, boolean errore) {
+            latenze.registraNanos(nanos);
+            richieste.increment();
+            if (errore) {
+                errori.increment();
+            }
+            esiti.computeIfAbsent(esito, e -> new LongAdder()).increment();
+        }
+    }
+
+    LoadGenerator(HttpClient client, URI base, String sede, String mix) {
+        this.client = client;
+        this.base = base;
+        this.sede = sede;
+        List<Operazione> elenco = new ArrayList<>();
+        List<Integer> pesi = new ArrayList<>();
+        int somma = 0;
+        for (String voce : mix.split(",")) {
+            String[] parti = voce.trim().split(":");
+            if (parti.length != 2) {
+                throw new IllegalArgumentException("Voce del mix non valida (atteso operazione:peso): " + voce);
+            }
+            int peso = Integer.parseInt(parti[1].trim());
+            if (peso <= 0) {
+                continue;
+            }
+            Operazione operazione = Operazione.daNome(parti[0].trim());
+            somma += peso;
+            elenco.add(operazione);
+            pesi.add(somma);
+            perOperazione.put(operazione, new Statistiche());
+        }
+        if (elenco.isEmpty()) {
+            throw new IllegalArgumentException("Il mix non contiene operazioni");
+        }
+        this.operazioni = elenco.toArray(new Operazione[0]);
+        this.pesiCumulati = pesi.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String archivio = Main.opzione(args, "archivio", "embedded");
+        String modalita = Main.opzione(args, "modalita", CHIUSO);
+        int durata = Integer.parseInt(Main.opzione(args, "durata", "30"));
+        int riscaldamento = Integer.parseInt(Main.opzione(args, "riscaldamento", "5"));
+        int prodotti = Integer.parseInt(Main.opzione(args, "prodotti", "10000"));
+        String mix = Main.opzione(args, "mix", "riepilogo:70,preleva:20,inserisci:10");
+
+        URI base;
+        if ("nessuno".equals(archivio)) {
+            base = URI.create(Main.opzione(args, "url", "http://localhost:8080"));
+        } else {
+            int porta = Integer.parseInt(Main.opzione(args, "porta", "18080"));
+            avviaServer(archivio, porta, args);
+            base = URI.create("http://localhost:" + porta);
+        }
+
+        ExecutorService virtuale = ServerExecutors.creaVirtuale();
+        ExecutorService richieste = virtuale != null ? virtuale : Executors.newCachedThreadPool();
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .executor(richieste)
+                .build();
+        LoadGenerator generatore = new LoadGenerator(client, base, Main.opzione(args, "sede", ""), mix);
+
+        if (prodotti > 0) {
+            generatore.popola(prodotti);
+        }
+        generatore.caricaIds();
+        System.out.println("Prodotti disponibili per i prelievi: " + generatore.ids.length);
+
+        long inizio = System.nanoTime();
+        long inizioMisura = inizio + TimeUnit.SECONDS.toNanos(riscaldamento);
+        long fine = inizioMisura + TimeUnit.SECONDS.toNanos(durata);
+        System.out.println("Carico " + modalita + " per " + durata + " s (+" + riscaldamento + " s di riscaldamento), mix " + mix);
+        if (CHIUSO.equals(modalita)) {
+            generatore.cicloChiuso(richieste, Integer.parseInt(Main.opzione(args, "utenti", "32")),
+                    Long.parseLong(Main.opzione(args, "pausaMs", "0")), inizioMisura, fine);
+        } else if (APERTO.equals(modalita)) {
+            generatore.cicloAperto(richieste, Double.parseDouble(Main.opzione(args, "rps", "200")),
+                    Integer.parseInt(Main.opzione(args, "maxInVolo", "10000")), inizio, inizioMisura, fine);
+        } else {
+            throw new IllegalArgumentException("Modalità sconosciuta: " + modalita + " (valori ammessi: " + CHIUSO + ", " + APERTO + ")");
+        }
+        richieste.shutdown();
+        richieste.awaitTermination(30, TimeUnit.SECONDS);
+
+        String report = generatore.report(args, durata);
+        System.out.println(generatore.tabella(durata));
+        Path file = Paths.get(Main.opzione(args, "report",
+                "report-carico-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".json"));
+        Files.writeString(file, report);
+        System.out.println("Report salvato in " + file.toAbsolutePath());
+        // Il server avviato in questo processo non si ferma da solo
+        System.exit(0);
+    }
+
+    // Avvia Main in questo processo su un archivio usa e getta
+    private static void avviaServer(String archivio, int porta, String[] args) throws IOException {
+        Path directory = Files.createTempDirectory("magazzino-carico");
+        List<String> opzioni = new ArrayList<>();
+        opzioni.add("--porta=" + porta);
+        opzioni.add("--riordino.file=" + directory.resolve("consumi.dat"));
+        opzioni.add("--movimenti.dir=" + directory.resolve("movimenti"));
+        if ("embedded".equals(archivio)) {
+            opzioni.add("--storage=embedded");
+            opzioni.add("--embedded.dir=" + directory.resolve("dati"));
+            opzioni.add("--embedded.sync=false");
+        } else if ("h2".equals(archivio)) {
+            Path schema = directory.resolve("schema.sql");
+            Files.writeString(schema, "CREATE TABLE magazzino (id INT AUTO_INCREMENT PRIMARY KEY, "
+                    + "nome VARCHAR(255) NOT NULL, quantita INT NOT NULL, scadenza DATE);\n"
+                    + "CREATE TABLE da_ordinare (id INT PRIMARY KEY, nome VARCHAR(255) NOT NULL, quantita INT NOT NULL);\n");
+            opzioni.add("--db.url=jdbc:h2:mem:carico;MODE=MySQL;DB_CLOSE_DELAY=-1;INIT=RUNSCRIPT FROM '"
+                    + schema.toString().replace('\\', '/') + "'");
+            opzioni.add("--db.user=sa");
+            opzioni.add("--db.password=");
+        } else {
+            throw new IllegalArgumentException("Archivio sconosciuto: " + archivio + " (valori ammessi: embedded, h2, nessuno)");
+        }
+        // Le opzioni del server indicate sulla riga di comando hanno la precedenza
+        for (String arg : args) {
+            if (arg.startsWith("--server.")) {
+                opzioni.add(0, "--" + arg.substring("--server.".length()));
+            }
+        }
+        Main.main(opzioni.toArray(new String[0]));
+    }
+
+    // Importa i prodotti sintetici con l'endpoint di importazione, con scorte ampie per i prelievi
+    private void popola(int prodotti) throws IOException, InterruptedException {
+        StringBuilder csv = new StringBuilder(prodotti * 48);
+        LocalDate oggi = LocalDate.now();
+        for (int i = 0; i < prodotti; i++) {
+            csv.append(BenchmarkDatabase.nome(i).replace(';', ',').replace('\t', ' '))
+                    .append(';').append(1_000_000_000)
+                    .append(';').append(oggi.plusDays(i % 365)).append('\n');
+        }
+        long inizio = System.nanoTime();
+        HttpResponse<String> risposta = client.send(HttpRequest.newBuilder(uri("/importaProdotti", ""))
+                        .header("Content-Type", "text/csv; charset=UTF-8")
+                        .POST(HttpRequest.BodyPublishers.ofString(csv.toString()))
+                        .build(),
+                HttpResponse.BodyHandlers.ofString());
+        if (risposta.statusCode() != 200) {
+            throw new IOException("Popolamento non riuscito: " + risposta.statusCode() + " " + risposta.body());
+        }
+        System.out.println("Popolamento: " + prodotti + " prodotti in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inizio) + " ms");
+    }
+
+    // Legge gli id presenti scorrendo il riepilogo a pagine
+    void caricaIds() throws IOException, InterruptedException {
+        List<Integer> trovati = new ArrayList<>();
+        String cursore = null;
+        do {
+            String query = "limit=1000" + (cursore != null ? "&after=" + cursore : "");
+            HttpResponse<String> risposta = client.send(HttpRequest.newBuilder(uri("/riepilogoMagazzino", query)).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            if (risposta.statusCode() != 200) {
+                throw new IOException("Lettura degli id non riuscita: " + risposta.statusCode());
+            }
+            Matcher id = ID.matcher(risposta.body());
+            while (id.find()) {
+                trovati.add(Integer.parseInt(id.group(1)));
+            }
+            Matcher prossimo = CURSORE.matcher(risposta.body());
+            cursore = prossimo.find() ? prossimo.group(1) : null;
+        } while (cursore != null);
+        ids = trovati.stream().mapToInt(Integer::intValue).toArray();
+        if (ids.length == 0 && perOperazione.containsKey(Operazione.PRELEVA)) {
+            throw new IllegalStateException("Nessun prodotto da prelevare: usare --prodotti o un server già popolato");
+        }
+    }
+
+    // Utenti fissi: ognuno invia la richiesta successiva quando riceve la risposta
+    void cicloChiuso(ExecutorService richieste, int utenti, long pausaMs, long inizioMisura, long fine)
+            throws InterruptedException, ExecutionException {
+        List<Future<?>> attesa = new ArrayList<>();
+        for (int u = 0; u < utenti; u++) {
+            attesa.add(richieste.submit(() -> {
+                while (System.nanoTime() < fine) {
+                    long partenza = System.nanoTime();
+                    esegui(scegli(), partenza, partenza >= inizioMisura);
+                    if (pausaMs > 0) {
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(pausaMs));
+                    }
+                }
+            }));
+        }
+        for (Future<?> utente : attesa) {
+            utente.get();
+        }
+    }
+
+    /**
+     * Arrivi a ritmo costante: la richiesta i parte all'istante inizio + i / rps. Oltre
+     * maxInVolo richieste senza risposta quelle nuove non vengono inviate e si contano a parte.
+     */
+    void cicloAperto(ExecutorService richieste, double rps, int maxInVolo,
+                      long inizio, long inizioMisura, long fine) {
+        if (rps <= 0) {
+            throw new IllegalArgumentException("rps deve essere positivo");
+        }
+        double intervallo = TimeUnit.SECONDS.toNanos(1) / rps;
+        AtomicInteger inVolo = new AtomicInteger();
+        for (long i = 0; ; i++) {
+            long previsto = inizio + (long) (i * intervallo);
+            if (previsto >= fine) {
+                break;
+            }
+            long attesa = previsto - System.nanoTime();
+            if (attesa > 0) {
+                LockSupport.parkNanos(attesa);
+            }
+            boolean misurata = previsto >= inizioMisura;
+            if (inVolo.get() >= maxInVolo) {
+                if (misurata) {
+                    nonInviate.increment();
+                }
+                continue;
+            }
+            inVolo.incrementAndGet();
+            Operazione operazione = scegli();
+            richieste.execute(() -> {
+                try {
+                    esegui(operazione, previsto, misurata);
+                } finally {
+                    inVolo.decrementAndGet();
+                }
+            });
+        }
+    }
+
+    private Operazione scegli() {
+        int estratto = ThreadLocalRandom.current().nextInt(pesiCumulati[pesiCumulati.length - 1]);
+        for (int i = 0; i < pesiCumulati.length; i++) {
+            if (estratto < pesiCumulati[i]) {
+                return operazioni[i];
+            }
+        }
+        return operazioni[operazioni.length - 1];
+    }
+
+    // Invia la richiesta e registra la latenza da "partenza"; gli errori di rete contano come errori
+    private void esegui(Operazione operazione, long partenza, boolean misurata) {
+        String esito;
+        boolean errore;
+        try {
+            HttpResponse<Void> risposta = client.send(richiesta(operazione), HttpResponse.BodyHandlers.discarding());
+            esito = Integer.toString(risposta.statusCode());
+            errore = risposta.statusCode() >= 400;
+        } catch (IOException e) {
+            esito = e.getClass().getSimpleName();
+            errore = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (misurata) {
+            long nanos = System.nanoTime() - partenza;
+            perOperazione.get(operazione).registra(nanos, esito, errore);
+            totale.registra(nanos, esito, errore);
+        }
+    }
+
+    private HttpRequest richiesta(Operazione operazione) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (operazione) {
+            case RIEPILOGO:
+                return HttpRequest.newBuilder(uri("/riepilogoMagazzino",
+                        "limit=100&sort=" + ORDINAMENTI[random.nextInt(ORDINAMENTI.length)])).build();
+            case SCADENZA:
+                return HttpRequest.newBuilder(uri("/prodottiInScadenza", "giorni=" + (7 + random.nextInt(24)))).build();
+            case DA_ORDINARE:
+                return HttpRequest.newBuilder(uri("/prodottiDaOrdinare", "")).build();
+            case PRELEVA:
+                return form("/prelevaProdotto", "id=" + ids[random.nextInt(ids.length)] + "&quantita=1&operatore=carico");
+            case INSERISCI:
+                int n = inserimenti.incrementAndGet();
+                return form("/inserisciProdotto", "nomeProdotto=" + URLEncoder.encode("Carico " + n, StandardCharsets.UTF_8)
+                        + "&quantita=1000&scadenza=" + LocalDate.now().plusDays(n % 365) + "&operatore=carico");
+            default:
+                throw new IllegalStateException("Operazione non gestita: " + operazione);
+        }
+    }
+
+    private HttpRequest form(String percorso, String corpo) {
+        if (!sede.isEmpty()) {
+            corpo = "sede=" + URLEncoder.encode(sede, StandardCharsets.UTF_8) + "&" + corpo;
+        }
+        return HttpRequest.newBuilder(uri(percorso, ""))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(corpo))
+                .build();
+    }
+
+    private URI uri(String percorso, String query) {
+        String completa = sede.isEmpty() ? query
+                : "sede=" + URLEncoder.encode(sede, StandardCharsets.UTF_8) + (query.isEmpty() ? "" : "&" + query);
+        return base.resolve(completa.isEmpty() ? percorso : percorso + "?" + completa);
+    }
+
+    private String tabella(int durata) {
+        StringBuilder testo = new StringBuilder();
+        testo.append(String.format(Locale.ROOT, "%n%-12s %10s %8s %10s %9s %9s %9s %9s %9s%n",
+                "operazione", "richieste", "errori", "rich/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+        for (Map.Entry<Operazione, Statistiche> voce : perOperazione.entrySet()) {
+            riga(testo, voce.getKey().nome, voce.getValue(), durata);
+        }
+        riga(testo, "totale", totale, durata);
+        testo.append("Esiti: ").append(esiti(totale));
+        if (nonInviate.sum() > 0) {
+            testo.append(String.format("%nRichieste non inviate (troppe in volo): %d", nonInviate.sum()));
+        }
+        return testo.toString();
+    }
+
+    private static void riga(StringBuilder testo, String nome, Statistiche statistiche, int durata) {
+        LatencyHistogram.Snapshot snapshot = statistiche.latenze.snapshot();
+        testo.append(String.format(Locale.ROOT, "%-12s %10d %8d %10.1f", nome, statistiche.richieste.sum(),
+                statistiche.errori.sum(), statistiche.richieste.sum() / (double) durata));
+        for (double p : PERCENTILI) {
+            testo.append(String.format(Locale.ROOT, " %9.3f", snapshot.quantile(p) / 1000.0));
+        }
+        testo.append('\n');
+    }
+
+    private static Map<String, Long> esiti(Statistiche statistiche) {
+        Map<String, Long> ordinati = new TreeMap<>();
+        statistiche.esiti.forEach((esito, conteggio) -> ordinati.put(esito, conteggio.sum()));
+        return ordinati;
+    }
+
+    // Report JSON: configurazione dell'esecuzione e statistiche per operazione e totali
+    String report(String[] args, int durata) {
+        StringBuilder json = new StringBuilder(2048);
+        json.append("{\n  \"data\": \"").append(LocalDateTime.now()).append("\",\n  \"argomenti\": [");
+        for (int i = 0; i < args.length; i++) {
+            json.append(i > 0 ? ", " : "").append('"').append(HttpCodec.escapeJson(args[i])).append('"');
+        }
+        json.append("],\n  \"durataSecondi\": ").append(durata);
+        json.append(",\n  \"nonInviate\": ").append(nonInviate.sum());
+        json.append(",\n  \"operazioni\": {");
+        boolean prima = true;
+        for (Map.Entry<Operazione, Statistiche> voce : perOperazione.entrySet()) {
+            json.append(prima ? "\n" : ",\n");
+            prima = false;
+            statisticheJson(json, voce.getKey().nome, voce.getValue(), durata);
+        }
+        json.append("\n  },\n  \"totale\": {\n");
+        statisticheJson(json, null, totale, durata);
+        json.append("\n  }\n}\n");
+        return json.toString();
+    }
+
+    private static void statisticheJson(StringBuilder json, String nome, Statistiche statistiche, int durata) {
+        LatencyHistogram.Snapshot snapshot = statistiche.latenze.snapshot();
+        String rientro = nome != null ? "      " : "    ";
+        if (nome != null) {
+            json.append("    \"").append(nome).append("\": {\n");
+        }
+        json.append(rientro).append("\"richieste\": ").append(statistiche.richieste.sum()).append(",\n");
+        json.append(rientro).append("\"errori\": ").append(statistiche.errori.sum()).append(",\n");
+        json.append(rientro).append(String.format(Locale.ROOT, "\"richiesteAlSecondo\": %.2f,%n",
+                statistiche.richieste.sum() / (double) durata));
+        json.append(rientro).append("\"esiti\": {");
+        boolean primo = true;
+        for (Map.Entry<String, Long> esito : esiti(statistiche).entrySet()) {
+            json.append(primo ? "" : ", ").append('"').append(esito.getKey()).append("\": ").append(esito.getValue());
+            primo = false;
+        }
+        json.append("},\n");
+        json.append(rientro).append("\"latenzaMs\": {");
+        for (int i = 0; i < PERCENTILI.length; i++) {
+            String chiave = PERCENTILI[i] == 1.0 ? "max" : "p" + String.format(Locale.ROOT, "%s", PERCENTILI[i] * 100).replaceAll("\\.0$", "");
+            json.append(i > 0 ? ", " : "").append('"').append(chiave).append("\": ")
+                    .append(String.format(Locale.ROOT, "%.3f", snapshot.quantile(PERCENTILI[i]) / 1000.0));
+        }
+        json.append(", \"media\": ").append(String.format(Locale.ROOT, "%.3f",
+                statistiche.richieste.sum() == 0 ? 0.0 : snapshot.sommaMicrosecondi / 1000.0 / snapshot.totale));
+        json.append('}');
+        if (nome != null) {
+            json.append("\n    }");
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package magazzino;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parser dei form POST e delle query string condiviso dagli handler ({@link HttpCodec}).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParserBenchmark {
+    private final byte[] formPrelievo = "id=4217&quantita=3".getBytes(StandardCharsets.US_ASCII);
+    private final byte[] formInserimento = "nomeProdotto=Meloxicam%20%22Metacam%22%201.5mg%2Fml&quantita=24&scadenza=2026-10-20"
+            .getBytes(StandardCharsets.US_ASCII);
+    private final String queryRiepilogo = "sort=scadenza&limit=100&prefisso=Amox&sottoQuantita=50"
+            + "&scadenzaDa=2026-01-01&scadenzaA=2026-12-31&after=MjAyNi0wMy0wMXw0MjE3";
+
+    @Benchmark
+    public HttpCodec.Parametri postPrelievo() {
+        return HttpCodec.leggiForm(formPrelievo, formPrelievo.length);
+    }
+
+    @Benchmark
+    public HttpCodec.Parametri postInserimento() {
+        return HttpCodec.leggiForm(formInserimento, formInserimento.length);
+    }
+
+    @Benchmark
+    public HttpCodec.Parametri queryRiepilogo() {
+        return HttpCodec.leggiQuery(queryRiepilogo);
+    }
+}
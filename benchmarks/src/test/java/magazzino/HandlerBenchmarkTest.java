@@ -0,0 +1,56 @@
+package magazzino;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Una chiamata per benchmark e per archivio: ognuno deve misurare una risposta corretta, non un errore veloce
+class HandlerBenchmarkTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {"jdbc", "embedded"})
+    void lettureDelRiepilogo(String archivio) throws Exception {
+        HandlerBenchmark benchmark = prepara(archivio);
+        try {
+            long primaPagina = benchmark.riepilogoPrimaPagina();
+            // La stessa pagina servita dalla cache ha gli stessi byte
+            assertEquals(primaPagina, benchmark.riepilogoDaCache());
+            assertEquals(primaPagina, benchmark.riepilogoDaCache());
+            // Cento righe per pagina, ognuna ben oltre i 40 byte
+            assertTrue(primaPagina > 100 * 40, "byte: " + primaPagina);
+            assertTrue(benchmark.riepilogoPaginaProfonda() > 100 * 40);
+            assertTrue(benchmark.riepilogoFiltratoPerScadenza() > 100 * 40);
+        } finally {
+            benchmark.chiudi();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"jdbc", "embedded"})
+    void scrittureSullArchivioDelBenchmark(String archivio) throws Exception {
+        HandlerBenchmark benchmark = prepara(archivio);
+        try {
+            benchmark.prelevaProdotto();
+            benchmark.inserisciProdotto();
+            int[] righe = new int[1];
+            long[] totale = new long[1];
+            Main.sedi.predefinita().repository.elenca(new InventoryRepository.Filtro(), 20_000, (id, nome, quantita, scadenza) -> {
+                righe[0]++;
+                totale[0] += quantita;
+            });
+            assertEquals(10_001, righe[0]);
+            assertEquals(10_000L * 1_000_000 - 1 + 40, totale[0]);
+        } finally {
+            benchmark.chiudi();
+        }
+    }
+
+    private static HandlerBenchmark prepara(String archivio) throws Exception {
+        HandlerBenchmark benchmark = new HandlerBenchmark();
+        benchmark.archivio = archivio;
+        benchmark.prepara();
+        return benchmark;
+    }
+}
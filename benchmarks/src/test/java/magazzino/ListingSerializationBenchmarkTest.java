@@ -0,0 +1,22 @@
+package magazzino;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ListingSerializationBenchmarkTest {
+
+    @Test
+    void listingCompletiDaIndiceEDaDatabase() throws Exception {
+        ListingSerializationBenchmark benchmark = new ListingSerializationBenchmark();
+        benchmark.righe = 100;
+        benchmark.prepara();
+        try {
+            // Tutte le righe preparate finiscono nella risposta, ognuna ben oltre i 40 byte
+            assertTrue(benchmark.scadenzeDaIndice() > 100 * 40);
+            assertTrue(benchmark.daOrdinareDaDatabase() > 100 * 40);
+        } finally {
+            benchmark.chiudi();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package magazzino;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Il generatore contro un server finto in locale: conta le richieste ricevute e risponde con esiti fissi
+class LoadGeneratorTest {
+    private static final Pattern ID_PRELEVATO = Pattern.compile("(?:^|&)id=(\\d+)");
+
+    private HttpServer server;
+    private ExecutorService richieste;
+    private HttpClient client;
+    private final AtomicInteger ricevute = new AtomicInteger();
+    private final Set<Integer> prelevati = ConcurrentHashMap.newKeySet();
+
+    @BeforeEach
+    void avvia() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // Due pagine di riepilogo collegate dal cursore; i prelievi rispondono 503
+        server.createContext("/riepilogoMagazzino", exchange -> {
+            String query = exchange.getRequestURI().getQuery();
+            if (query.contains("after=pagina2")) {
+                rispondi(exchange, 200, "{\"prodotti\":[{\"id\":3}],\"nextCursor\":null}");
+            } else {
+                rispondi(exchange, 200, "{\"prodotti\":[{\"id\":1},{\"id\":2}],\"nextCursor\":\"pagina2\"}");
+            }
+        });
+        server.createContext("/prelevaProdotto", exchange -> {
+            String corpo = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            Matcher id = ID_PRELEVATO.matcher(corpo);
+            if (id.find()) {
+                prelevati.add(Integer.parseInt(id.group(1)));
+            }
+            ricevute.incrementAndGet();
+            rispondi(exchange, 503, "");
+        });
+        server.createContext("/prodottiDaOrdinare", exchange -> {
+            ricevute.incrementAndGet();
+            rispondi(exchange, 200, "[]");
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        richieste = Executors.newCachedThreadPool();
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).executor(richieste).build();
+    }
+
+    @AfterEach
+    void ferma() {
+        server.stop(0);
+        richieste.shutdownNow();
+    }
+
+    @Test
+    void mixNonValidoRifiutato() {
+        URI base = URI.create("http://localhost");
+        assertThrows(IllegalArgumentException.class, () -> new LoadGenerator(client, base, "", "riepilogo"));
+        assertThrows(IllegalArgumentException.class, () -> new LoadGenerator(client, base, "", "sconosciuta:1"));
+        // Le voci con peso zero vengono ignorate: qui non resta nulla
+        assertThrows(IllegalArgumentException.class, () -> new LoadGenerator(client, base, "", "riepilogo:0"));
+    }
+
+    @Test
+    void cicloChiusoPrelevaSoloGliIdDiTutteLePagineEContaGliErrori() throws Exception {
+        LoadGenerator generatore = new LoadGenerator(client, base(), "", "preleva:1");
+        generatore.caricaIds();
+        long inizio = System.nanoTime();
+        generatore.cicloChiuso(richieste, 4, 0, inizio, inizio + TimeUnit.MILLISECONDS.toNanos(300));
+
+        assertEquals(Set.of(1, 2, 3), prelevati);
+        String report = generatore.report(new String[0], 1);
+        // Tutte le richieste sono misurate (nessun riscaldamento) e ognuna ha ricevuto un 503
+        assertEquals(ricevute.get(), totale(report, "richieste"));
+        assertEquals(ricevute.get(), totale(report, "errori"));
+        assertTrue(report.contains("\"503\": " + ricevute.get()), report);
+    }
+
+    @Test
+    void cicloApertoInviaAlRitmoPrevisto() throws Exception {
+        LoadGenerator generatore = new LoadGenerator(client, base(), "", "daOrdinare:1");
+        long inizio = System.nanoTime();
+        // 200 richieste al secondo per mezzo secondo, misurate solo dopo il primo decimo
+        generatore.cicloAperto(richieste, 200, 10_000, inizio,
+                inizio + TimeUnit.MILLISECONDS.toNanos(100), inizio + TimeUnit.MILLISECONDS.toNanos(500));
+        // Le ultime risposte arrivano dopo la fine dell'invio
+        long scadenza = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        String report = generatore.report(new String[0], 1);
+        while (totale(report, "richieste") < 80 && System.nanoTime() < scadenza) {
+            Thread.sleep(10);
+            report = generatore.report(new String[0], 1);
+        }
+
+        assertEquals(100, ricevute.get());
+        assertEquals(80, totale(report, "richieste"));
+        assertEquals(0, totale(report, "errori"));
+    }
+
+    private URI base() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    // Valore di un contatore nella sezione "totale" del report JSON
+    private static int totale(String report, String contatore) {
+        Matcher valore = Pattern.compile("\"" + contatore + "\": (\\d+)")
+                .matcher(report.substring(report.indexOf("\"totale\"")));
+        assertTrue(valore.find(), report);
+        return Integer.parseInt(valore.group(1));
+    }
+
+    private static void rispondi(HttpExchange exchange, int stato, String corpo) throws IOException {
+        byte[] byteCorpo = corpo.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(stato, byteCorpo.length == 0 ? -1 : byteCorpo.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(byteCorpo);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package magazzino;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Controllo di ammissione davanti agli handler.
+ *
+ * Le richieste sui contesti protetti occupano un posto del limite globale e di quello del
+ * proprio contesto. Se non c'è posto attendono in una coda limitata al più attesaMassima,
+ * poi ricevono subito un 503 con Retry-After, come quando la coda è già piena. I contesti
+ * prioritari (le scritture) vengono serviti prima delle letture in coda e possono usare gli
+ * ultimi posti globali, riservati: un'ondata di letture non rallenta i prelievi.
+ */
+final class AdmissionControl {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Limite> limiti = new HashMap<>();
+    private final ArrayDeque<Attesa> codaPrioritaria = new ArrayDeque<>();
+    private final ArrayDeque<Attesa> codaNormale = new ArrayDeque<>();
+    private final int totale;
+    private final int riservaPrioritari;
+    private final int maxCoda;
+    private final long attesaMassimaNanos;
+    private int attiviTotali;
+
+    private static final class Limite {
+        final String percorso;
+        final int massimo;
+        final boolean prioritario;
+        int attivi;
+        int inCoda;
+
+        Limite(String percorso, int massimo, boolean prioritario) {
+            this.percorso = percorso;
+            this.massimo = massimo;
+            this.prioritario = prioritario;
+        }
+    }
+
+    private static final class Attesa {
+        final Limite limite;
+        final Condition ammessa;
+        boolean entrata;
+
+        Attesa(Limite limite, Condition ammessa) {
+            this.limite = limite;
+            this.ammessa = ammessa;
+        }
+    }
+
+    AdmissionControl(int totale, int riservaPrioritari, int maxCoda, long attesaMassimaMs) {
+        if (totale < 1 || riservaPrioritari < 0 || riservaPrioritari >= totale || maxCoda < 0 || attesaMassimaMs < 0) {
+            throw new IllegalArgumentException("Parametri di ammissione non validi");
+        }
+        this.totale = totale;
+        this.riservaPrioritari = riservaPrioritari;
+        this.maxCoda = maxCoda;
+        this.attesaMassimaNanos = TimeUnit.MILLISECONDS.toNanos(attesaMassimaMs);
+    }
+
+    /**
+     * Limiti per contesto nel formato "percorso=n,percorso=n"; i contesti prioritari senza
+     * limite esplicito hanno come limite il totale.
+     */
+    void configura(String elencoLimiti, Set<String> prioritari) {
+        for (String voce : elencoLimiti.split(",")) {
+            if (voce.isBlank()) {
+                continue;
+            }
+            int uguale = voce.indexOf('=');
+            if (uguale < 0) {
+                throw new IllegalArgumentException("Limite di ammissione non valido: " + voce);
+            }
+            String percorso = voce.substring(0, uguale).trim();
+            limiti.put(percorso, new Limite(percorso, Integer.parseInt(voce.substring(uguale + 1).trim()),
+                    prioritari.contains(percorso)));
+        }
+        for (String percorso : prioritari) {
+            limiti.putIfAbsent(percorso, new Limite(percorso, totale, true));
+        }
+    }
+
+    // Restituisce l'handler protetto, oppure quello originale se il contesto non ha limiti
+    HttpHandler proteggi(String percorso, HttpHandler handler) {
+        Limite limite = limiti.get(percorso);
+        if (limite == null) {
+            return handler;
+        }
+        return exchange -> {
+            if (!entra(limite)) {
+                byte[] risposta = "Server occupato, riprovare tra poco".getBytes(StandardCharsets.UTF_8);
+                long secondi = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(attesaMassimaNanos));
+                exchange.getResponseHeaders().set("Retry-After", Long.toString(secondi));
+                exchange.sendResponseHeaders(503, risposta.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(risposta);
+                }
+                return;
+            }
+            try {
+                handler.handle(exchange);
+            } finally {
+                esci(limite);
+            }
+        };
+    }
+
+    int inCoda() {
+        lock.lock();
+        try {
+            return codaPrioritaria.size() + codaNormale.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int attivi() {
+        lock.lock();
+        try {
+            return attiviTotali;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean entra(Limite limite) {
+        lock.lock();
+        try {
+            // Si entra subito solo se nessuno della stessa classe è già in coda (ordine di arrivo)
+            ArrayDeque<Attesa> coda = limite.prioritario ? codaPrioritaria : codaNormale;
+            if (coda.isEmpty() && (limite.prioritario || codaPrioritaria.isEmpty()) && haPosto(limite)) {
+                occupa(limite);
+                return true;
+            }
+            if (limite.inCoda >= maxCoda || attesaMassimaNanos == 0) {
+                return false;
+            }
+
+            Attesa attesa = new Attesa(limite, lock.newCondition());
+            coda.addLast(attesa);
+            limite.inCoda++;
+            long resto = attesaMassimaNanos;
+            try {
+                while (!attesa.entrata && resto > 0) {
+                    resto = attesa.ammessa.awaitNanos(resto);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!attesa.entrata) {
+                coda.remove(attesa);
+                limite.inCoda--;
+            }
+            return attesa.entrata;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void esci(Limite limite) {
+        lock.lock();
+        try {
+            limite.attivi--;
+            attiviTotali--;
+            // I posti liberati vanno prima alle attese prioritarie, poi alle altre
+            ammetti(codaPrioritaria);
+            ammetti(codaNormale);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Ammette in ordine le attese che hanno posto; quelle col contesto pieno restano in coda
+    private void ammetti(ArrayDeque<Attesa> coda) {
+        Iterator<Attesa> iteratore = coda.iterator();
+        while (iteratore.hasNext() && attiviTotali < totale) {
+            Attesa attesa = iteratore.next();
+            if (haPosto(attesa.limite)) {
+                iteratore.remove();
+                attesa.limite.inCoda--;
+                occupa(attesa.limite);
+                attesa.entrata = true;
+                attesa.ammessa.signal();
+            }
+        }
+    }
+
+    private boolean haPosto(Limite limite) {
+        int disponibiliGlobali = limite.prioritario ? totale : totale - riservaPrioritari;
+        return limite.attivi < limite.massimo && attiviTotali < disponibiliGlobali;
+    }
+
+    private void occupa(Limite limite) {
+        limite.attivi++;
+        attiviTotali++;
+    }
+}
@@ -0,0 +1,679 @@
+package magazzino;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Backend embedded per le installazioni senza MySQL: magazzino e da_ordinare stanno in mappe
+ * in memoria con chiave int, e ogni scrittura è registrata in un journal mappato in memoria
+ * prima di essere applicata.
+ *
+ * Nella directory dei dati ci sono uno snapshot completo e il journal della sua generazione.
+ * All'avvio si carica lo snapshot e si rileggono i record del journal; quando il journal è
+ * pieno (e alla chiusura) si scrive un nuovo snapshot e si riparte con un journal vuoto.
+ * Le scritture sono serializzate da un write lock; le letture copiano le righe sotto read lock
+ * e le inviano dopo averlo rilasciato.
+ */
+final class EmbeddedInventoryRepository implements InventoryRepository {
+    private static final int MAGIC_SNAPSHOT = 0x56455453;
+    private static final int VERSIONE_SNAPSHOT = 1;
+    private static final int LUNGHEZZA_MASSIMA_NOME = 255;
+    private static final long SENZA_DATA = Long.MIN_VALUE;
+    private static final int COMMIT_IMPORTAZIONE = Integer.getInteger("magazzino.import.commitEvery", 5000);
+
+    // Operazioni registrate nel journal
+    private static final byte OP_INSERISCI = 1;
+    private static final byte OP_QUANTITA = 2;
+    private static final byte OP_ELIMINA = 3;
+    private static final byte OP_DA_ORDINARE = 4;
+
+    private static final Comparator<Riga> PER_ID = Comparator.comparingInt(r -> r.id);
+    private static final Comparator<Riga> PER_NOME =
+            Comparator.<Riga, String>comparing(r -> r.nome, String.CASE_INSENSITIVE_ORDER).thenComparing(PER_ID);
+    private static final Comparator<Riga> PER_SCADENZA =
+            Comparator.<Riga, LocalDate>comparing(Riga::chiaveScadenza).thenComparing(PER_ID);
+
+    private final Path directory;
+    private final int capacitaJournal;
+    private final boolean sincrono;
+    private final FileChannel canaleLock;
+    private final FileLock lockDirectory;
+
+    private final IntMap<Riga> magazzino = new IntMap<>(1024);
+    private final IntMap<Riga> daOrdinare = new IntMap<>(256);
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private int prossimoId = 1;
+    private long generazione;
+    private MappedJournal journal;
+    private boolean chiuso;
+
+    private static final class Riga {
+        final int id;
+        final String nome;
+        final int quantita;
+        final LocalDate scadenza;
+
+        Riga(int id, String nome, int quantita, LocalDate scadenza) {
+            this.id = id;
+            this.nome = nome;
+            this.quantita = quantita;
+            this.scadenza = scadenza;
+        }
+
+        LocalDate chiaveScadenza() {
+            return scadenza != null ? scadenza : Filtro.SENZA_SCADENZA;
+        }
+    }
+
+    private EmbeddedInventoryRepository(Path directory, int capacitaJournal, boolean sincrono,
+                                        FileChannel canaleLock, FileLock lockDirectory) {
+        this.directory = directory;
+        this.capacitaJournal = capacitaJournal;
+        this.sincrono = sincrono;
+        this.canaleLock = canaleLock;
+        this.lockDirectory = lockDirectory;
+    }
+
+    /**
+     * Apre la directory dei dati (creandola se serve), carica lo snapshot e rilegge il journal.
+     * Un secondo processo sulla stessa directory viene rifiutato.
+     */
+    static EmbeddedInventoryRepository apri(Path directory, int capacitaJournal, boolean sincrono) throws IOException {
+        Files.createDirectories(directory);
+        FileChannel canaleLock = FileChannel.open(directory.resolve("magazzino.lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lockDirectory = canaleLock.tryLock();
+        if (lockDirectory == null) {
+            canaleLock.close();
+            throw new IOException("Directory dei dati già in uso da un altro processo: " + directory);
+        }
+        EmbeddedInventoryRepository repository =
+                new EmbeddedInventoryRepository(directory, capacitaJournal, sincrono, canaleLock, lockDirectory);
+        try {
+            repository.recupera();
+        } catch (IOException | RuntimeException e) {
+            lockDirectory.release();
+            canaleLock.close();
+            throw e;
+        }
+        return repository;
+    }
+
+    private void recupera() throws IOException {
+        Path snapshot = directory.resolve("magazzino.snapshot");
+        if (Files.exists(snapshot)) {
+            leggiSnapshot(snapshot);
+        }
+        try {
+            journal = MappedJournal.apri(fileJournal(generazione), capacitaJournal, sincrono, dati -> {
+                byte[] record = new byte[dati.remaining()];
+                dati.get(record);
+                applica(record);
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        // Journal di generazioni precedenti rimasti da uno snapshot interrotto
+        try (DirectoryStream<Path> vecchi = Files.newDirectoryStream(directory, "journal-*.log")) {
+            for (Path file : vecchi) {
+                if (!file.equals(fileJournal(generazione))) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private Path fileJournal(long gen) {
+        return directory.resolve("journal-" + gen + ".log");
+    }
+
+    int dimensione() {
+        lock.readLock().lock();
+        try {
+            return magazzino.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // --- Scritture ---
+
+    @Override
+    public int inserisci(String nome, int quantita, LocalDate scadenza) throws SQLException {
+        controllaNome(nome);
+        lock.writeLock().lock();
+        try {
+            int id = prossimoId;
+            Operazioni operazioni = new Operazioni();
+            operazioni.inserisci(id, nome, quantita, scadenza);
+            registra(operazioni);
+            return id;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Importazione importa() {
+        return new ImportazioneEmbedded();
+    }
+
+    // Le righe restano in memoria fino alla conferma, che le registra in un solo record
+    private final class ImportazioneEmbedded implements Importazione {
+        private final List<Riga> inAttesa = new ArrayList<>();
+        private int confermate;
+
+        @Override
+        public void aggiungi(String nome, int quantita, LocalDate scadenza) throws SQLException {
+            controllaNome(nome);
+            inAttesa.add(new Riga(0, nome, quantita, scadenza));
+            if (inAttesa.size() >= COMMIT_IMPORTAZIONE) {
+                conferma();
+            }
+        }
+
+        @Override
+        public void conferma() throws SQLException {
+            if (inAttesa.isEmpty()) {
+                return;
+            }
+            lock.writeLock().lock();
+            try {
+                Operazioni operazioni = new Operazioni();
+                int id = prossimoId;
+                for (Riga riga : inAttesa) {
+                    operazioni.inserisci(id++, riga.nome, riga.quantita, riga.scadenza);
+                }
+                registra(operazioni);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            confermate += inAttesa.size();
+            inAttesa.clear();
+        }
+
+        @Override
+        public int confermate() {
+            return confermate;
+        }
+
+        @Override
+        public void close() {
+            inAttesa.clear();
+        }
+    }
+
+    @Override
+    public Prelievo preleva(int id, int quantita, int[] rimanente) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            Riga riga = magazzino.get(id);
+            if (riga == null) {
+                return Prelievo.NON_TROVATO;
+            }
+            if (quantita > riga.quantita) {
+                return Prelievo.NON_DISPONIBILE;
+            }
+            Operazioni operazioni = new Operazioni();
+            if (quantita < riga.quantita) {
+                operazioni.quantita(id, riga.quantita - quantita);
+                registra(operazioni);
+                rimanente[0] = riga.quantita - quantita;
+                return Prelievo.PRELEVATO;
+            }
+            operazioni.elimina(id);
+            operazioni.daOrdinare(id, riga.nome, 0);
+            registra(operazioni);
+            rimanente[0] = 0;
+            return Prelievo.ESAURITO;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<Integer, Integer> prelevaTutti(List<int[]> righe, int[] rimanenti, String[] errori) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            Map<Integer, Integer> disponibili = new HashMap<>();
+            for (int[] richiesta : righe) {
+                Riga riga = magazzino.get(richiesta[0]);
+                if (riga != null) {
+                    disponibili.put(riga.id, riga.quantita);
+                }
+            }
+            if (!InventoryRepository.applicaPrelievi(righe, disponibili, rimanenti, errori)) {
+                return null;
+            }
+
+            Operazioni operazioni = new Operazioni();
+            for (Map.Entry<Integer, Integer> voce : disponibili.entrySet()) {
+                int id = voce.getKey();
+                if (voce.getValue() > 0) {
+                    operazioni.quantita(id, voce.getValue());
+                } else {
+                    operazioni.elimina(id);
+                    operazioni.daOrdinare(id, magazzino.get(id).nome, 0);
+                }
+            }
+            registra(operazioni);
+            return disponibili;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean elimina(int id) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            if (magazzino.get(id) == null) {
+                return false;
+            }
+            Operazioni operazioni = new Operazioni();
+            operazioni.elimina(id);
+            registra(operazioni);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void spostaInDaOrdinare(List<ExpiryIndex.Prodotto> prodotti) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            Operazioni operazioni = new Operazioni();
+            for (ExpiryIndex.Prodotto prodotto : prodotti) {
+                if (magazzino.get(prodotto.id) != null) {
+                    operazioni.elimina(prodotto.id);
+                    operazioni.daOrdinare(prodotto.id, prodotto.nome, 0);
+                }
+            }
+            if (!operazioni.vuote()) {
+                registra(operazioni);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void controllaNome(String nome) throws SQLException {
+        if (nome == null || nome.length() > LUNGHEZZA_MASSIMA_NOME) {
+            throw new SQLException("Nome del prodotto mancante o più lungo di " + LUNGHEZZA_MASSIMA_NOME + " caratteri");
+        }
+    }
+
+    // Chiamato con il write lock: prima il journal, poi le mappe
+    private void registra(Operazioni operazioni) throws SQLException {
+        if (chiuso) {
+            throw new SQLException("Archivio chiuso");
+        }
+        try {
+            if (!journal.aggiungi(operazioni.dati(), operazioni.lunghezza())) {
+                // Journal pieno: lo stato corrente va nello snapshot e si riparte da un journal vuoto
+                scriviSnapshot();
+                if (!journal.aggiungi(operazioni.dati(), operazioni.lunghezza())) {
+                    throw new SQLException("Operazione più grande della capacità del journal ("
+                            + journal.capacita() + " byte)");
+                }
+            }
+        } catch (IOException e) {
+            throw new SQLException("Scrittura del journal non riuscita", e);
+        }
+        applica(operazioni.dati(), operazioni.lunghezza());
+    }
+
+    private void applica(byte[] record) {
+        applica(record, record.length);
+    }
+
+    // Applica alle mappe un record del journal; usato sia in scrittura sia in rilettura
+    private void applica(byte[] record, int lunghezza) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record, 0, lunghezza));
+            while (in.available() > 0) {
+                byte tipo = in.readByte();
+                int id = in.readInt();
+                switch (tipo) {
+                    case OP_INSERISCI: {
+                        int quantita = in.readInt();
+                        LocalDate scadenza = leggiData(in);
+                        magazzino.put(id, new Riga(id, in.readUTF(), quantita, scadenza));
+                        prossimoId = Math.max(prossimoId, id + 1);
+                        break;
+                    }
+                    case OP_QUANTITA: {
+                        Riga riga = magazzino.get(id);
+                        magazzino.put(id, new Riga(id, riga.nome, in.readInt(), riga.scadenza));
+                        break;
+                    }
+                    case OP_ELIMINA:
+                        magazzino.remove(id);
+                        break;
+                    case OP_DA_ORDINARE: {
+                        int quantita = in.readInt();
+                        daOrdinare.put(id, new Riga(id, in.readUTF(), quantita, null));
+                        break;
+                    }
+                    default:
+                        throw new IOException("Operazione sconosciuta nel journal: " + tipo);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Sequenza di operazioni di una scrittura, codificata come record del journal
+    private static final class Operazioni {
+        private final Buffer buffer = new Buffer();
+        private final DataOutputStream out = new DataOutputStream(buffer);
+
+        void inserisci(int id, String nome, int quantita, LocalDate scadenza) {
+            try {
+                out.writeByte(OP_INSERISCI);
+                out.writeInt(id);
+                out.writeInt(quantita);
+                scriviData(out, scadenza);
+                out.writeUTF(nome);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void quantita(int id, int quantita) {
+            try {
+                out.writeByte(OP_QUANTITA);
+                out.writeInt(id);
+                out.writeInt(quantita);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void elimina(int id) {
+            try {
+                out.writeByte(OP_ELIMINA);
+                out.writeInt(id);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void daOrdinare(int id, String nome, int quantita) {
+            try {
+                out.writeByte(OP_DA_ORDINARE);
+                out.writeInt(id);
+                out.writeInt(quantita);
+                out.writeUTF(nome);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        boolean vuote() {
+            return buffer.size() == 0;
+        }
+
+        byte[] dati() {
+            return buffer.array();
+        }
+
+        int lunghezza() {
+            return buffer.size();
+        }
+    }
+
+    // Espone l'array interno senza copiarlo
+    private static final class Buffer extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    private static void scriviData(DataOutputStream out, LocalDate data) throws IOException {
+        out.writeLong(data != null ? data.toEpochDay() : SENZA_DATA);
+    }
+
+    private static LocalDate leggiData(DataInput in) throws IOException {
+        long giorno = in.readLong();
+        return giorno == SENZA_DATA ? null : LocalDate.ofEpochDay(giorno);
+    }
+
+    // --- Snapshot ---
+
+    // Chiamato con il write lock: scrive lo stato corrente come generazione successiva
+    private void scriviSnapshot() throws IOException {
+        long nuovaGenerazione = generazione + 1;
+        Path temporaneo = directory.resolve("magazzino.snapshot.tmp");
+        try (FileOutputStream file = new FileOutputStream(temporaneo.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeInt(MAGIC_SNAPSHOT);
+            out.writeInt(VERSIONE_SNAPSHOT);
+            out.writeLong(nuovaGenerazione);
+            out.writeInt(prossimoId);
+            scriviRighe(out, magazzino, true);
+            scriviRighe(out, daOrdinare, false);
+            out.flush();
+            file.getChannel().force(true);
+        }
+        Files.move(temporaneo, directory.resolve("magazzino.snapshot"),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        // Da qui lo snapshot contiene tutto: il vecchio journal non serve più
+        MappedJournal vecchio = journal;
+        Path fileVecchio = fileJournal(generazione);
+        generazione = nuovaGenerazione;
+        journal = MappedJournal.apri(fileJournal(generazione), capacitaJournal, sincrono, dati -> { });
+        vecchio.close();
+        Files.deleteIfExists(fileVecchio);
+    }
+
+    private static void scriviRighe(DataOutputStream out, IntMap<Riga> righe, boolean conScadenza) throws IOException {
+        out.writeInt(righe.size());
+        try {
+            righe.forEachValue(riga -> {
+                try {
+                    out.writeInt(riga.id);
+                    out.writeUTF(riga.nome);
+                    out.writeInt(riga.quantita);
+                    if (conScadenza) {
+                        scriviData(out, riga.scadenza);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void leggiSnapshot(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC_SNAPSHOT || in.readInt() != VERSIONE_SNAPSHOT) {
+                throw new IOException("Snapshot non riconosciuto: " + file);
+            }
+            generazione = in.readLong();
+            prossimoId = in.readInt();
+            int righe = in.readInt();
+            for (int i = 0; i < righe; i++) {
+                int id = in.readInt();
+                String nome = in.readUTF();
+                int quantita = in.readInt();
+                magazzino.put(id, new Riga(id, nome, quantita, leggiData(in)));
+            }
+            righe = in.readInt();
+            for (int i = 0; i < righe; i++) {
+                int id = in.readInt();
+                String nome = in.readUTF();
+                daOrdinare.put(id, new Riga(id, nome, in.readInt(), null));
+            }
+        }
+    }
+
+    // --- Letture ---
+
+    @Override
+    public void elenca(Filtro filtro, int limite, Visitatore visitatore) throws IOException {
+        Comparator<Riga> ordine = PER_ID;
+        Riga cursore = null;
+        if (Filtro.PER_NOME.equals(filtro.ordinamento)) {
+            ordine = PER_NOME;
+            if (filtro.dopoId != null) {
+                cursore = new Riga(filtro.dopoId, filtro.dopoChiave, 0, null);
+            }
+        } else if (Filtro.PER_SCADENZA.equals(filtro.ordinamento)) {
+            ordine = PER_SCADENZA;
+            if (filtro.dopoId != null) {
+                cursore = new Riga(filtro.dopoId, null, 0, LocalDate.parse(filtro.dopoChiave));
+            }
+        } else if (filtro.dopoId != null) {
+            cursore = new Riga(filtro.dopoId, null, 0, null);
+        }
+
+        // Le prime "limite" righe nell'ordine richiesto: heap con in cima la peggiore tenuta
+        Comparator<Riga> confronto = ordine;
+        Riga dopo = cursore;
+        PriorityQueue<Riga> migliori = new PriorityQueue<>(Math.min(limite, 1024) + 1, confronto.reversed());
+        lock.readLock().lock();
+        try {
+            magazzino.forEachValue(riga -> {
+                if (rispetta(filtro, riga) && (dopo == null || confronto.compare(riga, dopo) > 0)) {
+                    if (migliori.size() < limite) {
+                        migliori.add(riga);
+                    } else if (confronto.compare(riga, migliori.peek()) < 0) {
+                        migliori.poll();
+                        migliori.add(riga);
+                    }
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<Riga> pagina = new ArrayList<>(migliori);
+        pagina.sort(confronto);
+        for (Riga riga : pagina) {
+            visitatore.riga(riga.id, riga.nome, riga.quantita, riga.scadenza);
+        }
+    }
+
+    private static boolean rispetta(Filtro filtro, Riga riga) {
+        if (filtro.prefisso != null && !riga.nome.regionMatches(true, 0, filtro.prefisso, 0, filtro.prefisso.length())) {
+            return false;
+        }
+        if (filtro.sottoQuantita != null && riga.quantita >= filtro.sottoQuantita) {
+            return false;
+        }
+        // Come in SQL, le righe senza scadenza non rispettano i filtri sulla scadenza
+        if (filtro.scadenzaDa != null && (riga.scadenza == null || riga.scadenza.isBefore(filtro.scadenzaDa))) {
+            return false;
+        }
+        return filtro.scadenzaA == null || (riga.scadenza != null && !riga.scadenza.isAfter(filtro.scadenzaA));
+    }
+
+    @Override
+    public void elencaDaOrdinare(Visitatore visitatore) throws IOException {
+        List<Riga> righe = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            daOrdinare.forEachValue(righe::add);
+        } finally {
+            lock.readLock().unlock();
+        }
+        righe.sort(PER_ID);
+        for (Riga riga : righe) {
+            visitatore.riga(riga.id, riga.nome, riga.quantita, null);
+        }
+    }
+
+    @Override
+    public void elencaPerId(Collection<Integer> ids, Visitatore visitatore) throws IOException {
+        List<Riga> righe = new ArrayList<>(ids.size());
+        lock.readLock().lock();
+        try {
+            for (int id : ids) {
+                Riga riga = magazzino.get(id);
+                if (riga != null) {
+                    righe.add(riga);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        righe.sort(PER_ID);
+        for (Riga riga : righe) {
+            visitatore.riga(riga.id, riga.nome, riga.quantita, riga.scadenza);
+        }
+    }
+
+    @Override
+    public List<ExpiryIndex.Prodotto> prodottiConScadenza() {
+        List<ExpiryIndex.Prodotto> prodotti = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            magazzino.forEachValue(riga -> {
+                if (riga.scadenza != null) {
+                    prodotti.add(new ExpiryIndex.Prodotto(riga.id, riga.nome, riga.quantita, riga.scadenza));
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+        return prodotti;
+    }
+
+    // Scrive lo snapshot finale, così il prossimo avvio non deve rileggere il journal
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (chiuso) {
+                return;
+            }
+            chiuso = true;
+            if (journal.usati() > 0) {
+                scriviSnapshot();
+            }
+            journal.close();
+        } catch (IOException e) {
+            System.err.println("Chiusura dell'archivio embedded non riuscita: " + e.getMessage());
+        } finally {
+            try {
+                lockDirectory.release();
+                canaleLock.close();
+            } catch (IOException e) {
+                // Il lock viene comunque rilasciato all'uscita del processo
+            }
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package magazzino;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Distribuisce ai client collegati su /eventi (Server-Sent Events) le modifiche al magazzino
+ * pubblicate dagli handler di scrittura.
+ *
+ * Ogni client ha una coda limitata e un proprio thread di invio, così un client lento non
+ * rallenta né gli handler né gli altri client. Se la coda si riempie gli eventi in attesa
+ * vengono scartati e al client arriva un evento "resync": deve ricaricare i listing invece
+ * di applicare le modifiche una per una.
+ */
+final class EventBus {
+    static final String INSERITO = "inserito";
+    static final String PRELEVATO = "prelevato";
+    static final String QUANTITA = "quantita";
+    static final String RIMOSSO = "rimosso";
+    static final String DA_ORDINARE = "daOrdinare";
+    static final String RESYNC = "resync";
+
+    // Commento periodico: tiene aperta la connessione e fa emergere i client scollegati
+    private static final long INTERVALLO_PING_SECONDI = 15;
+    private static final int MAX_EVENTI_PER_SCRITTURA = 256;
+
+    private final Set<Cliente> clienti = ConcurrentHashMap.newKeySet();
+    private final AtomicLong sequenza = new AtomicLong();
+    private final int capacitaCoda;
+    private final int maxClienti;
+    private final ExecutorService invii;
+
+    EventBus(int capacitaCoda, int maxClienti) {
+        this.capacitaCoda = capacitaCoda;
+        this.maxClienti = maxClienti;
+        ExecutorService virtuale = ServerExecutors.creaVirtuale();
+        this.invii = virtuale != null ? virtuale : Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "eventi");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    int clientiCollegati() {
+        return clienti.size();
+    }
+
+    // Da chiamare dopo che la scrittura è andata a buon fine; dati è un oggetto JSON
+    void pubblica(String tipo, String dati) {
+        if (clienti.isEmpty()) {
+            return;
+        }
+        String evento = "id: " + sequenza.incrementAndGet() + "\nevent: " + tipo + "\ndata: " + dati + "\n\n";
+        for (Cliente cliente : clienti) {
+            cliente.accoda(evento);
+        }
+    }
+
+    // Chiede a tutti i client di ricaricare, per modifiche troppo ampie da descrivere evento per evento
+    void risincronizzaTutti() {
+        sequenza.incrementAndGet();
+        for (Cliente cliente : clienti) {
+            cliente.risincronizza();
+        }
+    }
+
+    /**
+     * Apre lo stream per la richiesta e lo affida a un thread di invio; restituisce false
+     * (senza rispondere) se è già collegato il numero massimo di client.
+     */
+    boolean iscrivi(HttpExchange exchange) throws IOException {
+        if (clienti.size() >= maxClienti) {
+            return false;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=UTF-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(200, 0);
+
+        Cliente cliente = new Cliente(exchange);
+        // Gli eventi persi durante la riconnessione non sono conservati: il client ricarica
+        String ultimoId = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+        if (ultimoId != null && !ultimoId.equals(String.valueOf(sequenza.get()))) {
+            cliente.risincronizza();
+        }
+        clienti.add(cliente);
+        invii.execute(cliente);
+        return true;
+    }
+
+    private final class Cliente implements Runnable {
+        private final HttpExchange exchange;
+        private final BlockingQueue<String> coda = new ArrayBlockingQueue<>(capacitaCoda);
+        private final AtomicBoolean daRisincronizzare = new AtomicBoolean();
+
+        Cliente(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        void accoda(String evento) {
+            if (!coda.offer(evento)) {
+                risincronizza();
+            }
+        }
+
+        // Gli eventi in coda sono superati dal ricaricamento completo
+        void risincronizza() {
+            daRisincronizzare.set(true);
+            coda.clear();
+            coda.offer(": resync\n\n");
+        }
+
+        @Override
+        public void run() {
+            List<String> blocco = new ArrayList<>();
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write("retry: 3000\n\n".getBytes(StandardCharsets.UTF_8));
+                os.flush();
+                while (true) {
+                    String evento = coda.poll(INTERVALLO_PING_SECONDI, TimeUnit.SECONDS);
+                    StringBuilder testo = new StringBuilder();
+                    if (daRisincronizzare.getAndSet(false)) {
+                        testo.append("id: ").append(sequenza.get()).append("\nevent: ").append(RESYNC)
+                                .append("\ndata: {}\n\n");
+                    }
+                    if (evento == null) {
+                        testo.append(": ping\n\n");
+                    } else {
+                        // Scrive in un colpo solo gli eventi già accumulati
+                        testo.append(evento);
+                        coda.drainTo(blocco, MAX_EVENTI_PER_SCRITTURA);
+                        for (String altro : blocco) {
+                            testo.append(altro);
+                        }
+                        blocco.clear();
+                    }
+                    os.write(testo.toString().getBytes(StandardCharsets.UTF_8));
+                    os.flush();
+                }
+            } catch (IOException e) {
+                // Client scollegato
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                clienti.remove(this);
+                exchange.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package magazzino;
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Indice in memoria dei prodotti con scadenza, ordinato per data.
+ *
+ * Viene caricato dall'archivio all'avvio e tenuto allineato dagli handler di scrittura;
+ * qualunque finestra "entro N giorni" è una vista sull'intervallo iniziale della mappa.
+ * I prodotti senza scadenza non vi compaiono.
+ */
+final class ExpiryIndex {
+    // scadenza -> (id -> prodotto), con gli id ordinati per un output stabile
+    private final NavigableMap<LocalDate, NavigableMap<Integer, Prodotto>> perScadenza = new TreeMap<>();
+    private final Map<Integer, Prodotto> perId = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    static final class Prodotto {
+        final int id;
+        final String nome;
+        final int quantita;
+        final LocalDate scadenza;
+
+        Prodotto(int id, String nome, int quantita, LocalDate scadenza) {
+            this.id = id;
+            this.nome = nome;
+            this.quantita = quantita;
+            this.scadenza = scadenza;
+        }
+    }
+
+    // Ricarica tutto l'indice dall'archivio, sostituendo il contenuto corrente; con il server
+    // avviato va eseguita in ListingCache.senzaScritture, o le scritture concorrenti vanno perse
+    void carica(InventoryRepository repository) throws SQLException {
+        List<Prodotto> prodotti = repository.prodottiConScadenza();
+
+        lock.writeLock().lock();
+        try {
+            perScadenza.clear();
+            perId.clear();
+            for (Prodotto prodotto : prodotti) {
+                aggiungi(prodotto);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void inserisci(int id, String nome, int quantita, LocalDate scadenza) {
+        if (scadenza == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            togli(id);
+            aggiungi(new Prodotto(id, nome, quantita, scadenza));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void aggiornaQuantita(int id, int quantita) {
+        lock.writeLock().lock();
+        try {
+            Prodotto prodotto = perId.get(id);
+            if (prodotto != null) {
+                aggiungi(new Prodotto(id, prodotto.nome, quantita, prodotto.scadenza));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Applica un prelievo già eseguito sul database; a quantità zero il prodotto esce dall'indice
+    void preleva(int id, int quantita) {
+        lock.writeLock().lock();
+        try {
+            Prodotto prodotto = perId.get(id);
+            if (prodotto != null) {
+                int rimanente = prodotto.quantita - quantita;
+                if (rimanente > 0) {
+                    aggiungi(new Prodotto(id, prodotto.nome, rimanente, prodotto.scadenza));
+                } else {
+                    togli(id);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void rimuovi(int id) {
+        lock.writeLock().lock();
+        try {
+            togli(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Prodotti con scadenza fino a limite (incluso), ordinati per data e id
+    List<Prodotto> entro(LocalDate limite) {
+        return copia(limite, true);
+    }
+
+    // Prodotti già scaduti rispetto a oggi
+    List<Prodotto> scadutiPrima(LocalDate oggi) {
+        return copia(oggi, false);
+    }
+
+    int dimensione() {
+        lock.readLock().lock();
+        try {
+            return perId.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<Prodotto> copia(LocalDate limite, boolean incluso) {
+        lock.readLock().lock();
+        try {
+            List<Prodotto> risultato = new ArrayList<>();
+            for (NavigableMap<Integer, Prodotto> stessaData : perScadenza.headMap(limite, incluso).values()) {
+                risultato.addAll(stessaData.values());
+            }
+            return risultato;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Chiamati con il write lock acquisito
+    private void aggiungi(Prodotto prodotto) {
+        perId.put(prodotto.id, prodotto);
+        perScadenza.computeIfAbsent(prodotto.scadenza, d -> new TreeMap<>()).put(prodotto.id, prodotto);
+    }
+
+    private void togli(int id) {
+        Prodotto prodotto = perId.remove(id);
+        if (prodotto != null) {
+            NavigableMap<Integer, Prodotto> stessaData = perScadenza.get(prodotto.scadenza);
+            stessaData.remove(id);
+            if (stessaData.isEmpty()) {
+                perScadenza.remove(prodotto.scadenza);
+            }
+        }
+    }
+}
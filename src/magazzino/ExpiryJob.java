@@ -0,0 +1,98 @@
+package magazzino;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Job giornaliero sui lotti scaduti. Riallinea l'indice delle scadenze con l'archivio e poi,
+ * secondo l'azione configurata, segnala i lotti scaduti nel log ("segnala") oppure li sposta
+ * in blocco da magazzino a da_ordinare ("sposta").
+ */
+final class ExpiryJob implements Runnable {
+    static final String SEGNALA = "segnala";
+    static final String SPOSTA = "sposta";
+
+    private final InventoryRepository repository;
+    private final ExpiryIndex indice;
+    private final SearchIndex ricerca;
+    private final ListingCache cache;
+    private final EventBus eventi;
+    private final String azione;
+
+    ExpiryJob(InventoryRepository repository, ExpiryIndex indice, SearchIndex ricerca, ListingCache cache,
+              EventBus eventi, String azione) {
+        if (!SEGNALA.equals(azione) && !SPOSTA.equals(azione)) {
+            throw new IllegalArgumentException("Azione sui lotti scaduti sconosciuta: " + azione);
+        }
+        this.repository = repository;
+        this.indice = indice;
+        this.ricerca = ricerca;
+        this.cache = cache;
+        this.eventi = eventi;
+        this.azione = azione;
+    }
+
+    // Esegue il job ogni giorno all'ora indicata, su un thread daemon dedicato
+    ScheduledExecutorService pianifica(LocalTime ora) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "scadenze");
+            t.setDaemon(true);
+            return t;
+        });
+        LocalDateTime adesso = LocalDateTime.now();
+        LocalDateTime prossima = adesso.toLocalDate().atTime(ora);
+        if (!prossima.isAfter(adesso)) {
+            prossima = prossima.plusDays(1);
+        }
+        long ritardo = Duration.between(adesso, prossima).toMillis();
+        scheduler.scheduleAtFixedRate(this, ritardo, TimeUnit.DAYS.toMillis(1), TimeUnit.MILLISECONDS);
+        return scheduler;
+    }
+
+    @Override
+    public void run() {
+        try {
+            cache.senzaScritture(() -> indice.carica(repository));
+            List<ExpiryIndex.Prodotto> scaduti = indice.scadutiPrima(LocalDate.now());
+            if (scaduti.isEmpty()) {
+                return;
+            }
+            if (SPOSTA.equals(azione)) {
+                sposta(scaduti);
+                System.out.println("Lotti scaduti spostati in da_ordinare: " + scaduti.size());
+            } else {
+                StringBuilder elenco = new StringBuilder();
+                for (ExpiryIndex.Prodotto prodotto : scaduti) {
+                    elenco.append("\n  ").append(prodotto.id).append(" ").append(prodotto.nome)
+                            .append(" (scaduto il ").append(prodotto.scadenza).append(")");
+                }
+                System.out.println("Lotti scaduti in magazzino: " + scaduti.size() + elenco);
+            }
+        } catch (SQLException | RuntimeException e) {
+            // Un errore non deve fermare le esecuzioni dei giorni successivi: un'eccezione
+            // uscita da run() annullerebbe tutte le esecuzioni pianificate successive
+            e.printStackTrace();
+        }
+    }
+
+    private void sposta(List<ExpiryIndex.Prodotto> scaduti) throws SQLException {
+        cache.inizioScrittura();
+        try {
+            repository.spostaInDaOrdinare(scaduti);
+            for (ExpiryIndex.Prodotto prodotto : scaduti) {
+                indice.rimuovi(prodotto.id);
+                ricerca.rimuovi(prodotto.id);
+                eventi.pubblica(EventBus.DA_ORDINARE, "{\"id\":" + prodotto.id + "}");
+            }
+        } finally {
+            cache.fineScrittura();
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package magazzino;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pipeline di scrittura con commit di gruppo per inserimenti e prelievi singoli.
+ *
+ * Gli handler accodano l'operazione e attendono il proprio esito; un unico thread scrittore
+ * raccoglie le operazioni in gruppi (al più maxGruppo, oppure quelle arrivate entro attesa
+ * dalla prima), le esegue come batch JDBC in una sola transazione e fa un solo commit.
+ * Se il gruppo fallisce, le sue operazioni vengono rieseguite una per una in transazioni
+ * separate, così un'operazione non valida non fa fallire le altre.
+ *
+ * Nessun chiamante attende senza limite. Oltre attesaEsito un'operazione ancora in coda
+ * viene ritirata e non sarà applicata (SQLTransientConnectionException, 503); una già presa
+ * dallo scrittore può invece essere confermata dopo la risposta, e il suo esito viene dato
+ * come non noto (SQLTimeoutException). Alla chiusura le operazioni rimaste in coda vengono
+ * fatte fallire.
+ */
+final class GroupCommit implements AutoCloseable {
+    // Attesa massima per un posto in coda prima di rispondere 503
+    private static final long ATTESA_CODA_MS = 2000;
+
+    private final DataSource dataSource;
+    private final JdbcInventoryRepository repository;
+    private final int maxGruppo;
+    private final long attesaNanos;
+    private final long attesaEsitoMs;
+    private final BlockingQueue<Operazione<?>> coda;
+    private final Thread scrittore;
+    private volatile boolean chiuso;
+
+    GroupCommit(DataSource dataSource, JdbcInventoryRepository repository, int maxGruppo, long attesaMs,
+                long attesaEsitoMs) {
+        if (maxGruppo < 1 || attesaMs < 0 || attesaEsitoMs <= 0) {
+            throw new IllegalArgumentException("Group commit: servono almeno 1 operazione per gruppo, un'attesa non negativa "
+                    + "e un'attesa dell'esito positiva");
+        }
+        this.dataSource = dataSource;
+        this.repository = repository;
+        this.maxGruppo = maxGruppo;
+        this.attesaNanos = TimeUnit.MILLISECONDS.toNanos(attesaMs);
+        this.attesaEsitoMs = attesaEsitoMs;
+        this.coda = new ArrayBlockingQueue<>(maxGruppo * 16);
+        this.scrittore = new Thread(this::scrivi, "group-commit");
+        this.scrittore.setDaemon(true);
+        this.scrittore.start();
+    }
+
+    int inserisci(String nome, int quantita, LocalDate scadenza) throws SQLException {
+        return esegui(new Inserimento(nome, quantita, scadenza));
+    }
+
+    InventoryRepository.Prelievo preleva(int id, int quantita, int[] rimanente) throws SQLException {
+        Prelievo prelievo = new Prelievo(id, quantita);
+        InventoryRepository.Prelievo esito = esegui(prelievo);
+        // Scritto dallo scrittore prima di completare l'esito
+        rimanente[0] = prelievo.rimanente;
+        return esito;
+    }
+
+    private <T> T esegui(Operazione<T> operazione) throws SQLException {
+        try {
+            if (chiuso || !coda.offer(operazione, ATTESA_CODA_MS, TimeUnit.MILLISECONDS)) {
+                throw new SQLTransientConnectionException("Coda delle scritture piena");
+            }
+            // Accodata mentre la pipeline si chiudeva e lo scrittore è già uscito: nessuno la eseguirà
+            if (chiuso && !scrittore.isAlive() && coda.remove(operazione)) {
+                throw new SQLTransientConnectionException("Pipeline delle scritture chiusa");
+            }
+            return operazione.esito.get(attesaEsitoMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Ancora in coda: ritirata, lo scrittore non la vedrà
+            if (coda.remove(operazione)) {
+                throw new SQLTransientConnectionException("Scrittura non eseguita entro " + attesaEsitoMs + " ms");
+            }
+            throw new SQLTimeoutException("Esito della scrittura non noto dopo " + attesaEsitoMs + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (coda.remove(operazione)) {
+                throw new SQLTransientConnectionException("Attesa della scrittura interrotta", e);
+            }
+            throw new SQLTimeoutException("Attesa della scrittura interrotta, esito non noto", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Scrittura non riuscita", e.getCause());
+        }
+    }
+
+    // Ciclo del thread scrittore: un gruppo alla volta finché la pipeline non viene chiusa
+    private void scrivi() {
+        List<Operazione<?>> gruppo = new ArrayList<>(maxGruppo);
+        while (!chiuso || !coda.isEmpty()) {
+            try {
+                Operazione<?> prima = coda.poll(100, TimeUnit.MILLISECONDS);
+                if (prima == null) {
+                    continue;
+                }
+                gruppo.add(prima);
+                long scadenza = System.nanoTime() + attesaNanos;
+                while (gruppo.size() < maxGruppo) {
+                    long resto = scadenza - System.nanoTime();
+                    Operazione<?> altra = resto > 0 ? coda.poll(resto, TimeUnit.NANOSECONDS) : coda.poll();
+                    if (altra == null) {
+                        break;
+                    }
+                    gruppo.add(altra);
+                }
+                eseguiGruppo(gruppo);
+            } catch (InterruptedException e) {
+                chiuso = true;
+            } catch (RuntimeException e) {
+                // Nessun chiamante deve restare in attesa per un errore inatteso
+                for (Operazione<?> operazione : gruppo) {
+                    operazione.esito.completeExceptionally(e);
+                }
+            } finally {
+                gruppo.clear();
+            }
+        }
+    }
+
+    private void eseguiGruppo(List<Operazione<?>> gruppo) {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                applica(conn, gruppo);
+                conn.commit();
+                for (Operazione<?> operazione : gruppo) {
+                    operazione.conferma();
+                }
+            } catch (SQLException e) {
+                conn.rollback();
+                if (gruppo.size() == 1) {
+                    gruppo.get(0).esito.completeExceptionally(e);
+                } else {
+                    eseguiSingolarmente(conn, gruppo);
+                }
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            // Connessione non disponibile (o persa): falliscono tutte le operazioni non concluse
+            for (Operazione<?> operazione : gruppo) {
+                operazione.esito.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void eseguiSingolarmente(Connection conn, List<Operazione<?>> gruppo) throws SQLException {
+        List<Operazione<?>> singola = new ArrayList<>(1);
+        for (Operazione<?> operazione : gruppo) {
+            singola.add(operazione);
+            try {
+                applica(conn, singola);
+                conn.commit();
+                operazione.conferma();
+            } catch (SQLException e) {
+                conn.rollback();
+                operazione.esito.completeExceptionally(e);
+            }
+            singola.clear();
+        }
+    }
+
+    // Esegue le operazioni nella transazione aperta; gli esiti restano in sospeso fino al commit
+    private void applica(Connection conn, List<Operazione<?>> gruppo) throws SQLException {
+        List<Inserimento> inserimenti = new ArrayList<>();
+        List<Prelievo> prelievi = new ArrayList<>();
+        for (Operazione<?> operazione : gruppo) {
+            if (operazione instanceof Inserimento) {
+                inserimenti.add((Inserimento) operazione);
+            } else {
+                prelievi.add((Prelievo) operazione);
+            }
+        }
+
+        if (!inserimenti.isEmpty()) {
+            String sql = "INSERT INTO magazzino (nome, quantita, scadenza) VALUES (?, ?, ?)";
+            try (PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                for (Inserimento inserimento : inserimenti) {
+                    stmt.setString(1, inserimento.nome);
+                    stmt.setInt(2, inserimento.quantita);
+                    if (inserimento.scadenza != null) {
+                        stmt.setDate(3, Date.valueOf(inserimento.scadenza));
+                    } else {
+                        stmt.setNull(3, Types.DATE);
+                    }
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                try (ResultSet chiavi = stmt.getGeneratedKeys()) {
+                    for (Inserimento inserimento : inserimenti) {
+                        if (!chiavi.next()) {
+                            throw new SQLException("Id dei prodotti inseriti non restituiti");
+                        }
+                        inserimento.risultato = chiavi.getInt(1);
+                    }
+                }
+            }
+        }
+
+        if (!prelievi.isEmpty()) {
+            // Decrementi condizionali in batch, nell'ordine di arrivo: il conteggio di ogni
+            // statement dice se il prelievo è stato applicato lasciando una quantità positiva
+            String sql = "UPDATE magazzino SET quantita = quantita - ? WHERE id = ? AND quantita > ?";
+            int[] aggiornate;
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                for (Prelievo prelievo : prelievi) {
+                    stmt.setInt(1, prelievo.quantita);
+                    stmt.setInt(2, prelievo.id);
+                    stmt.setInt(3, prelievo.quantita);
+                    stmt.addBatch();
+                }
+                aggiornate = stmt.executeBatch();
+            }
+            for (int i = 0; i < prelievi.size(); i++) {
+                if (aggiornate[i] == Statement.SUCCESS_NO_INFO) {
+                    // Senza conteggi per statement (batch riscritti dal driver) l'esito non è deducibile
+                    throw new SQLException("Conteggi del batch di prelievo non disponibili");
+                }
+                prelievi.get(i).risultato = aggiornate[i] > 0
+                        ? InventoryRepository.Prelievo.PRELEVATO
+                        : null;
+                // La quantità lasciata da un decremento del batch non si conosce senza rileggere la riga
+                prelievi.get(i).rimanente = MovementLedger.NON_NOTO;
+            }
+            // I prelievi non applicati passano dal percorso lento, dopo quelli del batch
+            for (Prelievo prelievo : prelievi) {
+                if (prelievo.risultato == null) {
+                    prelievo.risultato = repository.esaurisci(conn, prelievo.id, prelievo.quantita);
+                    prelievo.rimanente = 0;
+                }
+            }
+        }
+    }
+
+    // Smette di accettare operazioni, completa quelle già in coda e attende lo scrittore;
+    // quelle ancora in coda dopo l'attesa (o accodate durante la chiusura) falliscono
+    @Override
+    public void close() {
+        chiuso = true;
+        try {
+            scrittore.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        SQLTransientConnectionException errore = new SQLTransientConnectionException("Pipeline delle scritture chiusa");
+        Operazione<?> rimasta;
+        while ((rimasta = coda.poll()) != null) {
+            rimasta.esito.completeExceptionally(errore);
+        }
+    }
+
+    private abstract static class Operazione<T> {
+        final CompletableFuture<T> esito = new CompletableFuture<>();
+        T risultato;
+
+        void conferma() {
+            esito.complete(risultato);
+        }
+    }
+
+    private static final class Inserimento extends Operazione<Integer> {
+        final String nome;
+        final int quantita;
+        final LocalDate scadenza;
+
+        Inserimento(String nome, int quantita, LocalDate scadenza) {
+            this.nome = nome;
+            this.quantita = quantita;
+            this.scadenza = scadenza;
+        }
+    }
+
+    private static final class Prelievo extends Operazione<InventoryRepository.Prelievo> {
+        final int id;
+        final int quantita;
+        // Quantità lasciata dal prelievo: NON_NOTO se applicato dal batch, 0 se esaurito
+        int rimanente;
+
+        Prelievo(int id, int quantita) {
+            this.id = id;
+            this.quantita = quantita;
+        }
+    }
+}
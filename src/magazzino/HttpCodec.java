@@ -0,0 +1,234 @@
+package magazzino;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+
+/**
+ * Decodifica dei form urlencoded e delle query string, ed escape delle stringhe JSON,
+ * condivisi da tutti gli handler.
+ *
+ * Il parsing lavora direttamente sui byte, senza espressioni regolari né URLDecoder: le
+ * coppie finiscono in un array piatto e si decodificano in una stringa solo chiave e valore.
+ * L'input malformato produce una {@link IllegalArgumentException} con un messaggio adatto
+ * alla risposta 400.
+ */
+final class HttpCodec {
+    // Limite del corpo dei form: i form dell'applicazione occupano poche centinaia di byte
+    static final int MAX_CORPO_FORM = 64 * 1024;
+
+    private HttpCodec() {
+    }
+
+    /**
+     * Parametri di un form o di una query, nell'ordine di arrivo. Se un nome compare più
+     * volte vale l'ultimo valore.
+     */
+    static final class Parametri {
+        private String[] coppie = new String[16];
+        private int dimensione;
+
+        private void aggiungi(String nome, String valore) {
+            if (dimensione == coppie.length) {
+                coppie = Arrays.copyOf(coppie, dimensione * 2);
+            }
+            coppie[dimensione++] = nome;
+            coppie[dimensione++] = valore;
+        }
+
+        String get(String nome) {
+            for (int i = dimensione - 2; i >= 0; i -= 2) {
+                if (coppie[i].equals(nome)) {
+                    return coppie[i + 1];
+                }
+            }
+            return null;
+        }
+
+        String getOrDefault(String nome, String predefinito) {
+            String valore = get(nome);
+            return valore != null ? valore : predefinito;
+        }
+
+        // Valore obbligatorio e non vuoto
+        String richiesto(String nome) {
+            String valore = get(nome);
+            if (valore == null || valore.isEmpty()) {
+                throw new IllegalArgumentException("parametro " + nome + " mancante");
+            }
+            return valore;
+        }
+
+        int intero(String nome) {
+            try {
+                return Integer.parseInt(richiesto(nome).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("parametro " + nome + " non numerico");
+            }
+        }
+
+        int intero(String nome, int predefinito) {
+            String valore = get(nome);
+            return valore == null || valore.isEmpty() ? predefinito : intero(nome);
+        }
+
+        // null se il parametro è assente o vuoto; altrimenti una data yyyy-MM-dd
+        LocalDate data(String nome) {
+            String valore = get(nome);
+            if (valore == null || valore.isEmpty()) {
+                return null;
+            }
+            try {
+                return LocalDate.parse(valore.trim());
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("parametro " + nome + " non è una data valida");
+            }
+        }
+    }
+
+    // Legge e decodifica il corpo di un form application/x-www-form-urlencoded
+    static Parametri leggiForm(InputStream corpo) throws IOException {
+        byte[] dati = corpo.readNBytes(MAX_CORPO_FORM + 1);
+        if (dati.length > MAX_CORPO_FORM) {
+            throw new IllegalArgumentException("corpo della richiesta troppo grande");
+        }
+        return leggiForm(dati, dati.length);
+    }
+
+    static Parametri leggiForm(byte[] dati, int lunghezza) {
+        Parametri parametri = new Parametri();
+        byte[] appoggio = null;
+        int inizio = 0;
+        while (inizio < lunghezza) {
+            int fine = inizio;
+            int uguale = -1;
+            while (fine < lunghezza && dati[fine] != '&') {
+                if (uguale < 0 && dati[fine] == '=') {
+                    uguale = fine;
+                }
+                fine++;
+            }
+            if (fine > inizio) {
+                int fineNome = uguale >= 0 ? uguale : fine;
+                if (appoggio == null) {
+                    appoggio = new byte[lunghezza];
+                }
+                String nome = decodifica(dati, inizio, fineNome, appoggio);
+                String valore = uguale >= 0 ? decodifica(dati, uguale + 1, fine, appoggio) : "";
+                parametri.aggiungi(nome, valore);
+            }
+            inizio = fine + 1;
+        }
+        return parametri;
+    }
+
+    // Query string grezza (URI.getRawQuery), ancora percent-encoded
+    static Parametri leggiQuery(String query) {
+        if (query == null || query.isEmpty()) {
+            return new Parametri();
+        }
+        byte[] dati = query.getBytes(StandardCharsets.UTF_8);
+        return leggiForm(dati, dati.length);
+    }
+
+    // Decodifica %XX e '+' come spazio; senza sequenze da decodificare crea direttamente la stringa
+    private static String decodifica(byte[] dati, int inizio, int fine, byte[] appoggio) {
+        int i = inizio;
+        while (i < fine && dati[i] != '%' && dati[i] != '+') {
+            i++;
+        }
+        if (i == fine) {
+            return new String(dati, inizio, fine - inizio, StandardCharsets.UTF_8);
+        }
+
+        int n = i - inizio;
+        System.arraycopy(dati, inizio, appoggio, 0, n);
+        while (i < fine) {
+            byte b = dati[i];
+            if (b == '+') {
+                appoggio[n++] = ' ';
+                i++;
+            } else if (b == '%') {
+                if (i + 2 >= fine) {
+                    throw new IllegalArgumentException("sequenza % incompleta");
+                }
+                int alta = Character.digit(dati[i + 1], 16);
+                int bassa = Character.digit(dati[i + 2], 16);
+                if (alta < 0 || bassa < 0) {
+                    throw new IllegalArgumentException("sequenza % non valida");
+                }
+                appoggio[n++] = (byte) (alta << 4 | bassa);
+                i += 3;
+            } else {
+                appoggio[n++] = b;
+                i++;
+            }
+        }
+        return new String(appoggio, 0, n, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Contenuto di una stringa JSON (senza virgolette), in un solo passaggio. Se non ci sono
+     * caratteri da sostituire restituisce la stringa originale senza copiarla.
+     */
+    static String escapeJson(String testo) {
+        if (testo == null) {
+            return "";
+        }
+        int lunghezza = testo.length();
+        int i = 0;
+        while (i < lunghezza && !daSostituire(testo.charAt(i))) {
+            i++;
+        }
+        if (i == lunghezza) {
+            return testo;
+        }
+        StringBuilder sb = new StringBuilder(lunghezza + 16);
+        sb.append(testo, 0, i);
+        for (; i < lunghezza; i++) {
+            char c = testo.charAt(i);
+            if (daSostituire(c)) {
+                appendEscape(sb, c);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    static boolean daSostituire(char c) {
+        return c < 0x20 || c == '"' || c == '\\';
+    }
+
+    private static void appendEscape(StringBuilder sb, char c) {
+        switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            case '\b':
+                sb.append("\\b");
+                break;
+            case '\f':
+                sb.append("\\f");
+                break;
+            default:
+                sb.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+                break;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package magazzino;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Mappa con chiavi int a indirizzamento aperto (probing lineare), senza boxing delle chiavi.
+ * Le rimozioni ricompattano la sequenza di probing, quindi non servono marcatori di cancellazione.
+ * Non è thread-safe: chi la usa la protegge con il proprio lock.
+ */
+final class IntMap<V> {
+    private static final int VUOTA = 0;
+
+    // La chiave 0 non entra nella tabella (indica lo slot libero) e ha un posto a parte
+    private int[] chiavi;
+    private Object[] valori;
+    private Object valoreZero;
+    private boolean haZero;
+    private int dimensione;
+    private int soglia;
+
+    IntMap(int capacitaIniziale) {
+        int capacita = Integer.highestOneBit(Math.max(8, capacitaIniziale * 2 - 1)) << 1;
+        chiavi = new int[capacita];
+        valori = new Object[capacita];
+        soglia = capacita / 4 * 3;
+    }
+
+    int size() {
+        return dimensione;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int chiave) {
+        if (chiave == VUOTA) {
+            return haZero ? (V) valoreZero : null;
+        }
+        int maschera = chiavi.length - 1;
+        for (int i = slot(chiave, maschera); ; i = (i + 1) & maschera) {
+            int presente = chiavi[i];
+            if (presente == chiave) {
+                return (V) valori[i];
+            }
+            if (presente == VUOTA) {
+                return null;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    V put(int chiave, V valore) {
+        if (chiave == VUOTA) {
+            V precedente = haZero ? (V) valoreZero : null;
+            if (!haZero) {
+                dimensione++;
+            }
+            haZero = true;
+            valoreZero = valore;
+            return precedente;
+        }
+        int maschera = chiavi.length - 1;
+        int i = slot(chiave, maschera);
+        while (chiavi[i] != VUOTA) {
+            if (chiavi[i] == chiave) {
+                V precedente = (V) valori[i];
+                valori[i] = valore;
+                return precedente;
+            }
+            i = (i + 1) & maschera;
+        }
+        chiavi[i] = chiave;
+        valori[i] = valore;
+        if (++dimensione > soglia) {
+            ingrandisci();
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(int chiave) {
+        if (chiave == VUOTA) {
+            if (!haZero) {
+                return null;
+            }
+            V precedente = (V) valoreZero;
+            haZero = false;
+            valoreZero = null;
+            dimensione--;
+            return precedente;
+        }
+        int maschera = chiavi.length - 1;
+        int i = slot(chiave, maschera);
+        while (chiavi[i] != chiave) {
+            if (chiavi[i] == VUOTA) {
+                return null;
+            }
+            i = (i + 1) & maschera;
+        }
+        V precedente = (V) valori[i];
+        dimensione--;
+
+        // Sposta indietro gli elementi successivi della stessa sequenza di probing
+        int libero = i;
+        for (int j = (i + 1) & maschera; chiavi[j] != VUOTA; j = (j + 1) & maschera) {
+            int ideale = slot(chiavi[j], maschera);
+            if (((j - ideale) & maschera) >= ((j - libero) & maschera)) {
+                chiavi[libero] = chiavi[j];
+                valori[libero] = valori[j];
+                libero = j;
+            }
+        }
+        chiavi[libero] = VUOTA;
+        valori[libero] = null;
+        return precedente;
+    }
+
+    void clear() {
+        Arrays.fill(chiavi, VUOTA);
+        Arrays.fill(valori, null);
+        haZero = false;
+        valoreZero = null;
+        dimensione = 0;
+    }
+
+    // Visita i valori in ordine non specificato
+    @SuppressWarnings("unchecked")
+    void forEachValue(Consumer<? super V> azione) {
+        if (haZero) {
+            azione.accept((V) valoreZero);
+        }
+        for (int i = 0; i < chiavi.length; i++) {
+            if (chiavi[i] != VUOTA) {
+                azione.accept((V) valori[i]);
+            }
+        }
+    }
+
+    private void ingrandisci() {
+        int[] vecchieChiavi = chiavi;
+        Object[] vecchiValori = valori;
+        chiavi = new int[vecchieChiavi.length * 2];
+        valori = new Object[vecchieChiavi.length * 2];
+        soglia = chiavi.length / 4 * 3;
+        int maschera = chiavi.length - 1;
+        for (int i = 0; i < vecchieChiavi.length; i++) {
+            if (vecchieChiavi[i] != VUOTA) {
+                int j = slot(vecchieChiavi[i], maschera);
+                while (chiavi[j] != VUOTA) {
+                    j = (j + 1) & maschera;
+                }
+                chiavi[j] = vecchieChiavi[i];
+                valori[j] = vecchiValori[i];
+            }
+        }
+    }
+
+    // Mescola i bit: gli id sequenziali finirebbero altrimenti in slot contigui
+    private static int slot(int chiave, int maschera) {
+        int h = chiave * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & maschera;
+    }
+}
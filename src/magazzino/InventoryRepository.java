@@ -0,0 +1,132 @@
+package magazzino;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accesso ai dati del magazzino usato dagli handler, indipendente dal backend.
+ *
+ * Le implementazioni sono {@link JdbcInventoryRepository} (MySQL o altro database JDBC) e
+ * {@link EmbeddedInventoryRepository} (mappe in memoria con journal su file). Gli errori di
+ * accesso ai dati sono sempre {@link SQLException}, così gli handler li trattano allo stesso
+ * modo qualunque sia il backend; una {@link java.sql.SQLTransientConnectionException} indica
+ * un sovraccarico temporaneo e diventa un 503 (la scrittura non è stata applicata); una
+ * {@link java.sql.SQLTimeoutException} indica una scrittura dall'esito non noto, che può
+ * essere stata applicata, e diventa un 504.
+ */
+interface InventoryRepository extends AutoCloseable {
+
+    // Riceve le righe di un listing nell'ordine richiesto, man mano che vengono lette
+    @FunctionalInterface
+    interface Visitatore {
+        void riga(int id, String nome, int quantita, LocalDate scadenza) throws IOException;
+    }
+
+    // Esito del prelievo di un singolo prodotto
+    enum Prelievo {
+        // Quantità scalata, il prodotto resta in magazzino
+        PRELEVATO,
+        // Scorta esaurita: il prodotto è passato in da_ordinare
+        ESAURITO,
+        NON_DISPONIBILE,
+        NON_TROVATO
+    }
+
+    /**
+     * Filtri, ordinamento e posizione di un listing del magazzino. Il cursore è la chiave di
+     * ordinamento e l'id dell'ultima riga già restituita (per l'ordinamento per id basta l'id).
+     */
+    final class Filtro {
+        static final String PER_ID = "id";
+        static final String PER_NOME = "nome";
+        static final String PER_SCADENZA = "scadenza";
+        // Chiave di ordinamento delle righe senza scadenza, che finiscono in fondo
+        static final LocalDate SENZA_SCADENZA = LocalDate.of(9999, 12, 31);
+
+        String prefisso;
+        Integer sottoQuantita;
+        LocalDate scadenzaDa;
+        LocalDate scadenzaA;
+        String ordinamento = PER_ID;
+        String dopoChiave;
+        Integer dopoId;
+    }
+
+    // Importazione a blocchi: le righe confermate restano anche se l'importazione si interrompe
+    interface Importazione extends AutoCloseable {
+        void aggiungi(String nome, int quantita, LocalDate scadenza) throws SQLException;
+
+        // Conferma le righe aggiunte e non ancora confermate
+        void conferma() throws SQLException;
+
+        int confermate();
+
+        // Scarta le righe non confermate e rilascia le risorse
+        @Override
+        void close() throws SQLException;
+    }
+
+    // Inserisce un prodotto e ne restituisce l'id
+    int inserisci(String nome, int quantita, LocalDate scadenza) throws SQLException;
+
+    Importazione importa() throws SQLException;
+
+    // Al più limite righe che rispettano il filtro, ordinate per (chiave, id)
+    void elenca(Filtro filtro, int limite, Visitatore visitatore) throws SQLException, IOException;
+
+    // Prelievo atomico: a scorta esaurita il prodotto passa in da_ordinare. Se il prelievo
+    // riesce rimanente[0] riceve la quantità lasciata da questo prelievo (0 se ESAURITO),
+    // oppure MovementLedger.NON_NOTO se l'archivio non la conosce senza un'altra lettura
+    Prelievo preleva(int id, int quantita, int[] rimanente) throws SQLException;
+
+    /**
+     * Prelievo tutto-o-niente di più righe {id, quantita}; più righe sullo stesso prodotto si
+     * sommano in ordine. Riempie rimanenti ed errori per riga e restituisce le quantità finali
+     * per prodotto (0 = passato in da_ordinare), oppure null se il prelievo è stato rifiutato.
+     */
+    Map<Integer, Integer> prelevaTutti(List<int[]> righe, int[] rimanenti, String[] errori) throws SQLException;
+
+    /**
+     * Applica le righe in ordine sulle quantità disponibili (più righe sullo stesso prodotto si
+     * sommano). Restituisce false se almeno una riga non è applicabile.
+     */
+    static boolean applicaPrelievi(List<int[]> righe, Map<Integer, Integer> disponibili,
+                                   int[] rimanenti, String[] errori) {
+        boolean tutteValide = true;
+        for (int i = 0; i < righe.size(); i++) {
+            int id = righe.get(i)[0];
+            Integer disponibile = disponibili.get(id);
+            if (disponibile == null) {
+                errori[i] = "Prodotto non trovato.";
+                tutteValide = false;
+            } else if (righe.get(i)[1] > disponibile) {
+                errori[i] = "Quantità richiesta non disponibile.";
+                tutteValide = false;
+            } else {
+                rimanenti[i] = disponibile - righe.get(i)[1];
+                disponibili.put(id, rimanenti[i]);
+            }
+        }
+        return tutteValide;
+    }
+
+    // false se il prodotto non esiste
+    boolean elimina(int id) throws SQLException;
+
+    // Sposta i prodotti indicati da magazzino a da_ordinare in un'unica operazione
+    void spostaInDaOrdinare(List<ExpiryIndex.Prodotto> prodotti) throws SQLException;
+
+    void elencaDaOrdinare(Visitatore visitatore) throws SQLException, IOException;
+
+    // Prodotti in magazzino con gli id indicati, in ordine di id; gli id assenti vengono ignorati
+    void elencaPerId(Collection<Integer> ids, Visitatore visitatore) throws SQLException, IOException;
+
+    List<ExpiryIndex.Prodotto> prodottiConScadenza() throws SQLException;
+
+    @Override
+    void close();
+}
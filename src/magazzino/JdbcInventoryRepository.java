@@ -0,0 +1,484 @@
+package magazzino;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Backend JDBC: tabelle magazzino e da_ordinare su MySQL (o su un altro database compatibile),
+ * con le connessioni prese dal pool.
+ */
+final class JdbcInventoryRepository implements InventoryRepository {
+    private static final int BATCH_IMPORTAZIONE = Integer.getInteger("magazzino.import.batchSize", 500);
+    private static final int COMMIT_IMPORTAZIONE = Integer.getInteger("magazzino.import.commitEvery", 5000);
+
+    // Modalità di lettura dei listing: "buffer" (default del driver), "cursor" (fetch a blocchi,
+    // con useCursorFetch=true nell'URL MySQL) oppure "stream" (riga per riga, driver MySQL)
+    private static final String FETCH_MODE = System.getProperty("magazzino.jdbc.fetchMode", "buffer");
+    private static final int FETCH_SIZE = Integer.getInteger("magazzino.jdbc.fetchSize", 500);
+
+    // Id per ciascuna query di elencaPerId
+    private static final int BLOCCO_ID = 500;
+
+    // Le righe senza scadenza vengono ordinate in fondo
+    private static final String CHIAVE_SCADENZA = "COALESCE(scadenza, DATE '9999-12-31')";
+
+    private final DataSource dataSource;
+    // Se presente, inserimenti e prelievi singoli passano dal commit di gruppo
+    private GroupCommit gruppi;
+
+    JdbcInventoryRepository(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    // Da chiamare all'avvio, prima che il server accetti richieste
+    void abilitaGroupCommit(int maxGruppo, long attesaMs, long attesaEsitoMs) {
+        gruppi = new GroupCommit(dataSource, this, maxGruppo, attesaMs, attesaEsitoMs);
+    }
+
+    static void configuraFetch(PreparedStatement stmt) throws SQLException {
+        configuraFetch(stmt, FETCH_MODE, FETCH_SIZE);
+    }
+
+    static void configuraFetch(PreparedStatement stmt, String modalita, int dimensione) throws SQLException {
+        switch (modalita) {
+            case "stream":
+                stmt.setFetchSize(Integer.MIN_VALUE);
+                break;
+            case "cursor":
+                stmt.setFetchSize(dimensione);
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public int inserisci(String nome, int quantita, LocalDate scadenza) throws SQLException {
+        if (gruppi != null) {
+            return gruppi.inserisci(nome, quantita, scadenza);
+        }
+        try (Connection conn = dataSource.getConnection()) {
+            String sql = "INSERT INTO magazzino (nome, quantita, scadenza) VALUES (?, ?, ?)";
+            try (PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                stmt.setString(1, nome);
+                stmt.setInt(2, quantita);
+                if (scadenza != null) {
+                    stmt.setDate(3, Date.valueOf(scadenza));
+                } else {
+                    stmt.setNull(3, Types.DATE);
+                }
+                stmt.executeUpdate();
+
+                try (ResultSet chiavi = stmt.getGeneratedKeys()) {
+                    if (!chiavi.next()) {
+                        throw new SQLException("Id del prodotto inserito non restituito");
+                    }
+                    return chiavi.getInt(1);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Importazione importa() throws SQLException {
+        Connection conn = dataSource.getConnection();
+        try {
+            conn.setAutoCommit(false);
+            String sql = "INSERT INTO magazzino (nome, quantita, scadenza) VALUES (?, ?, ?)";
+            return new ImportazioneJdbc(conn, conn.prepareStatement(sql));
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+    }
+
+    // Insert a batch con commit periodici sulla stessa connessione
+    private static final class ImportazioneJdbc implements Importazione {
+        private final Connection conn;
+        private final PreparedStatement stmt;
+        private int inBatch;
+        private int nonConfermate;
+        private int confermate;
+
+        ImportazioneJdbc(Connection conn, PreparedStatement stmt) {
+            this.conn = conn;
+            this.stmt = stmt;
+        }
+
+        @Override
+        public void aggiungi(String nome, int quantita, LocalDate scadenza) throws SQLException {
+            stmt.setString(1, nome);
+            stmt.setInt(2, quantita);
+            if (scadenza != null) {
+                stmt.setDate(3, Date.valueOf(scadenza));
+            } else {
+                stmt.setNull(3, Types.DATE);
+            }
+            stmt.addBatch();
+            inBatch++;
+
+            if (inBatch == BATCH_IMPORTAZIONE) {
+                stmt.executeBatch();
+                nonConfermate += inBatch;
+                inBatch = 0;
+            }
+            if (nonConfermate >= COMMIT_IMPORTAZIONE) {
+                conferma();
+            }
+        }
+
+        @Override
+        public void conferma() throws SQLException {
+            if (inBatch > 0) {
+                stmt.executeBatch();
+                nonConfermate += inBatch;
+                inBatch = 0;
+            }
+            conn.commit();
+            confermate += nonConfermate;
+            nonConfermate = 0;
+        }
+
+        @Override
+        public int confermate() {
+            return confermate;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            try {
+                stmt.close();
+            } finally {
+                // Il pool annulla le righe non confermate alla restituzione
+                conn.close();
+            }
+        }
+    }
+
+    @Override
+    public void elenca(Filtro filtro, int limite, Visitatore visitatore) throws SQLException, IOException {
+        // Costruzione della query: filtri, posizione del cursore e ordinamento stabile (chiave, id)
+        StringBuilder sql = new StringBuilder("SELECT id, nome, quantita, scadenza FROM magazzino WHERE 1 = 1");
+        List<Object> parametri = new ArrayList<>();
+        if (filtro.prefisso != null) {
+            sql.append(" AND nome LIKE ? ESCAPE '!'");
+            parametri.add(filtro.prefisso.replace("!", "!!").replace("%", "!%").replace("_", "!_") + "%");
+        }
+        if (filtro.sottoQuantita != null) {
+            sql.append(" AND quantita < ?");
+            parametri.add(filtro.sottoQuantita);
+        }
+        if (filtro.scadenzaDa != null) {
+            sql.append(" AND scadenza >= ?");
+            parametri.add(Date.valueOf(filtro.scadenzaDa));
+        }
+        if (filtro.scadenzaA != null) {
+            sql.append(" AND scadenza <= ?");
+            parametri.add(Date.valueOf(filtro.scadenzaA));
+        }
+
+        String chiave = null;
+        if (Filtro.PER_NOME.equals(filtro.ordinamento)) {
+            chiave = "nome";
+        } else if (Filtro.PER_SCADENZA.equals(filtro.ordinamento)) {
+            chiave = CHIAVE_SCADENZA;
+        }
+        if (filtro.dopoId != null) {
+            if (chiave == null) {
+                sql.append(" AND id > ?");
+                parametri.add(filtro.dopoId);
+            } else {
+                Object valore = chiave.equals("nome") ? filtro.dopoChiave : Date.valueOf(filtro.dopoChiave);
+                sql.append(" AND (").append(chiave).append(" > ? OR (").append(chiave).append(" = ? AND id > ?))");
+                parametri.add(valore);
+                parametri.add(valore);
+                parametri.add(filtro.dopoId);
+            }
+        }
+        sql.append(chiave == null ? " ORDER BY id" : " ORDER BY " + chiave + ", id");
+        sql.append(" LIMIT ").append(limite);
+
+        try (Connection conn = dataSource.getConnection()) {
+            try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+                for (int i = 0; i < parametri.size(); i++) {
+                    stmt.setObject(i + 1, parametri.get(i));
+                }
+                configuraFetch(stmt);
+                ResultSet rs = stmt.executeQuery();
+                // Le righe passano al visitatore man mano che arrivano dal ResultSet
+                while (rs.next()) {
+                    Date scadenza = rs.getDate("scadenza");
+                    visitatore.riga(rs.getInt("id"), rs.getString("nome"), rs.getInt("quantita"),
+                            scadenza != null ? scadenza.toLocalDate() : null);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Prelievo preleva(int id, int quantita, int[] rimanente) throws SQLException {
+        if (gruppi != null) {
+            return gruppi.preleva(id, quantita, rimanente);
+        }
+        try (Connection conn = dataSource.getConnection()) {
+            // Caso comune: decremento condizionale atomico, un solo round trip in autocommit.
+            // Se la quantità resterebbe positiva l'UPDATE basta; prelievi concorrenti non si sovrascrivono.
+            // Con MySQL LAST_INSERT_ID(espressione) riporta la quantità rimasta nell'esito dell'UPDATE,
+            // letto dal driver come chiave generata; con gli altri database resta NON_NOTO.
+            boolean mysql = "MySQL".equals(conn.getMetaData().getDatabaseProductName());
+            String sqlDecremento = mysql
+                    ? "UPDATE magazzino SET quantita = LAST_INSERT_ID(quantita - ?) WHERE id = ? AND quantita > ?"
+                    : "UPDATE magazzino SET quantita = quantita - ? WHERE id = ? AND quantita > ?";
+            try (PreparedStatement stmtDecremento = mysql
+                    ? conn.prepareStatement(sqlDecremento, Statement.RETURN_GENERATED_KEYS)
+                    : conn.prepareStatement(sqlDecremento)) {
+                stmtDecremento.setInt(1, quantita);
+                stmtDecremento.setInt(2, id);
+                stmtDecremento.setInt(3, quantita);
+                if (stmtDecremento.executeUpdate() > 0) {
+                    rimanente[0] = MovementLedger.NON_NOTO;
+                    if (mysql) {
+                        try (ResultSet chiavi = stmtDecremento.getGeneratedKeys()) {
+                            if (chiavi.next()) {
+                                rimanente[0] = chiavi.getInt(1);
+                            }
+                        }
+                    }
+                    return Prelievo.PRELEVATO;
+                }
+            }
+
+            // Il prelievo esaurisce la scorta (o non è possibile): si prosegue in transazione
+            conn.setAutoCommit(false);
+            try {
+                Prelievo esito = esaurisci(conn, id, quantita);
+                if (esito == Prelievo.ESAURITO) {
+                    rimanente[0] = 0;
+                    conn.commit();
+                } else {
+                    conn.rollback();
+                }
+                return esito;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Prelievo che il decremento condizionale non ha potuto applicare, dentro una transazione
+     * già aperta (il commit spetta al chiamante). Si blocca la riga solo se la quantità è
+     * esattamente quella richiesta e si sposta il prodotto in da_ordinare; altrimenti si legge
+     * la riga per spiegare il motivo.
+     */
+    Prelievo esaurisci(Connection conn, int id, int quantita) throws SQLException {
+        String sqlBlocco = "SELECT nome FROM magazzino WHERE id = ? AND quantita = ? FOR UPDATE";
+        String sqlDelete = "DELETE FROM magazzino WHERE id = ?";
+        String sqlInsert = "INSERT INTO da_ordinare (id, nome, quantita) VALUES (?, ?, ?)";
+        try (PreparedStatement stmtBlocco = conn.prepareStatement(sqlBlocco);
+             PreparedStatement stmtDelete = conn.prepareStatement(sqlDelete);
+             PreparedStatement stmtInsert = conn.prepareStatement(sqlInsert)) {
+            stmtBlocco.setInt(1, id);
+            stmtBlocco.setInt(2, quantita);
+            ResultSet rs = stmtBlocco.executeQuery();
+            if (rs.next()) {
+                String nomeProdotto = rs.getString("nome");
+                stmtDelete.setInt(1, id);
+                stmtDelete.executeUpdate();
+                stmtInsert.setInt(1, id);
+                stmtInsert.setString(2, nomeProdotto);
+                stmtInsert.setInt(3, 0);
+                if (stmtInsert.executeUpdate() > 0) {
+                    return Prelievo.ESAURITO;
+                }
+            }
+        }
+
+        String sqlSelect = "SELECT quantita FROM magazzino WHERE id = ?";
+        try (PreparedStatement stmtSelect = conn.prepareStatement(sqlSelect)) {
+            stmtSelect.setInt(1, id);
+            ResultSet rs = stmtSelect.executeQuery();
+            return rs.next() ? Prelievo.NON_DISPONIBILE : Prelievo.NON_TROVATO;
+        }
+    }
+
+    @Override
+    public Map<Integer, Integer> prelevaTutti(List<int[]> righe, int[] rimanenti, String[] errori) throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+
+            // Blocca in un solo passaggio tutte le righe coinvolte
+            Map<Integer, Integer> disponibili = new HashMap<>();
+            Map<Integer, String> nomi = new HashMap<>();
+            StringBuilder sqlSelect = new StringBuilder("SELECT id, nome, quantita FROM magazzino WHERE id IN (");
+            for (int i = 0; i < righe.size(); i++) {
+                sqlSelect.append(i == 0 ? "?" : ", ?");
+            }
+            sqlSelect.append(") FOR UPDATE");
+            try (PreparedStatement stmtSelect = conn.prepareStatement(sqlSelect.toString())) {
+                for (int i = 0; i < righe.size(); i++) {
+                    stmtSelect.setInt(i + 1, righe.get(i)[0]);
+                }
+                ResultSet rs = stmtSelect.executeQuery();
+                while (rs.next()) {
+                    disponibili.put(rs.getInt("id"), rs.getInt("quantita"));
+                    nomi.put(rs.getInt("id"), rs.getString("nome"));
+                }
+            }
+
+            if (!InventoryRepository.applicaPrelievi(righe, disponibili, rimanenti, errori)) {
+                conn.rollback();
+                return null;
+            }
+
+            String sqlUpdate = "UPDATE magazzino SET quantita = ? WHERE id = ?";
+            String sqlDelete = "DELETE FROM magazzino WHERE id = ?";
+            String sqlInsert = "INSERT INTO da_ordinare (id, nome, quantita) VALUES (?, ?, ?)";
+            try (PreparedStatement stmtUpdate = conn.prepareStatement(sqlUpdate);
+                 PreparedStatement stmtDelete = conn.prepareStatement(sqlDelete);
+                 PreparedStatement stmtInsert = conn.prepareStatement(sqlInsert)) {
+                for (Map.Entry<Integer, Integer> voce : disponibili.entrySet()) {
+                    int id = voce.getKey();
+                    if (voce.getValue() > 0) {
+                        stmtUpdate.setInt(1, voce.getValue());
+                        stmtUpdate.setInt(2, id);
+                        stmtUpdate.addBatch();
+                    } else {
+                        stmtDelete.setInt(1, id);
+                        stmtDelete.addBatch();
+                        stmtInsert.setInt(1, id);
+                        stmtInsert.setString(2, nomi.get(id));
+                        stmtInsert.setInt(3, 0);
+                        stmtInsert.addBatch();
+                    }
+                }
+                stmtUpdate.executeBatch();
+                stmtDelete.executeBatch();
+                stmtInsert.executeBatch();
+            }
+            conn.commit();
+            return disponibili;
+        }
+    }
+
+    @Override
+    public boolean elimina(int id) throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            String sql = "DELETE FROM magazzino WHERE id = ?";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setInt(1, id);
+                return stmt.executeUpdate() > 0;
+            }
+        }
+    }
+
+    @Override
+    public void spostaInDaOrdinare(List<ExpiryIndex.Prodotto> prodotti) throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            String sqlInsert = "INSERT INTO da_ordinare (id, nome, quantita) VALUES (?, ?, ?)";
+            String sqlDelete = "DELETE FROM magazzino WHERE id = ?";
+            try (PreparedStatement stmtInsert = conn.prepareStatement(sqlInsert);
+                 PreparedStatement stmtDelete = conn.prepareStatement(sqlDelete)) {
+                for (ExpiryIndex.Prodotto prodotto : prodotti) {
+                    stmtInsert.setInt(1, prodotto.id);
+                    stmtInsert.setString(2, prodotto.nome);
+                    stmtInsert.setInt(3, 0);
+                    stmtInsert.addBatch();
+                    stmtDelete.setInt(1, prodotto.id);
+                    stmtDelete.addBatch();
+                }
+                stmtInsert.executeBatch();
+                stmtDelete.executeBatch();
+            }
+            conn.commit();
+        }
+    }
+
+    @Override
+    public void elencaDaOrdinare(Visitatore visitatore) throws SQLException, IOException {
+        try (Connection conn = dataSource.getConnection()) {
+            String sql = "SELECT id, nome, quantita FROM da_ordinare ORDER BY id";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                configuraFetch(stmt);
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    visitatore.riga(rs.getInt("id"), rs.getString("nome"), rs.getInt("quantita"), null);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void elencaPerId(Collection<Integer> ids, Visitatore visitatore) throws SQLException, IOException {
+        List<Integer> ordinati = new ArrayList<>(ids);
+        Collections.sort(ordinati);
+        try (Connection conn = dataSource.getConnection()) {
+            // Liste IN a blocchi, per restare entro i limiti dei parametri del driver
+            for (int inizio = 0; inizio < ordinati.size(); inizio += BLOCCO_ID) {
+                List<Integer> blocco = ordinati.subList(inizio, Math.min(inizio + BLOCCO_ID, ordinati.size()));
+                StringBuilder sql = new StringBuilder("SELECT id, nome, quantita, scadenza FROM magazzino WHERE id IN (");
+                for (int i = 0; i < blocco.size(); i++) {
+                    sql.append(i == 0 ? "?" : ", ?");
+                }
+                sql.append(") ORDER BY id");
+                try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+                    for (int i = 0; i < blocco.size(); i++) {
+                        stmt.setInt(i + 1, blocco.get(i));
+                    }
+                    ResultSet rs = stmt.executeQuery();
+                    while (rs.next()) {
+                        Date scadenza = rs.getDate("scadenza");
+                        visitatore.riga(rs.getInt("id"), rs.getString("nome"), rs.getInt("quantita"),
+                                scadenza != null ? scadenza.toLocalDate() : null);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public List<ExpiryIndex.Prodotto> prodottiConScadenza() throws SQLException {
+        List<ExpiryIndex.Prodotto> prodotti = new ArrayList<>();
+        try (Connection conn = dataSource.getConnection()) {
+            String sql = "SELECT id, nome, quantita, scadenza FROM magazzino WHERE scadenza IS NOT NULL";
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    prodotti.add(new ExpiryIndex.Prodotto(rs.getInt("id"), rs.getString("nome"),
+                            rs.getInt("quantita"), rs.getDate("scadenza").toLocalDate()));
+                }
+            }
+        }
+        return prodotti;
+    }
+
+    @Override
+    public void close() {
+        // Prima si completano le scritture in coda, poi si chiude il pool
+        if (gruppi != null) {
+            gruppi.close();
+        }
+        if (dataSource instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) dataSource).close();
+            } catch (Exception e) {
+                // Chiusura all'arresto: nulla da recuperare
+            }
+        }
+    }
+}
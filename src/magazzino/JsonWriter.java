@@ -0,0 +1,207 @@
+package magazzino;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDate;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Scrittura bufferizzata delle risposte JSON: numeri e date vanno direttamente nel buffer
+ * come cifre ASCII e le stringhe vengono codificate in UTF-8 ed escapate in un solo passaggio,
+ * senza stringhe intermedie. Il buffer viene inviato quando è pieno e restituito a un piccolo
+ * pool alla chiusura, così le risposte successive lo riusano.
+ */
+final class JsonWriter implements AutoCloseable {
+    private static final int DIMENSIONE_BUFFER = 8192;
+    private static final BlockingQueue<byte[]> BUFFER_LIBERI = new ArrayBlockingQueue<>(64);
+    private static final byte[] CIFRE_ESADECIMALI = "0123456789abcdef".getBytes();
+
+    private final OutputStream out;
+    private byte[] buffer;
+    private int posizione;
+
+    JsonWriter(OutputStream out) {
+        this.out = out;
+        byte[] libero = BUFFER_LIBERI.poll();
+        this.buffer = libero != null ? libero : new byte[DIMENSIONE_BUFFER];
+    }
+
+    // Testo ASCII fisso (nomi dei campi, punteggiatura), scritto senza escape
+    JsonWriter scrivi(String ascii) throws IOException {
+        int lunghezza = ascii.length();
+        for (int i = 0; i < lunghezza; i++) {
+            if (posizione == buffer.length) {
+                svuota();
+            }
+            buffer[posizione++] = (byte) ascii.charAt(i);
+        }
+        return this;
+    }
+
+    JsonWriter scrivi(char ascii) throws IOException {
+        if (posizione == buffer.length) {
+            svuota();
+        }
+        buffer[posizione++] = (byte) ascii;
+        return this;
+    }
+
+    JsonWriter scriviIntero(int valore) throws IOException {
+        riserva(11);
+        long n = valore;
+        if (n < 0) {
+            buffer[posizione++] = '-';
+            n = -n;
+        }
+        int cifre = 1;
+        for (long soglia = 10; soglia <= n; soglia *= 10) {
+            cifre++;
+        }
+        int fine = posizione + cifre;
+        for (int i = fine - 1; i >= posizione; i--) {
+            buffer[i] = (byte) ('0' + n % 10);
+            n /= 10;
+        }
+        posizione = fine;
+        return this;
+    }
+
+    // Numero con due decimali; null se non è finito
+    JsonWriter scriviDecimale(double valore) throws IOException {
+        if (Double.isNaN(valore) || Double.isInfinite(valore) || Math.abs(valore) >= Integer.MAX_VALUE) {
+            return scrivi("null");
+        }
+        long centesimi = Math.round(valore * 100);
+        if (centesimi < 0) {
+            scrivi('-');
+            centesimi = -centesimi;
+        }
+        scriviIntero((int) (centesimi / 100));
+        riserva(3);
+        buffer[posizione++] = '.';
+        cifre((int) (centesimi % 100), 2);
+        return this;
+    }
+
+    // Data yyyy-MM-dd tra virgolette, oppure null
+    JsonWriter scriviData(LocalDate data) throws IOException {
+        if (data == null) {
+            return scrivi("null");
+        }
+        int anno = data.getYear();
+        if (anno < 0 || anno > 9999) {
+            return scrivi('"').scrivi(data.toString()).scrivi('"');
+        }
+        riserva(12);
+        buffer[posizione++] = '"';
+        cifre(anno, 4);
+        buffer[posizione++] = '-';
+        cifre(data.getMonthValue(), 2);
+        buffer[posizione++] = '-';
+        cifre(data.getDayOfMonth(), 2);
+        buffer[posizione++] = '"';
+        return this;
+    }
+
+    private void cifre(int valore, int quante) {
+        for (int i = posizione + quante - 1; i >= posizione; i--) {
+            buffer[i] = (byte) ('0' + valore % 10);
+            valore /= 10;
+        }
+        posizione += quante;
+    }
+
+    // Stringa JSON tra virgolette, oppure null
+    JsonWriter scriviStringa(String testo) throws IOException {
+        if (testo == null) {
+            return scrivi("null");
+        }
+        scrivi('"');
+        int lunghezza = testo.length();
+        for (int i = 0; i < lunghezza; i++) {
+            // Spazio per il caso peggiore: escape di 6 caratteri oppure 4 byte UTF-8
+            riserva(6);
+            char c = testo.charAt(i);
+            if (c < 0x80) {
+                if (HttpCodec.daSostituire(c)) {
+                    escape(c);
+                } else {
+                    buffer[posizione++] = (byte) c;
+                }
+            } else if (c < 0x800) {
+                buffer[posizione++] = (byte) (0xC0 | c >> 6);
+                buffer[posizione++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < lunghezza && Character.isLowSurrogate(testo.charAt(i + 1))) {
+                int codice = Character.toCodePoint(c, testo.charAt(++i));
+                buffer[posizione++] = (byte) (0xF0 | codice >> 18);
+                buffer[posizione++] = (byte) (0x80 | codice >> 12 & 0x3F);
+                buffer[posizione++] = (byte) (0x80 | codice >> 6 & 0x3F);
+                buffer[posizione++] = (byte) (0x80 | codice & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                // Surrogato isolato: sostituito come fa l'encoder UTF-8 del JDK
+                buffer[posizione++] = '?';
+            } else {
+                buffer[posizione++] = (byte) (0xE0 | c >> 12);
+                buffer[posizione++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buffer[posizione++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return scrivi('"');
+    }
+
+    private void escape(char c) {
+        buffer[posizione++] = '\\';
+        switch (c) {
+            case '"':
+            case '\\':
+                buffer[posizione++] = (byte) c;
+                break;
+            case '\n':
+                buffer[posizione++] = 'n';
+                break;
+            case '\r':
+                buffer[posizione++] = 'r';
+                break;
+            case '\t':
+                buffer[posizione++] = 't';
+                break;
+            case '\b':
+                buffer[posizione++] = 'b';
+                break;
+            case '\f':
+                buffer[posizione++] = 'f';
+                break;
+            default:
+                buffer[posizione++] = 'u';
+                buffer[posizione++] = '0';
+                buffer[posizione++] = '0';
+                buffer[posizione++] = CIFRE_ESADECIMALI[c >> 4];
+                buffer[posizione++] = CIFRE_ESADECIMALI[c & 0xF];
+                break;
+        }
+    }
+
+    private void riserva(int byteNecessari) throws IOException {
+        if (buffer.length - posizione < byteNecessari) {
+            svuota();
+        }
+    }
+
+    private void svuota() throws IOException {
+        out.write(buffer, 0, posizione);
+        posizione = 0;
+    }
+
+    // Invia il resto del buffer, chiude lo stream e rende il buffer riutilizzabile
+    @Override
+    public void close() throws IOException {
+        try {
+            svuota();
+            out.close();
+        } finally {
+            BUFFER_LIBERI.offer(buffer);
+            buffer = null;
+        }
+    }
+}
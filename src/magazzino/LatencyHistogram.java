@@ -0,0 +1,112 @@
+package magazzino;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Istogramma delle latenze senza lock, in microsecondi.
+ *
+ * I bucket sono log-lineari: ogni potenza di due è divisa in 2^bit sotto-intervalli. Con i
+ * 3 bit predefiniti (8 sotto-intervalli) un quantile è stimato con un errore relativo massimo
+ * di circa il 12%; i report di carico ne usano 7 (meno dell'1%). Registrare un valore costa
+ * un incremento atomico su un array e un LongAdder.
+ */
+final class LatencyHistogram {
+    private static final int SOTTO_BUCKET_BIT_PREDEFINITI = 3;
+    // Fino a 2^41 µs (circa 25 giorni): oltre si satura nell'ultimo bucket
+    private static final int ESPONENTE_MASSIMO = 41;
+
+    private final int bit;
+    private final AtomicLongArray conteggi;
+    private final LongAdder somma = new LongAdder();
+
+    LatencyHistogram() {
+        this(SOTTO_BUCKET_BIT_PREDEFINITI);
+    }
+
+    LatencyHistogram(int bitSottoBucket) {
+        if (bitSottoBucket < 1 || bitSottoBucket > 10) {
+            throw new IllegalArgumentException("Risoluzione dell'istogramma non valida: " + bitSottoBucket);
+        }
+        this.bit = bitSottoBucket;
+        this.conteggi = new AtomicLongArray((ESPONENTE_MASSIMO + 1) << bit);
+    }
+
+    void registra(long microsecondi) {
+        long valore = Math.max(0, microsecondi);
+        conteggi.incrementAndGet(indice(valore, bit));
+        somma.add(valore);
+    }
+
+    void registraNanos(long nanosecondi) {
+        registra(nanosecondi / 1000);
+    }
+
+    private static int indice(long valore, int bit) {
+        int sottoBucket = 1 << bit;
+        if (valore < sottoBucket) {
+            return (int) valore;
+        }
+        int esponente = 63 - Long.numberOfLeadingZeros(valore);
+        if (esponente > ESPONENTE_MASSIMO) {
+            return ((ESPONENTE_MASSIMO + 1) << bit) - 1;
+        }
+        int sotto = (int) (valore >>> (esponente - bit)) & (sottoBucket - 1);
+        return (esponente - bit + 1) * sottoBucket + sotto;
+    }
+
+    // Valore più alto che cade nel bucket indicato
+    private static long limiteSuperiore(int indice, int bit) {
+        int sottoBucket = 1 << bit;
+        if (indice < sottoBucket) {
+            return indice;
+        }
+        int esponente = indice / sottoBucket + bit - 1;
+        int sotto = indice % sottoBucket;
+        return ((long) (sottoBucket + sotto + 1) << (esponente - bit)) - 1;
+    }
+
+    /**
+     * Fotografia coerente quanto basta per l'esportazione: i conteggi letti durante
+     * registrazioni concorrenti possono differire di qualche unità.
+     */
+    Snapshot snapshot() {
+        long[] copia = new long[conteggi.length()];
+        long totale = 0;
+        for (int i = 0; i < copia.length; i++) {
+            copia[i] = conteggi.get(i);
+            totale += copia[i];
+        }
+        return new Snapshot(copia, bit, totale, somma.sum());
+    }
+
+    static final class Snapshot {
+        private final long[] conteggi;
+        private final int bit;
+        final long totale;
+        final long sommaMicrosecondi;
+
+        private Snapshot(long[] conteggi, int bit, long totale, long sommaMicrosecondi) {
+            this.conteggi = conteggi;
+            this.bit = bit;
+            this.totale = totale;
+            this.sommaMicrosecondi = sommaMicrosecondi;
+        }
+
+        // Quantile in microsecondi (0 se non ci sono campioni)
+        long quantile(double q) {
+            if (totale == 0) {
+                return 0;
+            }
+            long soglia = Math.max(1, (long) Math.ceil(q * totale));
+            long cumulato = 0;
+            for (int i = 0; i < conteggi.length; i++) {
+                cumulato += conteggi[i];
+                if (cumulato >= soglia) {
+                    return limiteSuperiore(i, bit);
+                }
+            }
+            return limiteSuperiore(conteggi.length - 1, bit);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package magazzino;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Cache in memoria delle risposte JSON dei listing (GET), invalidata dagli handler di scrittura.
+ *
+ * Ogni scrittura incrementa un contatore di versione; le risposte in cache e gli ETag valgono
+ * solo per la versione con cui sono stati prodotti. Un ETag viene emesso solo se nessuna
+ * scrittura si è sovrapposta alla lettura, così lo stesso ETag corrisponde sempre agli stessi byte.
+ * Le stesse chiamate delimitano le scritture della sede per le ricariche degli indici in memoria.
+ */
+final class ListingCache {
+    // Distingue gli ETag di avvii diversi, dato che la versione riparte da zero
+    private final String epoca = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong versione = new AtomicLong();
+    private final AtomicInteger scrittureInCorso = new AtomicInteger();
+    // Condivisa dalle scritture, esclusiva per le ricariche degli indici; equa, così una
+    // ricarica non attende all'infinito dietro un flusso continuo di scritture
+    private final ReadWriteLock finestra = new ReentrantReadWriteLock(true);
+    private final Map<String, Voce> voci = new ConcurrentHashMap<>();
+    private final int maxVoci;
+    private final int maxByte;
+
+    ListingCache(int maxVoci, int maxByte) {
+        this.maxVoci = maxVoci;
+        this.maxByte = maxByte;
+    }
+
+    // Da chiamare prima di modificare il database; attende la fine di una ricarica degli indici in corso
+    void inizioScrittura() {
+        finestra.readLock().lock();
+        scrittureInCorso.incrementAndGet();
+    }
+
+    // Da chiamare dopo il commit (o il fallimento) della scrittura e l'aggiornamento degli
+    // indici, dallo stesso thread di inizioScrittura: invalida tutte le voci
+    void fineScrittura() {
+        try {
+            versione.incrementAndGet();
+            voci.clear();
+            scrittureInCorso.decrementAndGet();
+        } finally {
+            finestra.readLock().unlock();
+        }
+    }
+
+    /**
+     * Esegue la ricarica degli indici in memoria senza scritture in corso: attende quelle già
+     * iniziate e fa attendere le nuove. Una scrittura sovrapposta alla lettura dell'archivio
+     * andrebbe persa (l'indice caricato non la contiene, o la riceve due volte).
+     */
+    void senzaScritture(Ricarica ricarica) throws SQLException {
+        finestra.writeLock().lock();
+        try {
+            ricarica.esegui();
+        } finally {
+            finestra.writeLock().unlock();
+        }
+    }
+
+    @FunctionalInterface
+    interface Ricarica {
+        void esegui() throws SQLException;
+    }
+
+    /**
+     * Risponde con 304 o con il corpo in cache se la versione corrente è già nota al client
+     * o in memoria. Restituisce false se la risposta va generata dal database.
+     */
+    boolean rispondiDaCache(HttpExchange exchange, String chiave) throws IOException {
+        long corrente = versione.get();
+        String etag = etag(chiave, corrente);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"))) {
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return true;
+        }
+
+        Voce voce = voci.get(chiave);
+        if (voce == null || voce.versione != corrente) {
+            return false;
+        }
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.sendResponseHeaders(200, voce.corpo.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(voce.corpo);
+        os.close();
+        return true;
+    }
+
+    // Apre l'output di una risposta da generare: va chiuso solo a risposta completa
+    Risposta apri(HttpExchange exchange, String chiave) {
+        return new Risposta(exchange, chiave, versione.get(), scrittureInCorso.get() == 0);
+    }
+
+    private String etag(String chiave, long versione) {
+        return "\"" + epoca + "-" + versione + "-" + Integer.toHexString(chiave.hashCode()) + "\"";
+    }
+
+    private void salva(String chiave, long versione, byte[] corpo) {
+        if (voci.size() >= maxVoci) {
+            voci.clear();
+        }
+        voci.put(chiave, new Voce(versione, corpo));
+    }
+
+    private static final class Voce {
+        final long versione;
+        final byte[] corpo;
+
+        Voce(long versione, byte[] corpo) {
+            this.versione = versione;
+            this.corpo = corpo;
+        }
+    }
+
+    /**
+     * Accumula il corpo fino a maxByte per poterlo mettere in cache e inviarlo con ETag;
+     * oltre questa soglia passa allo streaming chunked senza ETag, a memoria costante.
+     */
+    final class Risposta extends OutputStream {
+        private final HttpExchange exchange;
+        private final String chiave;
+        private final long versioneIniziale;
+        private final boolean memorizzabile;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+        private OutputStream stream;
+
+        private Risposta(HttpExchange exchange, String chiave, long versioneIniziale, boolean memorizzabile) {
+            this.exchange = exchange;
+            this.chiave = chiave;
+            this.versioneIniziale = versioneIniziale;
+            this.memorizzabile = memorizzabile;
+        }
+
+        boolean intestazioniInviate() {
+            return stream != null;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (stream == null && buffer.size() + 1 > maxByte) {
+                passaAlloStreaming();
+            }
+            if (stream != null) {
+                stream.write(b);
+            } else {
+                buffer.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (stream == null && buffer.size() + len > maxByte) {
+                passaAlloStreaming();
+            }
+            if (stream != null) {
+                stream.write(b, off, len);
+            } else {
+                buffer.write(b, off, len);
+            }
+        }
+
+        private void passaAlloStreaming() throws IOException {
+            exchange.sendResponseHeaders(200, 0);
+            stream = exchange.getResponseBody();
+            buffer.writeTo(stream);
+            buffer = null;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (stream != null) {
+                stream.flush();
+            }
+        }
+
+        // Completa la risposta: in cache e con ETag solo se nessuna scrittura si è sovrapposta
+        @Override
+        public void close() throws IOException {
+            if (stream != null) {
+                stream.close();
+                return;
+            }
+            byte[] corpo = buffer.toByteArray();
+            boolean coerente = memorizzabile && scrittureInCorso.get() == 0 && versione.get() == versioneIniziale;
+            if (coerente) {
+                exchange.getResponseHeaders().set("ETag", etag(chiave, versioneIniziale));
+                salva(chiave, versioneIniziale, corpo);
+            }
+            exchange.sendResponseHeaders(200, corpo.length == 0 ? -1 : corpo.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(corpo);
+            os.close();
+        }
+    }
+}
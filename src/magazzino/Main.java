@@ -6,64 +6,316 @@ import com.sun.net.httpserver.HttpExchange;
 
 import java.io.*;
 import java.net.InetSocketAddress;
-import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.sql.*;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class Main {
-    // Configurazione del database
-    private static final String DB_URL = "jdbc:mysql://localhost:3306/vet_magazzino";
-    private static final String DB_USER = "root";
-    private static final String DB_PASSWORD = "root";
+    // Configurazione del database (sovrascrivibile con -Dmagazzino.db.*)
+    private static final String DB_URL = System.getProperty("magazzino.db.url", "jdbc:mysql://localhost:3306/vet_magazzino");
+    private static final String DB_USER = System.getProperty("magazzino.db.user", "root");
+    private static final String DB_PASSWORD = System.getProperty("magazzino.db.password", "root");
+
+    // Sedi con il proprio archivio, cache, indice delle scadenze, consumi ed eventi;
+    // gli handler scelgono la sede dal parametro "sede" (visibile nel package per test e benchmark)
+    static SiteRouter sedi;
+
+    // File statici caricati in memoria all'avvio
+    private static StaticAssets assets;
+
+    // Latenze, codici di stato e tempi JDBC esposti su /metrics
+    private static final Metrics METRICHE = new Metrics();
+
+    // Limiti di concorrenza per contesto, configurati all'avvio (null se disattivati)
+    private static AdmissionControl ammissione;
 
     public static void main(String[] args) throws IOException {
+        assets = StaticAssets.carica(Main.class);
+        System.out.println("File statici caricati: " + assets.dimensione());
+
+        // Sedi: senza --sedi un solo archivio configurato dalle opzioni globali; con --sedi=roma,milano
+        // ogni sede ha il proprio archivio, configurato da sede.<nome>.* con le opzioni globali come default
+        String elencoSedi = opzione(args, "sedi", "");
+        List<Site> elenco = new ArrayList<>();
+        if (elencoSedi.isBlank()) {
+            elenco.add(apriSede(args, SiteRouter.PREDEFINITA, ""));
+        } else {
+            for (String nome : elencoSedi.split(",")) {
+                if (!nome.isBlank()) {
+                    elenco.add(apriSede(args, nome.trim(), "sede." + nome.trim() + "."));
+                }
+            }
+        }
+        sedi = new SiteRouter(elenco);
+
+        // Alla chiusura ogni sede salva i consumi e chiude il proprio archivio
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> sedi.chiudi(), "chiusura-archivio"));
+
+        // Indici delle scadenze e di ricerca e job giornaliero sui lotti scaduti, per ogni sede
+        String azioneScadenze = opzione(args, "scadenze.azione", ExpiryJob.SEGNALA);
+        LocalTime oraScadenze = LocalTime.parse(opzione(args, "scadenze.ora", "02:00"));
+        for (Site sede : sedi.sedi()) {
+            String etichetta = "site=\"" + sede.nome + "\"";
+            METRICHE.registraMisura("magazzino_expiry_index_size", etichetta,
+                    "Prodotti presenti nell'indice delle scadenze.", () -> sede.indiceScadenze.dimensione());
+            METRICHE.registraMisura("magazzino_search_index_size", etichetta,
+                    "Prodotti presenti nell'indice di ricerca.", () -> sede.ricerca.dimensione());
+            METRICHE.registraMisura("magazzino_reorder_tracked_products", etichetta,
+                    "Prodotti con storico dei consumi.", () -> sede.riordino.dimensione());
+            METRICHE.registraMisura("magazzino_sse_clients", etichetta,
+                    "Client collegati al flusso /eventi.", () -> sede.eventi.clientiCollegati());
+            try {
+                sede.indiceScadenze.carica(sede.repository);
+                System.out.println("Sede " + sede.nome + ": prodotti con scadenza indicizzati: "
+                        + sede.indiceScadenze.dimensione());
+            } catch (SQLException e) {
+                System.err.println("Sede " + sede.nome + ": impossibile caricare l'indice delle scadenze: " + e.getMessage());
+            }
+            try {
+                sede.ricerca.carica(sede.repository);
+                System.out.println("Sede " + sede.nome + ": prodotti nell'indice di ricerca: " + sede.ricerca.dimensione());
+            } catch (SQLException e) {
+                System.err.println("Sede " + sede.nome + ": impossibile caricare l'indice di ricerca: " + e.getMessage());
+            }
+            new ExpiryJob(sede.repository, sede.indiceScadenze, sede.ricerca, sede.cache, sede.eventi, azioneScadenze)
+                    .pianifica(oraScadenze);
+        }
+
+        // Controllo di ammissione: limiti per contesto, coda con attesa massima e priorità alle scritture.
+        // /eventi resta fuori perché le sue connessioni durano quanto la pagina aperta.
+        if (Boolean.parseBoolean(opzione(args, "ammissione", "true"))) {
+            int totale = Integer.parseInt(opzione(args, "ammissione.totale", "64"));
+            ammissione = new AdmissionControl(totale,
+                    Integer.parseInt(opzione(args, "ammissione.riservaScritture", String.valueOf(totale / 4))),
+                    Integer.parseInt(opzione(args, "ammissione.coda", "100")),
+                    Long.parseLong(opzione(args, "ammissione.attesaMs", "1000")));
+            ammissione.configura(
+                    opzione(args, "ammissione.limiti",
+                            "/riepilogoMagazzino=8,/prodottiInScadenza=8,/prodottiDaOrdinare=4,/movimenti=4,/importaProdotti=1"),
+                    Set.of(opzione(args, "ammissione.prioritari",
+                            "/prelevaProdotto,/prelevaProdotti,/inserisciProdotto,/eliminaProdotto").split(",")));
+            METRICHE.registraMisura("magazzino_admission_active", "Richieste in esecuzione sui contesti limitati.",
+                    () -> ammissione.attivi());
+            METRICHE.registraMisura("magazzino_admission_queued", "Richieste in attesa di ammissione.",
+                    () -> ammissione.inCoda());
+        }
+
         // Inizializzazione del server HTTP
-        HttpServer server = HttpServer.create(new InetSocketAddress(8080), 0);
-        System.out.println("Server avviato sulla porta 8080");
+        int porta = Integer.parseInt(opzione(args, "porta", "8080"));
+        int backlog = Integer.parseInt(opzione(args, "backlog", "0"));
+        // Senza TCP_NODELAY intestazioni e corpo in scritture separate attendono l'ACK ritardato
+        // del client (~40 ms per risposta sulle connessioni keep-alive)
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", opzione(args, "nodelay", "true"));
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress(porta), backlog);
+        System.out.println("Server avviato sulla porta " + porta);
 
         // Handlers per le varie richieste
-        server.createContext("/", new IndexHandler());
-        server.createContext("/inserisciProdotto", new InserisciProdottoHandler());
-        server.createContext("/riepilogoMagazzino", new RiepilogoMagazzinoHandler());
-        server.createContext("/prelevaProdotto", new PrelevaProdottoHandler());
-        server.createContext("/eliminaProdotto", new EliminaProdottoHandler());
-        server.createContext("/prodottiInScadenza", new ProdottiInScadenzaHandler());
-        server.createContext("/prodottiDaOrdinare", new ProdottiDaOrdinareHandler());
+        registra(server, "/", new IndexHandler());
+        registra(server, "/inserisciProdotto", new InserisciProdottoHandler());
+        registra(server, "/importaProdotti", new ImportaProdottiHandler());
+        registra(server, "/riepilogoMagazzino", new RiepilogoMagazzinoHandler());
+        registra(server, "/prelevaProdotto", new PrelevaProdottoHandler());
+        registra(server, "/prelevaProdotti", new PrelevaProdottiHandler());
+        registra(server, "/eliminaProdotto", new EliminaProdottoHandler());
+        registra(server, "/prodottiInScadenza", new ProdottiInScadenzaHandler());
+        registra(server, "/prodottiDaOrdinare", new ProdottiDaOrdinareHandler());
+        registra(server, "/cercaProdotto", new CercaProdottoHandler());
+        registra(server, "/eventi", new EventiHandler());
+        registra(server, "/sedi", new SediHandler());
+        registra(server, "/movimenti", new MovimentiHandler());
+        registra(server, "/metrics", new MetricsHandler());
         // Servire file statici (CSS, JS, immagini)
-        server.createContext("/css/", new StaticFileHandler());
-        server.createContext("/js/", new StaticFileHandler());
-        server.createContext("/img/", new StaticFileHandler());
+        registra(server, "/css/", new StaticFileHandler());
+        registra(server, "/js/", new StaticFileHandler());
+        registra(server, "/img/", new StaticFileHandler());
 
-        server.setExecutor(null); // Crea un default executor
+        // Modalità di esecuzione: virtual, pool oppure single (dispatcher unico del JDK)
+        String modalita = opzione(args, "executor", ServerExecutors.VIRTUAL);
+        int threads = Integer.parseInt(opzione(args, "threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors() * 4)));
+        int coda = Integer.parseInt(opzione(args, "queue", "1000"));
+        server.setExecutor(ServerExecutors.crea(modalita, threads, coda));
+        System.out.println("Executor: " + modalita);
         server.start();
     }
 
+    // Apre l'archivio di una sede; le opzioni si leggono con il prefisso della sede (vuoto per la sede unica)
+    private static Site apriSede(String[] args, String nome, String prefisso) throws IOException {
+        // Archivio: "jdbc" (MySQL, default) oppure "embedded" (file locali, nessun server esterno)
+        String archivio = opzioneSede(args, prefisso, "storage", "jdbc");
+        // File di lavoro (archivio embedded, consumi, movimenti) sotto una directory fuori da quella di avvio
+        String base = opzione(args, "dati.dir", Paths.get(System.getProperty("user.home"), ".magazzino").toString());
+        InventoryRepository repository;
+        if ("embedded".equals(archivio)) {
+            long inizio = System.nanoTime();
+            // Con più sedi ogni sede ha una propria directory sotto quella globale
+            String globale = opzione(args, "embedded.dir", Paths.get(base, "archivio").toString());
+            String directory = prefisso.isEmpty()
+                    ? globale
+                    : opzione(args, prefisso + "embedded.dir", Paths.get(globale, nome).toString());
+            EmbeddedInventoryRepository embedded = EmbeddedInventoryRepository.apri(
+                    Paths.get(directory),
+                    Integer.parseInt(opzioneSede(args, prefisso, "embedded.journalMb", "64")) << 20,
+                    Boolean.parseBoolean(opzioneSede(args, prefisso, "embedded.sync", "true")));
+            repository = embedded;
+            System.out.println("Sede " + nome + ": archivio embedded aperto, " + embedded.dimensione() + " prodotti in "
+                    + (System.nanoTime() - inizio) / 1_000_000 + " ms");
+        } else if ("jdbc".equals(archivio)) {
+            // Ogni sede ha il proprio database o schema: l'URL non ha un default condiviso
+            String url = opzione(args, prefisso + "db.url", prefisso.isEmpty() ? DB_URL : null);
+            if (url == null) {
+                throw new IllegalArgumentException("URL del database mancante per la sede " + nome + " (" + prefisso + "db.url)");
+            }
+            PooledDataSource dataSource = new PooledDataSource(url,
+                    opzioneSede(args, prefisso, "db.user", DB_USER),
+                    opzioneSede(args, prefisso, "db.password", DB_PASSWORD),
+                    Integer.parseInt(opzioneSede(args, prefisso, "pool.min", "2")),
+                    Integer.parseInt(opzioneSede(args, prefisso, "pool.max", "10")),
+                    Long.parseLong(opzioneSede(args, prefisso, "pool.borrowTimeoutMs", "2000")),
+                    Long.parseLong(opzioneSede(args, prefisso, "pool.idleTimeoutMs", "300000")),
+                    Long.parseLong(opzioneSede(args, prefisso, "pool.validationIntervalMs", "5000")),
+                    Integer.parseInt(opzioneSede(args, prefisso, "pool.statementCache", "32")));
+            dataSource.preriscalda();
+            dataSource.registraMetriche(METRICHE);
+            String etichetta = "site=\"" + nome + "\"";
+            METRICHE.registraMisura("magazzino_pool_connections_open", etichetta, "Connessioni fisiche aperte dal pool.",
+                    () -> dataSource.connessioniAperte());
+            METRICHE.registraMisura("magazzino_pool_connections_idle", etichetta, "Connessioni inattive nel pool.",
+                    () -> dataSource.connessioniInattive());
+            JdbcInventoryRepository jdbc = new JdbcInventoryRepository(dataSource);
+            // Commit di gruppo: un commit ogni groupCommit.max operazioni o groupCommit.attesaMs millisecondi;
+            // una richiesta attende il proprio esito al più groupCommit.timeoutMs
+            if (Boolean.parseBoolean(opzioneSede(args, prefisso, "groupCommit", "false"))) {
+                jdbc.abilitaGroupCommit(Integer.parseInt(opzioneSede(args, prefisso, "groupCommit.max", "64")),
+                        Long.parseLong(opzioneSede(args, prefisso, "groupCommit.attesaMs", "2")),
+                        Long.parseLong(opzioneSede(args, prefisso, "groupCommit.timeoutMs", "30000")));
+                System.out.println("Sede " + nome + ": group commit attivo");
+            }
+            repository = jdbc;
+        } else {
+            throw new IllegalArgumentException("Archivio sconosciuto per la sede " + nome + ": " + archivio);
+        }
+
+        // Cache dei listing, stima dei consumi ed eventi, configurabili anche per sede
+        Site sede = new Site(nome, repository,
+                new ListingCache(Integer.parseInt(opzioneSede(args, prefisso, "cache.maxEntries", "256")),
+                        Integer.parseInt(opzioneSede(args, prefisso, "cache.maxBytes", String.valueOf(1 << 20)))),
+                new ReorderEngine(Double.parseDouble(opzioneSede(args, prefisso, "riordino.emivitaGiorni", "14")),
+                        Integer.parseInt(opzioneSede(args, prefisso, "riordino.leadTime", "7")),
+                        Integer.parseInt(opzioneSede(args, prefisso, "riordino.copertura", "30"))),
+                new EventBus(Integer.parseInt(opzioneSede(args, prefisso, "eventi.coda", "256")),
+                        Integer.parseInt(opzioneSede(args, prefisso, "eventi.maxClienti", "200"))));
+
+        // Consumi salvati periodicamente e alla chiusura, insieme all'archivio
+        sede.persistiConsumi(Paths.get(opzione(args, prefisso + "riordino.file",
+                Paths.get(base, prefisso.isEmpty() ? "consumi.dat" : "consumi-" + nome + ".dat").toString())), 5);
+        System.out.println("Sede " + nome + ": prodotti con storico dei consumi: " + sede.riordino.dimensione());
+
+        // Registro dei movimenti su file a rotazione, scritto da un thread dedicato
+        if (Boolean.parseBoolean(opzioneSede(args, prefisso, "movimenti", "true"))) {
+            String globale = opzione(args, "movimenti.dir", Paths.get(base, "movimenti").toString());
+            String directory = prefisso.isEmpty()
+                    ? globale
+                    : opzione(args, prefisso + "movimenti.dir", Paths.get(globale, nome).toString());
+            sede.apriMovimenti(Paths.get(directory),
+                    Integer.parseInt(opzioneSede(args, prefisso, "movimenti.buffer", "8192")),
+                    Long.parseLong(opzioneSede(args, prefisso, "movimenti.fileMb", "64")) << 20,
+                    Integer.parseInt(opzioneSede(args, prefisso, "movimenti.maxFile", "16")),
+                    Boolean.parseBoolean(opzioneSede(args, prefisso, "movimenti.sync", "false")));
+            String etichetta = "site=\"" + nome + "\"";
+            METRICHE.registraMisura("magazzino_ledger_pending", etichetta,
+                    "Movimenti pubblicati e non ancora scritti nel registro.", () -> sede.movimenti().inAttesa());
+            METRICHE.registraMisura("magazzino_ledger_dropped", etichetta,
+                    "Movimenti scartati perché il buffer del registro era pieno.", () -> sede.movimenti().scartati());
+        }
+        return sede;
+    }
+
+    // Opzione della sede (prefisso + nome), con l'opzione globale come default
+    private static String opzioneSede(String[] args, String prefisso, String nome, String predefinito) {
+        String globale = opzione(args, nome, predefinito);
+        return prefisso.isEmpty() ? globale : opzione(args, prefisso + nome, globale);
+    }
+
+    // Ogni contesto passa dal wrapper delle metriche e, se configurato, dal controllo di ammissione
+    private static void registra(HttpServer server, String percorso, HttpHandler handler) {
+        HttpHandler protetto = ammissione != null ? ammissione.proteggi(percorso, handler) : handler;
+        server.createContext(percorso, METRICHE.strumenta(percorso, protetto));
+    }
+
+    // Legge un'opzione da "--nome=valore" sulla riga di comando o dalla proprietà di sistema magazzino.nome
+    static String opzione(String[] args, String nome, String predefinito) {
+        String prefisso = "--" + nome + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefisso)) {
+                return arg.substring(prefisso.length());
+            }
+        }
+        return System.getProperty("magazzino." + nome, predefinito);
+    }
+
+    // Risposta 400 per parametri mancanti o malformati
+    static void inviaRichiestaNonValida(HttpExchange exchange, String messaggio) throws IOException {
+        byte[] responseBytes = ("Parametri non validi: " + messaggio).getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(400, responseBytes.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(responseBytes);
+        os.close();
+    }
+
+    // Chi ha eseguito il movimento: il parametro "operatore" se presente, altrimenti l'indirizzo del client
+    static String operatore(HttpExchange exchange, HttpCodec.Parametri params) {
+        String operatore = params.get("operatore");
+        if (operatore != null && !operatore.isBlank()) {
+            return operatore.trim();
+        }
+        return exchange.getRemoteAddress().getAddress().getHostAddress();
+    }
+
+    // Risposta 503 quando il pool non fornisce una connessione entro il timeout
+    static void inviaServizioNonDisponibile(HttpExchange exchange) throws IOException {
+        String response = "Servizio momentaneamente non disponibile, riprovare";
+        byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        exchange.sendResponseHeaders(503, responseBytes.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(responseBytes);
+        os.close();
+    }
+
+    // Risposta 504 quando una scrittura è scaduta dopo essere partita: può essere stata applicata
+    static void inviaEsitoNonNoto(HttpExchange exchange) throws IOException {
+        String response = "Esito dell'operazione non noto: verificare il magazzino prima di ripetere";
+        byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(504, responseBytes.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(responseBytes);
+        os.close();
+    }
+
     // Handler per la pagina index.html
     static class IndexHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            // Imposta l'header Content-Type
-            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
-
-            // Legge il contenuto del file index.html
-            InputStream is = getClass().getResourceAsStream("index.html");
-            if (is == null) {
+            // index.html è già in memoria con le sue varianti compresse
+            if (!assets.servi(exchange, StaticAssets.INDEX)) {
                 String error = "File index.html non trovato";
                 exchange.sendResponseHeaders(404, error.length());
                 OutputStream os = exchange.getResponseBody();
                 os.write(error.getBytes());
                 os.close();
-                return;
             }
-
-            // Legge il file e lo invia come risposta
-            String response = new String(is.readAllBytes(), StandardCharsets.UTF_8);
-            exchange.sendResponseHeaders(200, response.getBytes(StandardCharsets.UTF_8).length);
-            OutputStream os = exchange.getResponseBody();
-            os.write(response.getBytes(StandardCharsets.UTF_8));
-            os.close();
         }
     }
 
@@ -73,25 +325,41 @@ public class Main {
         public void handle(HttpExchange exchange) throws IOException {
             if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
                 // Legge i dati inviati dal client
-                String postData = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-                Map<String, String> params = parsePostData(postData);
-
-                String nomeProdotto = params.get("nomeProdotto");
-                int quantita = Integer.parseInt(params.get("quantita"));
-                String scadenza = params.get("scadenza");
-
-                try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-                    String sql = "INSERT INTO magazzino (nome, quantita, scadenza) VALUES (?, ?, ?)";
-                    try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                        stmt.setString(1, nomeProdotto);
-                        stmt.setInt(2, quantita);
-                        if (scadenza != null && !scadenza.isEmpty()) {
-                            stmt.setDate(3, Date.valueOf(scadenza));
-                        } else {
-                            stmt.setNull(3, Types.DATE);
-                        }
-                        stmt.executeUpdate();
-                    }
+                Site sede;
+                String operatore;
+                String nomeProdotto;
+                int quantita;
+                LocalDate dataScadenza;
+                try {
+                    HttpCodec.Parametri params = HttpCodec.leggiForm(exchange.getRequestBody());
+                    sede = sedi.sede(params.get("sede"));
+                    operatore = operatore(exchange, params);
+                    nomeProdotto = params.richiesto("nomeProdotto");
+                    quantita = params.intero("quantita");
+                    dataScadenza = params.data("scadenza");
+                } catch (IllegalArgumentException e) {
+                    inviaRichiestaNonValida(exchange, e.getMessage());
+                    return;
+                }
+
+                // Le risposte dei listing in cache non sono più valide dopo la scrittura
+                sede.cache.inizioScrittura();
+                try {
+                    int id = sede.repository.inserisci(nomeProdotto, quantita, dataScadenza);
+                    sede.indiceScadenze.inserisci(id, nomeProdotto, quantita, dataScadenza);
+                    sede.ricerca.inserisci(id, nomeProdotto, quantita, dataScadenza);
+                    sede.registraMovimento(MovementLedger.INSERIMENTO, id, quantita, quantita, operatore);
+                    sede.eventi.pubblica(EventBus.INSERITO, "{\"id\":" + id + ",\"nome\":\"" + HttpCodec.escapeJson(nomeProdotto)
+                            + "\",\"quantita\":" + quantita + ",\"scadenza\":"
+                            + (dataScadenza != null ? "\"" + dataScadenza + "\"" : "null") + "}");
+                } catch (SQLTransientConnectionException e) {
+                    inviaServizioNonDisponibile(exchange);
+                    return;
+                } catch (SQLTimeoutException e) {
+                    // Il prodotto può essere stato inserito: i client ricaricano il magazzino
+                    sede.eventi.risincronizzaTutti();
+                    inviaEsitoNonNoto(exchange);
+                    return;
                 } catch (SQLException e) {
                     e.printStackTrace();
                     String response = "Errore nell'inserimento del prodotto";
@@ -100,6 +368,8 @@ public class Main {
                     os.write(response.getBytes());
                     os.close();
                     return;
+                } finally {
+                    sede.cache.fineScrittura();
                 }
 
                 // Invia una risposta di successo
@@ -113,65 +383,121 @@ public class Main {
                 exchange.sendResponseHeaders(405, -1); // Metodo non supportato
             }
         }
-
-        // Funzione per parsare i dati POST
-        private Map<String, String> parsePostData(String postData) throws UnsupportedEncodingException {
-            Map<String, String> params = new HashMap<>();
-            String[] pairs = postData.split("&");
-            for (String pair : pairs) {
-                String[] keyValue = pair.split("=");
-                String key = URLDecoder.decode(keyValue[0], "UTF-8");
-                String value = keyValue.length > 1 ? URLDecoder.decode(keyValue[1], "UTF-8") : "";
-                params.put(key, value);
-            }
-            return params;
-        }
     }
 
-    // Handler per recuperare il riepilogo del magazzino
-    static class RiepilogoMagazzinoHandler implements HttpHandler {
+    // Handler per l'importazione massiva di prodotti (consegne dei fornitori).
+    // Il corpo è letto riga per riga senza bufferizzarlo: CSV "nome;quantita;scadenza" oppure
+    // NDJSON ({"nome":...,"quantita":...,"scadenza":...} per riga, con Content-Type application/x-ndjson).
+    static class ImportaProdottiHandler implements HttpHandler {
+        private static final int MAX_ERRORI_RIPORTATI = 1000;
+
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            if ("GET".equalsIgnoreCase(exchange.getRequestMethod())) {
-                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                // Il corpo è il file da importare: la sede arriva nella query string
+                Site sede;
+                try {
+                    sede = sedi.sede(HttpCodec.leggiQuery(exchange.getRequestURI().getRawQuery()).get("sede"));
+                } catch (IllegalArgumentException e) {
+                    inviaRichiestaNonValida(exchange, e.getMessage());
+                    return;
+                }
+                String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                boolean ndjson = contentType != null && (contentType.contains("ndjson") || contentType.contains("jsonl"));
 
-                StringBuilder jsonResponse = new StringBuilder();
-                jsonResponse.append("[");
-
-                try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-                    String sql = "SELECT id, nome, quantita, scadenza FROM magazzino";
-                    try (Statement stmt = conn.createStatement()) {
-                        ResultSet rs = stmt.executeQuery(sql);
-                        boolean first = true;
-                        while (rs.next()) {
-                            if (!first) {
-                                jsonResponse.append(",");
+                int importati = 0;
+                int scartati = 0;
+                List<String> errori = new ArrayList<>();
+                String erroreGrave = null;
+                boolean sovraccarico = false;
+
+                BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+                sede.cache.inizioScrittura();
+                try (InventoryRepository.Importazione importazione = sede.repository.importa()) {
+                    int numeroRiga = 0;
+                    String linea;
+                    while ((linea = reader.readLine()) != null) {
+                        numeroRiga++;
+                        if (linea.isBlank() || (numeroRiga == 1 && !ndjson && linea.trim().toLowerCase().startsWith("nome;"))) {
+                            continue;
+                        }
+
+                        String nome;
+                        int quantita;
+                        LocalDate scadenza;
+                        try {
+                            String[] campi = ndjson ? campiNdjson(linea) : campiCsv(linea);
+                            nome = campi[0] == null ? "" : campi[0].trim();
+                            if (nome.isEmpty() || nome.length() > 255) {
+                                throw new IllegalArgumentException("nome mancante o troppo lungo");
                             }
-                            first = false;
-
-                            jsonResponse.append("{");
-                            jsonResponse.append("\"id\":").append(rs.getInt("id")).append(",");
-                            jsonResponse.append("\"nome\":\"").append(escapeJson(rs.getString("nome"))).append("\",");
-                            jsonResponse.append("\"quantita\":").append(rs.getInt("quantita")).append(",");
-                            Date scadenza = rs.getDate("scadenza");
-                            if (scadenza != null) {
-                                jsonResponse.append("\"scadenza\":\"").append(scadenza.toString()).append("\"");
-                            } else {
-                                jsonResponse.append("\"scadenza\":null");
+                            quantita = Integer.parseInt(campi[1] == null ? "" : campi[1].trim());
+                            if (quantita <= 0) {
+                                throw new IllegalArgumentException("quantità non positiva");
+                            }
+                            scadenza = campi[2] == null || campi[2].isBlank() ? null : scadenza(campi[2].trim());
+                        } catch (IllegalArgumentException e) {
+                            scartati++;
+                            if (errori.size() < MAX_ERRORI_RIPORTATI) {
+                                errori.add("Riga " + numeroRiga + ": " + (e instanceof NumberFormatException ? "quantità non valida" : e.getMessage()));
                             }
-                            jsonResponse.append("}");
+                            continue;
                         }
+
+                        // Conferme periodiche: le righe già confermate restano anche se l'import si interrompe
+                        importazione.aggiungi(nome, quantita, scadenza);
+                        importati = importazione.confermate();
                     }
+                    importazione.conferma();
+                    importati = importazione.confermate();
+                } catch (SQLTransientConnectionException e) {
+                    // Sovraccarico: le righe già confermate restano e la risposta dice quante, come per gli altri errori
+                    sovraccarico = true;
+                    erroreGrave = "Importazione interrotta, riprovare: " + e.getMessage();
                 } catch (SQLException e) {
                     e.printStackTrace();
-                    exchange.sendResponseHeaders(500, -1);
-                    return;
+                    erroreGrave = "Importazione interrotta: " + e.getMessage();
+                } finally {
+                    sede.cache.fineScrittura();
+                    // Dopo un'importazione massiva gli indici si ricaricano invece di aggiornarli riga per riga,
+                    // fuori dalla scrittura: la ricarica attende che le altre scritture finiscano
+                    if (importati > 0) {
+                        try {
+                            sede.cache.senzaScritture(() -> {
+                                sede.indiceScadenze.carica(sede.repository);
+                                sede.ricerca.carica(sede.repository);
+                            });
+                        } catch (SQLException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    // Troppe righe per un evento ciascuna: i client ricaricano i listing
+                    if (importati > 0) {
+                        sede.eventi.risincronizzaTutti();
+                    }
                 }
 
-                jsonResponse.append("]");
+                StringBuilder jsonResponse = new StringBuilder();
+                jsonResponse.append("{\"importati\":").append(importati);
+                jsonResponse.append(",\"scartati\":").append(scartati);
+                if (erroreGrave != null) {
+                    jsonResponse.append(",\"errore\":\"").append(HttpCodec.escapeJson(erroreGrave)).append("\"");
+                }
+                jsonResponse.append(",\"errori\":[");
+                for (int i = 0; i < errori.size(); i++) {
+                    if (i > 0) {
+                        jsonResponse.append(",");
+                    }
+                    jsonResponse.append("\"").append(HttpCodec.escapeJson(errori.get(i))).append("\"");
+                }
+                jsonResponse.append("]}");
 
                 byte[] responseBytes = jsonResponse.toString().getBytes(StandardCharsets.UTF_8);
-                exchange.sendResponseHeaders(200, responseBytes.length);
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+                if (sovraccarico) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                }
+                exchange.sendResponseHeaders(erroreGrave == null ? 200 : sovraccarico ? 503 : 500, responseBytes.length);
                 OutputStream os = exchange.getResponseBody();
                 os.write(responseBytes);
                 os.close();
@@ -180,105 +506,333 @@ public class Main {
             }
         }
 
-        private String escapeJson(String str) {
-            if (str == null) {
-                return "";
+        private LocalDate scadenza(String valore) {
+            try {
+                return Date.valueOf(valore).toLocalDate();
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("scadenza non valida (formato AAAA-MM-GG)");
+            }
+        }
+
+        // "nome;quantita;scadenza" (la scadenza può mancare)
+        private String[] campiCsv(String linea) {
+            String[] campi = linea.split(";", -1);
+            if (campi.length < 2 || campi.length > 3) {
+                throw new IllegalArgumentException("attesi i campi nome;quantita;scadenza");
+            }
+            return new String[]{campi[0], campi[1], campi.length > 2 ? campi[2] : null};
+        }
+
+        // Oggetto JSON piatto su una riga: solo stringhe, numeri e null
+        private String[] campiNdjson(String linea) {
+            Map<String, String> valori = new HashMap<>();
+            int i = salta(linea, 0);
+            if (i >= linea.length() || linea.charAt(i) != '{') {
+                throw new IllegalArgumentException("oggetto JSON non valido");
+            }
+            i = salta(linea, i + 1);
+            while (i < linea.length() && linea.charAt(i) != '}') {
+                StringBuilder chiave = new StringBuilder();
+                i = leggiStringa(linea, i, chiave);
+                i = salta(linea, i);
+                if (i >= linea.length() || linea.charAt(i) != ':') {
+                    throw new IllegalArgumentException("oggetto JSON non valido");
+                }
+                i = salta(linea, i + 1);
+                if (i < linea.length() && linea.charAt(i) == '"') {
+                    StringBuilder valore = new StringBuilder();
+                    i = leggiStringa(linea, i, valore);
+                    valori.put(chiave.toString(), valore.toString());
+                } else {
+                    int inizio = i;
+                    while (i < linea.length() && ",} \t".indexOf(linea.charAt(i)) < 0) {
+                        i++;
+                    }
+                    String valore = linea.substring(inizio, i);
+                    valori.put(chiave.toString(), "null".equals(valore) ? null : valore);
+                }
+                i = salta(linea, i);
+                if (i < linea.length() && linea.charAt(i) == ',') {
+                    i = salta(linea, i + 1);
+                }
+            }
+            if (i >= linea.length()) {
+                throw new IllegalArgumentException("oggetto JSON non valido");
+            }
+            return new String[]{valori.get("nome"), valori.get("quantita"), valori.get("scadenza")};
+        }
+
+        private int salta(String s, int i) {
+            while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+                i++;
+            }
+            return i;
+        }
+
+        private int leggiStringa(String s, int i, StringBuilder destinazione) {
+            if (i >= s.length() || s.charAt(i) != '"') {
+                throw new IllegalArgumentException("stringa JSON attesa");
+            }
+            i++;
+            while (i < s.length()) {
+                char c = s.charAt(i++);
+                if (c == '"') {
+                    return i;
+                }
+                if (c == '\\' && i < s.length()) {
+                    char e = s.charAt(i++);
+                    switch (e) {
+                        case 'n': destinazione.append('\n'); break;
+                        case 't': destinazione.append('\t'); break;
+                        case 'r': destinazione.append('\r'); break;
+                        case 'b': destinazione.append('\b'); break;
+                        case 'f': destinazione.append('\f'); break;
+                        case 'u':
+                            if (i + 4 > s.length()) {
+                                throw new IllegalArgumentException("escape JSON non valido");
+                            }
+                            destinazione.append((char) Integer.parseInt(s.substring(i, i + 4), 16));
+                            i += 4;
+                            break;
+                        default: destinazione.append(e); break;
+                    }
+                } else {
+                    destinazione.append(c);
+                }
             }
-            return str.replace("\\", "\\\\")
-                      .replace("\"", "\\\"")
-                      .replace("\b", "\\b")
-                      .replace("\f", "\\f")
-                      .replace("\n", "\\n")
-                      .replace("\r", "\\r")
-                      .replace("\t", "\\t");
+            throw new IllegalArgumentException("stringa JSON non terminata");
         }
     }
 
-    // Handler per prelevare un prodotto
-    static class PrelevaProdottoHandler implements HttpHandler {
+    // Handler per recuperare il riepilogo del magazzino, a pagine (keyset) e con filtri
+    static class RiepilogoMagazzinoHandler implements HttpHandler {
+        private static final int LIMITE_PREDEFINITO = 100;
+        private static final int LIMITE_MASSIMO = 1000;
+
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-                String postData = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-                Map<String, String> params = parsePostData(postData);
+            if ("GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                // Filtri e posizione del cursore; l'ordinamento è sempre stabile (chiave, id)
+                InventoryRepository.Filtro filtro = new InventoryRepository.Filtro();
+                Site sede;
+                String ordinamento;
+                int limite;
+                try {
+                    HttpCodec.Parametri params = HttpCodec.leggiQuery(exchange.getRequestURI().getRawQuery());
+                    sede = sedi.sede(params.get("sede"));
+                    ordinamento = params.getOrDefault("sort", "id");
+                    String after = params.get("after");
+                    String prefisso = params.get("prefisso");
 
-                int idProdotto = Integer.parseInt(params.get("id"));
-                int quantitaDaPrelevare = Integer.parseInt(params.get("quantita"));
+                    limite = Math.min(params.intero("limit", LIMITE_PREDEFINITO), LIMITE_MASSIMO);
+                    if (limite <= 0) {
+                        throw new IllegalArgumentException("limit deve essere positivo");
+                    }
+                    if (prefisso != null && !prefisso.isEmpty()) {
+                        filtro.prefisso = prefisso;
+                    }
+                    if (params.get("sottoQuantita") != null && !params.get("sottoQuantita").isEmpty()) {
+                        filtro.sottoQuantita = params.intero("sottoQuantita");
+                    }
+                    filtro.scadenzaDa = params.data("scadenzaDa");
+                    filtro.scadenzaA = params.data("scadenzaA");
 
-                boolean prelievoRiuscito = false;
-                String messaggioErrore = "";
+                    switch (ordinamento) {
+                        case InventoryRepository.Filtro.PER_ID:
+                        case InventoryRepository.Filtro.PER_NOME:
+                        case InventoryRepository.Filtro.PER_SCADENZA:
+                            filtro.ordinamento = ordinamento;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Ordinamento non valido: " + ordinamento);
+                    }
 
-                try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-                    conn.setAutoCommit(false);
-
-                    String sqlSelect = "SELECT nome, quantita FROM magazzino WHERE id = ?";
-                    int quantitaDisponibile = 0;
-                    String nomeProdotto = "";
-                    try (PreparedStatement stmtSelect = conn.prepareStatement(sqlSelect)) {
-                        stmtSelect.setInt(1, idProdotto);
-                        ResultSet rs = stmtSelect.executeQuery();
-                        if (rs.next()) {
-                            quantitaDisponibile = rs.getInt("quantita");
-                            nomeProdotto = rs.getString("nome");
+                    if (after != null && !after.isEmpty()) {
+                        if (InventoryRepository.Filtro.PER_ID.equals(ordinamento)) {
+                            filtro.dopoId = Integer.parseInt(after);
                         } else {
-                            messaggioErrore = "Prodotto non trovato.";
+                            String[] cursore = decodificaCursore(after);
+                            filtro.dopoChiave = InventoryRepository.Filtro.PER_NOME.equals(ordinamento)
+                                    ? cursore[0] : Date.valueOf(cursore[0]).toString();
+                            filtro.dopoId = Integer.parseInt(cursore[1]);
                         }
                     }
+                } catch (IllegalArgumentException e) {
+                    inviaRichiestaNonValida(exchange, e.getMessage());
+                    return;
+                }
 
-                    if (quantitaDaPrelevare <= quantitaDisponibile) {
-                        int nuovaQuantita = quantitaDisponibile - quantitaDaPrelevare;
-
-                        if (nuovaQuantita > 0) {
-                            String sqlUpdate = "UPDATE magazzino SET quantita = ? WHERE id = ?";
-                            try (PreparedStatement stmtUpdate = conn.prepareStatement(sqlUpdate)) {
-                                stmtUpdate.setInt(1, nuovaQuantita);
-                                stmtUpdate.setInt(2, idProdotto);
-                                int rowsAffected = stmtUpdate.executeUpdate();
-                                if (rowsAffected > 0) {
-                                    prelievoRiuscito = true;
-                                    conn.commit();
-                                } else {
-                                    messaggioErrore = "Errore nell'aggiornamento del prodotto.";
-                                    conn.rollback();
-                                }
-                            }
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+                String chiaveCache = exchange.getRequestURI().toString();
+                if (sede.cache.rispondiDaCache(exchange, chiaveCache)) {
+                    return;
+                }
+
+                ListingCache.Risposta risposta = sede.cache.apri(exchange, chiaveCache);
+                try {
+                    // Le righe vengono scritte man mano che arrivano dall'archivio;
+                    // una riga in più indica se esiste una pagina successiva
+                    JsonWriter out = new JsonWriter(risposta);
+                    out.scrivi("{\"prodotti\":[");
+                    int[] scritte = {0};
+                    String[] cursori = new String[2];
+                    sede.repository.elenca(filtro, limite + 1, (id, nome, quantita, scadenza) -> {
+                        if (scritte[0] == limite) {
+                            // Cursore dell'ultima riga della pagina
+                            cursori[1] = cursori[0];
+                            return;
+                        }
+                        if (scritte[0] > 0) {
+                            out.scrivi(',');
+                        }
+                        scritte[0]++;
+
+                        out.scrivi("{\"id\":").scriviIntero(id)
+                                .scrivi(",\"nome\":").scriviStringa(nome)
+                                .scrivi(",\"quantita\":").scriviIntero(quantita)
+                                .scrivi(",\"scadenza\":").scriviData(scadenza)
+                                .scrivi('}');
+
+                        if (InventoryRepository.Filtro.PER_NOME.equals(ordinamento)) {
+                            cursori[0] = codificaCursore(nome, id);
+                        } else if (InventoryRepository.Filtro.PER_SCADENZA.equals(ordinamento)) {
+                            LocalDate chiave = scadenza != null ? scadenza : InventoryRepository.Filtro.SENZA_SCADENZA;
+                            cursori[0] = codificaCursore(chiave.toString(), id);
                         } else {
-                            String sqlDelete = "DELETE FROM magazzino WHERE id = ?";
-                            String sqlInsert = "INSERT INTO da_ordinare (id, nome, quantita) VALUES (?, ?, ?)";
-
-                            try (PreparedStatement stmtDelete = conn.prepareStatement(sqlDelete);
-                                 PreparedStatement stmtInsert = conn.prepareStatement(sqlInsert)) {
-
-                                stmtDelete.setInt(1, idProdotto);
-                                int deleteRows = stmtDelete.executeUpdate();
-
-                                if (deleteRows > 0) {
-                                    stmtInsert.setInt(1, idProdotto);
-                                    stmtInsert.setString(2, nomeProdotto);
-                                    stmtInsert.setInt(3, 0);
-                                    int insertRows = stmtInsert.executeUpdate();
-
-                                    if (insertRows > 0) {
-                                        prelievoRiuscito = true;
-                                        conn.commit();
-                                    } else {
-                                        messaggioErrore = "Errore nell'inserimento in da_ordinare.";
-                                        conn.rollback();
-                                    }
-                                } else {
-                                    messaggioErrore = "Errore nella rimozione dal magazzino.";
-                                    conn.rollback();
-                                }
-                            }
+                            cursori[0] = Integer.toString(id);
                         }
+                    });
+                    // Il cursore è Base64 URL-safe oppure un id: nessun carattere da escapare
+                    out.scrivi("],\"nextCursor\":");
+                    if (cursori[1] != null) {
+                        out.scrivi('"').scrivi(cursori[1]).scrivi('"');
                     } else {
-                        messaggioErrore = "Quantità richiesta non disponibile.";
-                        conn.rollback();
+                        out.scrivi("null");
                     }
+                    out.scrivi('}');
+                    out.close();
+                } catch (SQLTransientConnectionException e) {
+                    inviaServizioNonDisponibile(exchange);
+                    return;
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    if (risposta.intestazioniInviate()) {
+                        // Risposta già iniziata: si interrompe lo stream
+                        exchange.close();
+                    } else {
+                        exchange.sendResponseHeaders(500, -1);
+                    }
+                    return;
+                }
+            } else {
+                exchange.sendResponseHeaders(405, -1);
+            }
+        }
+
+        // Il cursore per gli ordinamenti non numerici contiene chiave e id dell'ultima riga (Base64 URL-safe)
+        static String codificaCursore(String chiave, int id) {
+            String cursore = chiave + "|" + id;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(cursore.getBytes(StandardCharsets.UTF_8));
+        }
+
+        static String[] decodificaCursore(String cursore) {
+            String decodificato = new String(Base64.getUrlDecoder().decode(cursore), StandardCharsets.UTF_8);
+            int separatore = decodificato.lastIndexOf('|');
+            if (separatore < 0) {
+                throw new IllegalArgumentException("Cursore non valido");
+            }
+            return new String[]{decodificato.substring(0, separatore), decodificato.substring(separatore + 1)};
+        }
+    }
+
+    // Handler per prelevare un prodotto
+    static class PrelevaProdottoHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                Site sede;
+                String operatore;
+                int idProdotto;
+                int quantitaDaPrelevare;
+                try {
+                    HttpCodec.Parametri params = HttpCodec.leggiForm(exchange.getRequestBody());
+                    sede = sedi.sede(params.get("sede"));
+                    operatore = operatore(exchange, params);
+                    idProdotto = params.intero("id");
+                    quantitaDaPrelevare = params.intero("quantita");
+                } catch (IllegalArgumentException e) {
+                    inviaRichiestaNonValida(exchange, e.getMessage());
+                    return;
+                }
+                if (quantitaDaPrelevare <= 0) {
+                    String response = "La quantità da prelevare deve essere positiva.";
+                    exchange.sendResponseHeaders(400, response.getBytes(StandardCharsets.UTF_8).length);
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(response.getBytes(StandardCharsets.UTF_8));
+                    os.close();
+                    return;
+                }
 
+                boolean prelievoRiuscito = false;
+                String messaggioErrore = "";
+
+                // Le risposte dei listing in cache non sono più valide dopo la scrittura
+                sede.cache.inizioScrittura();
+                try {
+                    int[] rimanente = new int[1];
+                    switch (sede.repository.preleva(idProdotto, quantitaDaPrelevare, rimanente)) {
+                        case PRELEVATO:
+                            // La quantità restituita dall'archivio, se nota, riallinea gli indici;
+                            // altrimenti quella dell'indice di ricerca dopo il prelievo
+                            int rimasta = rimanente[0];
+                            if (rimasta != MovementLedger.NON_NOTO) {
+                                sede.indiceScadenze.aggiornaQuantita(idProdotto, rimasta);
+                                sede.ricerca.aggiornaQuantita(idProdotto, rimasta);
+                            } else {
+                                sede.indiceScadenze.preleva(idProdotto, quantitaDaPrelevare);
+                                rimasta = sede.ricerca.preleva(idProdotto, quantitaDaPrelevare);
+                            }
+                            sede.riordino.registraPrelievo(idProdotto, quantitaDaPrelevare);
+                            sede.registraMovimento(MovementLedger.PRELIEVO, idProdotto, -quantitaDaPrelevare,
+                                    rimanente[0], operatore);
+                            // L'evento porta la quantità assoluta: i client la impostano, senza sottrarre
+                            if (rimasta != MovementLedger.NON_NOTO) {
+                                sede.eventi.pubblica(EventBus.PRELEVATO,
+                                        "{\"id\":" + idProdotto + ",\"quantita\":" + rimasta + "}");
+                            } else {
+                                sede.eventi.risincronizzaTutti();
+                            }
+                            prelievoRiuscito = true;
+                            break;
+                        case ESAURITO:
+                            // Scorta esaurita: il prodotto è passato in da_ordinare
+                            sede.indiceScadenze.rimuovi(idProdotto);
+                            sede.ricerca.rimuovi(idProdotto);
+                            sede.riordino.registraPrelievo(idProdotto, quantitaDaPrelevare);
+                            sede.registraMovimento(MovementLedger.PRELIEVO, idProdotto, -quantitaDaPrelevare, 0, operatore);
+                            sede.eventi.pubblica(EventBus.DA_ORDINARE, "{\"id\":" + idProdotto + "}");
+                            prelievoRiuscito = true;
+                            break;
+                        case NON_DISPONIBILE:
+                            messaggioErrore = "Quantità richiesta non disponibile.";
+                            break;
+                        default:
+                            messaggioErrore = "Prodotto non trovato.";
+                            break;
+                    }
+                } catch (SQLTransientConnectionException e) {
+                    inviaServizioNonDisponibile(exchange);
+                    return;
+                } catch (SQLTimeoutException e) {
+                    // Il prelievo può essere stato applicato: i client ricaricano il magazzino
+                    sede.eventi.risincronizzaTutti();
+                    inviaEsitoNonNoto(exchange);
+                    return;
                 } catch (SQLException e) {
                     e.printStackTrace();
                     messaggioErrore = "Errore nel server.";
+                } finally {
+                    sede.cache.fineScrittura();
                 }
 
                 if (prelievoRiuscito) {
@@ -298,17 +852,132 @@ public class Main {
                 exchange.sendResponseHeaders(405, -1);
             }
         }
+    }
+
+    // Handler per prelevare più prodotti in un'unica transazione (kit di trattamento).
+    // Il corpo contiene una riga "id;quantita" per prodotto: o si applicano tutte o nessuna.
+    static class PrelevaProdottiHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                // Il corpo contiene le righe: la sede arriva nella query string
+                Site sede;
+                String operatore;
+                try {
+                    HttpCodec.Parametri params = HttpCodec.leggiQuery(exchange.getRequestURI().getRawQuery());
+                    sede = sedi.sede(params.get("sede"));
+                    operatore = operatore(exchange, params);
+                } catch (IllegalArgumentException e) {
+                    inviaRichiestaNonValida(exchange, e.getMessage());
+                    return;
+                }
+                String postData = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+
+                List<int[]> righe = new ArrayList<>();
+                String[] linee = postData.split("\r?\n");
+                for (int i = 0; i < linee.length; i++) {
+                    String linea = linee[i].trim();
+                    if (linea.isEmpty()) {
+                        continue;
+                    }
+                    String[] campi = linea.split(";");
+                    try {
+                        int id = Integer.parseInt(campi[0].trim());
+                        int quantita = Integer.parseInt(campi[1].trim());
+                        if (quantita <= 0) {
+                            throw new NumberFormatException();
+                        }
+                        righe.add(new int[]{id, quantita});
+                    } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                        String response = "Riga " + (i + 1) + " non valida: atteso \"id;quantita\" con quantità positiva";
+                        byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+                        exchange.sendResponseHeaders(400, responseBytes.length);
+                        OutputStream os = exchange.getResponseBody();
+                        os.write(responseBytes);
+                        os.close();
+                        return;
+                    }
+                }
+                if (righe.isEmpty()) {
+                    String response = "Nessun prodotto da prelevare";
+                    byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+                    exchange.sendResponseHeaders(400, responseBytes.length);
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(responseBytes);
+                    os.close();
+                    return;
+                }
+
+                // Esito per riga: quantità rimanente oppure messaggio di errore
+                int[] rimanenti = new int[righe.size()];
+                String[] errori = new String[righe.size()];
+                boolean prelievoRiuscito = false;
+
+                sede.cache.inizioScrittura();
+                try {
+                    Map<Integer, Integer> finali = sede.repository.prelevaTutti(righe, rimanenti, errori);
+                    if (finali != null) {
+                        prelievoRiuscito = true;
+                        for (int i = 0; i < righe.size(); i++) {
+                            int[] riga = righe.get(i);
+                            sede.riordino.registraPrelievo(riga[0], riga[1]);
+                            // rimanenti[i] è la quantità dopo questa riga, anche con più righe sullo stesso prodotto
+                            sede.registraMovimento(MovementLedger.PRELIEVO, riga[0], -riga[1], rimanenti[i], operatore);
+                        }
+                        for (Map.Entry<Integer, Integer> voce : finali.entrySet()) {
+                            if (voce.getValue() > 0) {
+                                sede.indiceScadenze.aggiornaQuantita(voce.getKey(), voce.getValue());
+                                sede.ricerca.aggiornaQuantita(voce.getKey(), voce.getValue());
+                                sede.eventi.pubblica(EventBus.QUANTITA,
+                                        "{\"id\":" + voce.getKey() + ",\"quantita\":" + voce.getValue() + "}");
+                            } else {
+                                sede.indiceScadenze.rimuovi(voce.getKey());
+                                sede.ricerca.rimuovi(voce.getKey());
+                                sede.eventi.pubblica(EventBus.DA_ORDINARE, "{\"id\":" + voce.getKey() + "}");
+                            }
+                        }
+                    }
+                } catch (SQLTransientConnectionException e) {
+                    inviaServizioNonDisponibile(exchange);
+                    return;
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    String response = "Errore nel server.";
+                    byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+                    exchange.sendResponseHeaders(500, responseBytes.length);
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(responseBytes);
+                    os.close();
+                    return;
+                } finally {
+                    sede.cache.fineScrittura();
+                }
 
-        private Map<String, String> parsePostData(String postData) throws UnsupportedEncodingException {
-            Map<String, String> params = new HashMap<>();
-            String[] pairs = postData.split("&");
-            for (String pair : pairs) {
-                String[] keyValue = pair.split("=");
-                String key = URLDecoder.decode(keyValue[0], "UTF-8");
-                String value = keyValue.length > 1 ? URLDecoder.decode(keyValue[1], "UTF-8") : "";
-                params.put(key, value);
+                StringBuilder jsonResponse = new StringBuilder();
+                jsonResponse.append("{\"applicato\":").append(prelievoRiuscito).append(",\"righe\":[");
+                for (int i = 0; i < righe.size(); i++) {
+                    if (i > 0) {
+                        jsonResponse.append(",");
+                    }
+                    jsonResponse.append("{\"id\":").append(righe.get(i)[0]);
+                    jsonResponse.append(",\"quantita\":").append(righe.get(i)[1]);
+                    if (errori[i] != null) {
+                        jsonResponse.append(",\"esito\":\"").append(errori[i]).append("\"}");
+                    } else {
+                        jsonResponse.append(",\"esito\":\"ok\",\"rimanente\":").append(rimanenti[i]).append("}");
+                    }
+                }
+                jsonResponse.append("]}");
+
+                byte[] responseBytes = jsonResponse.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+                exchange.sendResponseHeaders(prelievoRiuscito ? 200 : 409, responseBytes.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(responseBytes);
+                os.close();
+            } else {
+                exchange.sendResponseHeaders(405, -1);
             }
-            return params;
         }
     }
 
@@ -317,25 +986,38 @@ public class Main {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-                String postData = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-                Map<String, String> params = parsePostData(postData);
-
-                int idProdotto = Integer.parseInt(params.get("id"));
-
-                try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-                    String sql = "DELETE FROM magazzino WHERE id = ?";
-                    try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                        stmt.setInt(1, idProdotto);
-                        int rowsAffected = stmt.executeUpdate();
-                        if (rowsAffected == 0) {
-                            String response = "Prodotto non trovato";
-                            exchange.sendResponseHeaders(404, response.length());
-                            OutputStream os = exchange.getResponseBody();
-                            os.write(response.getBytes());
-                            os.close();
-                            return;
-                        }
+                Site sede;
+                String operatore;
+                int idProdotto;
+                try {
+                    HttpCodec.Parametri params = HttpCodec.leggiForm(exchange.getRequestBody());
+                    sede = sedi.sede(params.get("sede"));
+                    operatore = operatore(exchange, params);
+                    idProdotto = params.intero("id");
+                } catch (IllegalArgumentException e) {
+                    inviaRichiestaNonValida(exchange, e.getMessage());
+                    return;
+                }
+
+                // Le risposte dei listing in cache non sono più valide dopo la scrittura
+                sede.cache.inizioScrittura();
+                try {
+                    if (!sede.repository.elimina(idProdotto)) {
+                        String response = "Prodotto non trovato";
+                        exchange.sendResponseHeaders(404, response.length());
+                        OutputStream os = exchange.getResponseBody();
+                        os.write(response.getBytes());
+                        os.close();
+                        return;
                     }
+                    sede.indiceScadenze.rimuovi(idProdotto);
+                    sede.ricerca.rimuovi(idProdotto);
+                    sede.riordino.rimuovi(idProdotto);
+                    sede.registraMovimento(MovementLedger.ELIMINAZIONE, idProdotto, MovementLedger.NON_NOTO, 0, operatore);
+                    sede.eventi.pubblica(EventBus.RIMOSSO, "{\"id\":" + idProdotto + "}");
+                } catch (SQLTransientConnectionException e) {
+                    inviaServizioNonDisponibile(exchange);
+                    return;
                 } catch (SQLException e) {
                     e.printStackTrace();
                     String response = "Errore nell'eliminazione del prodotto";
@@ -344,6 +1026,8 @@ public class Main {
                     os.write(response.getBytes());
                     os.close();
                     return;
+                } finally {
+                    sede.cache.fineScrittura();
                 }
 
                 String response = "Prodotto eliminato con successo";
@@ -355,163 +1039,476 @@ public class Main {
                 exchange.sendResponseHeaders(405, -1);
             }
         }
-
-        private Map<String, String> parsePostData(String postData) throws UnsupportedEncodingException {
-            Map<String, String> params = new HashMap<>();
-            String[] pairs = postData.split("&");
-            for (String pair : pairs) {
-                String[] keyValue = pair.split("=");
-                String key = URLDecoder.decode(keyValue[0], "UTF-8");
-                String value = keyValue.length > 1 ? URLDecoder.decode(keyValue[1], "UTF-8") : "";
-                params.put(key, value);
-            }
-            return params;
-        }
     }
 
-    // Handler per recuperare i prodotti in scadenza
+    // Handler per recuperare i prodotti in scadenza; con sede=tutte unisce gli indici di tutte le sedi
     static class ProdottiInScadenzaHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             if ("GET".equalsIgnoreCase(exchange.getRequestMethod())) {
-                String query = exchange.getRequestURI().getQuery();
-                Map<String, String> params = parseQuery(query);
-                int giorni = Integer.parseInt(params.getOrDefault("giorni", "7"));
+                String nomeSede;
+                Site sede = null;
+                int giorni;
+                try {
+                    HttpCodec.Parametri params = HttpCodec.leggiQuery(exchange.getRequestURI().getRawQuery());
+                    nomeSede = params.get("sede");
+                    if (!SiteRouter.TUTTE.equals(nomeSede)) {
+                        sede = sedi.sede(nomeSede);
+                    }
+                    giorni = params.intero("giorni", 7);
+                } catch (IllegalArgumentException e) {
+                    inviaRichiestaNonValida(exchange, e.getMessage());
+                    return;
+                }
 
                 exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
-
-                StringBuilder jsonResponse = new StringBuilder();
-                jsonResponse.append("[");
-
-                try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-                    String sql = "SELECT id, nome, quantita, scadenza FROM magazzino WHERE scadenza <= DATE_ADD(CURDATE(), INTERVAL ? DAY)";
-                    try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                        stmt.setInt(1, giorni);
-                        ResultSet rs = stmt.executeQuery();
-                        boolean first = true;
-                        while (rs.next()) {
-                            if (!first) {
-                                jsonResponse.append(",");
-                            }
-                            first = false;
-
-                            jsonResponse.append("{");
-                            jsonResponse.append("\"id\":").append(rs.getInt("id")).append(",");
-                            jsonResponse.append("\"nome\":\"").append(escapeJson(rs.getString("nome"))).append("\",");
-                            jsonResponse.append("\"quantita\":").append(rs.getInt("quantita")).append(",");
-                            Date scadenza = rs.getDate("scadenza");
-                            if (scadenza != null) {
-                                jsonResponse.append("\"scadenza\":\"").append(scadenza.toString()).append("\"");
-                            } else {
-                                jsonResponse.append("\"scadenza\":null");
-                            }
-                            jsonResponse.append("}");
-                        }
-                    }
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                    exchange.sendResponseHeaders(500, -1);
+                LocalDate limite = LocalDate.now().plusDays(giorni);
+                if (sede == null) {
+                    rispondiTutteLeSedi(exchange, limite);
                     return;
                 }
 
-                jsonResponse.append("]");
+                // La finestra dipende dalla data corrente, che entra quindi nella chiave
+                String chiaveCache = exchange.getRequestURI() + "@" + LocalDate.now();
+                if (sede.cache.rispondiDaCache(exchange, chiaveCache)) {
+                    return;
+                }
 
-                byte[] responseBytes = jsonResponse.toString().getBytes(StandardCharsets.UTF_8);
-                exchange.sendResponseHeaders(200, responseBytes.length);
-                OutputStream os = exchange.getResponseBody();
-                os.write(responseBytes);
-                os.close();
+                // Risposta dall'indice in memoria: nessuna query al database
+                ListingCache.Risposta risposta = sede.cache.apri(exchange, chiaveCache);
+                JsonWriter out = new JsonWriter(risposta);
+                out.scrivi('[');
+                boolean first = true;
+                for (ExpiryIndex.Prodotto prodotto : sede.indiceScadenze.entro(limite)) {
+                    if (!first) {
+                        out.scrivi(',');
+                    }
+                    first = false;
+                    scriviProdotto(out, prodotto, null);
+                }
+                out.scrivi(']');
+                out.close();
             } else {
                 exchange.sendResponseHeaders(405, -1);
             }
         }
 
-        private Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
-            Map<String, String> params = new HashMap<>();
-            if (query == null || query.isEmpty()) {
-                return params;
+        // Vista globale: gli elenchi delle sedi, già ordinati per scadenza e id, vengono fusi
+        // mantenendo l'ordine per scadenza; a parità di data restano nell'ordine delle sedi.
+        // Non passa dalle cache, che sono per sede.
+        private void rispondiTutteLeSedi(HttpExchange exchange, LocalDate limite) throws IOException {
+            List<Site> elenco = new ArrayList<>(sedi.sedi());
+            List<List<ExpiryIndex.Prodotto>> perSede;
+            try {
+                perSede = sedi.suTutte(sede -> sede.indiceScadenze.entro(limite));
+            } catch (SQLException e) {
+                e.printStackTrace();
+                exchange.sendResponseHeaders(500, -1);
+                return;
             }
-            String[] pairs = query.split("&");
-            for (String pair : pairs) {
-                String[] keyValue = pair.split("=");
-                String key = URLDecoder.decode(keyValue[0], "UTF-8");
-                String value = keyValue.length > 1 ? URLDecoder.decode(keyValue[1], "UTF-8") : "";
-                params.put(key, value);
+
+            exchange.sendResponseHeaders(200, 0);
+            JsonWriter out = new JsonWriter(exchange.getResponseBody());
+            out.scrivi('[');
+            int[] posizioni = new int[perSede.size()];
+            boolean first = true;
+            while (true) {
+                int scelta = -1;
+                for (int i = 0; i < perSede.size(); i++) {
+                    if (posizioni[i] < perSede.get(i).size() && (scelta < 0 || perSede.get(i).get(posizioni[i]).scadenza
+                            .isBefore(perSede.get(scelta).get(posizioni[scelta]).scadenza))) {
+                        scelta = i;
+                    }
+                }
+                if (scelta < 0) {
+                    break;
+                }
+                if (!first) {
+                    out.scrivi(',');
+                }
+                first = false;
+                scriviProdotto(out, perSede.get(scelta).get(posizioni[scelta]++), elenco.get(scelta).nome);
             }
-            return params;
+            out.scrivi(']');
+            out.close();
         }
 
-        private String escapeJson(String str) {
-            if (str == null) {
-                return "";
+        private void scriviProdotto(JsonWriter out, ExpiryIndex.Prodotto prodotto, String sede) throws IOException {
+            out.scrivi("{\"id\":").scriviIntero(prodotto.id);
+            if (sede != null) {
+                out.scrivi(",\"sede\":").scriviStringa(sede);
             }
-            return str.replace("\\", "\\\\")
-                      .replace("\"", "\\\"")
-                      .replace("\b", "\\b")
-                      .replace("\f", "\\f")
-                      .replace("\n", "\\n")
-                      .replace("\r", "\\r")
-                      .replace("\t", "\\t");
+            out.scrivi(",\"nome\":").scriviStringa(prodotto.nome)
+                    .scrivi(",\"quantita\":").scriviIntero(prodotto.quantita)
+                    .scrivi(",\"scadenza\":").scriviData(prodotto.scadenza)
+                    .scrivi('}');
         }
     }
 
-    // Handler per recuperare i prodotti da ordinare
+    // Handler per recuperare i prodotti da ordinare: quelli esauriti (tabella da_ordinare) e quelli
+    // in magazzino che al consumo attuale non coprono il lead time, con la quantità suggerita.
+    // Con sede=tutte le sedi vengono interrogate in parallelo e le righe riportano la sede.
     static class ProdottiDaOrdinareHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             if ("GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                String nomeSede;
+                Site sede = null;
+                try {
+                    nomeSede = HttpCodec.leggiQuery(exchange.getRequestURI().getRawQuery()).get("sede");
+                    if (!SiteRouter.TUTTE.equals(nomeSede)) {
+                        sede = sedi.sede(nomeSede);
+                    }
+                } catch (IllegalArgumentException e) {
+                    inviaRichiestaNonValida(exchange, e.getMessage());
+                    return;
+                }
+
                 exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+                long adesso = System.currentTimeMillis();
+                if (sede == null) {
+                    rispondiTutteLeSedi(exchange, adesso);
+                    return;
+                }
 
-                StringBuilder jsonResponse = new StringBuilder();
-                jsonResponse.append("[");
-
-                try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-                    String sql = "SELECT id, nome, quantita FROM da_ordinare";
-                    try (Statement stmt = conn.createStatement()) {
-                        ResultSet rs = stmt.executeQuery(sql);
-                        boolean first = true;
-                        while (rs.next()) {
-                            if (!first) {
-                                jsonResponse.append(",");
-                            }
-                            first = false;
+                // Il consumo stimato decade col tempo: la data entra nella chiave
+                String chiaveCache = exchange.getRequestURI() + "@" + LocalDate.now();
+                if (sede.cache.rispondiDaCache(exchange, chiaveCache)) {
+                    return;
+                }
 
-                            jsonResponse.append("{");
-                            jsonResponse.append("\"id\":").append(rs.getInt("id")).append(",");
-                            jsonResponse.append("\"nome\":\"").append(escapeJson(rs.getString("nome"))).append("\",");
-                            jsonResponse.append("\"quantita\":").append(rs.getInt("quantita"));
-                            jsonResponse.append("}");
+                ListingCache.Risposta risposta = sede.cache.apri(exchange, chiaveCache);
+                try {
+                    // Le righe vengono scritte man mano che arrivano dall'archivio
+                    JsonWriter out = new JsonWriter(risposta);
+                    out.scrivi('[');
+                    boolean[] first = {true};
+                    Site questa = sede;
+                    elenca(sede, adesso, (id, nome, quantita, scadenza) -> {
+                        if (!first[0]) {
+                            out.scrivi(',');
                         }
-                    }
+                        first[0] = false;
+                        scriviRiga(out, questa, false, adesso, id, nome, quantita);
+                    });
+                    out.scrivi(']');
+                    out.close();
+                } catch (SQLTransientConnectionException e) {
+                    inviaServizioNonDisponibile(exchange);
+                    return;
                 } catch (SQLException e) {
                     e.printStackTrace();
-                    exchange.sendResponseHeaders(500, -1);
+                    if (risposta.intestazioniInviate()) {
+                        // Risposta già iniziata: si interrompe lo stream
+                        exchange.close();
+                    } else {
+                        exchange.sendResponseHeaders(500, -1);
+                    }
                     return;
                 }
+            } else {
+                exchange.sendResponseHeaders(405, -1);
+            }
+        }
 
-                jsonResponse.append("]");
+        // Le righe di ogni sede vengono raccolte in parallelo e poi scritte una sede dopo l'altra
+        private void rispondiTutteLeSedi(HttpExchange exchange, long adesso) throws IOException {
+            List<Site> elenco = new ArrayList<>(sedi.sedi());
+            List<List<ExpiryIndex.Prodotto>> perSede;
+            try {
+                perSede = sedi.suTutte(sede -> {
+                    List<ExpiryIndex.Prodotto> righe = new ArrayList<>();
+                    elenca(sede, adesso, (id, nome, quantita, scadenza) ->
+                            righe.add(new ExpiryIndex.Prodotto(id, nome, quantita, scadenza)));
+                    return righe;
+                });
+            } catch (SQLTransientConnectionException e) {
+                inviaServizioNonDisponibile(exchange);
+                return;
+            } catch (SQLException e) {
+                e.printStackTrace();
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
 
-                byte[] responseBytes = jsonResponse.toString().getBytes(StandardCharsets.UTF_8);
-                exchange.sendResponseHeaders(200, responseBytes.length);
-                OutputStream os = exchange.getResponseBody();
-                os.write(responseBytes);
-                os.close();
+            exchange.sendResponseHeaders(200, 0);
+            JsonWriter out = new JsonWriter(exchange.getResponseBody());
+            out.scrivi('[');
+            boolean first = true;
+            for (int i = 0; i < perSede.size(); i++) {
+                for (ExpiryIndex.Prodotto prodotto : perSede.get(i)) {
+                    if (!first) {
+                        out.scrivi(',');
+                    }
+                    first = false;
+                    scriviRiga(out, elenco.get(i), true, adesso, prodotto.id, prodotto.nome, prodotto.quantita);
+                }
+            }
+            out.scrivi(']');
+            out.close();
+        }
+
+        // Esauriti e prodotti sotto il lead time di una sede
+        private void elenca(Site sede, long adesso, InventoryRepository.Visitatore riga) throws SQLException, IOException {
+            sede.repository.elencaDaOrdinare(riga);
+            sede.repository.elencaPerId(sede.riordino.prodottiConConsumo(), (id, nome, quantita, scadenza) -> {
+                if (sede.riordino.daRiordinare(quantita, sede.riordino.consumoGiornaliero(id, adesso))) {
+                    riga.riga(id, nome, quantita, scadenza);
+                }
+            });
+        }
+
+        private void scriviRiga(JsonWriter out, Site sede, boolean conSede, long adesso,
+                                int id, String nome, int quantita) throws IOException {
+            double consumo = sede.riordino.consumoGiornaliero(id, adesso);
+            out.scrivi("{\"id\":").scriviIntero(id);
+            if (conSede) {
+                out.scrivi(",\"sede\":").scriviStringa(sede.nome);
+            }
+            out.scrivi(",\"nome\":").scriviStringa(nome)
+                    .scrivi(",\"quantita\":").scriviIntero(quantita)
+                    .scrivi(",\"consumoGiornaliero\":").scriviDecimale(consumo)
+                    .scrivi(",\"giorniCopertura\":").scriviDecimale(ReorderEngine.giorniCopertura(quantita, consumo))
+                    .scrivi(",\"quantitaSuggerita\":");
+            // Senza storico dei consumi non c'è una quantità da suggerire
+            if (consumo > 0) {
+                out.scriviIntero(sede.riordino.quantitaSuggerita(quantita, consumo));
+            } else {
+                out.scrivi("null");
+            }
+            out.scrivi('}');
+        }
+    }
+
+    // Handler per il flusso Server-Sent Events delle modifiche al magazzino
+    static class EventiHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("GET".equals(exchange.getRequestMethod())) {
+                // Ogni sede ha il proprio flusso: un client segue la sede che sta mostrando
+                Site sede;
+                try {
+                    sede = sedi.sede(HttpCodec.leggiQuery(exchange.getRequestURI().getRawQuery()).get("sede"));
+                } catch (IllegalArgumentException e) {
+                    inviaRichiestaNonValida(exchange, e.getMessage());
+                    return;
+                }
+                // Lo stream resta aperto dopo il ritorno: lo gestisce il thread di invio del client
+                if (!sede.eventi.iscrivi(exchange)) {
+                    inviaServizioNonDisponibile(exchange);
+                }
+            } else {
+                exchange.sendResponseHeaders(405, -1);
+            }
+        }
+    }
+
+    // Handler per l'elenco delle sedi configurate, nell'ordine di configurazione (la prima è la predefinita)
+    static class SediHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+                exchange.sendResponseHeaders(200, 0);
+                JsonWriter out = new JsonWriter(exchange.getResponseBody());
+                out.scrivi('[');
+                boolean first = true;
+                for (Site sede : sedi.sedi()) {
+                    if (!first) {
+                        out.scrivi(',');
+                    }
+                    first = false;
+                    out.scriviStringa(sede.nome);
+                }
+                out.scrivi(']');
+                out.close();
+            } else {
+                exchange.sendResponseHeaders(405, -1);
+            }
+        }
+    }
+
+    // Handler per lo storico dei movimenti di un prodotto, letto dal registro in ordine cronologico
+    static class MovimentiHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("GET".equals(exchange.getRequestMethod())) {
+                Site sede;
+                int idProdotto;
+                try {
+                    HttpCodec.Parametri params = HttpCodec.leggiQuery(exchange.getRequestURI().getRawQuery());
+                    sede = sedi.sede(params.get("sede"));
+                    idProdotto = params.intero("id");
+                } catch (IllegalArgumentException e) {
+                    inviaRichiestaNonValida(exchange, e.getMessage());
+                    return;
+                }
+                MovementLedger movimenti = sede.movimenti();
+                if (movimenti == null) {
+                    String response = "Registro dei movimenti non attivo";
+                    exchange.sendResponseHeaders(404, response.length());
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(response.getBytes());
+                    os.close();
+                    return;
+                }
+
+                // Il registro cresce a ogni scrittura: niente cache, le righe vanno in streaming
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+                exchange.getResponseHeaders().set("Cache-Control", "no-store");
+                exchange.sendResponseHeaders(200, 0);
+                JsonWriter out = new JsonWriter(exchange.getResponseBody());
+                out.scrivi('[');
+                boolean[] first = {true};
+                movimenti.storico(idProdotto, (istante, tipo, id, delta, rimanente, operatore) -> {
+                    if (!first[0]) {
+                        out.scrivi(',');
+                    }
+                    first[0] = false;
+                    out.scrivi("{\"istante\":").scriviStringa(Instant.ofEpochMilli(istante).toString())
+                            .scrivi(",\"tipo\":").scriviStringa(tipo(tipo))
+                            .scrivi(",\"delta\":");
+                    scriviNoto(out, delta);
+                    out.scrivi(",\"rimanente\":");
+                    scriviNoto(out, rimanente);
+                    out.scrivi(",\"operatore\":").scriviStringa(operatore).scrivi('}');
+                });
+                out.scrivi(']');
+                out.close();
             } else {
                 exchange.sendResponseHeaders(405, -1);
             }
         }
 
-        private String escapeJson(String str) {
-            if (str == null) {
-                return "";
+        private String tipo(byte tipo) {
+            switch (tipo) {
+                case MovementLedger.INSERIMENTO:
+                    return "inserimento";
+                case MovementLedger.PRELIEVO:
+                    return "prelievo";
+                case MovementLedger.ELIMINAZIONE:
+                    return "eliminazione";
+                default:
+                    return "sconosciuto";
+            }
+        }
+
+        private void scriviNoto(JsonWriter out, int valore) throws IOException {
+            if (valore == MovementLedger.NON_NOTO) {
+                out.scrivi("null");
+            } else {
+                out.scriviIntero(valore);
+            }
+        }
+    }
+
+    // Handler per la ricerca dei prodotti per nome mentre si digita, dall'indice in memoria;
+    // con sede=tutte cerca in parallelo in ogni sede e tiene i migliori risultati complessivi
+    static class CercaProdottoHandler implements HttpHandler {
+        private static final int LIMITE_PREDEFINITO = 10;
+        private static final int LIMITE_MASSIMO = 50;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                Site sede = null;
+                String ricerca;
+                int limite;
+                try {
+                    HttpCodec.Parametri params = HttpCodec.leggiQuery(exchange.getRequestURI().getRawQuery());
+                    String nomeSede = params.get("sede");
+                    if (!SiteRouter.TUTTE.equals(nomeSede)) {
+                        sede = sedi.sede(nomeSede);
+                    }
+                    ricerca = params.getOrDefault("q", "");
+                    limite = Math.min(params.intero("limit", LIMITE_PREDEFINITO), LIMITE_MASSIMO);
+                    if (limite <= 0) {
+                        throw new IllegalArgumentException("limit deve essere positivo");
+                    }
+                } catch (IllegalArgumentException e) {
+                    inviaRichiestaNonValida(exchange, e.getMessage());
+                    return;
+                }
+
+                // Ogni tasto è una ricerca diversa: niente cache, l'indice risponde già in memoria
+                List<SearchIndex.Risultato> risultati;
+                List<String> nomiSedi = new ArrayList<>();
+                if (sede != null) {
+                    risultati = sede.ricerca.cerca(ricerca, limite);
+                } else {
+                    List<List<SearchIndex.Risultato>> perSede;
+                    try {
+                        perSede = sedi.suTutte(s -> s.ricerca.cerca(ricerca, limite));
+                    } catch (SQLException e) {
+                        e.printStackTrace();
+                        exchange.sendResponseHeaders(500, -1);
+                        return;
+                    }
+                    // Sede di ogni risultato, nello stesso ordine dopo l'ordinamento complessivo
+                    List<Site> elenco = new ArrayList<>(sedi.sedi());
+                    Map<SearchIndex.Risultato, String> sedeDi = new HashMap<>();
+                    risultati = new ArrayList<>();
+                    for (int i = 0; i < perSede.size(); i++) {
+                        for (SearchIndex.Risultato risultato : perSede.get(i)) {
+                            sedeDi.put(risultato, elenco.get(i).nome);
+                            risultati.add(risultato);
+                        }
+                    }
+                    risultati.sort(SearchIndex.ORDINE);
+                    if (risultati.size() > limite) {
+                        risultati = risultati.subList(0, limite);
+                    }
+                    for (SearchIndex.Risultato risultato : risultati) {
+                        nomiSedi.add(sedeDi.get(risultato));
+                    }
+                }
+
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+                exchange.getResponseHeaders().set("Cache-Control", "no-store");
+                exchange.sendResponseHeaders(200, 0);
+                JsonWriter out = new JsonWriter(exchange.getResponseBody());
+                out.scrivi('[');
+                for (int i = 0; i < risultati.size(); i++) {
+                    SearchIndex.Risultato risultato = risultati.get(i);
+                    if (i > 0) {
+                        out.scrivi(',');
+                    }
+                    out.scrivi("{\"id\":").scriviIntero(risultato.id);
+                    if (!nomiSedi.isEmpty()) {
+                        out.scrivi(",\"sede\":").scriviStringa(nomiSedi.get(i));
+                    }
+                    out.scrivi(",\"nome\":").scriviStringa(risultato.nome)
+                            .scrivi(",\"quantita\":").scriviIntero(risultato.quantita)
+                            .scrivi(",\"scadenza\":").scriviData(risultato.scadenza)
+                            .scrivi(",\"corrispondenza\":").scriviStringa(risultato.perPrefisso ? "prefisso" : "simile")
+                            .scrivi(",\"punteggio\":").scriviDecimale(risultato.punteggio)
+                            .scrivi('}');
+                }
+                out.scrivi(']');
+                out.close();
+            } else {
+                exchange.sendResponseHeaders(405, -1);
+            }
+        }
+    }
+
+    // Handler per le metriche in formato testo Prometheus
+    static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("GET".equals(exchange.getRequestMethod())) {
+                StringBuilder testo = new StringBuilder(4096);
+                METRICHE.scrivi(testo);
+                byte[] corpo = testo.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.getResponseHeaders().set("Cache-Control", "no-store");
+                exchange.sendResponseHeaders(200, corpo.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(corpo);
+                }
+            } else {
+                exchange.sendResponseHeaders(405, -1);
             }
-            return str.replace("\\", "\\\\")
-                      .replace("\"", "\\\"")
-                      .replace("\b", "\\b")
-                      .replace("\f", "\\f")
-                      .replace("\n", "\\n")
-                      .replace("\r", "\\r")
-                      .replace("\t", "\\t");
         }
     }
 
@@ -520,39 +1517,13 @@ public class Main {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             String filePath = exchange.getRequestURI().getPath();
-            InputStream is = getClass().getResourceAsStream("/magazzino" + filePath);
-            if (is == null) {
+            if (!assets.servi(exchange, filePath)) {
                 String error = "File non trovato";
                 exchange.sendResponseHeaders(404, error.length());
                 OutputStream os = exchange.getResponseBody();
                 os.write(error.getBytes());
                 os.close();
-                return;
             }
-
-            // Determina il Content-Type
-            String contentType;
-            if (filePath.endsWith(".css")) {
-                contentType = "text/css";
-            } else if (filePath.endsWith(".js")) {
-                contentType = "application/javascript";
-            } else if (filePath.endsWith(".png")) {
-                contentType = "image/png";
-            } else if (filePath.endsWith(".jpg") || filePath.endsWith(".jpeg")) {
-                contentType = "image/jpeg";
-            } else if (filePath.endsWith(".svg")) {
-                contentType = "image/svg+xml";
-            } else {
-                contentType = "application/octet-stream";
-            }
-            exchange.getResponseHeaders().set("Content-Type", contentType);
-
-            byte[] fileBytes = is.readAllBytes();
-            exchange.sendResponseHeaders(200, fileBytes.length);
-            OutputStream os = exchange.getResponseBody();
-            os.write(fileBytes);
-            os.close();
         }
     }
 }
-
@@ -0,0 +1,112 @@
+package magazzino;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Journal append-only su un file mappato in memoria, di capacità fissa.
+ *
+ * Ogni record è [lunghezza][CRC32][dati]; la lunghezza viene scritta per ultima, quindi un
+ * record interrotto a metà ha lunghezza zero oppure un CRC sbagliato e la rilettura si ferma
+ * lì. Con la sincronizzazione attiva ogni record viene forzato su disco prima di tornare.
+ * Non è thread-safe: le scritture sono serializzate da chi lo usa.
+ */
+final class MappedJournal implements AutoCloseable {
+    private static final int INTESTAZIONE = 8;
+
+    private final FileChannel canale;
+    private final MappedByteBuffer mappa;
+    private final boolean sincrono;
+    private final CRC32 crc = new CRC32();
+    private int posizione;
+
+    private MappedJournal(FileChannel canale, MappedByteBuffer mappa, boolean sincrono) {
+        this.canale = canale;
+        this.mappa = mappa;
+        this.sincrono = sincrono;
+    }
+
+    /**
+     * Apre (o crea) il journal e ripassa a {@code rilettura} i dati di ogni record valido,
+     * nell'ordine di scrittura. Le nuove scritture ripartono dopo l'ultimo record valido.
+     */
+    static MappedJournal apri(Path file, int capacita, boolean sincrono, Consumer<ByteBuffer> rilettura)
+            throws IOException {
+        FileChannel canale = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long dimensione = Math.max(capacita, canale.size());
+            MappedByteBuffer mappa = canale.map(FileChannel.MapMode.READ_WRITE, 0, dimensione);
+            MappedJournal journal = new MappedJournal(canale, mappa, sincrono);
+            journal.rileggi(rilettura);
+            return journal;
+        } catch (IOException | RuntimeException e) {
+            canale.close();
+            throw e;
+        }
+    }
+
+    private void rileggi(Consumer<ByteBuffer> rilettura) {
+        int pos = 0;
+        while (pos + INTESTAZIONE <= mappa.capacity()) {
+            int lunghezza = mappa.getInt(pos);
+            if (lunghezza <= 0 || lunghezza > mappa.capacity() - pos - INTESTAZIONE) {
+                break;
+            }
+            ByteBuffer dati = mappa.slice(pos + INTESTAZIONE, lunghezza);
+            crc.reset();
+            crc.update(dati.duplicate());
+            if ((int) crc.getValue() != mappa.getInt(pos + 4)) {
+                break;
+            }
+            rilettura.accept(dati.asReadOnlyBuffer());
+            pos += INTESTAZIONE + lunghezza;
+        }
+        posizione = pos;
+
+        // Resti di un record interrotto: si azzerano perché una scrittura più corta non li renda leggibili
+        if (posizione + 4 <= mappa.capacity() && mappa.getInt(posizione) != 0) {
+            for (int i = posizione; i < mappa.capacity(); i++) {
+                mappa.put(i, (byte) 0);
+            }
+            mappa.force();
+        }
+    }
+
+    // false se il record non entra nello spazio rimasto
+    boolean aggiungi(byte[] dati, int lunghezza) {
+        if (lunghezza <= 0 || lunghezza > mappa.capacity() - posizione - INTESTAZIONE) {
+            return false;
+        }
+        crc.reset();
+        crc.update(dati, 0, lunghezza);
+        mappa.put(posizione + INTESTAZIONE, dati, 0, lunghezza);
+        mappa.putInt(posizione + 4, (int) crc.getValue());
+        mappa.putInt(posizione, lunghezza);
+        if (sincrono) {
+            mappa.force(posizione, INTESTAZIONE + lunghezza);
+        }
+        posizione += INTESTAZIONE + lunghezza;
+        return true;
+    }
+
+    int usati() {
+        return posizione;
+    }
+
+    int capacita() {
+        return mappa.capacity();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mappa.force();
+        canale.close();
+    }
+}
@@ -0,0 +1,186 @@
+package magazzino;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Metriche del server esportate in formato testo Prometheus.
+ *
+ * Ogni contesto HTTP ha il proprio istogramma delle latenze, i conteggi per codice di stato e
+ * i byte inviati; a parte sono misurati i tempi di acquisizione delle connessioni JDBC e di
+ * esecuzione delle query. Tutte le registrazioni sono senza lock.
+ */
+final class Metrics {
+    private static final double[] QUANTILI = {0.5, 0.95, 0.99};
+
+    private final ConcurrentMap<String, Contesto> contesti = new ConcurrentHashMap<>();
+    private final Map<String, Misura> misure = new TreeMap<>();
+    final LatencyHistogram acquisizioneConnessioni = new LatencyHistogram();
+    final LatencyHistogram esecuzioneQuery = new LatencyHistogram();
+
+    private static final class Contesto {
+        final LatencyHistogram latenze = new LatencyHistogram();
+        final ConcurrentMap<Integer, LongAdder> stati = new ConcurrentHashMap<>();
+        final LongAdder byteInviati = new LongAdder();
+        final LongAdder eccezioni = new LongAdder();
+    }
+
+    private static final class Misura {
+        final String nome;
+        final String descrizione;
+        final LongSupplier valore;
+
+        Misura(String nome, String descrizione, LongSupplier valore) {
+            this.nome = nome;
+            this.descrizione = descrizione;
+            this.valore = valore;
+        }
+    }
+
+    // Valore letto al momento dell'esportazione (gauge), es. le connessioni aperte del pool
+    void registraMisura(String nome, String descrizione, LongSupplier valore) {
+        registraMisura(nome, null, descrizione, valore);
+    }
+
+    // Gauge con etichette (es. site="roma"): le serie con lo stesso nome condividono HELP e TYPE
+    synchronized void registraMisura(String nome, String etichette, String descrizione, LongSupplier valore) {
+        String serie = etichette == null ? nome : nome + "{" + etichette + "}";
+        misure.put(serie, new Misura(nome, descrizione, valore));
+    }
+
+    // Avvolge un handler in modo che ogni richiesta sul contesto venga misurata
+    HttpHandler strumenta(String percorso, HttpHandler handler) {
+        Contesto contesto = contesti.computeIfAbsent(percorso, p -> new Contesto());
+        return exchange -> {
+            long inizio = System.nanoTime();
+            ContaByte conteggio = new ContaByte(exchange.getResponseBody());
+            exchange.setStreams(null, conteggio);
+            try {
+                handler.handle(exchange);
+            } catch (IOException | RuntimeException e) {
+                contesto.eccezioni.increment();
+                throw e;
+            } finally {
+                contesto.latenze.registraNanos(System.nanoTime() - inizio);
+                contesto.byteInviati.add(conteggio.byteScritti);
+                // -1 se l'handler non ha inviato alcuna risposta
+                int stato = exchange.getResponseCode();
+                contesto.stati.computeIfAbsent(stato, s -> new LongAdder()).increment();
+            }
+        };
+    }
+
+    // Scrive tutte le metriche nel formato di esposizione testuale di Prometheus
+    void scrivi(Appendable out) throws IOException {
+        Map<String, Contesto> ordinati = new TreeMap<>(contesti);
+
+        out.append("# HELP magazzino_http_request_duration_seconds Latenza delle richieste per contesto.\n");
+        out.append("# TYPE magazzino_http_request_duration_seconds summary\n");
+        for (Map.Entry<String, Contesto> voce : ordinati.entrySet()) {
+            scriviRiepilogo(out, "magazzino_http_request_duration_seconds",
+                    "context=\"" + etichetta(voce.getKey()) + "\"", voce.getValue().latenze.snapshot());
+        }
+
+        out.append("# HELP magazzino_http_responses_total Risposte inviate per contesto e codice di stato.\n");
+        out.append("# TYPE magazzino_http_responses_total counter\n");
+        for (Map.Entry<String, Contesto> voce : ordinati.entrySet()) {
+            Map<Integer, LongAdder> stati = new TreeMap<>(voce.getValue().stati);
+            for (Map.Entry<Integer, LongAdder> stato : stati.entrySet()) {
+                String codice = stato.getKey() < 0 ? "none" : String.valueOf(stato.getKey());
+                out.append("magazzino_http_responses_total{context=\"").append(etichetta(voce.getKey()))
+                        .append("\",status=\"").append(codice).append("\"} ")
+                        .append(String.valueOf(stato.getValue().sum())).append('\n');
+            }
+        }
+
+        out.append("# HELP magazzino_http_response_bytes_total Byte inviati nei corpi delle risposte.\n");
+        out.append("# TYPE magazzino_http_response_bytes_total counter\n");
+        for (Map.Entry<String, Contesto> voce : ordinati.entrySet()) {
+            out.append("magazzino_http_response_bytes_total{context=\"").append(etichetta(voce.getKey()))
+                    .append("\"} ").append(String.valueOf(voce.getValue().byteInviati.sum())).append('\n');
+        }
+
+        out.append("# HELP magazzino_http_exceptions_total Eccezioni uscite dagli handler.\n");
+        out.append("# TYPE magazzino_http_exceptions_total counter\n");
+        for (Map.Entry<String, Contesto> voce : ordinati.entrySet()) {
+            out.append("magazzino_http_exceptions_total{context=\"").append(etichetta(voce.getKey()))
+                    .append("\"} ").append(String.valueOf(voce.getValue().eccezioni.sum())).append('\n');
+        }
+
+        out.append("# HELP magazzino_jdbc_connection_acquire_seconds Attesa per ottenere una connessione dal pool.\n");
+        out.append("# TYPE magazzino_jdbc_connection_acquire_seconds summary\n");
+        scriviRiepilogo(out, "magazzino_jdbc_connection_acquire_seconds", null, acquisizioneConnessioni.snapshot());
+
+        out.append("# HELP magazzino_jdbc_query_seconds Esecuzione delle query (execute*, senza lettura dei risultati).\n");
+        out.append("# TYPE magazzino_jdbc_query_seconds summary\n");
+        scriviRiepilogo(out, "magazzino_jdbc_query_seconds", null, esecuzioneQuery.snapshot());
+
+        synchronized (this) {
+            String precedente = null;
+            for (Map.Entry<String, Misura> voce : misure.entrySet()) {
+                Misura misura = voce.getValue();
+                if (!misura.nome.equals(precedente)) {
+                    out.append("# HELP ").append(misura.nome).append(' ').append(misura.descrizione).append('\n');
+                    out.append("# TYPE ").append(misura.nome).append(" gauge\n");
+                    precedente = misura.nome;
+                }
+                out.append(voce.getKey()).append(' ')
+                        .append(String.valueOf(voce.getValue().valore.getAsLong())).append('\n');
+            }
+        }
+    }
+
+    private static void scriviRiepilogo(Appendable out, String nome, String etichette,
+                                        LatencyHistogram.Snapshot snapshot) throws IOException {
+        String prefisso = etichette == null ? "" : etichette + ",";
+        for (double q : QUANTILI) {
+            out.append(nome).append('{').append(prefisso).append("quantile=\"").append(String.valueOf(q))
+                    .append("\"} ").append(secondi(snapshot.quantile(q))).append('\n');
+        }
+        String graffe = etichette == null ? "" : "{" + etichette + "}";
+        out.append(nome).append("_sum").append(graffe).append(' ')
+                .append(secondi(snapshot.sommaMicrosecondi)).append('\n');
+        out.append(nome).append("_count").append(graffe).append(' ')
+                .append(String.valueOf(snapshot.totale)).append('\n');
+    }
+
+    private static String secondi(long microsecondi) {
+        return String.format(Locale.ROOT, "%.6f", microsecondi / 1_000_000.0);
+    }
+
+    private static String etichetta(String valore) {
+        return valore.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // Conta i byte scritti nel corpo della risposta
+    private static final class ContaByte extends FilterOutputStream {
+        long byteScritti;
+
+        ContaByte(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            byteScritti++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            byteScritti += len;
+        }
+    }
+}
@@ -0,0 +1,484 @@
+package magazzino;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+/**
+ * Registro dei movimenti di magazzino (inserimenti, prelievi, eliminazioni) su file binari
+ * a rotazione, scritto fuori dal percorso delle richieste.
+ *
+ * Gli handler pubblicano il movimento in un buffer circolare senza lock: uno slot si prenota
+ * con un CAS sul cursore dei produttori e si pubblica scrivendo il suo numero di sequenza,
+ * come nelle code limitate di Vyukov. Un solo thread consumatore svuota il buffer e accoda i
+ * movimenti al file corrente a blocchi, con una scrittura per blocco. Se il buffer è pieno il
+ * movimento viene scartato e contato: una richiesta non aspetta mai il disco.
+ *
+ * Quando il file corrente supera la dimensione massima se ne apre uno nuovo con il numero
+ * successivo; oltre il numero massimo di file vengono cancellati i più vecchi.
+ *
+ * Ogni record è preceduto dalla lunghezza del contenuto e seguito dal suo CRC32C. La lettura
+ * si ferma al primo record incompleto o corrotto e all'apertura il file corrente viene
+ * troncato all'ultimo record valido, così un blocco scritto a metà da un crash non produce
+ * movimenti inventati né nasconde quelli scritti dopo.
+ */
+final class MovementLedger {
+    static final byte INSERIMENTO = 1;
+    static final byte PRELIEVO = 2;
+    static final byte ELIMINAZIONE = 3;
+    // Delta o quantità risultante non noti al momento del movimento
+    static final int NON_NOTO = Integer.MIN_VALUE;
+
+    private static final int MAGIC = 0x564D4F56;
+    private static final int VERSIONE = 2;
+    // Record senza lunghezza né CRC, ancora leggibili nei file non ruotati
+    private static final int VERSIONE_SENZA_CRC = 1;
+    private static final int INTESTAZIONE = 8;
+    // istante, id, delta, rimanente, tipo, lunghezza operatore
+    private static final int RECORD_FISSO = 8 + 4 + 4 + 4 + 1 + 1;
+    // lunghezza del contenuto prima del record, CRC32C del contenuto dopo
+    private static final int CORNICE = 4 + 4;
+    private static final int MAX_OPERATORE = 255;
+    private static final int MAX_BLOCCO = 1024;
+    private static final long PAUSA_MASSIMA_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    // Attesa massima dell'uscita del consumatore alla chiusura
+    private static final long ATTESA_CHIUSURA_MS = TimeUnit.SECONDS.toMillis(10);
+    private static final String PREFISSO = "movimenti-";
+    private static final String ESTENSIONE = ".bin";
+
+    private final Movimento[] slot;
+    private final AtomicLongArray sequenze;
+    private final int maschera;
+    private final AtomicLong cursoreProduttori = new AtomicLong();
+    // Usato solo dal consumatore; consumati ne pubblica il valore dopo ogni blocco
+    private long cursoreConsumatore;
+    private volatile long consumati;
+    private final LongAdder scartati = new LongAdder();
+
+    private final Path directory;
+    private final long maxByteFile;
+    private final int maxFile;
+    private final boolean sync;
+    private final ByteBuffer blocco;
+    private final CRC32C crc = new CRC32C();
+    private final Thread consumatore;
+    private volatile boolean chiuso;
+    private FileChannel corrente;
+    private long numeroCorrente;
+
+    // Slot preallocato: i campi vengono sovrascritti a ogni giro del buffer
+    private static final class Movimento {
+        long istante;
+        int id;
+        int delta;
+        int rimanente;
+        byte tipo;
+        String operatore;
+    }
+
+    // Riceve i movimenti letti dal registro, in ordine cronologico
+    interface Visitatore {
+        void movimento(long istante, byte tipo, int id, int delta, int rimanente, String operatore) throws IOException;
+    }
+
+    private MovementLedger(Path directory, int capacita, long maxByteFile, int maxFile, boolean sync) {
+        int dimensione = Integer.highestOneBit(Math.max(2, capacita - 1)) << 1;
+        this.slot = new Movimento[dimensione];
+        this.sequenze = new AtomicLongArray(dimensione);
+        for (int i = 0; i < dimensione; i++) {
+            slot[i] = new Movimento();
+            sequenze.set(i, i);
+        }
+        this.maschera = dimensione - 1;
+        this.directory = directory;
+        this.maxByteFile = maxByteFile;
+        this.maxFile = maxFile;
+        this.sync = sync;
+        this.blocco = ByteBuffer.allocate(MAX_BLOCCO * (CORNICE + RECORD_FISSO + MAX_OPERATORE));
+        this.consumatore = new Thread(this::consuma, "movimenti");
+        this.consumatore.setDaemon(true);
+    }
+
+    /**
+     * Apre (o crea) il registro nella directory e avvia il consumatore. La capacità del buffer
+     * viene arrotondata alla potenza di due successiva.
+     */
+    static MovementLedger apri(Path directory, int capacita, long maxByteFile, int maxFile, boolean sync) throws IOException {
+        if (capacita < 2 || maxByteFile <= INTESTAZIONE || maxFile < 1) {
+            throw new IllegalArgumentException("Parametri del registro dei movimenti non validi");
+        }
+        Files.createDirectories(directory);
+        MovementLedger registro = new MovementLedger(directory, capacita, maxByteFile, maxFile, sync);
+        List<Long> numeri = registro.numeriFile();
+        registro.apriFile(numeri.isEmpty() ? 1 : numeri.get(numeri.size() - 1));
+        registro.consumatore.start();
+        return registro;
+    }
+
+    /**
+     * Pubblica un movimento senza bloccare; restituisce false (e lo conta come scartato) se
+     * il buffer è pieno o il registro è chiuso.
+     */
+    boolean registra(byte tipo, int id, int delta, int rimanente, String operatore) {
+        if (chiuso) {
+            scartati.increment();
+            return false;
+        }
+        long posizione = cursoreProduttori.get();
+        while (true) {
+            long differenza = sequenze.get((int) posizione & maschera) - posizione;
+            if (differenza == 0) {
+                if (cursoreProduttori.compareAndSet(posizione, posizione + 1)) {
+                    break;
+                }
+                posizione = cursoreProduttori.get();
+            } else if (differenza < 0) {
+                // Lo slot non è ancora stato liberato dal consumatore: buffer pieno
+                scartati.increment();
+                return false;
+            } else {
+                posizione = cursoreProduttori.get();
+            }
+        }
+        int indice = (int) posizione & maschera;
+        Movimento movimento = slot[indice];
+        movimento.istante = System.currentTimeMillis();
+        movimento.tipo = tipo;
+        movimento.id = id;
+        movimento.delta = delta;
+        movimento.rimanente = rimanente;
+        movimento.operatore = operatore;
+        // Pubblicazione: il consumatore legge lo slot solo dopo aver visto la nuova sequenza
+        sequenze.set(indice, posizione + 1);
+        if (chiuso && !scrittoAllaChiusura(posizione)) {
+            // Pubblicato dopo l'ultimo svuotamento del consumatore: non verrà mai scritto
+            scartati.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Il registro è stato chiuso mentre il movimento veniva pubblicato: attende l'uscita del
+     * consumatore e controlla se il suo ultimo svuotamento ha preso anche questa posizione.
+     * Un consumatore ancora attivo dopo l'attesa vedrà il movimento al prossimo svuotamento.
+     */
+    private boolean scrittoAllaChiusura(long posizione) {
+        try {
+            consumatore.join(ATTESA_CHIUSURA_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return consumatore.isAlive() || consumati > posizione;
+    }
+
+    long scartati() {
+        return scartati.sum();
+    }
+
+    // Movimenti pubblicati e non ancora scritti su file
+    long inAttesa() {
+        return Math.max(0, cursoreProduttori.get() - consumati);
+    }
+
+    // Ciclo del consumatore: blocchi finché ci sono movimenti, poi pause crescenti fino a 10 ms.
+    // Il file viene chiuso solo qui, all'uscita, così nessuna scrittura lo trova già chiuso.
+    private void consuma() {
+        long pausa = 1000;
+        try {
+            while (true) {
+                boolean terminare = chiuso;
+                int scritti;
+                try {
+                    scritti = svuota();
+                } catch (IOException e) {
+                    // Il blocco è perso ma il registro continua con i movimenti successivi
+                    e.printStackTrace();
+                    scritti = 1;
+                }
+                if (scritti > 0) {
+                    pausa = 1000;
+                } else if (terminare) {
+                    return;
+                } else {
+                    LockSupport.parkNanos(pausa);
+                    pausa = Math.min(pausa * 2, PAUSA_MASSIMA_NANOS);
+                }
+            }
+        } finally {
+            try {
+                corrente.force(false);
+                corrente.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Copia nel blocco i movimenti pubblicati (al più MAX_BLOCCO) e li scrive con una sola write
+    private int svuota() throws IOException {
+        blocco.clear();
+        int letti = 0;
+        while (letti < MAX_BLOCCO) {
+            int indice = (int) cursoreConsumatore & maschera;
+            if (sequenze.get(indice) != cursoreConsumatore + 1) {
+                break;
+            }
+            Movimento movimento = slot[indice];
+            byte[] operatore = operatore(movimento.operatore);
+            int inizioRecord = blocco.position();
+            blocco.putInt(RECORD_FISSO + operatore.length)
+                    .putLong(movimento.istante)
+                    .putInt(movimento.id)
+                    .putInt(movimento.delta)
+                    .putInt(movimento.rimanente)
+                    .put(movimento.tipo)
+                    .put((byte) operatore.length)
+                    .put(operatore);
+            crc.reset();
+            crc.update(blocco.array(), inizioRecord + 4, RECORD_FISSO + operatore.length);
+            blocco.putInt((int) crc.getValue());
+            movimento.operatore = null;
+            // Lo slot torna disponibile ai produttori per il giro successivo
+            sequenze.set(indice, cursoreConsumatore + slot.length);
+            cursoreConsumatore++;
+            letti++;
+        }
+        if (letti == 0) {
+            return 0;
+        }
+        consumati = cursoreConsumatore;
+        blocco.flip();
+        if (corrente.size() + blocco.remaining() > maxByteFile) {
+            ruota();
+        }
+        long inizio = corrente.size();
+        try {
+            while (blocco.hasRemaining()) {
+                corrente.write(blocco);
+            }
+            if (sync) {
+                corrente.force(false);
+            }
+        } catch (IOException e) {
+            // Via il blocco scritto a metà, altrimenti la lettura si fermerebbe lì e non
+            // vedrebbe i blocchi successivi
+            try {
+                corrente.truncate(inizio);
+            } catch (IOException ulteriore) {
+                e.addSuppressed(ulteriore);
+            }
+            throw e;
+        }
+        return letti;
+    }
+
+    private static byte[] operatore(String operatore) {
+        if (operatore == null) {
+            return new byte[0];
+        }
+        byte[] byteOperatore = operatore.getBytes(StandardCharsets.UTF_8);
+        if (byteOperatore.length <= MAX_OPERATORE) {
+            return byteOperatore;
+        }
+        // Troncato a un confine di carattere UTF-8
+        int lunghezza = MAX_OPERATORE;
+        while ((byteOperatore[lunghezza] & 0xC0) == 0x80) {
+            lunghezza--;
+        }
+        byte[] troncato = new byte[lunghezza];
+        System.arraycopy(byteOperatore, 0, troncato, 0, lunghezza);
+        return troncato;
+    }
+
+    private void ruota() throws IOException {
+        corrente.force(false);
+        corrente.close();
+        apriFile(numeroCorrente + 1);
+        List<Long> numeri = numeriFile();
+        for (int i = 0; i < numeri.size() - maxFile; i++) {
+            Files.deleteIfExists(file(numeri.get(i)));
+        }
+    }
+
+    // Apre il file per accodare; un file esistente viene troncato all'ultimo record valido,
+    // uno di un formato precedente viene lasciato com'è e si passa al numero successivo
+    private void apriFile(long numero) throws IOException {
+        FileChannel canale = FileChannel.open(file(numero),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (canale.size() < INTESTAZIONE) {
+            canale.truncate(0);
+            ByteBuffer intestazione = ByteBuffer.allocate(INTESTAZIONE).putInt(MAGIC).putInt(VERSIONE);
+            intestazione.flip();
+            canale.write(intestazione, 0);
+        } else {
+            ByteBuffer intestazione = ByteBuffer.allocate(INTESTAZIONE);
+            canale.read(intestazione, 0);
+            if (intestazione.getInt(0) != MAGIC || intestazione.getInt(4) != VERSIONE) {
+                canale.close();
+                apriFile(numero + 1);
+                return;
+            }
+            long fine = fineValida(file(numero));
+            if (fine < canale.size()) {
+                System.err.println("Registro dei movimenti: " + (canale.size() - fine)
+                        + " byte non validi in coda a " + file(numero) + ", file troncato");
+                canale.truncate(fine);
+            }
+        }
+        canale.position(canale.size());
+        corrente = canale;
+        numeroCorrente = numero;
+    }
+
+    private Path file(long numero) {
+        return directory.resolve(String.format("%s%06d%s", PREFISSO, numero, ESTENSIONE));
+    }
+
+    // Numeri dei file del registro presenti nella directory, in ordine crescente
+    private List<Long> numeriFile() throws IOException {
+        List<Long> numeri = new ArrayList<>();
+        try (DirectoryStream<Path> elenco = Files.newDirectoryStream(directory, PREFISSO + "*" + ESTENSIONE)) {
+            for (Path percorso : elenco) {
+                String nome = percorso.getFileName().toString();
+                try {
+                    numeri.add(Long.parseLong(nome.substring(PREFISSO.length(), nome.length() - ESTENSIONE.length())));
+                } catch (NumberFormatException e) {
+                    // File estraneo con un nome simile
+                }
+            }
+        }
+        Collections.sort(numeri);
+        return numeri;
+    }
+
+    // Posizione successiva all'ultimo record valido di un file già aperto con intestazione corrente
+    private static long fineValida(Path percorso) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(percorso), 65536))) {
+            in.skipNBytes(INTESTAZIONE);
+            byte[] contenuto = new byte[RECORD_FISSO + MAX_OPERATORE];
+            CRC32C crc = new CRC32C();
+            long fine = INTESTAZIONE;
+            int lunghezza;
+            while ((lunghezza = leggiRecord(in, contenuto, crc)) >= 0) {
+                fine += CORNICE + lunghezza;
+            }
+            return fine;
+        }
+    }
+
+    /**
+     * Legge il contenuto del record successivo e ne restituisce la lunghezza, oppure -1 a fine
+     * file e al primo record incompleto o corrotto: dopo un record non valido la posizione dei
+     * successivi non è affidabile.
+     */
+    private static int leggiRecord(DataInputStream in, byte[] contenuto, CRC32C crc) throws IOException {
+        try {
+            int lunghezza = in.readInt();
+            if (lunghezza < RECORD_FISSO || lunghezza > RECORD_FISSO + MAX_OPERATORE) {
+                return -1;
+            }
+            in.readFully(contenuto, 0, lunghezza);
+            int atteso = in.readInt();
+            crc.reset();
+            crc.update(contenuto, 0, lunghezza);
+            if ((int) crc.getValue() != atteso || (contenuto[RECORD_FISSO - 1] & 0xFF) != lunghezza - RECORD_FISSO) {
+                return -1;
+            }
+            return lunghezza;
+        } catch (EOFException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Legge i movimenti di un prodotto dal file più vecchio al più recente. Vede solo i
+     * movimenti già scritti dal consumatore; in ogni file la lettura si ferma al primo record
+     * incompleto o corrotto.
+     */
+    void storico(int id, Visitatore visitatore) throws IOException {
+        byte[] contenuto = new byte[RECORD_FISSO + MAX_OPERATORE];
+        ByteBuffer record = ByteBuffer.wrap(contenuto);
+        CRC32C crcLettura = new CRC32C();
+        for (long numero : numeriFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file(numero)), 65536))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("File dei movimenti non riconosciuto: " + file(numero));
+                }
+                int versione = in.readInt();
+                if (versione == VERSIONE_SENZA_CRC) {
+                    storicoSenzaCrc(in, id, visitatore);
+                    continue;
+                }
+                if (versione != VERSIONE) {
+                    throw new IOException("File dei movimenti non riconosciuto: " + file(numero));
+                }
+                int lunghezza;
+                while ((lunghezza = leggiRecord(in, contenuto, crcLettura)) >= 0) {
+                    int idMovimento = record.getInt(8);
+                    if (idMovimento == id) {
+                        visitatore.movimento(record.getLong(0), record.get(20), idMovimento, record.getInt(12),
+                                record.getInt(16), new String(contenuto, RECORD_FISSO, lunghezza - RECORD_FISSO,
+                                        StandardCharsets.UTF_8));
+                    }
+                }
+            } catch (EOFException | NoSuchFileException e) {
+                // Intestazione incompleta, oppure file cancellato dalla rotazione durante la lettura
+            }
+        }
+    }
+
+    // File della prima versione: record a larghezza fissa fino alla fine del file
+    private static void storicoSenzaCrc(DataInputStream in, int id, Visitatore visitatore) throws IOException {
+        byte[] operatore = new byte[MAX_OPERATORE];
+        try {
+            while (true) {
+                long istante = in.readLong();
+                int idMovimento = in.readInt();
+                int delta = in.readInt();
+                int rimanente = in.readInt();
+                byte tipo = in.readByte();
+                int lunghezza = in.readUnsignedByte();
+                in.readFully(operatore, 0, lunghezza);
+                if (idMovimento == id) {
+                    visitatore.movimento(istante, tipo, idMovimento, delta, rimanente,
+                            new String(operatore, 0, lunghezza, StandardCharsets.UTF_8));
+                }
+            }
+        } catch (EOFException e) {
+            // Fine del file
+        }
+    }
+
+    // Smette di accettare movimenti e attende che il consumatore scriva quelli in attesa e chiuda il file
+    void close() {
+        chiuso = true;
+        try {
+            consumatore.join(ATTESA_CHIUSURA_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (consumatore.isAlive()) {
+            System.err.println("Registro dei movimenti: scrittura ancora in corso alla chiusura, "
+                    + inAttesa() + " movimenti in attesa");
+        }
+    }
+}
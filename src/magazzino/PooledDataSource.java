@@ -0,0 +1,510 @@
+package magazzino;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * DataSource con un pool limitato di connessioni JDBC condiviso da tutti gli handler.
+ *
+ * Le connessioni restituite sono proxy: {@code close()} le riconsegna al pool invece di
+ * chiuderle, e {@code prepareStatement(String)} riusa gli statement già preparati sulla
+ * stessa connessione fisica. Se nessuna connessione si libera entro il timeout di prestito
+ * viene lanciata una {@link SQLTransientConnectionException}, che gli handler traducono in 503.
+ */
+final class PooledDataSource implements DataSource, AutoCloseable {
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int minSize;
+    private final long borrowTimeoutMs;
+    private final long idleTimeoutMs;
+    private final long validationIntervalMs;
+    private final int statementCacheSize;
+
+    // I permessi limitano le connessioni in prestito; le inattive sono gestite LIFO
+    private final Semaphore permessi;
+    private final LinkedBlockingDeque<ConnessioneFisica> inattive = new LinkedBlockingDeque<>();
+    private final AtomicInteger aperte = new AtomicInteger();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean chiuso;
+
+    // Tempi di acquisizione e di esecuzione, registrati solo se le metriche sono attive
+    private volatile LatencyHistogram tempiAcquisizione;
+    private volatile LatencyHistogram tempiQuery;
+
+    PooledDataSource(String url, String user, String password, int minSize, int maxSize,
+                     long borrowTimeoutMs, long idleTimeoutMs, long validationIntervalMs,
+                     int statementCacheSize) {
+        if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("Dimensioni del pool non valide: min=" + minSize + ", max=" + maxSize);
+        }
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.minSize = minSize;
+        this.borrowTimeoutMs = borrowTimeoutMs;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.validationIntervalMs = validationIntervalMs;
+        this.statementCacheSize = statementCacheSize;
+        this.permessi = new Semaphore(maxSize, true);
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        if (idleTimeoutMs > 0) {
+            long periodo = Math.max(1000, idleTimeoutMs / 2);
+            evictor.scheduleWithFixedDelay(this::rimuoviInattive, periodo, periodo, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Apre subito le connessioni minime; un database non raggiungibile non blocca l'avvio
+    void preriscalda() {
+        try {
+            while (aperte.get() < minSize) {
+                inattive.offerLast(apriConnessione());
+            }
+        } catch (SQLException e) {
+            System.err.println("Impossibile preparare le connessioni iniziali: " + e.getMessage());
+        }
+    }
+
+    void registraMetriche(Metrics metriche) {
+        this.tempiAcquisizione = metriche.acquisizioneConnessioni;
+        this.tempiQuery = metriche.esecuzioneQuery;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        LatencyHistogram tempi = tempiAcquisizione;
+        if (tempi == null) {
+            return prendiConnessione();
+        }
+        long inizio = System.nanoTime();
+        try {
+            return prendiConnessione();
+        } finally {
+            tempi.registraNanos(System.nanoTime() - inizio);
+        }
+    }
+
+    private Connection prendiConnessione() throws SQLException {
+        if (chiuso) {
+            throw new SQLException("Pool di connessioni chiuso");
+        }
+        try {
+            if (!permessi.tryAcquire(borrowTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new SQLTransientConnectionException(
+                        "Nessuna connessione disponibile entro " + borrowTimeoutMs + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Attesa della connessione interrotta", e);
+        }
+
+        try {
+            ConnessioneFisica fisica;
+            while ((fisica = inattive.pollFirst()) != null) {
+                if (valida(fisica)) {
+                    return fisica.presta();
+                }
+                fisica.chiudi();
+            }
+            return apriConnessione().presta();
+        } catch (SQLException | RuntimeException e) {
+            permessi.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Credenziali fissate alla creazione del pool");
+    }
+
+    private ConnessioneFisica apriConnessione() throws SQLException {
+        Connection connessione = DriverManager.getConnection(url, user, password);
+        aperte.incrementAndGet();
+        return new ConnessioneFisica(connessione);
+    }
+
+    // Valida solo le connessioni rimaste ferme più a lungo dell'intervallo configurato
+    private boolean valida(ConnessioneFisica fisica) {
+        if (System.currentTimeMillis() - fisica.ultimoUso < validationIntervalMs) {
+            return true;
+        }
+        try {
+            return fisica.connessione.isValid(2);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void restituisci(ConnessioneFisica fisica) {
+        try {
+            if (fisica.guasta || chiuso) {
+                fisica.chiudi();
+            } else {
+                fisica.ultimoUso = System.currentTimeMillis();
+                inattive.offerFirst(fisica);
+            }
+        } finally {
+            permessi.release();
+        }
+    }
+
+    // Chiude le connessioni inattive da troppo tempo, mantenendo almeno minSize connessioni
+    private void rimuoviInattive() {
+        long limite = System.currentTimeMillis() - idleTimeoutMs;
+        while (aperte.get() > minSize) {
+            ConnessioneFisica fisica = inattive.pollLast();
+            if (fisica == null) {
+                return;
+            }
+            if (fisica.ultimoUso > limite) {
+                inattive.offerLast(fisica);
+                return;
+            }
+            fisica.chiudi();
+        }
+    }
+
+    int connessioniAperte() {
+        return aperte.get();
+    }
+
+    int connessioniInattive() {
+        return inattive.size();
+    }
+
+    @Override
+    public void close() {
+        chiuso = true;
+        evictor.shutdownNow();
+        ConnessioneFisica fisica;
+        while ((fisica = inattive.pollFirst()) != null) {
+            fisica.chiudi();
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return DriverManager.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+        DriverManager.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+        DriverManager.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return DriverManager.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Nessun wrapper per " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+
+    // Connessione fisica con la sua cache di PreparedStatement (LRU)
+    private final class ConnessioneFisica {
+        final Connection connessione;
+        final Map<String, StatementInCache> statement;
+        volatile long ultimoUso = System.currentTimeMillis();
+        volatile boolean guasta;
+
+        ConnessioneFisica(Connection connessione) {
+            this.connessione = connessione;
+            this.statement = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, StatementInCache> eldest) {
+                    if (size() > statementCacheSize) {
+                        eldest.getValue().chiudi();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        Connection presta() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, new ConnessionePrestata(this));
+        }
+
+        PreparedStatement prepara(String sql, Integer generatedKeys, Connection proxy) throws SQLException {
+            String chiave = generatedKeys == null ? sql : generatedKeys + "#" + sql;
+            StatementInCache inCache = statement.get(chiave);
+            if (inCache == null || inCache.reale.isClosed()) {
+                PreparedStatement reale = generatedKeys == null
+                        ? connessione.prepareStatement(sql)
+                        : connessione.prepareStatement(sql, generatedKeys);
+                inCache = new StatementInCache(this, chiave, reale);
+                if (statementCacheSize > 0) {
+                    statement.put(chiave, inCache);
+                } else {
+                    inCache.nonInCache = true;
+                }
+            }
+            inCache.connessione = proxy;
+            inCache.inUso = true;
+            return inCache.proxy;
+        }
+
+        // Statement lasciati aperti dall'applicazione: si ripuliscono prima del prossimo prestito,
+        // scartando quelli che non si lasciano ripristinare
+        void rilasciaStatement() {
+            Iterator<StatementInCache> it = statement.values().iterator();
+            while (it.hasNext()) {
+                StatementInCache s = it.next();
+                if (s.inUso) {
+                    try {
+                        s.rilascia();
+                    } catch (SQLException e) {
+                        s.chiudi();
+                        it.remove();
+                    }
+                }
+            }
+        }
+
+        void chiudi() {
+            aperte.decrementAndGet();
+            for (StatementInCache s : statement.values()) {
+                s.chiudi();
+            }
+            statement.clear();
+            try {
+                connessione.close();
+            } catch (SQLException e) {
+                // La connessione è comunque scartata
+            }
+        }
+    }
+
+    // Lato applicativo di una connessione in prestito: close() la restituisce al pool
+    private final class ConnessionePrestata implements InvocationHandler {
+        private final ConnessioneFisica fisica;
+        private boolean restituita;
+
+        ConnessionePrestata(ConnessioneFisica fisica) {
+            this.fisica = fisica;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String nome = method.getName();
+            switch (nome) {
+                case "close":
+                    if (!restituita) {
+                        restituita = true;
+                        fisica.rilasciaStatement();
+                        ripristina();
+                        restituisci(fisica);
+                    }
+                    return null;
+                case "isClosed":
+                    return restituita || fisica.connessione.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + fisica.connessione + "]";
+                default:
+                    break;
+            }
+            if (restituita) {
+                throw new SQLException("Connessione già restituita al pool");
+            }
+            try {
+                if ("prepareStatement".equals(nome) && args.length == 1) {
+                    return fisica.prepara((String) args[0], null, (Connection) proxy);
+                }
+                if ("prepareStatement".equals(nome) && args.length == 2 && args[1] instanceof Integer) {
+                    return fisica.prepara((String) args[0], (Integer) args[1], (Connection) proxy);
+                }
+                return method.invoke(fisica.connessione, args);
+            } catch (InvocationTargetException e) {
+                throw segnalaErrore(e.getCause());
+            } catch (SQLException e) {
+                throw segnalaErrore(e);
+            }
+        }
+
+        // Una transazione lasciata aperta viene annullata prima di riconsegnare la connessione
+        private void ripristina() {
+            try {
+                if (!fisica.connessione.getAutoCommit()) {
+                    fisica.connessione.rollback();
+                    fisica.connessione.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                fisica.guasta = true;
+            }
+        }
+
+        private Throwable segnalaErrore(Throwable t) {
+            if (t instanceof SQLException) {
+                String stato = ((SQLException) t).getSQLState();
+                if (stato != null && stato.startsWith("08")) {
+                    fisica.guasta = true;
+                }
+            }
+            return t;
+        }
+    }
+
+    // Statement preparato e riusato: close() lo lascia aperto, chiude l'ultimo ResultSet e
+    // riporta lo statement allo stato iniziale (parametri, batch e impostazioni per l'uso)
+    private final class StatementInCache implements InvocationHandler {
+        final ConnessioneFisica fisica;
+        final String chiave;
+        final PreparedStatement reale;
+        final PreparedStatement proxy;
+        Connection connessione;
+        ResultSet ultimoRisultato;
+        boolean nonInCache;
+        boolean inUso;
+        // Impostazioni modificate durante l'uso, da riportare ai valori del driver
+        boolean impostazioniModificate;
+        private int fetchSizeIniziale = -1;
+        private int maxRowsIniziale;
+        private int timeoutIniziale;
+
+        StatementInCache(ConnessioneFisica fisica, String chiave, PreparedStatement reale) {
+            this.fisica = fisica;
+            this.chiave = chiave;
+            this.reale = reale;
+            this.proxy = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (nonInCache) {
+                        chiudi();
+                    } else {
+                        try {
+                            rilascia();
+                        } catch (SQLException e) {
+                            // Uno statement che non si ripristina non torna in cache
+                            scarta();
+                            throw e;
+                        }
+                    }
+                    return null;
+                case "setFetchSize":
+                case "setMaxRows":
+                case "setLargeMaxRows":
+                case "setQueryTimeout":
+                    if (!impostazioniModificate) {
+                        fetchSizeIniziale = reale.getFetchSize();
+                        maxRowsIniziale = reale.getMaxRows();
+                        timeoutIniziale = reale.getQueryTimeout();
+                        impostazioniModificate = true;
+                    }
+                    break;
+                case "getConnection":
+                    return connessione;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+            LatencyHistogram tempi = method.getName().startsWith("execute") ? tempiQuery : null;
+            long inizio = tempi != null ? System.nanoTime() : 0;
+            try {
+                Object risultato = method.invoke(reale, args);
+                if (risultato instanceof ResultSet && "executeQuery".equals(method.getName())) {
+                    ultimoRisultato = (ResultSet) risultato;
+                }
+                return risultato;
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                if (tempi != null) {
+                    tempi.registraNanos(System.nanoTime() - inizio);
+                }
+            }
+        }
+
+        // Le righe di un batch non eseguito (importazione interrotta tra addBatch ed executeBatch)
+        // non devono finire nel prossimo executeBatch sulla stessa connessione
+        void rilascia() throws SQLException {
+            inUso = false;
+            if (ultimoRisultato != null) {
+                ultimoRisultato.close();
+                ultimoRisultato = null;
+            }
+            reale.clearParameters();
+            reale.clearBatch();
+            if (impostazioniModificate) {
+                // Prima maxRows: alcuni driver rifiutano un fetch size oltre il limite di righe
+                reale.setMaxRows(maxRowsIniziale);
+                reale.setFetchSize(fetchSizeIniziale);
+                reale.setQueryTimeout(timeoutIniziale);
+                impostazioniModificate = false;
+            }
+        }
+
+        private void scarta() {
+            inUso = false;
+            chiudi();
+            fisica.statement.remove(chiave, this);
+        }
+
+        void chiudi() {
+            try {
+                reale.close();
+            } catch (SQLException e) {
+                // Lo statement è comunque scartato
+            }
+        }
+    }
+}
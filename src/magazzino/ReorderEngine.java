@@ -0,0 +1,176 @@
+package magazzino;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Consumo giornaliero stimato per prodotto e proposte di riordino.
+ *
+ * Ogni prelievo aggiorna in O(1) una somma a decadimento esponenziale (emivita configurabile):
+ * la somma viene prima fatta decadere per il tempo trascorso dall'ultimo prelievo e poi
+ * incrementata della quantità prelevata, senza conservare né rileggere lo storico. Diviso per
+ * la finestra effettiva, che per i prodotti con poco storico è più corta, dà unità al giorno.
+ * Un prodotto va riordinato quando i giorni di copertura (quantità / consumo) scendono sotto
+ * il lead time; la quantità suggerita riporta la scorta a lead time + copertura giorni.
+ *
+ * Gli aggregati vivono in memoria e vengono salvati periodicamente su un file locale.
+ */
+final class ReorderEngine {
+    private static final double MILLIS_GIORNO = 86_400_000.0;
+    private static final int MAGIC = 0x56455452;
+    private static final int VERSIONE = 1;
+
+    private final ConcurrentMap<Integer, Consumo> consumi = new ConcurrentHashMap<>();
+    // Costante di tempo del decadimento in giorni (emivita / ln 2)
+    private final double tau;
+    private final int leadTime;
+    private final int copertura;
+
+    // Aggregato immutabile: ogni prelievo lo sostituisce atomicamente nella mappa
+    private static final class Consumo {
+        final double somma;
+        final long ultimo;
+        final long primo;
+
+        Consumo(double somma, long ultimo, long primo) {
+            this.somma = somma;
+            this.ultimo = ultimo;
+            this.primo = primo;
+        }
+    }
+
+    ReorderEngine(double emivitaGiorni, int leadTime, int copertura) {
+        if (emivitaGiorni <= 0 || leadTime < 0 || copertura < 0) {
+            throw new IllegalArgumentException("Parametri di riordino non validi");
+        }
+        this.tau = emivitaGiorni / Math.log(2);
+        this.leadTime = leadTime;
+        this.copertura = copertura;
+    }
+
+    int dimensione() {
+        return consumi.size();
+    }
+
+    void registraPrelievo(int id, int quantita) {
+        registraPrelievo(id, quantita, System.currentTimeMillis());
+    }
+
+    void registraPrelievo(int id, int quantita, long adesso) {
+        consumi.compute(id, (chiave, consumo) -> consumo == null
+                ? new Consumo(quantita, adesso, adesso)
+                : new Consumo(consumo.somma * decadimento(adesso - consumo.ultimo) + quantita,
+                        Math.max(adesso, consumo.ultimo), consumo.primo));
+    }
+
+    // Prodotto eliminato dall'archivio: il suo storico non serve più
+    void rimuovi(int id) {
+        consumi.remove(id);
+    }
+
+    Set<Integer> prodottiConConsumo() {
+        return consumi.keySet();
+    }
+
+    // Unità al giorno; 0 per i prodotti mai prelevati
+    double consumoGiornaliero(int id, long adesso) {
+        Consumo consumo = consumi.get(id);
+        if (consumo == null) {
+            return 0;
+        }
+        double somma = consumo.somma * decadimento(adesso - consumo.ultimo);
+        // Finestra effettiva: tau per uno storico lungo, meno per un prodotto prelevato da poco (minimo un giorno)
+        double eta = Math.max(adesso - consumo.primo, MILLIS_GIORNO) / MILLIS_GIORNO;
+        return somma / (tau * -Math.expm1(-eta / tau));
+    }
+
+    // Giorni prima dell'esaurimento al consumo attuale; infinito se il prodotto non si consuma
+    static double giorniCopertura(int quantita, double consumoGiornaliero) {
+        if (quantita <= 0) {
+            return 0;
+        }
+        return consumoGiornaliero > 0 ? quantita / consumoGiornaliero : Double.POSITIVE_INFINITY;
+    }
+
+    boolean daRiordinare(int quantita, double consumoGiornaliero) {
+        return giorniCopertura(quantita, consumoGiornaliero) < leadTime;
+    }
+
+    // Quantità che riporta la scorta a lead time + copertura giorni di consumo; 0 se non serve
+    int quantitaSuggerita(int quantita, double consumoGiornaliero) {
+        double fabbisogno = consumoGiornaliero * (leadTime + copertura) - quantita;
+        return fabbisogno > 0 ? (int) Math.min(Math.ceil(fabbisogno), Integer.MAX_VALUE) : 0;
+    }
+
+    private double decadimento(long millis) {
+        return millis > 0 ? Math.exp(-millis / MILLIS_GIORNO / tau) : 1;
+    }
+
+    // Salva gli aggregati su un file temporaneo e lo rinomina, così un salvataggio interrotto non perde i precedenti
+    void salva(Path file) throws IOException {
+        List<Map.Entry<Integer, Consumo>> voci = new ArrayList<>(consumi.entrySet());
+        Path temporaneo = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaneo)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSIONE);
+            out.writeInt(voci.size());
+            for (Map.Entry<Integer, Consumo> voce : voci) {
+                out.writeInt(voce.getKey());
+                out.writeDouble(voce.getValue().somma);
+                out.writeLong(voce.getValue().ultimo);
+                out.writeLong(voce.getValue().primo);
+            }
+        }
+        Files.move(temporaneo, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Carica gli aggregati salvati; un file assente equivale a nessuno storico
+    void carica(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSIONE) {
+                throw new IOException("File dei consumi non riconosciuto: " + file);
+            }
+            int quanti = in.readInt();
+            consumi.clear();
+            for (int i = 0; i < quanti; i++) {
+                int id = in.readInt();
+                consumi.put(id, new Consumo(in.readDouble(), in.readLong(), in.readLong()));
+            }
+        } catch (NoSuchFileException e) {
+            // Primo avvio
+        }
+    }
+
+    // Salvataggio periodico su un thread daemon dedicato
+    ScheduledExecutorService pianificaSalvataggio(Path file, long minuti) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "consumi");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                salva(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, minuti, minuti, TimeUnit.MINUTES);
+        return scheduler;
+    }
+}
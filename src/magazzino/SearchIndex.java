@@ -0,0 +1,386 @@
+package magazzino;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.text.Normalizer;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Indice in memoria sui nomi dei prodotti per la ricerca mentre si digita.
+ *
+ * I nomi vengono normalizzati (minuscole, senza accenti, solo lettere e cifre) e divisi in
+ * parole. Le parole stanno in una mappa ordinata, dove i prodotti con una parola che inizia
+ * per un prefisso formano un intervallo contiguo, come il sottoalbero di un trie. Se le
+ * corrispondenze per prefisso non bastano si cercano nomi simili con i trigrammi delle
+ * parole, che tollerano errori di battitura.
+ *
+ * Viene caricato dall'archivio all'avvio e tenuto allineato dagli handler di scrittura, come
+ * l'indice delle scadenze.
+ */
+final class SearchIndex {
+    // Quota minima dei trigrammi della ricerca che un nome deve contenere per essere "simile"
+    private static final double COPERTURA_MINIMA = 0.5;
+    private static final int PAGINA_CARICAMENTO = 10_000;
+
+    // Prima le corrispondenze per prefisso, poi punteggio decrescente, nome più corto, nome e id
+    static final Comparator<Risultato> ORDINE = Comparator
+            .comparing((Risultato r) -> !r.perPrefisso)
+            .thenComparing(r -> -r.punteggio)
+            .thenComparingInt(r -> r.nome.length())
+            .thenComparing(r -> r.nome)
+            .thenComparingInt(r -> r.id);
+
+    private final IntMap<Voce> perId = new IntMap<>(1024);
+    // parola normalizzata -> prodotti che la contengono
+    private final NavigableMap<String, IntMap<Voce>> parole = new TreeMap<>();
+    // trigramma -> prodotti con almeno una parola che lo contiene
+    private final Map<String, IntMap<Voce>> trigrammi = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    static final class Risultato {
+        final int id;
+        final String nome;
+        final int quantita;
+        final LocalDate scadenza;
+        final boolean perPrefisso;
+        final double punteggio;
+
+        Risultato(int id, String nome, int quantita, LocalDate scadenza, boolean perPrefisso, double punteggio) {
+            this.id = id;
+            this.nome = nome;
+            this.quantita = quantita;
+            this.scadenza = scadenza;
+            this.perPrefisso = perPrefisso;
+            this.punteggio = punteggio;
+        }
+    }
+
+    // Prodotto indicizzato; la quantità cambia con i prelievi (sotto write lock), il resto no
+    private static final class Voce {
+        final int id;
+        final String nome;
+        final String normalizzato;
+        final String[] parole;
+        final String[] trigrammi;
+        final LocalDate scadenza;
+        int quantita;
+
+        Voce(int id, String nome, int quantita, LocalDate scadenza) {
+            this.id = id;
+            this.nome = nome;
+            this.normalizzato = normalizza(nome);
+            this.parole = normalizzato.isEmpty() ? new String[0] : normalizzato.split(" ");
+            this.trigrammi = SearchIndex.trigrammi(parole);
+            this.quantita = quantita;
+            this.scadenza = scadenza;
+        }
+    }
+
+    // Conteggio dei trigrammi in comune durante una ricerca approssimata
+    private static final class Candidato {
+        final Voce voce;
+        int comuni;
+
+        Candidato(Voce voce) {
+            this.voce = voce;
+        }
+    }
+
+    // Ricarica tutto l'indice dall'archivio, a pagine per id, sostituendo il contenuto corrente;
+    // con il server avviato va eseguita in ListingCache.senzaScritture, come per l'indice delle scadenze
+    void carica(InventoryRepository repository) throws SQLException {
+        List<Voce> voci = new ArrayList<>();
+        InventoryRepository.Filtro filtro = new InventoryRepository.Filtro();
+        while (true) {
+            int prima = voci.size();
+            try {
+                repository.elenca(filtro, PAGINA_CARICAMENTO,
+                        (id, nome, quantita, scadenza) -> voci.add(new Voce(id, nome, quantita, scadenza)));
+            } catch (IOException e) {
+                // Il visitatore non scrive su stream: un IOException qui non è atteso
+                throw new SQLException("Lettura dei prodotti per l'indice di ricerca non riuscita", e);
+            }
+            if (voci.size() - prima < PAGINA_CARICAMENTO) {
+                break;
+            }
+            filtro.dopoId = voci.get(voci.size() - 1).id;
+        }
+
+        lock.writeLock().lock();
+        try {
+            perId.clear();
+            parole.clear();
+            trigrammi.clear();
+            for (Voce voce : voci) {
+                aggiungi(voce);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void inserisci(int id, String nome, int quantita, LocalDate scadenza) {
+        Voce voce = new Voce(id, nome, quantita, scadenza);
+        lock.writeLock().lock();
+        try {
+            togli(id);
+            aggiungi(voce);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void aggiornaQuantita(int id, int quantita) {
+        lock.writeLock().lock();
+        try {
+            Voce voce = perId.get(id);
+            if (voce != null) {
+                voce.quantita = quantita;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Applica un prelievo già eseguito sul database; a quantità zero il prodotto esce dall'indice.
+    // Restituisce la quantità rimasta nell'indice, oppure MovementLedger.NON_NOTO se il prodotto non c'è
+    int preleva(int id, int quantita) {
+        lock.writeLock().lock();
+        try {
+            Voce voce = perId.get(id);
+            if (voce == null) {
+                return MovementLedger.NON_NOTO;
+            }
+            voce.quantita -= quantita;
+            if (voce.quantita <= 0) {
+                togli(id);
+                return MovementLedger.NON_NOTO;
+            }
+            return voce.quantita;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void rimuovi(int id) {
+        lock.writeLock().lock();
+        try {
+            togli(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    int dimensione() {
+        lock.readLock().lock();
+        try {
+            return perId.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * I migliori "limite" prodotti per la ricerca, nell'ordine di ORDINE. Corrispondono per
+     * prefisso i prodotti in cui ogni parola della ricerca è l'inizio di una parola del nome;
+     * se non bastano a riempire il risultato si aggiungono i nomi simili.
+     */
+    List<Risultato> cerca(String ricerca, int limite) {
+        String normalizzata = normalizza(ricerca);
+        if (normalizzata.isEmpty() || limite <= 0) {
+            return new ArrayList<>();
+        }
+        String[] termini = normalizzata.split(" ");
+        // Il termine più lungo è di norma il più selettivo: si scorre solo il suo intervallo e
+        // gli altri termini si verificano sulle parole del prodotto
+        String guida = termini[0];
+        for (String termine : termini) {
+            if (termine.length() > guida.length()) {
+                guida = termine;
+            }
+        }
+
+        // Min-heap sul peggiore dei risultati tenuti, per scartarlo quando ne arriva uno migliore
+        PriorityQueue<Risultato> migliori = new PriorityQueue<>(limite + 1, ORDINE.reversed());
+        IntMap<Voce> visti = new IntMap<>(64);
+        lock.readLock().lock();
+        try {
+            for (IntMap<Voce> conParola : parole.subMap(guida, true, guida + Character.MAX_VALUE, false).values()) {
+                conParola.forEachValue(voce -> {
+                    if (visti.put(voce.id, voce) == null) {
+                        double punteggio = punteggioPrefisso(voce, normalizzata, termini);
+                        if (punteggio > 0) {
+                            offri(migliori, limite, risultato(voce, true, punteggio));
+                        }
+                    }
+                });
+            }
+
+            if (migliori.size() < limite && normalizzata.length() >= 3) {
+                cercaSimili(termini, visti, migliori, limite);
+            }
+
+            List<Risultato> risultati = new ArrayList<>(migliori);
+            risultati.sort(ORDINE);
+            return risultati;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Nomi che contengono la maggior parte dei trigrammi della ricerca; punteggio = quota coperta
+    private void cercaSimili(String[] termini, IntMap<Voce> esclusi, PriorityQueue<Risultato> migliori, int limite) {
+        String[] daCercare = trigrammi(termini);
+        IntMap<Candidato> candidati = new IntMap<>(256);
+        for (String trigramma : daCercare) {
+            IntMap<Voce> conTrigramma = trigrammi.get(trigramma);
+            if (conTrigramma == null) {
+                continue;
+            }
+            conTrigramma.forEachValue(voce -> {
+                if (esclusi.get(voce.id) == null) {
+                    Candidato candidato = candidati.get(voce.id);
+                    if (candidato == null) {
+                        candidato = new Candidato(voce);
+                        candidati.put(voce.id, candidato);
+                    }
+                    candidato.comuni++;
+                }
+            });
+        }
+        candidati.forEachValue(candidato -> {
+            double copertura = candidato.comuni / (double) daCercare.length;
+            if (copertura >= COPERTURA_MINIMA) {
+                offri(migliori, limite, risultato(candidato.voce, false, copertura));
+            }
+        });
+    }
+
+    // Per ogni termine conta la migliore parola del nome: uguale vale più di un prefisso, la
+    // prima parola più delle altre; bonus se il nome intero è la ricerca o inizia con essa.
+    // Zero se un termine non è prefisso di nessuna parola.
+    private static double punteggioPrefisso(Voce voce, String normalizzata, String[] termini) {
+        double punteggio = 0;
+        for (String termine : termini) {
+            double migliore = 0;
+            for (int i = 0; i < voce.parole.length; i++) {
+                String parola = voce.parole[i];
+                if (parola.equals(termine)) {
+                    migliore = Math.max(migliore, i == 0 ? 3 : 2);
+                } else if (parola.startsWith(termine)) {
+                    migliore = Math.max(migliore, i == 0 ? 1.5 : 1);
+                }
+            }
+            if (migliore == 0) {
+                return 0;
+            }
+            punteggio += migliore;
+        }
+        if (voce.normalizzato.equals(normalizzata)) {
+            punteggio += 10;
+        } else if (voce.normalizzato.startsWith(normalizzata)) {
+            punteggio += 5;
+        }
+        return punteggio;
+    }
+
+    private static Risultato risultato(Voce voce, boolean perPrefisso, double punteggio) {
+        return new Risultato(voce.id, voce.nome, voce.quantita, voce.scadenza, perPrefisso, punteggio);
+    }
+
+    private static void offri(PriorityQueue<Risultato> migliori, int limite, Risultato risultato) {
+        if (migliori.size() < limite) {
+            migliori.add(risultato);
+        } else if (ORDINE.compare(risultato, migliori.peek()) < 0) {
+            migliori.poll();
+            migliori.add(risultato);
+        }
+    }
+
+    /**
+     * Minuscole, lettere accentate ridotte alla lettera base ("è" -> "e") e ogni sequenza di
+     * caratteri che non sono lettere o cifre ridotta a uno spazio.
+     */
+    static String normalizza(String testo) {
+        if (testo == null) {
+            return "";
+        }
+        String scomposto = Normalizer.normalize(testo, Normalizer.Form.NFD);
+        StringBuilder risultato = new StringBuilder(scomposto.length());
+        for (int i = 0; i < scomposto.length(); i++) {
+            char c = scomposto.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                risultato.append(Character.toLowerCase(c));
+            } else if (Character.getType(c) != Character.NON_SPACING_MARK
+                    && risultato.length() > 0 && risultato.charAt(risultato.length() - 1) != ' ') {
+                risultato.append(' ');
+            }
+        }
+        int fine = risultato.length();
+        if (fine > 0 && risultato.charAt(fine - 1) == ' ') {
+            risultato.setLength(fine - 1);
+        }
+        return risultato.toString();
+    }
+
+    // Trigrammi distinti delle parole, con due spazi davanti e uno dietro: anche l'inizio e la
+    // fine di una parola contano, così "lat" somiglia più a "latte" che a "cioccolato"
+    private static String[] trigrammi(String[] parole) {
+        Set<String> risultato = new LinkedHashSet<>();
+        for (String parola : parole) {
+            String delimitata = "  " + parola + " ";
+            for (int i = 0; i + 3 <= delimitata.length(); i++) {
+                risultato.add(delimitata.substring(i, i + 3));
+            }
+        }
+        return risultato.toArray(new String[0]);
+    }
+
+    // Chiamati con il write lock acquisito
+    private void aggiungi(Voce voce) {
+        perId.put(voce.id, voce);
+        for (String parola : voce.parole) {
+            parole.computeIfAbsent(parola, p -> new IntMap<>(4)).put(voce.id, voce);
+        }
+        for (String trigramma : voce.trigrammi) {
+            trigrammi.computeIfAbsent(trigramma, t -> new IntMap<>(4)).put(voce.id, voce);
+        }
+    }
+
+    private void togli(int id) {
+        Voce voce = perId.remove(id);
+        if (voce == null) {
+            return;
+        }
+        for (String parola : voce.parole) {
+            IntMap<Voce> conParola = parole.get(parola);
+            if (conParola != null) {
+                conParola.remove(id);
+                if (conParola.size() == 0) {
+                    parole.remove(parola);
+                }
+            }
+        }
+        for (String trigramma : voce.trigrammi) {
+            IntMap<Voce> conTrigramma = trigrammi.get(trigramma);
+            if (conTrigramma != null) {
+                conTrigramma.remove(id);
+                if (conTrigramma.size() == 0) {
+                    trigrammi.remove(trigramma);
+                }
+            }
+        }
+    }
+}
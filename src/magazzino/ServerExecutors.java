@@ -0,0 +1,66 @@
+package magazzino;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Crea l'executor dell'HttpServer secondo la modalità scelta all'avvio:
+ * "virtual" (un virtual thread per richiesta), "pool" (pool limitato di thread di piattaforma)
+ * oppure "single" (il dispatcher del JDK gestisce tutte le richieste su un solo thread).
+ */
+final class ServerExecutors {
+    static final String VIRTUAL = "virtual";
+    static final String POOL = "pool";
+    static final String SINGLE = "single";
+
+    private ServerExecutors() {
+    }
+
+    // Restituisce null per la modalità "single", come si aspetta HttpServer.setExecutor
+    static Executor crea(String modalita, int threads, int coda) {
+        switch (modalita.toLowerCase()) {
+            case SINGLE:
+                return null;
+            case POOL:
+                return creaPool(threads, coda, "http-worker");
+            case VIRTUAL:
+                ExecutorService virtuale = creaVirtuale();
+                if (virtuale != null) {
+                    return virtuale;
+                }
+                System.err.println("Virtual thread non disponibili su questa JVM, uso un pool di " + threads + " thread");
+                return creaPool(threads, coda, "http-worker");
+            default:
+                throw new IllegalArgumentException("Modalità executor sconosciuta: " + modalita
+                        + " (valori ammessi: " + VIRTUAL + ", " + POOL + ", " + SINGLE + ")");
+        }
+    }
+
+    // Pool fisso con coda limitata: a coda piena il dispatcher esegue la richiesta e rallenta l'accettazione
+    static ExecutorService creaPool(int threads, int coda, String prefisso) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(coda), threadFactory(prefisso), new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor è disponibile senza preview solo dal JDK 21
+    static ExecutorService creaVirtuale() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory threadFactory(String prefisso) {
+        AtomicInteger contatore = new AtomicInteger();
+        return r -> new Thread(r, prefisso + "-" + contatore.incrementAndGet());
+    }
+}
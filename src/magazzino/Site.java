@@ -0,0 +1,74 @@
+package magazzino;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Una sede (magazzino fisico) con il proprio archivio e tutto lo stato in memoria che ne
+ * deriva: cache dei listing, indice delle scadenze, indice di ricerca, consumi per il riordino
+ * e flusso degli eventi. Gli id dei prodotti sono univoci solo all'interno della sede.
+ */
+final class Site {
+    final String nome;
+    final InventoryRepository repository;
+    final ListingCache cache;
+    final ExpiryIndex indiceScadenze = new ExpiryIndex();
+    final SearchIndex ricerca = new SearchIndex();
+    final ReorderEngine riordino;
+    final EventBus eventi;
+    private Path fileConsumi;
+    private MovementLedger movimenti;
+
+    // Sede con cache, riordino ed eventi ai valori predefiniti delle opzioni
+    Site(String nome, InventoryRepository repository) {
+        this(nome, repository, new ListingCache(256, 1 << 20), new ReorderEngine(14, 7, 30), new EventBus(256, 200));
+    }
+
+    Site(String nome, InventoryRepository repository, ListingCache cache, ReorderEngine riordino, EventBus eventi) {
+        this.nome = nome;
+        this.repository = repository;
+        this.cache = cache;
+        this.riordino = riordino;
+        this.eventi = eventi;
+    }
+
+    // Carica i consumi salvati e li salva periodicamente sullo stesso file (la directory viene creata se manca)
+    void persistiConsumi(Path file, long minuti) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        riordino.carica(file);
+        riordino.pianificaSalvataggio(file, minuti);
+        fileConsumi = file;
+    }
+
+    void apriMovimenti(Path directory, int capacita, long maxByteFile, int maxFile, boolean sync) throws IOException {
+        movimenti = MovementLedger.apri(directory, capacita, maxByteFile, maxFile, sync);
+    }
+
+    // Registro dei movimenti; null se non è stato aperto
+    MovementLedger movimenti() {
+        return movimenti;
+    }
+
+    // Pubblica un movimento nel registro, se presente, senza attendere la scrittura
+    void registraMovimento(byte tipo, int id, int delta, int rimanente, String operatore) {
+        if (movimenti != null) {
+            movimenti.registra(tipo, id, delta, rimanente, operatore);
+        }
+    }
+
+    // Alla chiusura scrive i movimenti in attesa, salva i consumi e chiude l'archivio (snapshot embedded o pool JDBC)
+    void chiudi() {
+        if (movimenti != null) {
+            movimenti.close();
+        }
+        if (fileConsumi != null) {
+            try {
+                riordino.salva(fileConsumi);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        repository.close();
+    }
+}
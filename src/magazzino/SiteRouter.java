@@ -0,0 +1,121 @@
+package magazzino;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Instrada le richieste alla sede indicata dal parametro "sede"; senza parametro si usa la
+ * prima sede configurata. Ogni sede ha il proprio database (o schema) e il proprio pool, così
+ * il carico di una sede non consuma le connessioni delle altre.
+ *
+ * Le letture su tutte le sedi ("sede=tutte") vengono eseguite in parallelo, una per sede, e i
+ * risultati restituiti nell'ordine di configurazione delle sedi.
+ */
+final class SiteRouter {
+    static final String PREDEFINITA = "principale";
+    static final String TUTTE = "tutte";
+
+    private final Map<String, Site> sedi = new LinkedHashMap<>();
+    private final Site predefinita;
+    private final ExecutorService letture;
+
+    // Lettura su una singola sede, eseguita per ogni sede da suTutte
+    interface Lettura<T> {
+        T leggi(Site sede) throws SQLException, IOException;
+    }
+
+    SiteRouter(List<Site> elenco) {
+        if (elenco.isEmpty()) {
+            throw new IllegalArgumentException("Nessuna sede configurata");
+        }
+        for (Site sede : elenco) {
+            if (TUTTE.equals(sede.nome) || sedi.putIfAbsent(sede.nome, sede) != null) {
+                throw new IllegalArgumentException("Nome di sede non valido o duplicato: " + sede.nome);
+            }
+        }
+        this.predefinita = elenco.get(0);
+        ExecutorService virtuale = ServerExecutors.creaVirtuale();
+        this.letture = virtuale != null ? virtuale : Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "letture-sedi");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Sede con un solo archivio, come prima dell'introduzione delle sedi
+    static SiteRouter singola(InventoryRepository repository) {
+        return new SiteRouter(List.of(new Site(PREDEFINITA, repository)));
+    }
+
+    Site predefinita() {
+        return predefinita;
+    }
+
+    Collection<Site> sedi() {
+        return Collections.unmodifiableCollection(sedi.values());
+    }
+
+    // Sede richiesta; null o vuoto indicano la sede predefinita
+    Site sede(String nome) {
+        if (nome == null || nome.isEmpty()) {
+            return predefinita;
+        }
+        if (TUTTE.equals(nome)) {
+            throw new IllegalArgumentException("sede=" + TUTTE + " non è ammessa per questa richiesta");
+        }
+        Site sede = sedi.get(nome);
+        if (sede == null) {
+            throw new IllegalArgumentException("sede sconosciuta: " + nome);
+        }
+        return sede;
+    }
+
+    /**
+     * Esegue la lettura su tutte le sedi in parallelo e restituisce i risultati nell'ordine
+     * delle sedi. Se una sede fallisce fallisce l'intera lettura, con l'errore di quella sede.
+     */
+    <T> List<T> suTutte(Lettura<T> lettura) throws SQLException, IOException {
+        List<Future<T>> esiti = new ArrayList<>(sedi.size());
+        for (Site sede : sedi.values()) {
+            esiti.add(letture.submit(() -> lettura.leggi(sede)));
+        }
+        List<T> risultati = new ArrayList<>(esiti.size());
+        try {
+            for (Future<T> esito : esiti) {
+                risultati.add(esito.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Lettura sulle sedi interrotta", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new SQLException("Lettura sulle sedi non riuscita", e.getCause());
+        } finally {
+            for (Future<T> esito : esiti) {
+                esito.cancel(true);
+            }
+        }
+        return risultati;
+    }
+
+    void chiudi() {
+        for (Site sede : sedi.values()) {
+            sede.chiudi();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package magazzino;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tabella immutabile dei file statici (index.html, css, js, immagini), caricata una sola volta
+ * all'avvio. Per ogni file tiene i byte, l'eventuale variante gzip e l'hash del contenuto usato
+ * come ETag. index.html referenzia gli altri file con "?v=hash", così questi possono essere
+ * messi in cache dal browser a tempo indeterminato.
+ */
+final class StaticAssets {
+    private static final Map<String, String> CONTENT_TYPES = Map.of(
+            ".html", "text/html; charset=UTF-8",
+            ".css", "text/css; charset=UTF-8",
+            ".js", "application/javascript; charset=UTF-8",
+            ".json", "application/json; charset=UTF-8",
+            ".svg", "image/svg+xml",
+            ".png", "image/png",
+            ".jpg", "image/jpeg",
+            ".jpeg", "image/jpeg",
+            ".ico", "image/x-icon");
+
+    // Tipi testuali per cui vale la pena preparare la variante compressa
+    private static final List<String> COMPRIMIBILI = List.of(".html", ".css", ".js", ".json", ".svg");
+
+    static final String INDEX = "/index.html";
+    private static final String CACHE_INDEX = "no-cache";
+    private static final String CACHE_VERSIONATI = "public, max-age=31536000, immutable";
+
+    private final Map<String, Asset> assets;
+
+    private StaticAssets(Map<String, Asset> assets) {
+        this.assets = Collections.unmodifiableMap(assets);
+    }
+
+    /**
+     * Carica i file statici del package indicato dalla directory o dal jar che contiene la classe.
+     */
+    static StaticAssets carica(Class<?> ancora) throws IOException {
+        String pacchetto = ancora.getPackageName().replace('.', '/');
+        Map<String, byte[]> file = new HashMap<>();
+        try {
+            URI posizione = ancora.getProtectionDomain().getCodeSource().getLocation().toURI();
+            Path radice = Path.of(posizione);
+            if (Files.isDirectory(radice)) {
+                leggi(radice.resolve(pacchetto), file);
+            } else {
+                try (FileSystem jar = FileSystems.newFileSystem(radice)) {
+                    leggi(jar.getPath(pacchetto), file);
+                }
+            }
+        } catch (URISyntaxException e) {
+            throw new IOException("Posizione delle risorse non valida", e);
+        }
+
+        // Hash calcolati prima di index.html, che li usa per versionare i riferimenti
+        Map<String, String> hash = new HashMap<>();
+        for (Map.Entry<String, byte[]> voce : file.entrySet()) {
+            hash.put(voce.getKey(), hash(voce.getValue()));
+        }
+
+        Map<String, Asset> assets = new HashMap<>();
+        for (Map.Entry<String, byte[]> voce : file.entrySet()) {
+            String percorso = voce.getKey();
+            byte[] corpo = voce.getValue();
+            String cacheControl = CACHE_VERSIONATI;
+            if (percorso.equals(INDEX)) {
+                corpo = versionaRiferimenti(new String(corpo, StandardCharsets.UTF_8), hash).getBytes(StandardCharsets.UTF_8);
+                cacheControl = CACHE_INDEX;
+            }
+            assets.put(percorso, new Asset(corpo, estensione(percorso), cacheControl));
+        }
+        return new StaticAssets(assets);
+    }
+
+    private static void leggi(Path cartella, Map<String, byte[]> file) throws IOException {
+        if (!Files.isDirectory(cartella)) {
+            return;
+        }
+        List<Path> percorsi;
+        try (Stream<Path> elenco = Files.walk(cartella)) {
+            percorsi = elenco.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        for (Path percorso : percorsi) {
+            String relativo = "/" + cartella.relativize(percorso).toString().replace('\\', '/');
+            if (CONTENT_TYPES.containsKey(estensione(relativo))) {
+                file.put(relativo, Files.readAllBytes(percorso));
+            }
+        }
+    }
+
+    // Aggiunge ?v=hash ai riferimenti tra virgolette verso gli altri file statici
+    private static String versionaRiferimenti(String html, Map<String, String> hash) {
+        for (Map.Entry<String, String> voce : hash.entrySet()) {
+            if (!voce.getKey().equals(INDEX)) {
+                html = html.replace("\"" + voce.getKey() + "\"", "\"" + voce.getKey() + "?v=" + voce.getValue() + "\"");
+            }
+        }
+        return html;
+    }
+
+    int dimensione() {
+        return assets.size();
+    }
+
+    /**
+     * Invia il file richiesto, compresso se il client accetta gzip. Restituisce false se non esiste.
+     */
+    boolean servi(HttpExchange exchange, String percorso) throws IOException {
+        Asset asset = assets.get(percorso);
+        if (asset == null) {
+            return false;
+        }
+
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean gzip = asset.gzip != null && acceptEncoding != null && acceptEncoding.contains("gzip");
+        String etag = gzip ? asset.etagGzip : asset.etag;
+
+        exchange.getResponseHeaders().set("Content-Type", asset.contentType);
+        exchange.getResponseHeaders().set("Cache-Control", asset.cacheControl);
+        exchange.getResponseHeaders().set("ETag", etag);
+        if (asset.gzip != null) {
+            exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        }
+
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null && ifNoneMatch.contains(etag)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return true;
+        }
+
+        byte[] corpo = gzip ? asset.gzip : asset.corpo;
+        if (gzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        if ("HEAD".equalsIgnoreCase(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return true;
+        }
+        exchange.sendResponseHeaders(200, corpo.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(corpo);
+        os.close();
+        return true;
+    }
+
+    private static String estensione(String percorso) {
+        int punto = percorso.lastIndexOf('.');
+        return punto < 0 ? "" : percorso.substring(punto).toLowerCase();
+    }
+
+    private static String hash(byte[] corpo) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(corpo);
+            StringBuilder esadecimale = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                esadecimale.append(String.format("%02x", digest[i]));
+            }
+            return esadecimale.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 non disponibile", e);
+        }
+    }
+
+    private static byte[] comprimi(byte[] corpo) throws IOException {
+        ByteArrayOutputStream compresso = new ByteArrayOutputStream(corpo.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compresso) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gzip.write(corpo);
+        }
+        return compresso.toByteArray();
+    }
+
+    private static final class Asset {
+        final byte[] corpo;
+        final byte[] gzip;
+        final String contentType;
+        final String cacheControl;
+        final String etag;
+        final String etagGzip;
+
+        Asset(byte[] corpo, String estensione, String cacheControl) throws IOException {
+            this.corpo = corpo;
+            this.contentType = CONTENT_TYPES.getOrDefault(estensione, "application/octet-stream");
+            this.cacheControl = cacheControl;
+            String hash = hash(corpo);
+            this.etag = "\"" + hash + "\"";
+            this.etagGzip = "\"" + hash + "-gz\"";
+
+            // La variante gzip è tenuta solo se riduce davvero la dimensione
+            byte[] compresso = COMPRIMIBILI.contains(estensione) ? comprimi(corpo) : null;
+            this.gzip = compresso != null && compresso.length < corpo.length ? compresso : null;
+        }
+    }
+}
@@ -43,41 +43,309 @@ function changeQuote() {
 
 setInterval(changeQuote, 10000); // Cambia citazione ogni 10 secondi
 
-// Funzione per caricare i dati del magazzino
+// Sede su cui si lavora; vuota finché non arriva l'elenco (il server usa la sede predefinita)
+let sedeCorrente = '';
+
+// Carica l'elenco delle sedi; il selettore e le viste su tutte le sedi compaiono solo con più sedi
+function caricaSedi() {
+  fetch('/sedi')
+    .then(response => response.json())
+    .then(elenco => {
+      const selettore = document.getElementById('sedeCorrente');
+      selettore.innerHTML = elenco.map(nome => `<option value="${escapeHtml(nome)}">${escapeHtml(nome)}</option>`).join('');
+      sedeCorrente = elenco[0];
+      document.getElementById('sedeProdotto').value = sedeCorrente;
+      const multiSede = elenco.length > 1;
+      selettore.style.display = multiSede ? 'block' : 'none';
+      document.querySelectorAll('.tutteLeSedi').forEach(elemento => {
+        elemento.style.display = multiSede ? 'inline' : 'none';
+      });
+    })
+    .catch(error => {
+      console.error('Errore nel recupero delle sedi:', error);
+    });
+}
+
+// Cambio di sede: il kit e le righe mostrate appartengono alla sede precedente
+function cambiaSede() {
+  sedeCorrente = document.getElementById('sedeCorrente').value;
+  document.getElementById('sedeProdotto').value = sedeCorrente;
+  svuotaKit();
+  avviaAggiornamenti();
+  if (sezioneAttiva('magazzino')) {
+    loadMagazzinoData();
+  }
+  aggiornaSezioniSecondarie();
+}
+
+// Parametro sede da aggiungere alle richieste
+function parametroSede() {
+  return `sede=${encodeURIComponent(sedeCorrente)}`;
+}
+
+// Stato della paginazione del magazzino: cursore della pagina successiva e richiesta in corso
+const DIMENSIONE_PAGINA = 100;
+let cursoreMagazzino = null;
+let caricamentoMagazzinoInCorso = false;
+let osservatoreMagazzino = null;
+// Prodotti mostrati in tabella per id, aggiornati dagli eventi del server
+const prodottiMostrati = new Map();
+
+// Funzione per caricare i dati del magazzino (riparte dalla prima pagina con i filtri correnti);
+// con una ricerca in corso la tabella mostra invece i risultati della ricerca
 function loadMagazzinoData() {
-  fetch('/riepilogoMagazzino')
+  if (document.getElementById('ricercaProdotto').value.trim()) {
+    eseguiRicerca();
+    return;
+  }
+  // Una ricerca ancora in volo non deve sovrascrivere il listing
+  ultimaRicerca++;
+  document.getElementById('productTableBody').innerHTML = '';
+  prodottiMostrati.clear();
+  cursoreMagazzino = null;
+  caricaPaginaMagazzino(true);
+}
+
+// Ricerca mentre si digita: si aspetta una breve pausa tra i tasti e si mostrano solo le
+// risposte dell'ultima richiesta inviata
+const LIMITE_RICERCA = 50;
+let attesaRicerca = null;
+let ultimaRicerca = 0;
+
+function cercaProdotto() {
+  clearTimeout(attesaRicerca);
+  attesaRicerca = setTimeout(loadMagazzinoData, 150);
+}
+
+function eseguiRicerca() {
+  const richiesta = ++ultimaRicerca;
+  const params = new URLSearchParams();
+  params.set('sede', sedeCorrente);
+  params.set('q', document.getElementById('ricercaProdotto').value.trim());
+  params.set('limit', LIMITE_RICERCA);
+
+  fetch(`/cercaProdotto?${params}`)
     .then(response => response.json())
-    .then(data => {
-      const tableBody = document.getElementById('productTableBody');
+    .then(risultati => {
+      if (richiesta !== ultimaRicerca) {
+        return;
+      }
+      prodottiMostrati.clear();
+      cursoreMagazzino = null;
       let rowsHtml = '';
+      risultati.forEach(prodotto => {
+        prodottiMostrati.set(prodotto.id, prodotto);
+        rowsHtml += rigaMagazzino(prodotto);
+      });
+      document.getElementById('productTableBody').innerHTML = rowsHtml;
+      document.getElementById('caricaAltriButton').style.display = 'none';
+    })
+    .catch(error => {
+      console.error('Errore nella ricerca dei prodotti:', error);
+    });
+}
 
-      data.forEach(prodotto => {
-        // Formatta la data di scadenza in un formato leggibile
-        const scadenzaFormattata = prodotto.scadenza ? new Date(prodotto.scadenza).toLocaleDateString('it-IT') : 'N/A';
+// Costruisce la query con filtri, ordinamento e cursore
+function parametriMagazzino() {
+  const params = new URLSearchParams();
+  params.set('sede', sedeCorrente);
+  params.set('limit', DIMENSIONE_PAGINA);
+  params.set('sort', document.getElementById('ordinamentoMagazzino').value);
+
+  const filtri = {
+    prefisso: document.getElementById('filtroPrefisso').value,
+    sottoQuantita: document.getElementById('filtroSottoQuantita').value,
+    scadenzaDa: document.getElementById('filtroScadenzaDa').value,
+    scadenzaA: document.getElementById('filtroScadenzaA').value
+  };
+  Object.keys(filtri).forEach(nome => {
+    if (filtri[nome]) {
+      params.set(nome, filtri[nome]);
+    }
+  });
 
-        // Gestisce gli apici singoli nel nome del prodotto
-        const nomeProdottoEscaped = escapeHtml(prodotto.nome);
+  if (cursoreMagazzino) {
+    params.set('after', cursoreMagazzino);
+  }
+  return params;
+}
 
-        rowsHtml += `
-          <tr>
-            <td>${nomeProdottoEscaped}</td>
-            <td>${prodotto.quantita}</td>
-            <td>${scadenzaFormattata}</td>
-            <td>
-              <button onclick="prelevaProdotto(${prodotto.id}, ${prodotto.quantita}, '${nomeProdottoEscaped}')">Preleva</button>
-              <button onclick="eliminaProdotto(${prodotto.id})">Elimina</button>
-            </td>
-          </tr>
-        `;
+// Carica la pagina successiva e la accoda alla tabella
+function caricaPaginaMagazzino(primaPagina = false) {
+  if (caricamentoMagazzinoInCorso || (!primaPagina && !cursoreMagazzino)) {
+    return;
+  }
+  caricamentoMagazzinoInCorso = true;
+
+  fetch(`/riepilogoMagazzino?${parametriMagazzino()}`)
+    .then(response => response.json())
+    .then(pagina => {
+      const tableBody = document.getElementById('productTableBody');
+      let rowsHtml = '';
+
+      pagina.prodotti.forEach(prodotto => {
+        prodottiMostrati.set(prodotto.id, prodotto);
+        rowsHtml += rigaMagazzino(prodotto);
       });
 
-      tableBody.innerHTML = rowsHtml;
+      tableBody.insertAdjacentHTML('beforeend', rowsHtml);
+      cursoreMagazzino = pagina.nextCursor;
+      document.getElementById('caricaAltriButton').style.display = cursoreMagazzino ? 'block' : 'none';
     })
     .catch(error => {
       console.error('Errore nel recupero dei dati del magazzino:', error);
+    })
+    .finally(() => {
+      caricamentoMagazzinoInCorso = false;
     });
 }
 
+// Riga della tabella del magazzino, identificata da data-id per gli aggiornamenti in tempo reale
+function rigaMagazzino(prodotto) {
+  // Formatta la data di scadenza in un formato leggibile
+  const scadenzaFormattata = prodotto.scadenza ? new Date(prodotto.scadenza).toLocaleDateString('it-IT') : 'N/A';
+
+  // Gestisce gli apici singoli nel nome del prodotto
+  const nomeProdottoEscaped = escapeHtml(prodotto.nome);
+
+  return `
+    <tr data-id="${prodotto.id}">
+      <td>${nomeProdottoEscaped}</td>
+      <td>${prodotto.quantita}</td>
+      <td>${scadenzaFormattata}</td>
+      <td>
+        <button onclick="prelevaProdotto(${prodotto.id}, ${prodotto.quantita}, '${nomeProdottoEscaped}')">Preleva</button>
+        <button onclick="aggiungiAlKit(${prodotto.id}, ${prodotto.quantita}, '${nomeProdottoEscaped}')">Kit</button>
+        <button onclick="eliminaProdotto(${prodotto.id})">Elimina</button>
+      </td>
+    </tr>
+  `;
+}
+
+// Carica automaticamente la pagina successiva quando il pulsante "Carica altri" diventa visibile
+function osservaFineMagazzino() {
+  if (osservatoreMagazzino || !('IntersectionObserver' in window)) {
+    return;
+  }
+  osservatoreMagazzino = new IntersectionObserver(entries => {
+    if (entries.some(entry => entry.isIntersecting)) {
+      caricaPaginaMagazzino();
+    }
+  });
+  osservatoreMagazzino.observe(document.getElementById('caricaAltriButton'));
+}
+
+// Aggiornamenti in tempo reale: il server invia le modifiche su /eventi e le righe si
+// correggono sul posto, senza riscaricare il listing
+let aggiornamentiAttivi = false;
+let sorgenteEventi = null;
+
+// Ogni sede ha il proprio flusso: al cambio di sede la connessione viene riaperta
+function avviaAggiornamenti() {
+  if (!('EventSource' in window)) {
+    return;
+  }
+  if (sorgenteEventi) {
+    sorgenteEventi.close();
+    aggiornamentiAttivi = false;
+  }
+  const sorgente = new EventSource(`/eventi?${parametroSede()}`);
+  sorgenteEventi = sorgente;
+  sorgente.onopen = () => {
+    aggiornamentiAttivi = true;
+  };
+  // Durante la riconnessione gli eventi possono andare persi: il server chiederà un resync
+  sorgente.onerror = () => {
+    aggiornamentiAttivi = false;
+  };
+
+  sorgente.addEventListener('inserito', e => {
+    const prodotto = JSON.parse(e.data);
+    // La nuova riga va in fondo solo se la tabella mostra tutto il magazzino in ordine di inserimento
+    if (sezioneAttiva('magazzino') && !cursoreMagazzino && !filtriMagazzinoAttivi()
+        && document.getElementById('ordinamentoMagazzino').value === 'id') {
+      prodottiMostrati.set(prodotto.id, prodotto);
+      document.getElementById('productTableBody').insertAdjacentHTML('beforeend', rigaMagazzino(prodotto));
+    }
+    aggiornaSezioniSecondarie();
+  });
+  sorgente.addEventListener('prelevato', e => {
+    const evento = JSON.parse(e.data);
+    const prodotto = prodottiMostrati.get(evento.id);
+    if (prodotto) {
+      aggiornaRiga({ ...prodotto, quantita: evento.quantita });
+    }
+    aggiornaSezioniSecondarie();
+  });
+  sorgente.addEventListener('quantita', e => {
+    const evento = JSON.parse(e.data);
+    const prodotto = prodottiMostrati.get(evento.id);
+    if (prodotto) {
+      aggiornaRiga({ ...prodotto, quantita: evento.quantita });
+    }
+    aggiornaSezioniSecondarie();
+  });
+  sorgente.addEventListener('rimosso', e => {
+    rimuoviRiga(JSON.parse(e.data).id);
+    aggiornaSezioniSecondarie();
+  });
+  sorgente.addEventListener('daOrdinare', e => {
+    rimuoviRiga(JSON.parse(e.data).id);
+    aggiornaSezioniSecondarie();
+  });
+  // Il client è rimasto indietro (o c'è stata un'importazione): si ricarica la sezione visibile
+  sorgente.addEventListener('resync', () => {
+    if (sezioneAttiva('magazzino')) {
+      loadMagazzinoData();
+    }
+    aggiornaSezioniSecondarie();
+  });
+}
+
+function sezioneAttiva(sectionId) {
+  return document.getElementById(sectionId).classList.contains('active');
+}
+
+function filtriMagazzinoAttivi() {
+  return ['ricercaProdotto', 'filtroPrefisso', 'filtroSottoQuantita', 'filtroScadenzaDa', 'filtroScadenzaA']
+    .some(id => document.getElementById(id).value);
+}
+
+function aggiornaRiga(prodotto) {
+  const riga = document.querySelector(`#productTableBody tr[data-id="${prodotto.id}"]`);
+  if (!riga) {
+    return;
+  }
+  prodottiMostrati.set(prodotto.id, prodotto);
+  riga.outerHTML = rigaMagazzino(prodotto);
+}
+
+function rimuoviRiga(idProdotto) {
+  prodottiMostrati.delete(idProdotto);
+  const riga = document.querySelector(`#productTableBody tr[data-id="${idProdotto}"]`);
+  if (riga) {
+    riga.remove();
+  }
+}
+
+// Scadenze e da ordinare sono liste brevi: se visibili si ricaricano (al più una volta al secondo)
+let ricaricamentoSecondarioProgrammato = false;
+
+function aggiornaSezioniSecondarie() {
+  if (ricaricamentoSecondarioProgrammato) {
+    return;
+  }
+  ricaricamentoSecondarioProgrammato = true;
+  setTimeout(() => {
+    ricaricamentoSecondarioProgrammato = false;
+    if (sezioneAttiva('prodottiInScadenza')) {
+      loadProdottiInScadenzaData();
+    } else if (sezioneAttiva('daOrdinare')) {
+      loadDaOrdinareData();
+    }
+  }, 1000);
+}
+
 // Funzione per gestire i caratteri speciali nel nome del prodotto
 function escapeHtml(text) {
   const map = {
@@ -94,12 +362,15 @@ function escapeHtml(text) {
 // Funzione per caricare i prodotti in scadenza
 function loadProdottiInScadenzaData() {
   const giorniScadenza = document.getElementById('giorniScadenza').value;
+  const tutte = document.getElementById('scadenzeTutteLeSedi').checked;
+  const sede = tutte ? 'sede=tutte' : parametroSede();
 
-  fetch(`/prodottiInScadenza?giorni=${encodeURIComponent(giorniScadenza)}`)
+  fetch(`/prodottiInScadenza?${sede}&giorni=${encodeURIComponent(giorniScadenza)}`)
     .then(response => response.json())
     .then(data => {
       const tableBody = document.getElementById('expiringProductsTableBody');
       let rowsHtml = '';
+      mostraColonnaSede('expiringProductsTable', tutte);
 
       data.forEach(prodotto => {
         const scadenzaFormattata = prodotto.scadenza ? new Date(prodotto.scadenza).toLocaleDateString('it-IT') : 'N/A';
@@ -107,6 +378,7 @@ function loadProdottiInScadenzaData() {
 
         rowsHtml += `
           <tr>
+            ${tutte ? `<td>${escapeHtml(prodotto.sede)}</td>` : ''}
             <td>${nomeProdottoEscaped}</td>
             <td>${prodotto.quantita}</td>
             <td>${scadenzaFormattata}</td>
@@ -123,19 +395,30 @@ function loadProdottiInScadenzaData() {
 
 // Funzione per caricare i prodotti da ordinare
 function loadDaOrdinareData() {
-  fetch('/prodottiDaOrdinare')
+  const tutte = document.getElementById('daOrdinareTutteLeSedi').checked;
+
+  fetch(`/prodottiDaOrdinare?${tutte ? 'sede=tutte' : parametroSede()}`)
     .then(response => response.json())
     .then(data => {
       const tableBody = document.getElementById('daOrdinareTableBody');
       let rowsHtml = '';
+      mostraColonnaSede('daOrdinareTable', tutte);
 
       data.forEach(prodotto => {
         const nomeProdottoEscaped = escapeHtml(prodotto.nome);
+        // Consumo e copertura sono stime: senza storico dei prelievi restano vuoti
+        const consumo = prodotto.consumoGiornaliero > 0 ? prodotto.consumoGiornaliero.toLocaleString('it-IT') : '-';
+        const copertura = prodotto.giorniCopertura !== null ? prodotto.giorniCopertura.toLocaleString('it-IT') : '-';
+        const suggerita = prodotto.quantitaSuggerita !== null ? prodotto.quantitaSuggerita : '-';
 
         rowsHtml += `
           <tr>
+            ${tutte ? `<td>${escapeHtml(prodotto.sede)}</td>` : ''}
             <td>${nomeProdottoEscaped}</td>
             <td>${prodotto.quantita}</td>
+            <td>${consumo}</td>
+            <td>${copertura}</td>
+            <td>${suggerita}</td>
           </tr>
         `;
       });
@@ -147,6 +430,11 @@ function loadDaOrdinareData() {
     });
 }
 
+// Nelle viste su tutte le sedi la prima colonna indica la sede
+function mostraColonnaSede(idTabella, visibile) {
+  document.querySelector(`#${idTabella} .colonnaSede`).style.display = visibile ? '' : 'none';
+}
+
 // Funzione per prelevare un prodotto
 function prelevaProdotto(idProdotto, quantitaDisponibile, nomeProdotto) {
   const modal = document.getElementById('prelevaModal');
@@ -182,13 +470,16 @@ function prelevaProdotto(idProdotto, quantitaDisponibile, nomeProdotto) {
       headers: {
         'Content-Type': 'application/x-www-form-urlencoded',
       },
-      body: `id=${encodeURIComponent(idProdotto)}&quantita=${encodeURIComponent(quantitaDaPrelevare)}`,
+      body: `${parametroSede()}&id=${encodeURIComponent(idProdotto)}&quantita=${encodeURIComponent(quantitaDaPrelevare)}`,
     })
       .then(response => {
         if (response.ok) {
           alert('Prodotto prelevato con successo');
           modal.style.display = 'none';
-          loadMagazzinoData(); // Aggiorna la tabella
+          // Con gli aggiornamenti in tempo reale la riga si aggiorna da sola
+          if (!aggiornamentiAttivi) {
+            loadMagazzinoData(); // Aggiorna la tabella
+          }
         } else {
           response.text().then(text => {
             alert('Errore nel prelievo del prodotto: ' + text);
@@ -209,6 +500,69 @@ function prelevaProdotto(idProdotto, quantitaDisponibile, nomeProdotto) {
   };
 }
 
+// Kit di prelievo: prodotti raccolti e prelevati insieme in un'unica richiesta
+let kit = [];
+
+function aggiungiAlKit(idProdotto, quantitaDisponibile, nomeProdotto) {
+  const quantita = parseInt(prompt(`Quantità di ${nomeProdotto} da aggiungere al kit (disponibile: ${quantitaDisponibile})`), 10);
+  if (isNaN(quantita) || quantita <= 0) {
+    return;
+  }
+  kit.push({ id: idProdotto, nome: nomeProdotto, quantita: quantita });
+  mostraKit();
+}
+
+function mostraKit() {
+  const lista = document.getElementById('kitLista');
+  lista.innerHTML = '';
+  kit.forEach(riga => {
+    const elemento = document.createElement('li');
+    elemento.textContent = `${riga.nome}: ${riga.quantita}`;
+    lista.appendChild(elemento);
+  });
+  document.getElementById('kitPrelievo').style.display = kit.length > 0 ? 'block' : 'none';
+}
+
+function svuotaKit() {
+  kit = [];
+  mostraKit();
+}
+
+// Invia tutte le righe del kit: il server le applica tutte o nessuna
+function prelevaKit() {
+  fetch(`/prelevaProdotti?${parametroSede()}`, {
+    method: 'POST',
+    headers: {
+      'Content-Type': 'text/plain; charset=UTF-8',
+    },
+    body: kit.map(riga => `${riga.id};${riga.quantita}`).join('\n'),
+  })
+    .then(response => {
+      if (response.status === 503) {
+        return response.text().then(text => { throw new Error(text); });
+      }
+      return response.json().then(esito => ({ ok: response.ok, esito: esito }));
+    })
+    .then(({ ok, esito }) => {
+      if (ok) {
+        alert('Kit prelevato con successo');
+        svuotaKit();
+        if (!aggiornamentiAttivi) {
+          loadMagazzinoData(); // Aggiorna la tabella
+        }
+      } else {
+        const errori = esito.righe
+          .map((riga, i) => riga.esito !== 'ok' ? `${kit[i].nome}: ${riga.esito}` : null)
+          .filter(errore => errore !== null);
+        alert('Kit non prelevato:\n' + errori.join('\n'));
+      }
+    })
+    .catch(error => {
+      console.error('Errore durante il prelievo del kit:', error);
+      alert('Errore durante il prelievo del kit.');
+    });
+}
+
 // Funzione per eliminare un prodotto
 function eliminaProdotto(idProdotto) {
   if (!confirm('Sei sicuro di voler eliminare questo prodotto?')) {
@@ -220,12 +574,14 @@ function eliminaProdotto(idProdotto) {
     headers: {
       'Content-Type': 'application/x-www-form-urlencoded',
     },
-    body: `id=${encodeURIComponent(idProdotto)}`,
+    body: `${parametroSede()}&id=${encodeURIComponent(idProdotto)}`,
   })
     .then(response => {
       if (response.ok) {
         alert('Prodotto eliminato con successo');
-        loadMagazzinoData(); // Aggiorna la tabella
+        if (!aggiornamentiAttivi) {
+          loadMagazzinoData(); // Aggiorna la tabella
+        }
       } else {
         response.text().then(text => {
           alert('Errore nell\'eliminazione del prodotto: ' + text);
@@ -238,9 +594,47 @@ function eliminaProdotto(idProdotto) {
     });
 }
 
+// Funzione per importare i prodotti da un file CSV o NDJSON
+function importaProdotti() {
+  const file = document.getElementById('fileImportazione').files[0];
+  const esito = document.getElementById('esitoImportazione');
+  if (!file) {
+    alert('Seleziona un file da importare.');
+    return;
+  }
+
+  const ndjson = /\.(ndjson|jsonl)$/i.test(file.name);
+  esito.textContent = 'Importazione in corso...';
+  fetch(`/importaProdotti?${parametroSede()}`, {
+    method: 'POST',
+    headers: {
+      'Content-Type': ndjson ? 'application/x-ndjson' : 'text/csv; charset=UTF-8',
+    },
+    body: file,
+  })
+    .then(response => response.json())
+    .then(risultato => {
+      let testo = `Importati: ${risultato.importati}, scartati: ${risultato.scartati}`;
+      if (risultato.errore) {
+        testo += ` - ${risultato.errore}`;
+      }
+      if (risultato.errori.length > 0) {
+        testo += '\n' + risultato.errori.join('\n');
+      }
+      esito.textContent = testo;
+    })
+    .catch(error => {
+      console.error('Errore durante l\'importazione dei prodotti:', error);
+      esito.textContent = 'Errore durante l\'importazione dei prodotti.';
+    });
+}
+
 // Inizializzazione quando la pagina viene caricata
 window.onload = function() {
   changeQuote();
+  osservaFineMagazzino();
+  caricaSedi();
+  avviaAggiornamenti();
   // Se desideri caricare altre informazioni all'avvio, puoi farlo qui
 };
 
@@ -0,0 +1,152 @@
+package magazzino;
+
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AdmissionControlTest {
+    private final ExecutorService thread = Executors.newCachedThreadPool();
+    private final CountDownLatch sblocca = new CountDownLatch(1);
+    private final List<String> serviti = new CopyOnWriteArrayList<>();
+
+    @AfterEach
+    void chiudi() {
+        sblocca.countDown();
+        thread.shutdownNow();
+    }
+
+    @Test
+    void oltreIlLimiteDelContestoSenzaCodaSiRiceve503() throws Exception {
+        AdmissionControl controllo = new AdmissionControl(4, 0, 0, 2000);
+        controllo.configura("/lettura=1", Set.of());
+        HttpHandler lettura = controllo.proteggi("/lettura", bloccante("lettura"));
+
+        Future<FakeExchange> prima = thread.submit(() -> chiama(lettura));
+        attendi(controllo::attivi, 1);
+        FakeExchange seconda = chiama(lettura);
+        assertEquals(503, seconda.stato());
+        assertEquals("2", seconda.getResponseHeaders().getFirst("Retry-After"));
+
+        sblocca.countDown();
+        assertEquals(200, prima.get(5, TimeUnit.SECONDS).stato());
+        assertEquals(0, controllo.attivi());
+    }
+
+    @Test
+    void richiestaInCodaEntraQuandoSiLiberaIlPosto() throws Exception {
+        AdmissionControl controllo = new AdmissionControl(4, 0, 1, 5000);
+        controllo.configura("/lettura=1", Set.of());
+        HttpHandler lettura = controllo.proteggi("/lettura", bloccante("lettura"));
+
+        Future<FakeExchange> prima = thread.submit(() -> chiama(lettura));
+        attendi(controllo::attivi, 1);
+        Future<FakeExchange> inCoda = thread.submit(() -> chiama(lettura));
+        attendi(controllo::inCoda, 1);
+        // Coda del contesto piena
+        assertEquals(503, chiama(lettura).stato());
+
+        sblocca.countDown();
+        assertEquals(200, prima.get(5, TimeUnit.SECONDS).stato());
+        assertEquals(200, inCoda.get(5, TimeUnit.SECONDS).stato());
+    }
+
+    @Test
+    void attesaScadutaDiventa503() throws Exception {
+        AdmissionControl controllo = new AdmissionControl(1, 0, 1, 100);
+        controllo.configura("/lettura=1", Set.of());
+        HttpHandler lettura = controllo.proteggi("/lettura", bloccante("lettura"));
+
+        thread.submit(() -> chiama(lettura));
+        attendi(controllo::attivi, 1);
+        assertEquals(503, chiama(lettura).stato());
+        assertEquals(0, controllo.inCoda());
+    }
+
+    @Test
+    void postiRiservatiRestanoAiContestiPrioritari() throws Exception {
+        AdmissionControl controllo = new AdmissionControl(2, 1, 0, 2000);
+        controllo.configura("/lettura=2", Set.of("/preleva"));
+        HttpHandler lettura = controllo.proteggi("/lettura", bloccante("lettura"));
+        HttpHandler prelievo = controllo.proteggi("/preleva", exchange -> exchange.sendResponseHeaders(200, -1));
+
+        thread.submit(() -> chiama(lettura));
+        attendi(controllo::attivi, 1);
+        // La seconda lettura troverebbe posto nel contesto ma non fuori dalla riserva
+        assertEquals(503, chiama(lettura).stato());
+        assertEquals(200, chiama(prelievo).stato());
+    }
+
+    @Test
+    void attesePrioritarieVengonoServitePrimaDelleLetture() throws Exception {
+        AdmissionControl controllo = new AdmissionControl(1, 0, 2, 5000);
+        controllo.configura("/lettura=1", Set.of("/preleva"));
+        HttpHandler lettura = controllo.proteggi("/lettura", bloccante("lettura"));
+        HttpHandler prelievo = controllo.proteggi("/preleva", bloccante("prelievo"));
+
+        Future<FakeExchange> attiva = thread.submit(() -> chiama(lettura));
+        attendi(controllo::attivi, 1);
+        Future<FakeExchange> letturaInCoda = thread.submit(() -> chiama(lettura));
+        attendi(controllo::inCoda, 1);
+        Future<FakeExchange> prelievoInCoda = thread.submit(() -> chiama(prelievo));
+        attendi(controllo::inCoda, 2);
+
+        sblocca.countDown();
+        attiva.get(5, TimeUnit.SECONDS);
+        letturaInCoda.get(5, TimeUnit.SECONDS);
+        prelievoInCoda.get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("lettura", "prelievo", "lettura"), serviti);
+    }
+
+    @Test
+    void limiteNonValidoVieneRifiutato() {
+        AdmissionControl controllo = new AdmissionControl(4, 0, 0, 0);
+        assertThrows(IllegalArgumentException.class, () -> controllo.configura("/lettura", Set.of()));
+        assertThrows(IllegalArgumentException.class, () -> new AdmissionControl(2, 2, 0, 0));
+        // Contesto senza limite: l'handler originale
+        HttpHandler originale = exchange -> { };
+        assertSame(originale, controllo.proteggi("/altro", originale));
+    }
+
+    // Handler che registra l'ingresso e resta occupato finché il test non lo sblocca
+    private HttpHandler bloccante(String nome) {
+        return exchange -> {
+            serviti.add(nome);
+            try {
+                sblocca.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, -1);
+        };
+    }
+
+    private static FakeExchange chiama(HttpHandler handler) throws Exception {
+        FakeExchange exchange = FakeExchange.get("/");
+        handler.handle(exchange);
+        return exchange;
+    }
+
+    private static void attendi(IntSupplier valore, int atteso) throws InterruptedException {
+        long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (valore.getAsInt() != atteso) {
+            if (System.nanoTime() > limite) {
+                throw new AssertionError("atteso " + atteso + ", trovato " + valore.getAsInt());
+            }
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package magazzino;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class EmbeddedInventoryRepositoryTest {
+    @TempDir
+    Path directory;
+
+    @TempDir
+    Path dopoCrash;
+
+    @Test
+    void journalVieneRilettoDopoUnArrestoSenzaChiusura() throws Exception {
+        try (EmbeddedInventoryRepository archivio = EmbeddedInventoryRepository.apri(directory, 1 << 16, false)) {
+            int garze = archivio.inserisci("Garze", 5, LocalDate.of(2030, 1, 1));
+            int aghi = archivio.inserisci("Aghi", 3, null);
+            int[] rimanente = new int[1];
+            assertEquals(InventoryRepository.Prelievo.PRELEVATO, archivio.preleva(garze, 2, rimanente));
+            assertEquals(3, rimanente[0]);
+            assertEquals(InventoryRepository.Prelievo.ESAURITO, archivio.preleva(aghi, 3, rimanente));
+
+            // Copia dei file mentre l'archivio è aperto: lo stato che troverebbe un riavvio dopo un crash
+            copiaFileDati();
+            try (EmbeddedInventoryRepository riaperto = EmbeddedInventoryRepository.apri(dopoCrash, 1 << 16, false)) {
+                assertEquals(List.of("Garze:3:2030-01-01"), elenco(riaperto));
+                List<String> daOrdinare = new ArrayList<>();
+                riaperto.elencaDaOrdinare((id, nome, quantita, scadenza) -> daOrdinare.add(nome + ":" + quantita));
+                assertEquals(List.of("Aghi:0"), daOrdinare);
+            }
+        }
+    }
+
+    @Test
+    void journalPienoPassaAUnoSnapshotSenzaPerdereRighe() throws Exception {
+        try (EmbeddedInventoryRepository archivio = EmbeddedInventoryRepository.apri(directory, 256, false)) {
+            for (int i = 0; i < 50; i++) {
+                archivio.inserisci("Prodotto " + i, i + 1, null);
+            }
+            copiaFileDati();
+        }
+        try (EmbeddedInventoryRepository riaperto = EmbeddedInventoryRepository.apri(dopoCrash, 256, false)) {
+            assertEquals(50, riaperto.dimensione());
+        }
+        try (EmbeddedInventoryRepository riaperto = EmbeddedInventoryRepository.apri(directory, 256, false)) {
+            assertEquals(50, riaperto.dimensione());
+        }
+    }
+
+    @Test
+    void prelievoMultiploETuttoONiente() throws Exception {
+        try (EmbeddedInventoryRepository archivio = EmbeddedInventoryRepository.apri(directory, 1 << 16, false)) {
+            int garze = archivio.inserisci("Garze", 5, null);
+            int aghi = archivio.inserisci("Aghi", 2, null);
+
+            String[] errori = new String[3];
+            assertNull(archivio.prelevaTutti(List.of(new int[]{aghi, 1}, new int[]{garze, 3}, new int[]{garze, 3}),
+                    new int[3], errori));
+            assertArrayEquals(new String[]{null, null, "Quantità richiesta non disponibile."}, errori);
+            assertEquals(List.of("Garze:5:null", "Aghi:2:null"), elenco(archivio));
+
+            int[] rimanenti = new int[3];
+            Map<Integer, Integer> finali = archivio.prelevaTutti(
+                    List.of(new int[]{garze, 2}, new int[]{aghi, 2}, new int[]{garze, 1}), rimanenti, new String[3]);
+            assertArrayEquals(new int[]{3, 0, 2}, rimanenti);
+            assertEquals(Map.of(garze, 2, aghi, 0), finali);
+            assertEquals(List.of("Garze:2:null"), elenco(archivio));
+        }
+    }
+
+    @Test
+    void importazioneTieneSoloLeRigheConfermate() throws Exception {
+        try (EmbeddedInventoryRepository archivio = EmbeddedInventoryRepository.apri(directory, 1 << 16, false)) {
+            try (InventoryRepository.Importazione importazione = archivio.importa()) {
+                importazione.aggiungi("Garze", 5, null);
+                importazione.conferma();
+                importazione.aggiungi("Bende", 1, null);
+                assertEquals(1, importazione.confermate());
+            }
+            assertEquals(List.of("Garze:5:null"), elenco(archivio));
+        }
+        try (EmbeddedInventoryRepository riaperto = EmbeddedInventoryRepository.apri(directory, 1 << 16, false)) {
+            assertEquals(List.of("Garze:5:null"), elenco(riaperto));
+        }
+    }
+
+    private void copiaFileDati() throws IOException {
+        try (DirectoryStream<Path> file = Files.newDirectoryStream(directory)) {
+            for (Path percorso : file) {
+                if (!percorso.getFileName().toString().equals("magazzino.lock")) {
+                    Files.copy(percorso, dopoCrash.resolve(percorso.getFileName()));
+                }
+            }
+        }
+    }
+
+    private static List<String> elenco(EmbeddedInventoryRepository archivio) throws IOException {
+        List<String> righe = new ArrayList<>();
+        archivio.elenca(new InventoryRepository.Filtro(), 100,
+                (id, nome, quantita, scadenza) -> righe.add(nome + ":" + quantita + ":" + scadenza));
+        return righe;
+    }
+}
@@ -0,0 +1,126 @@
+package magazzino;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EventBusTest {
+
+    @Test
+    void eventiArrivanoInOrdineConIdCrescenti() throws Exception {
+        EventBus eventi = new EventBus(16, 1);
+        Flusso flusso = new Flusso(null);
+        assertTrue(eventi.iscrivi(cliente(flusso)));
+        assertFalse(eventi.iscrivi(cliente(new Flusso(null))));
+
+        eventi.pubblica(EventBus.INSERITO, "{\"id\":1}");
+        eventi.pubblica(EventBus.PRELEVATO, "{\"id\":1,\"quantita\":2}");
+        attendi(() -> flusso.testo().contains("id: 2\n"));
+        assertEquals("retry: 3000\n\n"
+                + "id: 1\nevent: inserito\ndata: {\"id\":1}\n\n"
+                + "id: 2\nevent: prelevato\ndata: {\"id\":1,\"quantita\":2}\n\n", flusso.testo());
+    }
+
+    @Test
+    void clienteLentoConCodaPienaRiceveResync() throws Exception {
+        EventBus eventi = new EventBus(2, 4);
+        CountDownLatch sblocca = new CountDownLatch(1);
+        Flusso flusso = new Flusso(sblocca);
+        eventi.iscrivi(cliente(flusso));
+        // Il thread di invio resta fermo sulla prima scrittura: la coda da 2 trabocca
+        for (int i = 1; i <= 10; i++) {
+            eventi.pubblica(EventBus.QUANTITA, "{\"id\":" + i + "}");
+        }
+        sblocca.countDown();
+        attendi(() -> flusso.testo().contains("event: resync"));
+        // Il terzo evento ha trovato la coda piena ed è stato sostituito dal resync
+        assertFalse(flusso.testo().contains("{\"id\":3}"));
+    }
+
+    @Test
+    void clienteCheSiRiconnetteDopoEventiPersiRiceveResync() throws Exception {
+        EventBus eventi = new EventBus(16, 4);
+        Flusso primo = new Flusso(null);
+        eventi.iscrivi(cliente(primo));
+        eventi.pubblica(EventBus.RIMOSSO, "{\"id\":1}");
+        eventi.pubblica(EventBus.RIMOSSO, "{\"id\":2}");
+        attendi(() -> primo.testo().contains("id: 2\n"));
+
+        Flusso secondo = new Flusso(null);
+        FakeExchange riconnessione = cliente(secondo);
+        riconnessione.getRequestHeaders().set("Last-Event-ID", "1");
+        eventi.iscrivi(riconnessione);
+        attendi(() -> secondo.testo().contains("id: 2\nevent: resync"));
+    }
+
+    @Test
+    void clienteScollegatoEsceDallElenco() throws Exception {
+        EventBus eventi = new EventBus(16, 4);
+        Flusso flusso = new Flusso(null);
+        eventi.iscrivi(cliente(flusso));
+        assertEquals(1, eventi.clientiCollegati());
+        flusso.chiuso = true;
+        eventi.pubblica(EventBus.INSERITO, "{\"id\":1}");
+        attendi(() -> eventi.clientiCollegati() == 0);
+    }
+
+    private static FakeExchange cliente(Flusso flusso) {
+        FakeExchange exchange = FakeExchange.get("/eventi");
+        exchange.setStreams(null, flusso);
+        return exchange;
+    }
+
+    private static void attendi(BooleanSupplier condizione) throws InterruptedException {
+        long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condizione.getAsBoolean()) {
+            if (System.nanoTime() > limite) {
+                throw new AssertionError("condizione non raggiunta");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    // Stream del client: raccoglie il testo, può bloccare la prima scrittura o simulare la disconnessione
+    private static final class Flusso extends OutputStream {
+        private final StringBuffer testo = new StringBuffer();
+        private final CountDownLatch sblocca;
+        volatile boolean chiuso;
+
+        Flusso(CountDownLatch sblocca) {
+            this.sblocca = sblocca;
+        }
+
+        String testo() {
+            return testo.toString();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (chiuso) {
+                throw new IOException("client scollegato");
+            }
+            if (sblocca != null) {
+                try {
+                    sblocca.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            testo.append(new String(b, off, len, StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package magazzino;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ExpiryIndexTest {
+    private static final LocalDate OGGI = LocalDate.of(2030, 6, 15);
+
+    private final ExpiryIndex indice = new ExpiryIndex();
+
+    @Test
+    void finestraOrdinataPerDataEId() {
+        indice.inserisci(3, "C", 1, OGGI.plusDays(2));
+        indice.inserisci(1, "A", 1, OGGI.plusDays(5));
+        indice.inserisci(2, "B", 1, OGGI.plusDays(2));
+        indice.inserisci(4, "D", 1, null);
+
+        assertEquals(List.of(2, 3), ids(indice.entro(OGGI.plusDays(2))));
+        assertEquals(List.of(2, 3, 1), ids(indice.entro(OGGI.plusDays(30))));
+        assertEquals(3, indice.dimensione());
+    }
+
+    @Test
+    void prelievoFinoAZeroToglieIlProdottoDallIndice() {
+        indice.inserisci(1, "A", 5, OGGI);
+        indice.preleva(1, 2);
+        assertEquals(3, indice.entro(OGGI).get(0).quantita);
+        indice.preleva(1, 3);
+        assertEquals(0, indice.dimensione());
+    }
+
+    @Test
+    void reinserimentoSpostaLaScadenza() {
+        indice.inserisci(1, "A", 5, OGGI);
+        indice.inserisci(1, "A", 5, OGGI.plusDays(10));
+        assertEquals(List.of(), ids(indice.entro(OGGI.plusDays(1))));
+        assertEquals(List.of(1), ids(indice.scadutiPrima(OGGI.plusDays(11))));
+    }
+
+    private static List<Integer> ids(List<ExpiryIndex.Prodotto> prodotti) {
+        return prodotti.stream().map(p -> p.id).collect(Collectors.toList());
+    }
+}
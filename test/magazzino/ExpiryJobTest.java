@@ -0,0 +1,114 @@
+package magazzino;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExpiryJobTest {
+    private final ExpiryIndex indice = new ExpiryIndex();
+    private final SearchIndex ricerca = new SearchIndex();
+    private final ListingCache cache = new ListingCache(16, 1 << 16);
+    private final EventBus eventi = new EventBus(16, 4);
+
+    @Test
+    void erroreInattesoNonEsceDaRunEIlGiornoDopoIlJobRiprova() {
+        ExpiryIndex.Prodotto scaduto = new ExpiryIndex.Prodotto(1, "Vaccino", 3, LocalDate.now().minusDays(1));
+        AtomicInteger tentativi = new AtomicInteger();
+        List<ExpiryIndex.Prodotto> spostati = new ArrayList<>();
+        InventoryRepository repository = repository(List.of(scaduto), prodotti -> {
+            if (tentativi.incrementAndGet() == 1) {
+                throw new IllegalStateException("errore inatteso");
+            }
+            spostati.addAll(prodotti);
+        });
+        ExpiryJob job = new ExpiryJob(repository, indice, ricerca, cache, eventi, ExpiryJob.SPOSTA);
+
+        assertDoesNotThrow(job::run);
+        assertTrue(spostati.isEmpty());
+
+        assertDoesNotThrow(job::run);
+        assertEquals(List.of(scaduto), spostati);
+        assertEquals(0, indice.dimensione());
+    }
+
+    @Test
+    void segnalaNonSpostaNulla() {
+        ExpiryIndex.Prodotto scaduto = new ExpiryIndex.Prodotto(1, "Vaccino", 3, LocalDate.now().minusDays(1));
+        List<ExpiryIndex.Prodotto> spostati = new ArrayList<>();
+        new ExpiryJob(repository(List.of(scaduto), spostati::addAll), indice, ricerca, cache, eventi, ExpiryJob.SEGNALA).run();
+        assertTrue(spostati.isEmpty());
+        assertEquals(1, indice.dimensione());
+    }
+
+    @Test
+    void prelievoDuranteLaRicaricaNonVienePerso() throws Exception {
+        LocalDate scadenza = LocalDate.now().plusDays(30);
+        indice.inserisci(1, "Vaccino", 10, scadenza);
+        CountDownLatch letto = new CountDownLatch(1);
+        CountDownLatch sblocca = new CountDownLatch(1);
+        InventoryRepository repository = repository(() -> {
+            letto.countDown();
+            sblocca.await(5, TimeUnit.SECONDS);
+            return List.of(new ExpiryIndex.Prodotto(1, "Vaccino", 10, scadenza));
+        }, prodotti -> { });
+        Thread job = new Thread(new ExpiryJob(repository, indice, ricerca, cache, eventi, ExpiryJob.SEGNALA));
+        job.start();
+        assertTrue(letto.await(5, TimeUnit.SECONDS));
+
+        // Il prelievo arriva mentre l'archivio viene letto: attende la ricarica e si applica dopo
+        Thread prelievo = new Thread(() -> {
+            cache.inizioScrittura();
+            try {
+                indice.preleva(1, 4);
+            } finally {
+                cache.fineScrittura();
+            }
+        });
+        prelievo.start();
+        long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (prelievo.getState() != Thread.State.WAITING && System.nanoTime() < limite) {
+            Thread.sleep(5);
+        }
+        sblocca.countDown();
+        job.join(5000);
+        prelievo.join(5000);
+        assertEquals(6, indice.entro(scadenza).get(0).quantita);
+    }
+
+    private interface Spostamento {
+        void sposta(List<ExpiryIndex.Prodotto> prodotti);
+    }
+
+    private static InventoryRepository repository(List<ExpiryIndex.Prodotto> conScadenza, Spostamento spostamento) {
+        return repository(() -> conScadenza, spostamento);
+    }
+
+    // Archivio minimo: solo i due metodi usati dal job
+    @SuppressWarnings("unchecked")
+    private static InventoryRepository repository(Callable<List<ExpiryIndex.Prodotto>> conScadenza,
+                                                  Spostamento spostamento) {
+        return (InventoryRepository) Proxy.newProxyInstance(InventoryRepository.class.getClassLoader(),
+                new Class<?>[]{InventoryRepository.class}, (proxy, metodo, args) -> {
+                    switch (metodo.getName()) {
+                        case "prodottiConScadenza":
+                            return new ArrayList<>(conScadenza.call());
+                        case "spostaInDaOrdinare":
+                            spostamento.sposta((List<ExpiryIndex.Prodotto>) args[0]);
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(metodo.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,167 @@
+package magazzino;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HttpExchange in memoria per chiamare gli handler senza socket: il corpo della richiesta
+ * viene da un array e la risposta viene solo contata.
+ */
+final class FakeExchange extends HttpExchange {
+    private final String metodo;
+    private final URI uri;
+    private final Headers richiesta = new Headers();
+    private final Headers risposta = new Headers();
+    private final Map<String, Object> attributi = new HashMap<>();
+    private InputStream corpoRichiesta;
+    private OutputStream corpoRisposta;
+    private final Scarico scarico = new Scarico();
+    private int stato = -1;
+    private long lunghezzaRisposta = -1;
+
+    FakeExchange(String metodo, String uri, String corpo) {
+        this.metodo = metodo;
+        this.uri = URI.create(uri);
+        this.corpoRichiesta = new ByteArrayInputStream(corpo.getBytes(StandardCharsets.UTF_8));
+        this.corpoRisposta = scarico;
+    }
+
+    static FakeExchange get(String uri) {
+        return new FakeExchange("GET", uri, "");
+    }
+
+    static FakeExchange post(String uri, String corpo) {
+        FakeExchange exchange = new FakeExchange("POST", uri, corpo);
+        exchange.richiesta.set("Content-Type", "application/x-www-form-urlencoded");
+        return exchange;
+    }
+
+    // Codice di stato inviato dall'handler (-1 se nessuno)
+    int stato() {
+        return stato;
+    }
+
+    // Lunghezza dichiarata in sendResponseHeaders: 0 indica una risposta chunked
+    long lunghezzaRisposta() {
+        return lunghezzaRisposta;
+    }
+
+    long byteInviati() {
+        return scarico.byteScritti;
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return richiesta;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return risposta;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return metodo;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return corpoRichiesta;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return corpoRisposta;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) {
+        stato = rCode;
+        lunghezzaRisposta = responseLength;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return new InetSocketAddress("127.0.0.1", 40000);
+    }
+
+    @Override
+    public int getResponseCode() {
+        return stato;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return new InetSocketAddress("127.0.0.1", 8080);
+    }
+
+    @Override
+    public String getProtocol() {
+        return "HTTP/1.1";
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributi.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        attributi.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) {
+            corpoRichiesta = i;
+        }
+        if (o != null) {
+            corpoRisposta = o;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    private static final class Scarico extends OutputStream {
+        long byteScritti;
+
+        @Override
+        public void write(int b) {
+            byteScritti++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            byteScritti += len;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package magazzino;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GroupCommitTest {
+    private static final AtomicInteger DATABASE = new AtomicInteger();
+
+    private PooledDataSource pool;
+    private JdbcInventoryRepository repository;
+    private ExecutorService thread;
+
+    @BeforeEach
+    void apri() throws SQLException {
+        pool = new PooledDataSource("jdbc:h2:mem:gruppi" + DATABASE.incrementAndGet() + ";MODE=MySQL;DB_CLOSE_DELAY=-1",
+                "sa", "", 0, 4, 2000, 0, 0, 16);
+        try (Connection conn = pool.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE magazzino (id INT AUTO_INCREMENT PRIMARY KEY, nome VARCHAR(255) NOT NULL, "
+                    + "quantita INT NOT NULL, scadenza DATE)");
+            stmt.execute("CREATE TABLE da_ordinare (id INT PRIMARY KEY, nome VARCHAR(255) NOT NULL, quantita INT NOT NULL)");
+        }
+        repository = new JdbcInventoryRepository(pool);
+        thread = Executors.newFixedThreadPool(8);
+    }
+
+    @AfterEach
+    void chiudi() {
+        thread.shutdownNow();
+        pool.close();
+    }
+
+    @Test
+    void inserimentiConcorrentiRicevonoIdDistinti() throws Exception {
+        try (GroupCommit gruppi = new GroupCommit(pool, repository, 8, 50, 5000)) {
+            List<Future<Integer>> ids = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                String nome = "Prodotto " + i;
+                ids.add(thread.submit(() -> gruppi.inserisci(nome, 10, LocalDate.of(2030, 1, 1))));
+            }
+            Set<Integer> distinti = new HashSet<>();
+            for (Future<Integer> id : ids) {
+                distinti.add(id.get());
+            }
+            assertEquals(20, distinti.size());
+            assertEquals(20, righe("magazzino"));
+        }
+    }
+
+    @Test
+    void operazioneNonValidaNonFaFallireLeAltreDelGruppo() throws Exception {
+        try (GroupCommit gruppi = new GroupCommit(pool, repository, 8, 200, 5000)) {
+            List<Future<Integer>> validi = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                String nome = "Valido " + i;
+                validi.add(thread.submit(() -> gruppi.inserisci(nome, 1, null)));
+            }
+            // nome NOT NULL: fa fallire il batch e il gruppo passa all'esecuzione una per una
+            Future<Integer> nonValido = thread.submit(() -> gruppi.inserisci(null, 1, null));
+
+            for (Future<Integer> id : validi) {
+                id.get();
+            }
+            ExecutionException errore = assertThrows(ExecutionException.class, nonValido::get);
+            assertInstanceOf(SQLException.class, errore.getCause());
+            assertEquals(4, righe("magazzino"));
+        }
+    }
+
+    @Test
+    void prelieviNelGruppoDistinguonoEsauritoENonDisponibile() throws Exception {
+        int id = repository.inserisci("Garze", 5, null);
+        try (GroupCommit gruppi = new GroupCommit(pool, repository, 8, 10, 5000)) {
+            int[] rimanente = new int[1];
+            assertEquals(InventoryRepository.Prelievo.PRELEVATO, gruppi.preleva(id, 2, rimanente));
+            // Il batch non rilegge le righe: la quantità lasciata non è nota
+            assertEquals(MovementLedger.NON_NOTO, rimanente[0]);
+            assertEquals(InventoryRepository.Prelievo.NON_DISPONIBILE, gruppi.preleva(id, 10, rimanente));
+            assertEquals(InventoryRepository.Prelievo.ESAURITO, gruppi.preleva(id, 3, rimanente));
+            assertEquals(0, rimanente[0]);
+            assertEquals(1, righe("da_ordinare"));
+        }
+    }
+
+    @Test
+    void prelieviSulloStessoProdottoNelGruppoApplicatiTutti() throws Exception {
+        int id = repository.inserisci("Siringhe", 100, null);
+        try (GroupCommit gruppi = new GroupCommit(pool, repository, 16, 200, 5000)) {
+            List<Future<InventoryRepository.Prelievo>> esiti = new ArrayList<>();
+            for (int i = 1; i <= 10; i++) {
+                int quantita = i;
+                esiti.add(thread.submit(() -> gruppi.preleva(id, quantita, new int[1])));
+            }
+            for (Future<InventoryRepository.Prelievo> esito : esiti) {
+                assertEquals(InventoryRepository.Prelievo.PRELEVATO, esito.get());
+            }
+        }
+        try (Connection conn = pool.getConnection(); Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT quantita FROM magazzino")) {
+            rs.next();
+            assertEquals(45, rs.getInt(1));
+        }
+    }
+
+    @Test
+    void esitoNonNotoSeLaScritturaEraGiaPartita() throws Exception {
+        CountDownLatch presa = new CountDownLatch(1);
+        CountDownLatch sblocca = new CountDownLatch(1);
+        GroupCommit gruppi = new GroupCommit(bloccante(presa, sblocca), repository, 8, 0, 200);
+        try {
+            assertTimeoutPreemptively(Duration.ofSeconds(5), () ->
+                    assertThrows(SQLTimeoutException.class, () -> gruppi.inserisci("Bloccato", 1, null)));
+        } finally {
+            sblocca.countDown();
+            gruppi.close();
+        }
+        // Confermata dopo la risposta: per questo l'esito non era noto
+        assertEquals(1, righe("magazzino"));
+    }
+
+    @Test
+    void operazioneAncoraInCodaRitirataAlTimeout() throws Exception {
+        CountDownLatch presa = new CountDownLatch(1);
+        CountDownLatch sblocca = new CountDownLatch(1);
+        GroupCommit gruppi = new GroupCommit(bloccante(presa, sblocca), repository, 1, 0, 200);
+        try {
+            Future<?> prima = thread.submit(() -> gruppi.inserisci("Partito", 1, null));
+            assertTrue(presa.await(5, TimeUnit.SECONDS));
+            // Lo scrittore è fermo sul primo gruppo: la seconda resta in coda e viene ritirata
+            assertTimeoutPreemptively(Duration.ofSeconds(5), () ->
+                    assertThrows(SQLTransientConnectionException.class, () -> gruppi.inserisci("In coda", 1, null)));
+            ExecutionException errore = assertThrows(ExecutionException.class, () -> prima.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(SQLTimeoutException.class, errore.getCause());
+        } finally {
+            sblocca.countDown();
+            gruppi.close();
+        }
+        assertEquals(1, righe("magazzino"));
+    }
+
+    @Test
+    void dopoLaChiusuraLeOperazioniFallisconoSubito() {
+        GroupCommit gruppi = new GroupCommit(pool, repository, 8, 0, 5000);
+        gruppi.close();
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () ->
+                assertThrows(SQLTransientConnectionException.class, () -> gruppi.inserisci("Tardi", 1, null)));
+    }
+
+    // DataSource che segnala quando lo scrittore chiede una connessione e lo trattiene finché il latch non viene aperto
+    private DataSource bloccante(CountDownLatch presa, CountDownLatch sblocca) {
+        return (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class<?>[]{DataSource.class},
+                (proxy, metodo, args) -> {
+                    if ("getConnection".equals(metodo.getName())) {
+                        presa.countDown();
+                        sblocca.await(10, TimeUnit.SECONDS);
+                        return pool.getConnection();
+                    }
+                    if ("getLogWriter".equals(metodo.getName())) {
+                        return (PrintWriter) null;
+                    }
+                    if ("getParentLogger".equals(metodo.getName())) {
+                        return Logger.getGlobal();
+                    }
+                    return null;
+                });
+    }
+
+    private int righe(String tabella) throws SQLException {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM " + tabella);
+             ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package magazzino;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class HttpCodecTest {
+
+    @Test
+    void formDecodificaPercentPiuEUtf8() {
+        HttpCodec.Parametri params = HttpCodec.leggiQuery("nome=Cr%C3%A8me+br%C3%BBl%C3%A9e&quantita=3&vuoto=&solo");
+        assertEquals("Crème brûlée", params.get("nome"));
+        assertEquals(3, params.intero("quantita"));
+        assertEquals("", params.get("vuoto"));
+        assertEquals("", params.get("solo"));
+        assertNull(params.get("assente"));
+    }
+
+    @Test
+    void nomeRipetutoValeLUltimoValore() {
+        HttpCodec.Parametri params = HttpCodec.leggiQuery("id=1&&id=2&a%3Db=c%26d");
+        assertEquals("2", params.get("id"));
+        assertEquals("c&d", params.get("a=b"));
+    }
+
+    @Test
+    void sequenzePercentMalformateVengonoRifiutate() {
+        assertThrows(IllegalArgumentException.class, () -> HttpCodec.leggiQuery("nome=abc%4"));
+        assertThrows(IllegalArgumentException.class, () -> HttpCodec.leggiQuery("nome=%zz"));
+        assertEquals("A", HttpCodec.leggiQuery("nome=%41").get("nome"));
+    }
+
+    @Test
+    void conversioniDeiParametri() {
+        HttpCodec.Parametri params = HttpCodec.leggiQuery("n=+42+&x=abc&d=2030-02-28&dx=2030-02-30");
+        assertEquals(42, params.intero("n"));
+        assertEquals(7, params.intero("assente", 7));
+        assertEquals(LocalDate.of(2030, 2, 28), params.data("d"));
+        assertNull(params.data("assente"));
+        assertEquals("parametro x non numerico",
+                assertThrows(IllegalArgumentException.class, () -> params.intero("x")).getMessage());
+        assertEquals("parametro assente mancante",
+                assertThrows(IllegalArgumentException.class, () -> params.richiesto("assente")).getMessage());
+        assertThrows(IllegalArgumentException.class, () -> params.data("dx"));
+    }
+
+    @Test
+    void corpoOltreIlLimiteVieneRifiutato() throws Exception {
+        // Esattamente al limite: un solo parametro senza valore
+        String nome = "a".repeat(HttpCodec.MAX_CORPO_FORM);
+        byte[] limite = nome.getBytes(StandardCharsets.US_ASCII);
+        assertEquals("", HttpCodec.leggiForm(new ByteArrayInputStream(limite)).get(nome));
+        byte[] oltre = new byte[HttpCodec.MAX_CORPO_FORM + 1];
+        assertThrows(IllegalArgumentException.class, () -> HttpCodec.leggiForm(new ByteArrayInputStream(oltre)));
+    }
+
+    @Test
+    void escapeJsonSoloDoveServe() {
+        String semplice = "Garze sterili àè";
+        assertSame(semplice, HttpCodec.escapeJson(semplice));
+        assertEquals("a\\\"b\\\\c\\nd\\u0001", HttpCodec.escapeJson("a\"b\\c\nd\u0001"));
+        assertEquals("", HttpCodec.escapeJson(null));
+    }
+}
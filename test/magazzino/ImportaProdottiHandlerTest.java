@@ -0,0 +1,153 @@
+package magazzino;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ImportaProdottiHandlerTest {
+    private static final AtomicInteger DATABASE = new AtomicInteger();
+
+    private PooledDataSource pool;
+
+    @BeforeEach
+    void apri() throws SQLException {
+        pool = new PooledDataSource("jdbc:h2:mem:import" + DATABASE.incrementAndGet() + ";MODE=MySQL;DB_CLOSE_DELAY=-1",
+                "sa", "", 0, 2, 2000, 0, 0, 16);
+        try (Connection conn = pool.getConnection(); Statement stmt = conn.createStatement()) {
+            // Il vincolo sulla quantità permette di far fallire il database a metà import
+            stmt.execute("CREATE TABLE magazzino (id INT AUTO_INCREMENT PRIMARY KEY, nome VARCHAR(255) NOT NULL, "
+                    + "quantita INT NOT NULL CHECK (quantita < 100000), scadenza DATE)");
+        }
+        Main.sedi = SiteRouter.singola(new JdbcInventoryRepository(pool));
+    }
+
+    @AfterEach
+    void chiudi() {
+        pool.close();
+    }
+
+    @Test
+    void csvConIntestazioneRigheValideERigheScartate() throws Exception {
+        FakeExchange exchange = importa("text/csv",
+                "nome;quantita;scadenza\nGarze;10;2030-01-01\nAghi;0;\n;5\n\nCerotti;3\nBende;x\nSiringhe;2;2030-13-01\n");
+        assertEquals(200, exchange.stato());
+        assertEquals("{\"importati\":2,\"scartati\":4,\"errori\":["
+                + "\"Riga 3: quantità non positiva\",\"Riga 4: nome mancante o troppo lungo\","
+                + "\"Riga 7: quantità non valida\",\"Riga 8: scadenza non valida (formato AAAA-MM-GG)\"]}", corpo(exchange));
+        assertEquals(List.of("Cerotti:3:null", "Garze:10:2030-01-01"), righe());
+    }
+
+    @Test
+    void ndjsonConEscapeERigheMalformate() throws Exception {
+        FakeExchange exchange = importa("application/x-ndjson",
+                "{\"nome\": \"Garze \\\"sterili\\\" \\u00e0\", \"quantita\": 4, \"scadenza\": null}\n"
+                        + "{\"nome\":\"Aghi\",\"quantita\":2,\"scadenza\":\"2030-01-01\"}\n"
+                        + "{\"nome\":\"Bende\"\n");
+        assertEquals(200, exchange.stato());
+        assertEquals("{\"importati\":2,\"scartati\":1,\"errori\":[\"Riga 3: oggetto JSON non valido\"]}", corpo(exchange));
+        assertEquals(List.of("Aghi:2:2030-01-01", "Garze \"sterili\" à:4:null"), righe());
+    }
+
+    @Test
+    void erroreDelDatabaseConservaSoloLeRigheConfermate() throws Exception {
+        // 5000 righe fanno scattare il commit periodico; la successiva viola il vincolo nel batch dopo
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            csv.append("Garze lotto ").append(i).append(";1\n");
+        }
+        csv.append("Aghi;100000\n");
+        for (int i = 0; i < 10; i++) {
+            csv.append("Cerotti lotto ").append(i).append(";1\n");
+        }
+        FakeExchange exchange = importa("text/csv", csv.toString());
+        assertEquals(500, exchange.stato());
+        assertTrue(corpo(exchange).startsWith("{\"importati\":5000,\"scartati\":0,\"errore\":\"Importazione interrotta: "),
+                corpo(exchange));
+        assertEquals(5000, righe().size());
+    }
+
+    @Test
+    void sovraccaricoAMetaImportRestituisceLeRigheConfermate() throws Exception {
+        // Il pool non fornisce più connessioni dopo il primo commit periodico
+        JdbcInventoryRepository archivio = new JdbcInventoryRepository(pool);
+        Main.sedi = SiteRouter.singola(conSovraccaricoDopo(archivio, 5000));
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 5010; i++) {
+            csv.append("Garze lotto ").append(i).append(";1\n");
+        }
+        FakeExchange exchange = importa("text/csv", csv.toString());
+        assertEquals(503, exchange.stato());
+        assertEquals("1", exchange.getResponseHeaders().getFirst("Retry-After"));
+        assertTrue(corpo(exchange).startsWith("{\"importati\":5000,\"scartati\":0,\"errore\":\"Importazione interrotta, riprovare: "),
+                corpo(exchange));
+        assertEquals(5000, righe().size());
+    }
+
+    private static FakeExchange importa(String tipo, String corpo) throws Exception {
+        FakeExchange exchange = FakeExchange.post("/importaProdotti", corpo);
+        exchange.getRequestHeaders().set("Content-Type", tipo);
+        exchange.setStreams(null, new ByteArrayOutputStream());
+        new Main.ImportaProdottiHandler().handle(exchange);
+        return exchange;
+    }
+
+    // Archivio che delega a quello reale; l'importazione fallisce per sovraccarico alla riga oltre righe
+    private static InventoryRepository conSovraccaricoDopo(InventoryRepository archivio, int righe) {
+        return (InventoryRepository) Proxy.newProxyInstance(InventoryRepository.class.getClassLoader(),
+                new Class<?>[]{InventoryRepository.class}, (proxy, metodo, args) -> {
+                    Object risultato = invoca(metodo, archivio, args);
+                    if (!"importa".equals(metodo.getName())) {
+                        return risultato;
+                    }
+                    InventoryRepository.Importazione importazione = (InventoryRepository.Importazione) risultato;
+                    AtomicInteger aggiunte = new AtomicInteger();
+                    return Proxy.newProxyInstance(InventoryRepository.class.getClassLoader(),
+                            new Class<?>[]{InventoryRepository.Importazione.class}, (p, m, a) -> {
+                                if ("aggiungi".equals(m.getName()) && aggiunte.incrementAndGet() > righe) {
+                                    throw new SQLTransientConnectionException("Nessuna connessione disponibile");
+                                }
+                                return invoca(m, importazione, a);
+                            });
+                });
+    }
+
+    private static Object invoca(Method metodo, Object destinatario, Object[] args) throws Throwable {
+        try {
+            return metodo.invoke(destinatario, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static String corpo(FakeExchange exchange) {
+        return ((ByteArrayOutputStream) exchange.getResponseBody()).toString(StandardCharsets.UTF_8);
+    }
+
+    private List<String> righe() throws SQLException {
+        List<String> righe = new ArrayList<>();
+        try (Connection conn = pool.getConnection(); Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT nome, quantita, scadenza FROM magazzino ORDER BY nome")) {
+            while (rs.next()) {
+                righe.add(rs.getString(1) + ":" + rs.getInt(2) + ":" + rs.getDate(3));
+            }
+        }
+        return righe;
+    }
+}
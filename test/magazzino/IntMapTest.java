@@ -0,0 +1,75 @@
+package magazzino;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class IntMapTest {
+
+    @Test
+    void ingrandimentoConservaTutteLeChiavi() {
+        IntMap<String> mappa = new IntMap<>(2);
+        for (int i = 1; i <= 10_000; i++) {
+            assertNull(mappa.put(i, "v" + i));
+        }
+        assertEquals(10_000, mappa.size());
+        for (int i = 1; i <= 10_000; i++) {
+            assertEquals("v" + i, mappa.get(i));
+        }
+        assertNull(mappa.get(10_001));
+    }
+
+    @Test
+    void chiaveZeroENegativeSonoChiaviNormali() {
+        IntMap<String> mappa = new IntMap<>(4);
+        mappa.put(0, "zero");
+        mappa.put(-1, "meno uno");
+        assertEquals(2, mappa.size());
+        assertEquals("zero", mappa.put(0, "ZERO"));
+        assertEquals("ZERO", mappa.remove(0));
+        assertNull(mappa.get(0));
+        assertEquals("meno uno", mappa.get(-1));
+        assertEquals(1, mappa.size());
+    }
+
+    @Test
+    void rimozioniNonInterromponoLeSequenzeDiProbing() {
+        // Confronto con HashMap su una sequenza casuale di inserimenti e rimozioni
+        IntMap<Integer> mappa = new IntMap<>(8);
+        Map<Integer, Integer> attesa = new HashMap<>();
+        Random casuale = new Random(42);
+        for (int passo = 0; passo < 200_000; passo++) {
+            int chiave = casuale.nextInt(2_000) - 100;
+            if (casuale.nextInt(3) == 0) {
+                assertEquals(attesa.remove(chiave), mappa.remove(chiave));
+            } else {
+                assertEquals(attesa.put(chiave, passo), mappa.put(chiave, passo));
+            }
+        }
+        assertEquals(attesa.size(), mappa.size());
+        for (int chiave = -100; chiave < 1_900; chiave++) {
+            assertEquals(attesa.get(chiave), mappa.get(chiave));
+        }
+        Set<Integer> valori = new HashSet<>();
+        mappa.forEachValue(valori::add);
+        assertEquals(new HashSet<>(attesa.values()), valori);
+    }
+
+    @Test
+    void clearSvuotaLaMappa() {
+        IntMap<String> mappa = new IntMap<>(4);
+        mappa.put(0, "zero");
+        mappa.put(7, "sette");
+        mappa.clear();
+        assertEquals(0, mappa.size());
+        assertNull(mappa.get(0));
+        assertNull(mappa.get(7));
+    }
+}
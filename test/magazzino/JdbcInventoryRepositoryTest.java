@@ -0,0 +1,51 @@
+package magazzino;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class JdbcInventoryRepositoryTest {
+    private static final AtomicInteger DATABASE = new AtomicInteger();
+
+    private PooledDataSource pool;
+    private JdbcInventoryRepository repository;
+
+    @BeforeEach
+    void apri() throws SQLException {
+        pool = new PooledDataSource("jdbc:h2:mem:archivio" + DATABASE.incrementAndGet() + ";MODE=MySQL;DB_CLOSE_DELAY=-1",
+                "sa", "", 0, 2, 2000, 0, 0, 16);
+        try (Connection conn = pool.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE magazzino (id INT AUTO_INCREMENT PRIMARY KEY, nome VARCHAR(255) NOT NULL, "
+                    + "quantita INT NOT NULL, scadenza DATE)");
+            stmt.execute("CREATE TABLE da_ordinare (id INT PRIMARY KEY, nome VARCHAR(255) NOT NULL, quantita INT NOT NULL)");
+        }
+        repository = new JdbcInventoryRepository(pool);
+    }
+
+    @AfterEach
+    void chiudi() {
+        pool.close();
+    }
+
+    @Test
+    void prelievoSenzaRiletturaDellaQuantitaRimasta() throws SQLException {
+        int id = repository.inserisci("Garze", 5, null);
+        int[] rimanente = new int[1];
+        // Solo con MySQL l'UPDATE restituisce la quantità rimasta: su H2 non è nota
+        assertEquals(InventoryRepository.Prelievo.PRELEVATO, repository.preleva(id, 2, rimanente));
+        assertEquals(MovementLedger.NON_NOTO, rimanente[0]);
+        assertEquals(InventoryRepository.Prelievo.PRELEVATO, repository.preleva(id, 1, rimanente));
+        assertEquals(MovementLedger.NON_NOTO, rimanente[0]);
+        assertEquals(InventoryRepository.Prelievo.NON_DISPONIBILE, repository.preleva(id, 3, rimanente));
+        assertEquals(InventoryRepository.Prelievo.ESAURITO, repository.preleva(id, 2, rimanente));
+        assertEquals(0, rimanente[0]);
+        assertEquals(InventoryRepository.Prelievo.NON_TROVATO, repository.preleva(id, 1, rimanente));
+    }
+}
@@ -0,0 +1,52 @@
+package magazzino;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class JsonWriterTest {
+
+    @Test
+    void numeriEDateSenzaStringheIntermedie() throws IOException {
+        assertEquals("0,-7,2147483647,-2147483648", scrivi(out -> out.scriviIntero(0).scrivi(',')
+                .scriviIntero(-7).scrivi(',').scriviIntero(Integer.MAX_VALUE).scrivi(',').scriviIntero(Integer.MIN_VALUE)));
+        assertEquals("1.50,-0.25,null", scrivi(out -> out.scriviDecimale(1.5).scrivi(',')
+                .scriviDecimale(-0.25).scrivi(',').scriviDecimale(Double.NaN)));
+        assertEquals("\"2030-01-05\",null", scrivi(out -> out.scriviData(LocalDate.of(2030, 1, 5)).scrivi(',')
+                .scriviData(null)));
+    }
+
+    @Test
+    void stringheInUtf8ConEscape() throws IOException {
+        String testo = "Crème \"brûlée\"\n\u0001 😀 \ud800";
+        assertEquals("\"Crème \\\"brûlée\\\"\\n\\u0001 😀 ?\"", scrivi(out -> out.scriviStringa(testo)));
+        assertEquals("null", scrivi(out -> out.scriviStringa(null)));
+    }
+
+    @Test
+    void testoPiuLungoDelBufferArrivaIntero() throws IOException {
+        StringBuilder lungo = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            lungo.append("è\"");
+        }
+        String atteso = "\"" + lungo.toString().replace("\"", "\\\"") + "\"";
+        assertEquals(atteso, scrivi(out -> out.scriviStringa(lungo.toString())));
+    }
+
+    private interface Scrittura {
+        void esegui(JsonWriter out) throws IOException;
+    }
+
+    private static String scrivi(Scrittura scrittura) throws IOException {
+        ByteArrayOutputStream destinazione = new ByteArrayOutputStream();
+        try (JsonWriter out = new JsonWriter(destinazione)) {
+            scrittura.esegui(out);
+        }
+        return destinazione.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,65 @@
+package magazzino;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+
+    @Test
+    void valoriPiccoliSonoEsatti() {
+        LatencyHistogram istogramma = new LatencyHistogram();
+        for (int i = 0; i < 8; i++) {
+            istogramma.registra(i);
+        }
+        LatencyHistogram.Snapshot snapshot = istogramma.snapshot();
+        assertEquals(8, snapshot.totale);
+        assertEquals(28, snapshot.sommaMicrosecondi);
+        assertEquals(0, snapshot.quantile(0));
+        assertEquals(3, snapshot.quantile(0.5));
+        assertEquals(7, snapshot.quantile(1));
+    }
+
+    @Test
+    void quantiliEntroLErroreRelativoDellaRisoluzione() {
+        Random casuale = new Random(7);
+        long[] valori = new long[100_000];
+        LatencyHistogram predefinito = new LatencyHistogram();
+        LatencyHistogram fine = new LatencyHistogram(7);
+        for (int i = 0; i < valori.length; i++) {
+            // Distribuzione con coda lunga, da pochi µs a qualche secondo
+            valori[i] = (long) Math.exp(casuale.nextDouble() * 15);
+            predefinito.registra(valori[i]);
+            fine.registra(valori[i]);
+        }
+        Arrays.sort(valori);
+        for (double q : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            long esatto = valori[(int) Math.ceil(q * valori.length) - 1];
+            long stimaPredefinita = predefinito.snapshot().quantile(q);
+            long stimaFine = fine.snapshot().quantile(q);
+            // Il quantile è il limite superiore del bucket: mai sotto il valore esatto
+            assertTrue(stimaPredefinita >= esatto && stimaPredefinita <= esatto * 1.125 + 1, "q=" + q);
+            assertTrue(stimaFine >= esatto && stimaFine <= esatto * 1.01 + 1, "q=" + q);
+        }
+    }
+
+    @Test
+    void valoriNegativiEFuoriScalaNonSiPerdono() {
+        LatencyHistogram istogramma = new LatencyHistogram();
+        istogramma.registra(-5);
+        istogramma.registra(Long.MAX_VALUE / 2);
+        istogramma.registraNanos(2_000);
+        LatencyHistogram.Snapshot snapshot = istogramma.snapshot();
+        assertEquals(3, snapshot.totale);
+        assertEquals(0, snapshot.quantile(0.1));
+        assertEquals(2, snapshot.quantile(0.6));
+        assertTrue(snapshot.quantile(1) >= 1L << 41);
+        assertEquals(0, new LatencyHistogram().snapshot().quantile(0.99));
+        assertThrows(IllegalArgumentException.class, () -> new LatencyHistogram(0));
+    }
+}
@@ -0,0 +1,89 @@
+package magazzino;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ListingCacheTest {
+    private static final String CHIAVE = "/riepilogoMagazzino?sort=nome";
+    private static final String CORPO = "{\"prodotti\":[]}";
+
+    private final ListingCache cache = new ListingCache(16, 1024);
+
+    @Test
+    void rispostaGenerataVieneServitaDallaCacheConLoStessoEtag() throws IOException {
+        FakeExchange prima = FakeExchange.get(CHIAVE);
+        assertFalse(cache.rispondiDaCache(prima, CHIAVE));
+        genera(prima, CORPO);
+        String etag = prima.getResponseHeaders().getFirst("ETag");
+        assertNotNull(etag);
+
+        FakeExchange seconda = FakeExchange.get(CHIAVE);
+        assertTrue(cache.rispondiDaCache(seconda, CHIAVE));
+        assertEquals(200, seconda.stato());
+        assertEquals(CORPO.length(), seconda.byteInviati());
+        assertEquals(etag, seconda.getResponseHeaders().getFirst("ETag"));
+
+        FakeExchange condizionale = FakeExchange.get(CHIAVE);
+        condizionale.getRequestHeaders().set("If-None-Match", etag);
+        assertTrue(cache.rispondiDaCache(condizionale, CHIAVE));
+        assertEquals(304, condizionale.stato());
+    }
+
+    @Test
+    void scritturaInvalidaVociEdEtag() throws IOException {
+        FakeExchange prima = FakeExchange.get(CHIAVE);
+        cache.rispondiDaCache(prima, CHIAVE);
+        genera(prima, CORPO);
+        String etag = prima.getResponseHeaders().getFirst("ETag");
+
+        cache.inizioScrittura();
+        cache.fineScrittura();
+
+        FakeExchange condizionale = FakeExchange.get(CHIAVE);
+        condizionale.getRequestHeaders().set("If-None-Match", etag);
+        assertFalse(cache.rispondiDaCache(condizionale, CHIAVE));
+    }
+
+    @Test
+    void letturaSovrappostaAUnaScritturaNonVieneMemorizzata() throws IOException {
+        FakeExchange exchange = FakeExchange.get(CHIAVE);
+        ListingCache.Risposta risposta = cache.apri(exchange, CHIAVE);
+        risposta.write(CORPO.getBytes(StandardCharsets.UTF_8));
+        cache.inizioScrittura();
+        cache.fineScrittura();
+        risposta.close();
+
+        assertEquals(200, exchange.stato());
+        assertNull(exchange.getResponseHeaders().getFirst("ETag"));
+        assertFalse(cache.rispondiDaCache(FakeExchange.get(CHIAVE), CHIAVE));
+    }
+
+    @Test
+    void rispostaOltreIlLimitePassaAlloStreamingSenzaEtag() throws IOException {
+        FakeExchange exchange = FakeExchange.get(CHIAVE);
+        genera(exchange, "x".repeat(2000));
+        assertEquals(200, exchange.stato());
+        assertEquals(0, exchange.lunghezzaRisposta());
+        assertEquals(2000, exchange.byteInviati());
+        assertNull(exchange.getResponseHeaders().getFirst("ETag"));
+        assertFalse(cache.rispondiDaCache(FakeExchange.get(CHIAVE), CHIAVE));
+    }
+
+    private void genera(FakeExchange exchange, String corpo) throws IOException {
+        try (ListingCache.Risposta risposta = cache.apri(exchange, CHIAVE)) {
+            byte[] dati = corpo.getBytes(StandardCharsets.UTF_8);
+            // A pezzi, come lo scrive il writer bufferizzato degli handler
+            for (int i = 0; i < dati.length; i += 100) {
+                risposta.write(dati, i, Math.min(100, dati.length - i));
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package magazzino;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MappedJournalTest {
+    private static final int CAPACITA = 4096;
+    // lunghezza e CRC prima dei dati di ogni record
+    private static final int INTESTAZIONE = 8;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void recordVengonoRilettiInOrdineEIlJournalContinuaDopo() throws IOException {
+        try (MappedJournal journal = apri(new ArrayList<>())) {
+            aggiungi(journal, "primo");
+            aggiungi(journal, "secondo");
+        }
+        List<String> riletti = new ArrayList<>();
+        try (MappedJournal journal = apri(riletti)) {
+            assertEquals(List.of("primo", "secondo"), riletti);
+            aggiungi(journal, "terzo");
+        }
+        riletti.clear();
+        apri(riletti).close();
+        assertEquals(List.of("primo", "secondo", "terzo"), riletti);
+    }
+
+    @Test
+    void rilettaSiFermaAlRecordConCrcSbagliato() throws IOException {
+        try (MappedJournal journal = apri(new ArrayList<>())) {
+            aggiungi(journal, "primo");
+            aggiungi(journal, "secondo");
+            aggiungi(journal, "terzo");
+        }
+        // Un byte cambiato nei dati del secondo record
+        modifica(INTESTAZIONE + 5 + INTESTAZIONE + 2, (byte) 'X');
+
+        List<String> riletti = new ArrayList<>();
+        try (MappedJournal journal = apri(riletti)) {
+            assertEquals(List.of("primo"), riletti);
+            assertEquals(INTESTAZIONE + 5, journal.usati());
+            // Una scrittura più corta sopra i resti azzerati non rende leggibile il terzo record
+            aggiungi(journal, "nuovo");
+        }
+        riletti.clear();
+        apri(riletti).close();
+        assertEquals(List.of("primo", "nuovo"), riletti);
+    }
+
+    @Test
+    void recordSenzaLunghezzaEIgnorato() throws IOException {
+        try (MappedJournal journal = apri(new ArrayList<>())) {
+            aggiungi(journal, "primo");
+        }
+        // Dati e CRC scritti ma lunghezza ancora a zero: scrittura interrotta prima della fine
+        byte[] dati = "secondo".getBytes(StandardCharsets.UTF_8);
+        int posizione = INTESTAZIONE + 5;
+        for (int i = 0; i < dati.length; i++) {
+            modifica(posizione + INTESTAZIONE + i, dati[i]);
+        }
+        List<String> riletti = new ArrayList<>();
+        apri(riletti).close();
+        assertEquals(List.of("primo"), riletti);
+    }
+
+    @Test
+    void recordCheNonEntraVieneRifiutato() throws IOException {
+        try (MappedJournal journal = apri(new ArrayList<>())) {
+            assertFalse(journal.aggiungi(new byte[CAPACITA], CAPACITA));
+            assertTrue(journal.aggiungi(new byte[CAPACITA - INTESTAZIONE], CAPACITA - INTESTAZIONE));
+            assertFalse(journal.aggiungi(new byte[1], 1));
+        }
+    }
+
+    private MappedJournal apri(List<String> riletti) throws IOException {
+        return MappedJournal.apri(directory.resolve("journal"), CAPACITA, false,
+                dati -> {
+                    byte[] copia = new byte[dati.remaining()];
+                    dati.get(copia);
+                    riletti.add(new String(copia, StandardCharsets.UTF_8));
+                });
+    }
+
+    private static void aggiungi(MappedJournal journal, String testo) {
+        byte[] dati = testo.getBytes(StandardCharsets.UTF_8);
+        assertTrue(journal.aggiungi(dati, dati.length));
+    }
+
+    private void modifica(long posizione, byte valore) throws IOException {
+        try (FileChannel canale = FileChannel.open(directory.resolve("journal"), StandardOpenOption.WRITE)) {
+            canale.write(ByteBuffer.wrap(new byte[]{valore}), posizione);
+        }
+    }
+}
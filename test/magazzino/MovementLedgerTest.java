@@ -0,0 +1,131 @@
+package magazzino;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MovementLedgerTest {
+    // Intestazione del file e record con operatore di 5 byte (lunghezza, contenuto, CRC)
+    private static final int INTESTAZIONE = 8;
+    private static final int RECORD = 4 + 22 + 5 + 4;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void movimentiScrittiVengonoRilettiPerProdotto() throws IOException {
+        MovementLedger registro = apri();
+        registro.registra(MovementLedger.INSERIMENTO, 1, 10, 10, "mario");
+        registro.registra(MovementLedger.INSERIMENTO, 2, 4, 4, "mario");
+        registro.registra(MovementLedger.PRELIEVO, 1, -3, 7, "lucia");
+        registro.close();
+
+        assertEquals(List.of("1:1:10:10:mario", "2:1:-3:7:lucia"), storicoERiapertura(1));
+    }
+
+    @Test
+    void recordScrittoAMetaInCodaVieneIgnoratoETolto() throws IOException {
+        MovementLedger registro = apri();
+        registro.registra(MovementLedger.INSERIMENTO, 1, 10, 10, "mario");
+        registro.registra(MovementLedger.PRELIEVO, 1, -3, 7, "mario");
+        registro.close();
+        try (FileChannel canale = FileChannel.open(file(), StandardOpenOption.WRITE)) {
+            canale.truncate(INTESTAZIONE + RECORD + RECORD / 2);
+        }
+
+        registro = apri();
+        assertEquals(List.of("1:1:10:10:mario"), storico(registro, 1));
+        // Il nuovo movimento è accodato dopo l'ultimo record valido e resta leggibile
+        registro.registra(MovementLedger.PRELIEVO, 1, -2, 8, "mario");
+        registro.close();
+        assertEquals(List.of("1:1:10:10:mario", "2:1:-2:8:mario"), storicoERiapertura(1));
+        assertEquals(INTESTAZIONE + 2 * RECORD, Files.size(file()));
+    }
+
+    @Test
+    void letturaSiFermaAlPrimoRecordCorrotto() throws IOException {
+        MovementLedger registro = apri();
+        registro.registra(MovementLedger.INSERIMENTO, 1, 10, 10, "mario");
+        registro.registra(MovementLedger.PRELIEVO, 1, -3, 7, "mario");
+        registro.registra(MovementLedger.PRELIEVO, 1, -1, 6, "mario");
+        registro.close();
+        // Un bit cambiato nel delta del secondo record
+        try (FileChannel canale = FileChannel.open(file(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long posizione = INTESTAZIONE + RECORD + 4 + 12;
+            ByteBuffer byteDelta = ByteBuffer.allocate(1);
+            canale.read(byteDelta, posizione);
+            byteDelta.put(0, (byte) (byteDelta.get(0) ^ 0x01)).rewind();
+            canale.write(byteDelta, posizione);
+        }
+
+        assertEquals(List.of("1:1:10:10:mario"), storicoERiapertura(1));
+    }
+
+    @Test
+    void movimentiPubblicatiDuranteLaChiusuraScrittiOppureScartati() throws Exception {
+        MovementLedger registro = MovementLedger.apri(directory, 1 << 16, 1 << 24, 4, false);
+        AtomicInteger accettati = new AtomicInteger();
+        CountDownLatch partiti = new CountDownLatch(4);
+        List<Thread> produttori = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread produttore = new Thread(() -> {
+                partiti.countDown();
+                // Continua anche a registro chiuso: i movimenti tardivi devono risultare scartati
+                for (int i = 0; i < 20_000; i++) {
+                    if (registro.registra(MovementLedger.PRELIEVO, 1, -1, MovementLedger.NON_NOTO, "carico")) {
+                        accettati.incrementAndGet();
+                    }
+                }
+            });
+            produttori.add(produttore);
+            produttore.start();
+        }
+        partiti.await();
+        registro.close();
+        for (Thread produttore : produttori) {
+            produttore.join();
+        }
+
+        // Ogni movimento accettato è sul file, ogni altro è contato come scartato
+        int scritti = storicoERiapertura(1).size();
+        assertEquals(accettati.get(), scritti);
+        assertEquals(4 * 20_000, scritti + registro.scartati());
+    }
+
+    private MovementLedger apri() throws IOException {
+        return MovementLedger.apri(directory, 16, 1 << 20, 4, false);
+    }
+
+    private Path file() {
+        return directory.resolve("movimenti-000001.bin");
+    }
+
+    private static List<String> storico(MovementLedger registro, int id) throws IOException {
+        List<String> movimenti = new ArrayList<>();
+        registro.storico(id, (istante, tipo, idMovimento, delta, rimanente, operatore) ->
+                movimenti.add(tipo + ":" + idMovimento + ":" + delta + ":" + rimanente + ":" + operatore));
+        return movimenti;
+    }
+
+    // Storico letto da un registro appena riaperto sulla stessa directory
+    private List<String> storicoERiapertura(int id) throws IOException {
+        MovementLedger registro = apri();
+        try {
+            return storico(registro, id);
+        } finally {
+            registro.close();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package magazzino;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PooledDataSourceTest {
+    private static final AtomicInteger DATABASE = new AtomicInteger();
+    private static final String INSERT = "INSERT INTO prova (valore) VALUES (?)";
+
+    private PooledDataSource pool;
+
+    @BeforeEach
+    void apri() throws SQLException {
+        // Una sola connessione: ogni prestito riusa la stessa connessione fisica e i suoi statement
+        pool = new PooledDataSource("jdbc:h2:mem:pool" + DATABASE.incrementAndGet() + ";DB_CLOSE_DELAY=-1",
+                "sa", "", 0, 1, 500, 0, 0, 16);
+        try (Connection conn = pool.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE prova (id INT AUTO_INCREMENT PRIMARY KEY, valore INT)");
+        }
+    }
+
+    @AfterEach
+    void chiudi() {
+        pool.close();
+    }
+
+    @Test
+    void batchNonEseguitoNonFinisceNelProssimoUso() throws SQLException {
+        try (Connection conn = pool.getConnection(); PreparedStatement stmt = conn.prepareStatement(INSERT)) {
+            stmt.setInt(1, 1);
+            stmt.addBatch();
+            stmt.setInt(1, 2);
+            stmt.addBatch();
+            // Importazione interrotta prima di executeBatch
+        }
+
+        try (Connection conn = pool.getConnection(); PreparedStatement stmt = conn.prepareStatement(INSERT)) {
+            stmt.setInt(1, 3);
+            stmt.addBatch();
+            assertEquals(1, stmt.executeBatch().length);
+        }
+        assertEquals(1, righe());
+    }
+
+    @Test
+    void batchDiUnoStatementNonChiusoVieneScartatoAllaRestituzione() throws SQLException {
+        Connection conn = pool.getConnection();
+        PreparedStatement abbandonato = conn.prepareStatement(INSERT);
+        abbandonato.setInt(1, 1);
+        abbandonato.addBatch();
+        conn.close();
+
+        try (Connection altra = pool.getConnection(); PreparedStatement stmt = altra.prepareStatement(INSERT)) {
+            stmt.setInt(1, 2);
+            stmt.addBatch();
+            assertEquals(1, stmt.executeBatch().length);
+        }
+        assertEquals(1, righe());
+    }
+
+    @Test
+    void impostazioniDelloStatementTornanoAiValoriIniziali() throws SQLException {
+        for (int i = 0; i < 3; i++) {
+            inserisci(i);
+        }
+        String select = "SELECT valore FROM prova";
+        try (Connection conn = pool.getConnection(); PreparedStatement stmt = conn.prepareStatement(select)) {
+            stmt.setMaxRows(1);
+            stmt.setQueryTimeout(5);
+            stmt.setFetchSize(1);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+            }
+        }
+
+        try (Connection conn = pool.getConnection(); PreparedStatement stmt = conn.prepareStatement(select)) {
+            assertEquals(0, stmt.getMaxRows());
+            assertEquals(0, stmt.getQueryTimeout());
+            int lette = 0;
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    lette++;
+                }
+            }
+            assertEquals(3, lette);
+        }
+    }
+
+    @Test
+    void transazioneApertaVieneAnnullataAllaRestituzione() throws SQLException {
+        try (Connection conn = pool.getConnection(); PreparedStatement stmt = conn.prepareStatement(INSERT)) {
+            conn.setAutoCommit(false);
+            stmt.setInt(1, 1);
+            stmt.executeUpdate();
+        }
+        assertEquals(0, righe());
+        try (Connection conn = pool.getConnection()) {
+            assertEquals(true, conn.getAutoCommit());
+        }
+    }
+
+    @Test
+    void poolEsauritoSegnalaErroreTransitorio() throws SQLException {
+        try (Connection conn = pool.getConnection()) {
+            assertThrows(SQLTransientConnectionException.class, pool::getConnection);
+        }
+        // La connessione restituita torna disponibile
+        pool.getConnection().close();
+    }
+
+    private void inserisci(int valore) throws SQLException {
+        try (Connection conn = pool.getConnection(); PreparedStatement stmt = conn.prepareStatement(INSERT)) {
+            stmt.setInt(1, valore);
+            stmt.executeUpdate();
+        }
+    }
+
+    private int righe() throws SQLException {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM prova");
+             ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
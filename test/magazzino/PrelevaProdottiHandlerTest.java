@@ -0,0 +1,123 @@
+package magazzino;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PrelevaProdottiHandlerTest {
+    private static final AtomicInteger DATABASE = new AtomicInteger();
+
+    private PooledDataSource pool;
+
+    @BeforeEach
+    void apri() throws SQLException {
+        pool = new PooledDataSource("jdbc:h2:mem:prelievi" + DATABASE.incrementAndGet() + ";MODE=MySQL;DB_CLOSE_DELAY=-1",
+                "sa", "", 0, 2, 2000, 0, 0, 16);
+        try (Connection conn = pool.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE magazzino (id INT AUTO_INCREMENT PRIMARY KEY, nome VARCHAR(255) NOT NULL, "
+                    + "quantita INT NOT NULL, scadenza DATE)");
+            stmt.execute("CREATE TABLE da_ordinare (id INT PRIMARY KEY, nome VARCHAR(255) NOT NULL, quantita INT NOT NULL)");
+        }
+        Main.sedi = SiteRouter.singola(new JdbcInventoryRepository(pool));
+    }
+
+    @AfterEach
+    void chiudi() {
+        pool.close();
+    }
+
+    @Test
+    void rigaNonDisponibileRifiutaTuttoIlPrelievo() throws Exception {
+        int garze = inserisci("Garze", 5);
+        int aghi = inserisci("Aghi", 2);
+
+        // Due righe sullo stesso prodotto si sommano: 3 + 3 supera la scorta di 5
+        FakeExchange exchange = preleva(aghi + ";1\n" + garze + ";3\n" + garze + ";3\n");
+        assertEquals(409, exchange.stato());
+        assertEquals("{\"applicato\":false,\"righe\":["
+                + "{\"id\":" + aghi + ",\"quantita\":1,\"esito\":\"ok\",\"rimanente\":1},"
+                + "{\"id\":" + garze + ",\"quantita\":3,\"esito\":\"ok\",\"rimanente\":2},"
+                + "{\"id\":" + garze + ",\"quantita\":3,\"esito\":\"Quantità richiesta non disponibile.\"}]}", corpo(exchange));
+        assertEquals(List.of("Aghi:2", "Garze:5"), righe("magazzino"));
+    }
+
+    @Test
+    void prelievoApplicatoRestituisceLeRimanenzeESpostaGliEsauriti() throws Exception {
+        int garze = inserisci("Garze", 5);
+        int aghi = inserisci("Aghi", 2);
+
+        FakeExchange exchange = preleva(garze + ";2\r\n" + aghi + ";2\r\n\r\n" + garze + ";1");
+        assertEquals(200, exchange.stato());
+        assertEquals("{\"applicato\":true,\"righe\":["
+                + "{\"id\":" + garze + ",\"quantita\":2,\"esito\":\"ok\",\"rimanente\":3},"
+                + "{\"id\":" + aghi + ",\"quantita\":2,\"esito\":\"ok\",\"rimanente\":0},"
+                + "{\"id\":" + garze + ",\"quantita\":1,\"esito\":\"ok\",\"rimanente\":2}]}", corpo(exchange));
+        assertEquals(List.of("Garze:2"), righe("magazzino"));
+        assertEquals(List.of("Aghi:0"), righe("da_ordinare"));
+    }
+
+    @Test
+    void prodottoInesistenteRifiutaIlPrelievo() throws Exception {
+        int garze = inserisci("Garze", 5);
+        FakeExchange exchange = preleva(garze + ";1\n" + (garze + 100) + ";1");
+        assertEquals(409, exchange.stato());
+        assertEquals(List.of("Garze:5"), righe("magazzino"));
+    }
+
+    @Test
+    void righeMalformateOVuoteRispondono400() throws Exception {
+        assertEquals(400, preleva("1;x").stato());
+        assertEquals(400, preleva("1;0").stato());
+        assertEquals(400, preleva("1").stato());
+        assertEquals(400, preleva("\n\n").stato());
+    }
+
+    private static FakeExchange preleva(String corpo) throws Exception {
+        FakeExchange exchange = FakeExchange.post("/prelevaProdotti", corpo);
+        exchange.setStreams(null, new ByteArrayOutputStream());
+        new Main.PrelevaProdottiHandler().handle(exchange);
+        return exchange;
+    }
+
+    private static String corpo(FakeExchange exchange) {
+        return ((ByteArrayOutputStream) exchange.getResponseBody()).toString(StandardCharsets.UTF_8);
+    }
+
+    private int inserisci(String nome, int quantita) throws SQLException {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("INSERT INTO magazzino (nome, quantita) VALUES (?, ?)",
+                     Statement.RETURN_GENERATED_KEYS)) {
+            stmt.setString(1, nome);
+            stmt.setInt(2, quantita);
+            stmt.executeUpdate();
+            try (ResultSet chiavi = stmt.getGeneratedKeys()) {
+                chiavi.next();
+                return chiavi.getInt(1);
+            }
+        }
+    }
+
+    private List<String> righe(String tabella) throws SQLException {
+        List<String> righe = new ArrayList<>();
+        try (Connection conn = pool.getConnection(); Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT nome, quantita FROM " + tabella + " ORDER BY nome")) {
+            while (rs.next()) {
+                righe.add(rs.getString(1) + ":" + rs.getInt(2));
+            }
+        }
+        return righe;
+    }
+}
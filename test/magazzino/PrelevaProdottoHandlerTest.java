@@ -0,0 +1,166 @@
+package magazzino;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PrelevaProdottoHandlerTest {
+    private static final AtomicInteger DATABASE = new AtomicInteger();
+
+    private PooledDataSource pool;
+
+    @BeforeEach
+    void apri() throws SQLException {
+        pool = new PooledDataSource("jdbc:h2:mem:prelievo" + DATABASE.incrementAndGet()
+                + ";MODE=MySQL;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000", "sa", "", 0, 8, 5000, 0, 0, 16);
+        try (Connection conn = pool.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE magazzino (id INT AUTO_INCREMENT PRIMARY KEY, nome VARCHAR(255) NOT NULL, "
+                    + "quantita INT NOT NULL, scadenza DATE)");
+            stmt.execute("CREATE TABLE da_ordinare (id INT PRIMARY KEY, nome VARCHAR(255) NOT NULL, quantita INT NOT NULL)");
+        }
+        Main.sedi = SiteRouter.singola(new JdbcInventoryRepository(pool));
+    }
+
+    @AfterEach
+    void chiudi() {
+        pool.close();
+    }
+
+    @Test
+    void decrementoEdEsaurimento() throws Exception {
+        int id = inserisci("Garze", 5);
+        assertEquals(200, preleva(id, 2).stato());
+        assertEquals(List.of("Garze:3"), righe("magazzino"));
+
+        FakeExchange nonDisponibile = preleva(id, 4);
+        assertEquals(400, nonDisponibile.stato());
+        assertEquals("Quantità richiesta non disponibile.", corpo(nonDisponibile));
+
+        // L'ultimo prelievo esaurisce la scorta: il prodotto passa in da_ordinare
+        assertEquals(200, preleva(id, 3).stato());
+        assertEquals(List.of(), righe("magazzino"));
+        assertEquals(List.of("Garze:0"), righe("da_ordinare"));
+
+        FakeExchange nonTrovato = preleva(id, 1);
+        assertEquals(400, nonTrovato.stato());
+        assertEquals("Prodotto non trovato.", corpo(nonTrovato));
+    }
+
+    @Test
+    void quantitaNonPositivaRifiutata() throws Exception {
+        int id = inserisci("Garze", 5);
+        assertEquals(400, preleva(id, 0).stato());
+        assertEquals(List.of("Garze:5"), righe("magazzino"));
+    }
+
+    @Test
+    void prelieviConcorrentiNonScendonoSottoZero() throws Exception {
+        int id = inserisci("Siringhe", 10);
+        ExecutorService thread = Executors.newFixedThreadPool(8);
+        try {
+            CountDownLatch via = new CountDownLatch(1);
+            List<Future<Integer>> esiti = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                esiti.add(thread.submit(() -> {
+                    via.await(5, TimeUnit.SECONDS);
+                    return preleva(id, 1).stato();
+                }));
+            }
+            via.countDown();
+            int riusciti = 0;
+            for (Future<Integer> esito : esiti) {
+                if (esito.get() == 200) {
+                    riusciti++;
+                }
+            }
+            // Nove decrementi condizionali e un esaurimento: nessun prelievo perso o in eccesso
+            assertEquals(10, riusciti);
+            assertEquals(List.of(), righe("magazzino"));
+            assertEquals(List.of("Siringhe:0"), righe("da_ordinare"));
+        } finally {
+            thread.shutdownNow();
+        }
+    }
+
+    @Test
+    void eventoDiPrelievoConLaQuantitaRimasta() throws Exception {
+        int id = inserisci("Garze", 5);
+        Site sede = Main.sedi.sede(null);
+        sede.ricerca.carica(sede.repository);
+        ByteArrayOutputStream flusso = new ByteArrayOutputStream();
+        FakeExchange cliente = FakeExchange.get("/eventi");
+        cliente.setStreams(null, flusso);
+        sede.eventi.iscrivi(cliente);
+
+        assertEquals(200, preleva(id, 2).stato());
+        assertEquals(200, preleva(id, 1).stato());
+        // Quantità assolute: un client che perde o riceve due volte un evento resta allineato
+        attendi(flusso, "data: {\"id\":" + id + ",\"quantita\":2}");
+        assertTrue(flusso.toString(StandardCharsets.UTF_8).contains("data: {\"id\":" + id + ",\"quantita\":3}"));
+    }
+
+    private static FakeExchange preleva(int id, int quantita) throws Exception {
+        FakeExchange exchange = FakeExchange.post("/prelevaProdotto", "id=" + id + "&quantita=" + quantita);
+        exchange.setStreams(null, new ByteArrayOutputStream());
+        new Main.PrelevaProdottoHandler().handle(exchange);
+        return exchange;
+    }
+
+    private static void attendi(ByteArrayOutputStream flusso, String testo) throws InterruptedException {
+        long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!flusso.toString(StandardCharsets.UTF_8).contains(testo)) {
+            if (System.nanoTime() > limite) {
+                throw new AssertionError("evento non ricevuto: " + testo);
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private static String corpo(FakeExchange exchange) {
+        return ((ByteArrayOutputStream) exchange.getResponseBody()).toString(StandardCharsets.UTF_8);
+    }
+
+    private int inserisci(String nome, int quantita) throws SQLException {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("INSERT INTO magazzino (nome, quantita) VALUES (?, ?)",
+                     Statement.RETURN_GENERATED_KEYS)) {
+            stmt.setString(1, nome);
+            stmt.setInt(2, quantita);
+            stmt.executeUpdate();
+            try (ResultSet chiavi = stmt.getGeneratedKeys()) {
+                chiavi.next();
+                return chiavi.getInt(1);
+            }
+        }
+    }
+
+    private List<String> righe(String tabella) throws SQLException {
+        List<String> righe = new ArrayList<>();
+        try (Connection conn = pool.getConnection(); Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT nome, quantita FROM " + tabella + " ORDER BY nome")) {
+            while (rs.next()) {
+                righe.add(rs.getString(1) + ":" + rs.getInt(2));
+            }
+        }
+        return righe;
+    }
+}
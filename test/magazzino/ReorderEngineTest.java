@@ -0,0 +1,82 @@
+package magazzino;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReorderEngineTest {
+    private static final long GIORNO = 86_400_000L;
+    private static final long INIZIO = 1_900_000_000_000L;
+
+    private final ReorderEngine riordino = new ReorderEngine(14, 7, 30);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void consumoCostanteVieneStimatoCorrettamente() {
+        for (int giorno = 0; giorno < 120; giorno++) {
+            riordino.registraPrelievo(1, 10, INIZIO + giorno * GIORNO);
+        }
+        assertEquals(10, riordino.consumoGiornaliero(1, INIZIO + 120 * GIORNO), 0.5);
+    }
+
+    @Test
+    void prodottoConPocoStoricoNonVieneSottostimato() {
+        riordino.registraPrelievo(1, 10, INIZIO);
+        riordino.registraPrelievo(1, 10, INIZIO + GIORNO);
+        // Due giorni di storico: la finestra è corta, non l'intera costante di tempo
+        assertEquals(10, riordino.consumoGiornaliero(1, INIZIO + 2 * GIORNO), 1);
+        assertEquals(0, riordino.consumoGiornaliero(2, INIZIO));
+    }
+
+    @Test
+    void consumoSiDimezzaDopoUnEmivitaSenzaPrelievi() {
+        for (int giorno = 0; giorno < 200; giorno++) {
+            riordino.registraPrelievo(1, 10, INIZIO + giorno * GIORNO);
+        }
+        double prima = riordino.consumoGiornaliero(1, INIZIO + 200 * GIORNO);
+        double dopo = riordino.consumoGiornaliero(1, INIZIO + 214 * GIORNO);
+        assertEquals(0.5, dopo / prima, 0.01);
+    }
+
+    @Test
+    void riordinoSottoIlLeadTimeEQuantitaPerLaCopertura() {
+        assertTrue(riordino.daRiordinare(50, 10));
+        assertFalse(riordino.daRiordinare(100, 10));
+        assertEquals(320, riordino.quantitaSuggerita(50, 10));
+        assertEquals(0, riordino.quantitaSuggerita(400, 10));
+        assertEquals(Double.POSITIVE_INFINITY, ReorderEngine.giorniCopertura(5, 0));
+        assertEquals(0, ReorderEngine.giorniCopertura(0, 10));
+        assertThrows(IllegalArgumentException.class, () -> new ReorderEngine(0, 7, 30));
+    }
+
+    @Test
+    void aggregatiSopravvivonoAlSalvataggio() throws IOException {
+        Path file = directory.resolve("consumi.bin");
+        riordino.carica(file);
+        assertEquals(0, riordino.dimensione());
+
+        riordino.registraPrelievo(1, 10, INIZIO);
+        riordino.registraPrelievo(2, 3, INIZIO + GIORNO);
+        riordino.salva(file);
+
+        ReorderEngine ricaricato = new ReorderEngine(14, 7, 30);
+        ricaricato.carica(file);
+        assertEquals(2, ricaricato.dimensione());
+        long adesso = INIZIO + 5 * GIORNO;
+        assertEquals(riordino.consumoGiornaliero(1, adesso), ricaricato.consumoGiornaliero(1, adesso));
+        assertEquals(riordino.consumoGiornaliero(2, adesso), ricaricato.consumoGiornaliero(2, adesso));
+
+        Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        assertThrows(IOException.class, () -> ricaricato.carica(file));
+    }
+}
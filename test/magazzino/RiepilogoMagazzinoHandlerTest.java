@@ -0,0 +1,264 @@
+package magazzino;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RiepilogoMagazzinoHandlerTest {
+    private static final AtomicInteger DATABASE = new AtomicInteger();
+    private static final Pattern ID = Pattern.compile("\\{\"id\":(\\d+)");
+    private static final Pattern CURSORE = Pattern.compile("\"nextCursor\":(?:\"([^\"]*)\"|null)");
+
+    private PooledDataSource pool;
+
+    @BeforeEach
+    void apri() throws SQLException {
+        pool = new PooledDataSource("jdbc:h2:mem:riepilogo" + DATABASE.incrementAndGet() + ";MODE=MySQL;DB_CLOSE_DELAY=-1",
+                "sa", "", 0, 2, 2000, 0, 0, 16);
+        try (Connection conn = pool.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE magazzino (id INT AUTO_INCREMENT PRIMARY KEY, nome VARCHAR(255) NOT NULL, "
+                    + "quantita INT NOT NULL, scadenza DATE)");
+        }
+        Main.sedi = SiteRouter.singola(new JdbcInventoryRepository(pool));
+    }
+
+    @AfterEach
+    void chiudi() {
+        pool.close();
+    }
+
+    @Test
+    void paginaSottoLaSogliaDellaCacheInviataConLunghezzaEdEtag() throws Exception {
+        LocalDate scadenza = LocalDate.of(2030, 1, 1);
+        StringBuilder atteso = new StringBuilder("{\"prodotti\":[");
+        try (Connection conn = pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("INSERT INTO magazzino (nome, quantita, scadenza) VALUES (?, ?, ?)")) {
+            for (int i = 0; i < 2000; i++) {
+                String nome = "Garze \"sterili\"\tlotto " + i;
+                LocalDate data = i % 2 == 0 ? scadenza.plusDays(i) : null;
+                stmt.setString(1, nome);
+                stmt.setInt(2, i);
+                stmt.setDate(3, data != null ? Date.valueOf(data) : null);
+                stmt.addBatch();
+                if (i >= 1000) {
+                    continue;
+                }
+                if (i > 0) {
+                    atteso.append(',');
+                }
+                atteso.append("{\"id\":").append(i + 1)
+                        .append(",\"nome\":\"Garze \\\"sterili\\\"\\tlotto ").append(i)
+                        .append("\",\"quantita\":").append(i)
+                        .append(",\"scadenza\":").append(data != null ? "\"" + data + "\"" : "null").append('}');
+            }
+            stmt.executeBatch();
+        }
+        atteso.append("],\"nextCursor\":\"1000\"}");
+
+        FakeExchange exchange = FakeExchange.get("/riepilogoMagazzino?limit=1000");
+        ByteArrayOutputStream corpo = new ByteArrayOutputStream();
+        exchange.setStreams(null, corpo);
+        new Main.RiepilogoMagazzinoHandler().handle(exchange);
+
+        // La pagina resta sotto la soglia della cache: inviata intera, con lunghezza ed ETag
+        assertEquals(200, exchange.stato());
+        assertEquals(corpo.size(), exchange.lunghezzaRisposta());
+        assertNotNull(exchange.getResponseHeaders().getFirst("ETag"));
+        assertEquals(atteso.toString(), corpo.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void paginaOltreLaSogliaDellaCacheInviataAPezziSenzaEtag() throws Exception {
+        try (Connection conn = pool.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("INSERT INTO magazzino (nome, quantita) SELECT CONCAT('Siringhe lotto ', X), X FROM SYSTEM_RANGE(1, 300)");
+        }
+        // Cache da 4 KB: la pagina da 300 righe non ci sta e viene scritta man mano che arrivano le righe
+        Main.sedi = new SiteRouter(List.of(new Site(SiteRouter.PREDEFINITA, new JdbcInventoryRepository(pool),
+                new ListingCache(256, 4096), new ReorderEngine(14, 7, 30), new EventBus(256, 200))));
+
+        FakeExchange exchange = FakeExchange.get("/riepilogoMagazzino?limit=1000");
+        ByteArrayOutputStream corpo = new ByteArrayOutputStream();
+        exchange.setStreams(null, corpo);
+        new Main.RiepilogoMagazzinoHandler().handle(exchange);
+
+        assertEquals(200, exchange.stato());
+        assertEquals(0, exchange.lunghezzaRisposta());
+        assertNull(exchange.getResponseHeaders().getFirst("ETag"));
+        String json = corpo.toString(StandardCharsets.UTF_8);
+        assertTrue(json.startsWith("{\"prodotti\":[{\"id\":1,\"nome\":\"Siringhe lotto 1\",\"quantita\":1,\"scadenza\":null},"), json);
+        assertTrue(json.endsWith("{\"id\":300,\"nome\":\"Siringhe lotto 300\",\"quantita\":300,\"scadenza\":null}],\"nextCursor\":null}"));
+        Matcher id = ID.matcher(json);
+        int righe = 0;
+        while (id.find()) {
+            righe++;
+        }
+        assertEquals(300, righe);
+    }
+
+    @Test
+    void magazzinoVuotoDaUnaPaginaVuota() throws Exception {
+        FakeExchange exchange = FakeExchange.get("/riepilogoMagazzino");
+        ByteArrayOutputStream corpo = new ByteArrayOutputStream();
+        exchange.setStreams(null, corpo);
+        new Main.RiepilogoMagazzinoHandler().handle(exchange);
+        assertEquals(200, exchange.stato());
+        assertEquals("{\"prodotti\":[],\"nextCursor\":null}", corpo.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void erroreDellaQueryPrimaDelleRigheRisponde500() throws Exception {
+        try (Connection conn = pool.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP TABLE magazzino");
+        }
+        FakeExchange exchange = FakeExchange.get("/riepilogoMagazzino");
+        ByteArrayOutputStream corpo = new ByteArrayOutputStream();
+        exchange.setStreams(null, corpo);
+        new Main.RiepilogoMagazzinoHandler().handle(exchange);
+        assertEquals(500, exchange.stato());
+        assertEquals(-1, exchange.lunghezzaRisposta());
+        assertEquals(0, corpo.size());
+    }
+
+    @Test
+    void cursoreConservaChiaveEId() {
+        String cursore = Main.RiepilogoMagazzinoHandler.codificaCursore("Garze | sterili àè", 42);
+        assertTrue(cursore.matches("[A-Za-z0-9_-]+"));
+        assertArrayEquals(new String[]{"Garze | sterili àè", "42"},
+                Main.RiepilogoMagazzinoHandler.decodificaCursore(cursore));
+    }
+
+    @Test
+    void cursoreNonValidoVieneRifiutato() throws Exception {
+        assertThrows(IllegalArgumentException.class, () -> Main.RiepilogoMagazzinoHandler.decodificaCursore("non*base64"));
+        String senzaSeparatore = Base64.getUrlEncoder().encodeToString("Garze".getBytes(StandardCharsets.UTF_8));
+        assertThrows(IllegalArgumentException.class, () -> Main.RiepilogoMagazzinoHandler.decodificaCursore(senzaSeparatore));
+
+        FakeExchange exchange = FakeExchange.get("/riepilogoMagazzino?sort=nome&after=" + senzaSeparatore);
+        new Main.RiepilogoMagazzinoHandler().handle(exchange);
+        assertEquals(400, exchange.stato());
+    }
+
+    @Test
+    void pagineConNomiUgualiNonSaltanoNeRipetonoRighe() throws Exception {
+        String[] nomi = {"Garze", "Aghi", "Garze", "Cerotti", "Garze", "Aghi", "Bende"};
+        int[] ids = new int[nomi.length];
+        for (int i = 0; i < nomi.length; i++) {
+            ids[i] = inserisci(nomi[i], null);
+        }
+        // Ordine (nome, id): il cursore deve distinguere le righe con lo stesso nome
+        List<Integer> attesi = List.of(ids[1], ids[5], ids[6], ids[3], ids[0], ids[2], ids[4]);
+        assertEquals(attesi, scorri("nome", 2));
+    }
+
+    @Test
+    void pagineInOrdineDiScadenzaConRigheSenzaScadenzaInFondo() throws Exception {
+        LocalDate oggi = LocalDate.of(2030, 1, 1);
+        int senza = inserisci("Bende", null);
+        int tardi = inserisci("Garze", oggi.plusDays(10));
+        int presto1 = inserisci("Aghi", oggi);
+        int presto2 = inserisci("Cerotti", oggi);
+        assertEquals(List.of(presto1, presto2, tardi, senza), scorri("scadenza", 1));
+    }
+
+    @Test
+    void fetchACursoreLeggeTutteLeRigheABlocchi() throws Exception {
+        try (Connection conn = pool.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("INSERT INTO magazzino (nome, quantita) SELECT 'Siringhe', X FROM SYSTEM_RANGE(1, 1000)");
+        }
+        try (Connection conn = pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT id FROM magazzino")) {
+            JdbcInventoryRepository.configuraFetch(stmt, "cursor", 64);
+            assertEquals(64, stmt.getFetchSize());
+            int righe = 0;
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    righe++;
+                }
+            }
+            assertEquals(1000, righe);
+        }
+    }
+
+    @Test
+    void fetchStreamRigaPerRigaEBufferLasciaIlDefaultDelDriver() throws Exception {
+        assertEquals(List.of(Integer.MIN_VALUE), dimensioniFetch("stream"));
+        assertEquals(List.of(), dimensioniFetch("buffer"));
+    }
+
+    private int inserisci(String nome, LocalDate scadenza) throws SQLException {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("INSERT INTO magazzino (nome, quantita, scadenza) VALUES (?, 1, ?)",
+                     Statement.RETURN_GENERATED_KEYS)) {
+            stmt.setString(1, nome);
+            stmt.setDate(2, scadenza != null ? Date.valueOf(scadenza) : null);
+            stmt.executeUpdate();
+            try (ResultSet chiavi = stmt.getGeneratedKeys()) {
+                chiavi.next();
+                return chiavi.getInt(1);
+            }
+        }
+    }
+
+    // Legge tutte le pagine come farebbe un client, seguendo il cursore restituito dall'handler
+    private static List<Integer> scorri(String ordinamento, int limite) throws Exception {
+        List<Integer> ids = new ArrayList<>();
+        String cursore = null;
+        do {
+            FakeExchange exchange = FakeExchange.get("/riepilogoMagazzino?sort=" + ordinamento + "&limit=" + limite
+                    + (cursore != null ? "&after=" + cursore : ""));
+            ByteArrayOutputStream corpo = new ByteArrayOutputStream();
+            exchange.setStreams(null, corpo);
+            new Main.RiepilogoMagazzinoHandler().handle(exchange);
+            assertEquals(200, exchange.stato());
+
+            String json = corpo.toString(StandardCharsets.UTF_8);
+            Matcher id = ID.matcher(json);
+            while (id.find()) {
+                ids.add(Integer.parseInt(id.group(1)));
+            }
+            Matcher prossimo = CURSORE.matcher(json);
+            assertTrue(prossimo.find(), json);
+            cursore = prossimo.group(1);
+        } while (cursore != null);
+        return ids;
+    }
+
+    // Dimensioni passate a setFetchSize da configuraFetch nella modalità indicata
+    private static List<Integer> dimensioniFetch(String modalita) throws SQLException {
+        List<Integer> dimensioni = new ArrayList<>();
+        PreparedStatement stmt = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, (proxy, metodo, args) -> {
+                    if ("setFetchSize".equals(metodo.getName())) {
+                        dimensioni.add((Integer) args[0]);
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(metodo.getName());
+                });
+        JdbcInventoryRepository.configuraFetch(stmt, modalita, 64);
+        return dimensioni;
+    }
+}
@@ -0,0 +1,124 @@
+package magazzino;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SearchIndexTest {
+    private final SearchIndex indice = new SearchIndex();
+
+    @Test
+    void normalizzazioneTogliAccentiMaiuscoleEPunteggiatura() {
+        assertEquals("creme brulee 250g", SearchIndex.normalizza("  Crème BRÛLÉE -- 250g!"));
+        assertEquals("", SearchIndex.normalizza("?!"));
+        assertEquals("", SearchIndex.normalizza(null));
+    }
+
+    @Test
+    void prefissoSullaPrimaParolaVienePrimaDiQuelloSulleAltre() {
+        indice.inserisci(1, "Latte intero", 10, null);
+        indice.inserisci(2, "Latte scremato", 10, null);
+        indice.inserisci(3, "Cioccolato al latte", 10, null);
+        indice.inserisci(4, "Lattuga", 10, null);
+        indice.inserisci(5, "Pane", 10, null);
+
+        List<SearchIndex.Risultato> risultati = indice.cerca("LAT", 10);
+        // A pari punteggio vince il nome più corto
+        assertEquals(List.of(4, 1, 2, 3), ids(risultati));
+        assertTrue(risultati.stream().allMatch(r -> r.perPrefisso));
+    }
+
+    @Test
+    void ogniTermineDeveEssereInizioDiUnaParola() {
+        indice.inserisci(1, "Latte intero", 10, null);
+        indice.inserisci(2, "Latte scremato", 10, null);
+        assertEquals(List.of(2), ids(indice.cerca("scr lat", 10)));
+        assertEquals(List.of(), ids(indice.cerca("xyz", 10)));
+    }
+
+    @Test
+    void nomeUgualeAllaRicercaVincePerPunteggio() {
+        indice.inserisci(1, "Latte di soia", 10, null);
+        indice.inserisci(2, "Latte", 10, null);
+        assertEquals(List.of(2, 1), ids(indice.cerca("latte", 10)));
+    }
+
+    @Test
+    void erroriDiBattituraTrovanoNomiSimili() {
+        indice.inserisci(1, "Cioccolato fondente", 10, null);
+        indice.inserisci(2, "Ciotola", 10, null);
+        indice.inserisci(3, "Pane", 10, null);
+
+        List<SearchIndex.Risultato> risultati = indice.cerca("cioccolatto", 10);
+        assertEquals(List.of(1), ids(risultati));
+        assertFalse(risultati.get(0).perPrefisso);
+    }
+
+    @Test
+    void limiteTieneSoloIMigliori() {
+        for (int i = 1; i <= 50; i++) {
+            indice.inserisci(i, "Garza " + i, 10, null);
+        }
+        indice.inserisci(100, "Garza", 10, null);
+        List<SearchIndex.Risultato> risultati = indice.cerca("garza", 3);
+        assertEquals(3, risultati.size());
+        assertEquals(100, risultati.get(0).id);
+    }
+
+    @Test
+    void aggiornamentiIncrementaliTengonoAllineatoLIndice() {
+        indice.inserisci(1, "Garze sterili", 5, null);
+        assertEquals(3, indice.preleva(1, 2));
+        assertEquals(3, indice.cerca("garze", 10).get(0).quantita);
+
+        // Reinserimento con un altro nome: le parole vecchie non trovano più il prodotto
+        indice.inserisci(1, "Bende elastiche", 3, null);
+        assertEquals(List.of(), ids(indice.cerca("sterili", 10)));
+        assertEquals(List.of(1), ids(indice.cerca("bende", 10)));
+
+        assertEquals(MovementLedger.NON_NOTO, indice.preleva(1, 3));
+        assertEquals(0, indice.dimensione());
+        assertEquals(List.of(), ids(indice.cerca("bende", 10)));
+
+        indice.inserisci(2, "Aghi", 1, null);
+        indice.rimuovi(2);
+        assertEquals(List.of(), ids(indice.cerca("aghi", 10)));
+    }
+
+    @Test
+    void caricamentoSostituisceIlContenuto() throws Exception {
+        indice.inserisci(99, "Vecchio", 1, null);
+        indice.carica(archivio(List.of("Aghi", "Bende", "Cerotti")));
+        assertEquals(3, indice.dimensione());
+        assertEquals(List.of(), ids(indice.cerca("vecchio", 10)));
+        assertEquals(List.of(2), ids(indice.cerca("bende", 10)));
+    }
+
+    private static List<Integer> ids(List<SearchIndex.Risultato> risultati) {
+        return risultati.stream().map(r -> r.id).collect(Collectors.toList());
+    }
+
+    // Archivio con i nomi indicati e id da 1; elenca rispetta solo il cursore per id
+    private static InventoryRepository archivio(List<String> nomi) {
+        return (InventoryRepository) Proxy.newProxyInstance(InventoryRepository.class.getClassLoader(),
+                new Class<?>[]{InventoryRepository.class}, (proxy, metodo, args) -> {
+                    if (!"elenca".equals(metodo.getName())) {
+                        throw new UnsupportedOperationException(metodo.getName());
+                    }
+                    InventoryRepository.Filtro filtro = (InventoryRepository.Filtro) args[0];
+                    int limite = (Integer) args[1];
+                    InventoryRepository.Visitatore visitatore = (InventoryRepository.Visitatore) args[2];
+                    int da = filtro.dopoId != null ? filtro.dopoId : 0;
+                    for (int id = da + 1; id <= nomi.size() && id <= da + limite; id++) {
+                        visitatore.riga(id, nomi.get(id - 1), 1, null);
+                    }
+                    return null;
+                });
+    }
+}
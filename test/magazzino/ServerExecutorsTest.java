@@ -0,0 +1,43 @@
+package magazzino;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ServerExecutorsTest {
+
+    @Test
+    void modalitaSingleLasciaIlDispatcherDelJdk() {
+        assertNull(ServerExecutors.crea("SINGLE", 4, 4));
+        assertThrows(IllegalArgumentException.class, () -> ServerExecutors.crea("fork", 4, 4));
+    }
+
+    @Test
+    void poolConCodaPienaEsegueNelThreadChiamante() throws Exception {
+        ExecutorService pool = ServerExecutors.creaPool(1, 1, "prova");
+        CountDownLatch sblocca = new CountDownLatch(1);
+        try {
+            pool.execute(() -> {
+                try {
+                    sblocca.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            pool.execute(() -> { });
+            // Thread occupato e coda piena: la terza richiesta rallenta chi accetta le connessioni
+            String[] esecutore = new String[1];
+            pool.execute(() -> esecutore[0] = Thread.currentThread().getName());
+            assertEquals(Thread.currentThread().getName(), esecutore[0]);
+        } finally {
+            sblocca.countDown();
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package magazzino;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SiteRouterTest {
+    private final Site roma = new Site("roma", archivio());
+    private final Site milano = new Site("milano", archivio());
+    private final SiteRouter sedi = new SiteRouter(List.of(roma, milano));
+
+    @Test
+    void senzaParametroSiUsaLaPrimaSede() {
+        assertSame(roma, sedi.sede(null));
+        assertSame(roma, sedi.sede(""));
+        assertSame(milano, sedi.sede("milano"));
+    }
+
+    @Test
+    void sedeSconosciutaOTutteNonSonoAmmesse() {
+        assertThrows(IllegalArgumentException.class, () -> sedi.sede("napoli"));
+        assertThrows(IllegalArgumentException.class, () -> sedi.sede(SiteRouter.TUTTE));
+    }
+
+    @Test
+    void nomiDuplicatiORiservatiVengonoRifiutati() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new SiteRouter(List.of(roma, new Site("roma", archivio()))));
+        assertThrows(IllegalArgumentException.class,
+                () -> new SiteRouter(List.of(new Site(SiteRouter.TUTTE, archivio()))));
+    }
+
+    @Test
+    void letturaSuTutteInParalleloNellOrdineDelleSedi() throws Exception {
+        // Ogni lettura attende l'altra: passa solo se le sedi sono lette in parallelo
+        CountDownLatch entrambe = new CountDownLatch(2);
+        List<String> risultati = sedi.suTutte(sede -> {
+            entrambe.countDown();
+            try {
+                if (!entrambe.await(5, TimeUnit.SECONDS)) {
+                    throw new SQLException("letture non parallele");
+                }
+            } catch (InterruptedException e) {
+                throw new SQLException(e);
+            }
+            return sede.nome;
+        });
+        assertEquals(List.of("roma", "milano"), risultati);
+    }
+
+    @Test
+    void erroreDiUnaSedeFaFallireLaLettura() {
+        SQLException errore = assertThrows(SQLException.class, () -> sedi.suTutte(sede -> {
+            if (sede == milano) {
+                throw new SQLException("milano non raggiungibile");
+            }
+            return sede.nome;
+        }));
+        assertEquals("milano non raggiungibile", errore.getMessage());
+        assertThrows(IOException.class, () -> sedi.suTutte(sede -> {
+            throw new IOException("disco");
+        }));
+    }
+
+    private static InventoryRepository archivio() {
+        return (InventoryRepository) Proxy.newProxyInstance(InventoryRepository.class.getClassLoader(),
+                new Class<?>[]{InventoryRepository.class}, (proxy, metodo, args) -> {
+                    throw new UnsupportedOperationException(metodo.getName());
+                });
+    }
+}
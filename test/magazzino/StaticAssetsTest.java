@@ -0,0 +1,91 @@
+package magazzino;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StaticAssetsTest {
+    private static StaticAssets assets;
+
+    @BeforeAll
+    static void carica() throws IOException {
+        assets = StaticAssets.carica(Main.class);
+    }
+
+    @Test
+    void indexNonInCacheERiferimentiVersionati() throws IOException {
+        FakeExchange exchange = FakeExchange.get(StaticAssets.INDEX);
+        ByteArrayOutputStream corpo = new ByteArrayOutputStream();
+        exchange.setStreams(null, corpo);
+        assertTrue(assets.servi(exchange, StaticAssets.INDEX));
+
+        assertEquals("no-cache", exchange.getResponseHeaders().getFirst("Cache-Control"));
+        String html = corpo.toString(StandardCharsets.UTF_8);
+        assertTrue(html.matches("(?s).*\"/css/style\\.css\\?v=[0-9a-f]{16}\".*"), "riferimento al css non versionato");
+    }
+
+    @Test
+    void varianteGzipSoloSeAccettataEConEtagDistinto() throws IOException {
+        FakeExchange normale = FakeExchange.get("/css/style.css");
+        ByteArrayOutputStream corpoNormale = new ByteArrayOutputStream();
+        normale.setStreams(null, corpoNormale);
+        assets.servi(normale, "/css/style.css");
+        assertNull(normale.getResponseHeaders().getFirst("Content-Encoding"));
+        assertEquals("Accept-Encoding", normale.getResponseHeaders().getFirst("Vary"));
+        assertTrue(normale.getResponseHeaders().getFirst("Cache-Control").contains("immutable"));
+        assertArrayEquals(Files.readAllBytes(Path.of("src/magazzino/css/style.css")), corpoNormale.toByteArray());
+
+        FakeExchange compresso = FakeExchange.get("/css/style.css");
+        compresso.getRequestHeaders().set("Accept-Encoding", "gzip, deflate");
+        ByteArrayOutputStream corpoCompresso = new ByteArrayOutputStream();
+        compresso.setStreams(null, corpoCompresso);
+        assets.servi(compresso, "/css/style.css");
+        assertEquals("gzip", compresso.getResponseHeaders().getFirst("Content-Encoding"));
+        assertNotEquals(normale.getResponseHeaders().getFirst("ETag"), compresso.getResponseHeaders().getFirst("ETag"));
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(corpoCompresso.toByteArray()))) {
+            assertArrayEquals(corpoNormale.toByteArray(), gzip.readAllBytes());
+        }
+    }
+
+    @Test
+    void etagNotoRisponde304EHeadSenzaCorpo() throws IOException {
+        FakeExchange prima = FakeExchange.get("/js/script.js");
+        assets.servi(prima, "/js/script.js");
+
+        FakeExchange condizionale = FakeExchange.get("/js/script.js");
+        condizionale.getRequestHeaders().set("If-None-Match", prima.getResponseHeaders().getFirst("ETag"));
+        assets.servi(condizionale, "/js/script.js");
+        assertEquals(304, condizionale.stato());
+
+        FakeExchange head = new FakeExchange("HEAD", "/js/script.js", "");
+        assets.servi(head, "/js/script.js");
+        assertEquals(200, head.stato());
+        assertEquals(0, head.byteInviati());
+    }
+
+    @Test
+    void immaginiNonVengonoCompresseEIlResto404() throws IOException {
+        FakeExchange immagine = FakeExchange.get("/img/vet-logo.png");
+        immagine.getRequestHeaders().set("Accept-Encoding", "gzip");
+        assertTrue(assets.servi(immagine, "/img/vet-logo.png"));
+        assertEquals("image/png", immagine.getResponseHeaders().getFirst("Content-Type"));
+        assertNull(immagine.getResponseHeaders().getFirst("Content-Encoding"));
+
+        assertFalse(assets.servi(FakeExchange.get("/../pom.xml"), "/../pom.xml"));
+        assertFalse(assets.servi(FakeExchange.get("/magazzino/Main.class"), "/Main.class"));
+    }
+}